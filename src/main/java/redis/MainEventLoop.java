@@ -3,31 +3,71 @@ package redis;
 import redis.cache.Cache;
 import redis.cache.CachedValue;
 import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.cache.SortedSetAggregation;
 import redis.cache.StreamCache;
+import redis.cache.StreamConsumerGroup;
+import redis.cache.StreamId;
+import redis.config.OutputBufferLimit;
 import redis.config.RedisConfig;
 import redis.exception.RedisException;
+import redis.persistence.AppendOnlyFile;
+import redis.persistence.IncrementalSnapshot;
+import redis.persistence.RdbFile;
+import redis.persistence.RdbReader;
+import redis.pubsub.ChannelIndex;
+import redis.pubsub.PatternTrie;
+import redis.pubsub.ShardChannels;
+import redis.scripting.ScriptEngine;
 import redis.replication.EventReplicationService;
+import redis.replication.MasterSync;
+import redis.replication.Replica;
+import redis.replication.ReplicationBacklog;
 import redis.resp.*;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static redis.util.Logger.debug;
 import static redis.util.Logger.error;
+import static redis.util.Logger.warn;
 
 public class MainEventLoop implements AutoCloseable {
     private static final byte[] PONG = new RespSimpleString("PONG").serialize();
-    private static final RespArray ACK_COMMAND = new RespArray(List.of(
-            new RespBulkString("REPLCONF"),
-            new RespBulkString("GETACK"),
-            new RespBulkString("*")
-    ));
+    private static final long RECONNECT_INTERVAL_MILLIS = 1000;
+    // how often a replica reports its offset to its master unasked, like Redis does every second
+    private static final long ACK_INTERVAL_MILLIS = 1000;
+    private static final int MAX_AGGREGATION_ATTEMPTS = 3;
+    // how long an iteration of the loop encodes a BGSAVE snapshot, a batch of keys at a time, and how many encoded
+    // bytes may wait for the disk before it stops
+    private static final long SNAPSHOT_SLICE_NANOS = 2_000_000;
+    private static final int SNAPSHOT_BATCH = 64;
+    private static final long SNAPSHOT_MAX_UNWRITTEN = 16L * 1024 * 1024;
+    // how much of a full resync snapshot may wait for the replica's socket before the next slice is encoded
+    private static final long SYNC_TRANSFER_WINDOW = 4L * 1024 * 1024;
     private static final byte[] QUEUED = new RespSimpleString("QUEUED").serialize();
     private static final byte[] OK = new RespSimpleString("OK").serialize();
+    private static final byte[] NULL_ARRAY = "*-1\r\n".getBytes();
+    private static final Set<String> SCRIPT_DENIED_COMMANDS = Set.of("EVAL", "EVALSHA", "SCRIPT", "MULTI", "EXEC",
+            "DISCARD", "WATCH", "UNWATCH", "SUBSCRIBE", "UNSUBSCRIBE", "PSUBSCRIBE", "PUNSUBSCRIBE", "SSUBSCRIBE",
+            "SUNSUBSCRIBE", "WAIT", "PSYNC", "REPLCONF", "CLIENT", "SAVE", "BGSAVE");
+    // what a replica still serves while it loads its master's snapshot, the rest gets -LOADING
+    private static final Set<String> LOADING_ALLOWED_COMMANDS = Set.of("INFO", "CONFIG", "CLIENT", "ECHO", "SUBSCRIBE",
+            "UNSUBSCRIBE", "PSUBSCRIBE", "PUNSUBSCRIBE", "SSUBSCRIBE", "SUNSUBSCRIBE", "PUBLISH", "SPUBLISH");
+    private static final byte[] LOADING = new RespError("LOADING Redis is loading the dataset in memory").serialize();
+    private static final byte[] BUSY =
+            new RespError("BUSY Redis is busy running a script. You can only call SCRIPT KILL.").serialize();
     private final Selector selector;
     private final ServerSocketChannel serverChannel;
     private final Set<SocketChannel> servingClients;
@@ -37,13 +77,58 @@ public class MainEventLoop implements AutoCloseable {
     private final Cache cache;
     private final StreamCache streams;
     private final EventReplicationService replicationService;
-    private PendingWait pendingWait;
-    private String lastCommand;
+    // the connection to our master when running as a replica, null while disconnected
+    private ClientState masterLink;
+    private long nextReconnectAttempt;
+    private long nextAck;
+    // null once masterLink carries the stream
+    private MasterSync masterSync;
+    private final List<ReplicaWait> replicaWaits;
     private final Map<RespValue, Queue<PendingWait>> blPopWaiters;
-    private final Map<List<RespValue>, PendingWait> xReadWaiters;
+    private final PriorityQueue<BlockedStreamRead> streamReadTimeouts;
     private final Map<ClientState, Queue<RespArray>> transactions;
-    private final Map<ClientState, Set<RespValue>> pubSub;
+    private final ChannelIndex<ClientState> pubSub;
+    private final PatternTrie<ClientState> patternSubscriptions;
+    private final ShardChannels<ClientState> shardChannels;
+    private final List<ClientState> clientsToClose;
+    private final Map<RespValue, Set<ClientState>> watchedKeys;
+    private final ScriptEngine scripts;
+    // whether the running script wrote to the dataset, after which SCRIPT KILL is refused
+    private boolean scriptWrote;
     private final Map<RespValue, RedisSortedSet> sortedSets;
+    private final Map<RespValue, Queue<PendingZPop>> bzPopWaiters;
+    private final PriorityQueue<PendingZPop> bzPopTimeouts;
+    // ZUNION, ZINTER and ZDIFF commands whose inputs are being aggregated off the event loop
+    private final List<PendingAggregation> aggregations;
+    private final RdbFile rdbFile;
+    // the BGSAVE writing its snapshot to disk, null when none is running
+    private CompletableFuture<Void> backgroundSave;
+    // the snapshot of the BGSAVE, encoded a slice per iteration, and the file it goes to; null once fully encoded
+    private IncrementalSnapshot savingSnapshot;
+    private RdbFile.PartialFile savingFile;
+    // the encoded bytes handed to backgroundSave and not on disk yet
+    private final AtomicLong unwrittenBytes = new AtomicLong();
+    // full resync snapshots in progress, by replica
+    private final Map<ClientState, IncrementalSnapshot> syncSnapshots = new LinkedHashMap<>();
+    // unix time in seconds of the last successful save, the start time until then, as Redis reports it
+    private long lastSave;
+    private boolean lastBackgroundSaveFailed;
+    // whether backgroundSave is folding the RDB deltas into a new base rather than saving
+    private boolean compacting;
+    // under rdbcheckpoint delta, the keys written since the last save, which the next save writes as a delta
+    private final boolean deltaCheckpoints;
+    private Set<RespValue> dirtyKeys;
+    // the dirty keys of the delta a BGSAVE is writing, to track again if it fails; null for a full save
+    private Set<RespValue> savingKeys;
+    // whether the next save must write the whole keyspace: there is no base yet, it was replaced, or a full save
+    // that already stopped tracking the keys it covered failed
+    private boolean fullSaveNeeded;
+    // the append-only file of a master with appendonly yes, null otherwise
+    private final AppendOnlyFile appendOnlyFile;
+    // whether the append-only file is being replayed, its commands then being neither logged again nor replicated
+    private boolean replaying;
+    // clients whose replies wait for their writes to be synced to the append-only file, under appendfsync always
+    private final Set<ClientState> awaitingSync;
 
     public MainEventLoop(RedisConfig redisConfig, Cache cache, StreamCache streams) throws IOException {
         selector = Selector.open();
@@ -57,36 +142,90 @@ public class MainEventLoop implements AutoCloseable {
         config = redisConfig;
         this.cache = cache;
         this.streams = streams;
-        replicationService = new EventReplicationService(redisConfig, parser, 0L);
+        streams.setGroupListener(new GroupPropagation());
+        rdbFile = new RdbFile(redisConfig);
+        lastSave = System.currentTimeMillis() / 1000;
+        deltaCheckpoints = redisConfig.isDeltaCheckpoints();
+        dirtyKeys = new HashSet<>();
+        fullSaveNeeded = true;
+        appendOnlyFile = redisConfig.isAppendOnly() && redisConfig.getRole().equalsIgnoreCase("master")
+                ? new AppendOnlyFile(redisConfig, selector::wakeup)
+                : null;
+        awaitingSync = new HashSet<>();
+        replicationService = new EventReplicationService(redisConfig, 0L);
         blPopWaiters = new HashMap<>();
-        xReadWaiters = new HashMap<>();
+        streamReadTimeouts = new PriorityQueue<>(Comparator.comparingLong(waiter -> waiter.expiration));
         transactions = new HashMap<>();
-        pubSub = new HashMap<>();
+        pubSub = new ChannelIndex<>();
+        patternSubscriptions = new PatternTrie<>();
+        shardChannels = new ShardChannels<>();
+        clientsToClose = new ArrayList<>();
+        replicaWaits = new ArrayList<>();
+        watchedKeys = new HashMap<>();
+        scripts = new ScriptEngine(config.getLuaTimeLimit(), this::serveWhileBusy);
         sortedSets = new HashMap<>();
+        bzPopWaiters = new HashMap<>();
+        bzPopTimeouts = new PriorityQueue<>(Comparator.comparingLong(waiter -> waiter.expiration));
+        aggregations = new ArrayList<>();
     }
 
     public void serve() throws IOException {
+        // a replica takes its keyspace from the master instead
+        if (appendOnlyFile != null && appendOnlyFile.exists()) {
+            replayAppendOnlyFile();
+        } else if (config.getRole().equalsIgnoreCase("master")) {
+            rdbFile.load(new SnapshotLoader());
+            fullSaveNeeded = !rdbFile.hasBase();
+            if (appendOnlyFile != null) {
+                appendOnlyFile.create(cache, streams.streams(), sortedSets);
+            }
+        }
+        if (appendOnlyFile != null) {
+            appendOnlyFile.open();
+        }
         replication();
         runLoop();
     }
 
     private void runLoop() throws IOException {
         while (!Thread.currentThread().isInterrupted()) {
-            selector.select(10);
+            // an unfinished snapshot is encoded on every iteration, so the loop does not idle
+            selector.select(savingSnapshot != null || !syncSnapshots.isEmpty() ? 1 : 10);
+            releaseSyncedReplies();
+            replication();
             checkWaitClients();
             checkBlPopWaiters();
-            checkXReadWaiters();
-            Set<SelectionKey> keys = selector.selectedKeys();
+            checkStreamReadTimeouts();
+            checkBzPopWaiters();
+            checkAggregations();
+            encodeSnapshot();
+            encodeSyncSnapshots();
+            checkBackgroundSave();
+            // a script running past its time limit selects again while the keys are handled, see serveWhileBusy
+            Set<SelectionKey> selected = selector.selectedKeys();
+            List<SelectionKey> keys = List.copyOf(selected);
+            selected.clear();
             handleKeys(keys);
-            keys.clear();
+            if (appendOnlyFile != null) {
+                appendOnlyFile.flush(System.currentTimeMillis());
+            }
+            replicationService.sendAckRequest();
+            replicationService.sampleRates(System.currentTimeMillis());
+            wakeReplicas();
+            closeScheduledClients();
         }
     }
 
-    private void handleKeys(Set<SelectionKey> keys) {
+    private void handleKeys(List<SelectionKey> keys) {
         for (SelectionKey key : keys) {
+            if (!key.isValid()) {
+                continue;
+            }
             try {
                 if (key.isAcceptable()) {
                     handleAccept(key);
+                } else if (key.isConnectable()) {
+                    handleConnect(key);
                 } else if (key.isReadable()) {
                     handleRead(key);
                 } else if (key.isWritable()) {
@@ -100,6 +239,9 @@ public class MainEventLoop implements AutoCloseable {
                         key.channel().close();
                         servingClients.remove(client);
                     }
+                    if (key.attachment() instanceof ClientState state) {
+                        releaseClient(state);
+                    }
                 } catch (IOException closeException) {
                     error("Error closing channel %s: %s", key.channel(), closeException);
                 }
@@ -107,32 +249,192 @@ public class MainEventLoop implements AutoCloseable {
         }
     }
 
-    private void replication() throws IOException {
-        if (config.getRole().equalsIgnoreCase("slave")) {
-            SocketChannel replicationConnection = replicationService.establishReplication();
-            replicationConnection.configureBlocking(false);
-            SelectionKey registeredKey = replicationConnection.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            registeredKey.attach(new ClientState(registeredKey));
-            servingClients.add(replicationConnection);
-            debug("Accepted connection from %s", replicationConnection.getRemoteAddress());
-            servingClients.add(replicationConnection);
+    /**
+     * Connects to the master when running as a replica without a master link, and acknowledges the offset every
+     * second once in sync.
+     */
+    private void replication() {
+        long now = System.currentTimeMillis();
+        if (masterLink != null && masterSync == null && now >= nextAck) {
+            nextAck = now + ACK_INTERVAL_MILLIS;
+            sendResponse(masterLink, new RespArray(List.of(new RespBulkString("REPLCONF"), new RespBulkString("ACK"),
+                    new RespBulkString(Long.toString(replicationService.getOffset())))).serialize());
+        }
+        if (config.getRole().equalsIgnoreCase("slave") && masterLink == null
+            && System.currentTimeMillis() >= nextReconnectAttempt) {
+            nextReconnectAttempt = System.currentTimeMillis() + RECONNECT_INTERVAL_MILLIS;
+            SocketChannel replicationConnection = null;
+            try {
+                replicationConnection = SocketChannel.open();
+                replicationConnection.configureBlocking(false);
+                boolean connected = replicationConnection.connect(
+                        new InetSocketAddress(config.getMasterHost(), config.getMasterPort()));
+                SelectionKey registeredKey = replicationConnection.register(selector,
+                        connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+                masterLink = new ClientState(registeredKey);
+                registeredKey.attach(masterLink);
+                servingClients.add(replicationConnection);
+                if (connected) {
+                    startMasterSync();
+                }
+            } catch (IOException e) {
+                error("Failed to connect to master %s:%d: %s", config.getMasterHost(), config.getMasterPort(), e.getMessage());
+                if (replicationConnection != null) {
+                    try {
+                        replicationConnection.close();
+                    } catch (IOException closeException) {
+                        error("Error closing channel %s: %s", replicationConnection, closeException);
+                    }
+                }
+            }
+        }
+    }
+
+    private void handleConnect(SelectionKey key) throws IOException {
+        ((SocketChannel) key.channel()).finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+        debug("Connected to master %s:%d", config.getMasterHost(), config.getMasterPort());
+        startMasterSync();
+    }
+
+    private void startMasterSync() {
+        masterSync = new MasterSync(config, replicationService, command -> sendResponse(masterLink, command),
+                () -> {
+                    dropReplicas();
+                    flushKeyspace();
+                }, new SnapshotLoader());
+        masterSync.start();
+    }
+
+    /**
+     * Disconnects our own replicas on a full resync, since the history they follow is replaced.
+     */
+    private void dropReplicas() {
+        for (ClientState replica : replicationService.replicaClients()) {
+            scheduleClose(replica);
+        }
+        syncSnapshots.clear();
+    }
+
+    /**
+     * Empties the keyspace ahead of a full resync. Watched keys are all invalidated, as they would be by FLUSHALL.
+     */
+    private void flushKeyspace() {
+        for (IncrementalSnapshot snapshot : snapshots()) {
+            try {
+                snapshot.preserveAll();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        cache.clear();
+        streams.clear();
+        sortedSets.clear();
+        dirtyKeys.clear();
+        fullSaveNeeded = true;
+        for (Set<ClientState> clients : watchedKeys.values()) {
+            for (ClientState client : clients) {
+                client.watchedKeyTouched = true;
+            }
+        }
+    }
+
+    /**
+     * Runs the commands of the append-only file, as if a client sent them, to rebuild the keyspace it logged.
+     */
+    private void replayAppendOnlyFile() throws IOException {
+        ClientState loader = new ClientState(null);
+        replaying = true;
+        try {
+            appendOnlyFile.load(new SnapshotLoader(), command -> {
+                try {
+                    handleCommand(command, loader);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            replaying = false;
+        }
+    }
+
+    /**
+     * Sends a write to the replicas and logs it in the append-only file. Commands whose effect depends on when or
+     * where they run are given in the form that reproduces that effect, such as SET with an absolute expiry.
+     */
+    private void propagate(RespArray command) {
+        scriptWrote = true;
+        if (replaying || !config.getRole().equalsIgnoreCase("master")) {
+            return;
+        }
+        replicationService.propagate(command);
+        if (appendOnlyFile != null) {
+            appendOnlyFile.append(command);
+        }
+    }
+
+    /**
+     * Lets the clients whose writes were synced to the append-only file since the last iteration have their replies.
+     */
+    private void releaseSyncedReplies() {
+        if (awaitingSync.isEmpty()) {
+            return;
+        }
+        awaitingSync.removeIf(client -> {
+            if (!appendOnlyFile.isSynced(client.appendOffset)) {
+                return false;
+            }
+            if (client.key.isValid()) {
+                client.key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Asks for OP_WRITE on the replicas behind, once per iteration rather than per write.
+     */
+    private void wakeReplicas() {
+        for (ClientState replica : replicationService.replicasBehind()) {
+            if (replica.closing || !replica.key.isValid()) {
+                continue;
+            }
+            enforceOutputLimit(replica);
+            if (!replica.closing) {
+                replica.key.interestOps(replica.key.interestOps() | SelectionKey.OP_WRITE);
+            }
         }
     }
 
+    /**
+     * Answers the WAITs that enough replicas acknowledged, or that timed out.
+     */
     private void checkWaitClients() {
-        if (pendingWait != null
-            && (pendingWait.receivedAcks >= pendingWait.requiredAcks || System.currentTimeMillis() >= pendingWait.expiration)) {
-            sendResponse(pendingWait.state, new RespInteger(pendingWait.receivedAcks).serialize());
-            pendingWait = null;
+        if (replicaWaits.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<ReplicaWait> iterator = replicaWaits.iterator();
+        while (iterator.hasNext()) {
+            ReplicaWait wait = iterator.next();
+            wait.receivedAcks = replicationService.countAcknowledged(wait.targetOffset);
+            if (wait.receivedAcks >= wait.requiredAcks || now >= wait.expiration) {
+                iterator.remove();
+                wait.state.pendingForAcks = false;
+                sendResponse(wait.state, new RespInteger(wait.receivedAcks).serialize());
+            }
         }
     }
 
-    private void checkBlPopWaiters() {
-        Set<RespValue> keys = new HashSet<>(blPopWaiters.keySet());
-        keys.forEach(this::checkBlPopWaiters);
+    private void checkBlPopWaiters() throws IOException {
+        for (RespValue key : new HashSet<>(blPopWaiters.keySet())) {
+            checkBlPopWaiters(key);
+        }
     }
 
-    private boolean checkBlPopWaiters(RespValue key) {
+    private boolean checkBlPopWaiters(RespValue key) throws IOException {
         Queue<PendingWait> waiters = blPopWaiters.get(key);
         if (waiters != null) {
             PendingWait firstWaiter = waiters.peek();
@@ -148,6 +450,11 @@ public class MainEventLoop implements AutoCloseable {
             } else {
                 CachedValue<RespValue> cachedValue = cache.get(key);
                 if (cachedValue.value() instanceof RespArray array) {
+                    preserve(List.of(key));
+                    touch(key);
+                    // the list is dropped once a waiter is served
+                    propagate(new RespArray(List.of(new RespBulkString("LPOP"), key,
+                            new RespBulkString(Integer.toString(array.values().size())))));
                     firstWaiter = waiters.poll();
                     if (array.values().size() == 1) {
                         cache.remove(key);
@@ -169,27 +476,76 @@ public class MainEventLoop implements AutoCloseable {
         return false;
     }
 
-    private void checkXReadWaiters() {
-        var iterator = xReadWaiters.entrySet().iterator();
-        while (iterator.hasNext()) {
-            var entry = iterator.next();
+    private void checkStreamReadTimeouts() {
+        long currentTime = System.currentTimeMillis();
+        while (!streamReadTimeouts.isEmpty() && currentTime > streamReadTimeouts.peek().expiration) {
+            BlockedStreamRead waiter = streamReadTimeouts.poll();
+            if (!waiter.served) {
+                waiter.finish(new RespBulkString(null).serialize());
+            }
+        }
+    }
 
-            if (entry.getValue().expiration != -1 && System.currentTimeMillis() > entry.getValue().expiration) {
-                sendResponse(entry.getValue().state, new RespBulkString(null).serialize());
-                iterator.remove();
-            } else {
-                RespArray read = streams.xReadBlocking(entry.getKey());
-                if (!read.values().isEmpty()) {
-                    sendResponse(entry.getValue().state, read.serialize());
-                    iterator.remove();
-                }
+    private void checkBzPopWaiters() {
+        long currentTime = System.currentTimeMillis();
+        while (!bzPopTimeouts.isEmpty() && currentTime >= bzPopTimeouts.peek().expiration) {
+            PendingZPop waiter = bzPopTimeouts.poll();
+            if (!waiter.served) {
+                sendResponse(waiter.state, new RespBulkString(null).serialize());
+                dropBzPopWaiter(waiter);
+            }
+        }
+    }
+
+    private void dropBzPopWaiter(PendingZPop waiter) {
+        waiter.served = true;
+        waiter.state.blockedPop = null;
+        for (RespValue key : waiter.keys) {
+            Queue<PendingZPop> waiters = bzPopWaiters.get(key);
+            if (waiters != null && waiters.remove(waiter) && waiters.isEmpty()) {
+                bzPopWaiters.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Hands members of a sorted set that just received elements to the clients blocked on it, oldest first. Only
+     * called by the writes to {@code key}, which preserved it already.
+     */
+    private void serveBzPopWaiters(RespValue key) {
+        Queue<PendingZPop> waiters = bzPopWaiters.get(key);
+        if (waiters == null) {
+            return;
+        }
+        RedisSortedSet sortedSet = writableSortedSet(key);
+        while (!waiters.isEmpty() && sortedSet != null && sortedSet.count() > 0) {
+            PendingZPop waiter = waiters.poll();
+            if (waiter.served || !waiter.state.key.isValid()) {
+                continue;
             }
+            dropBzPopWaiter(waiter);
+            touch(key);
+            List<RespValue> popped = sortedSet.pop(1, waiter.max).values();
+            propagatePop(key, popped);
+            List<RespValue> response = new ArrayList<>();
+            response.add(key);
+            response.addAll(popped);
+            sendResponse(waiter.state, new RespArray(response).serialize());
+        }
+        if (sortedSet != null && sortedSet.count() == 0) {
+            sortedSets.remove(key);
+        }
+        if (waiters.isEmpty()) {
+            bzPopWaiters.remove(key);
         }
     }
 
     private void handleAccept(SelectionKey key) throws IOException {
         ServerSocketChannel server = (ServerSocketChannel) key.channel();
         SocketChannel client = server.accept();
+        if (client == null) {
+            return;
+        }
         client.configureBlocking(false);
         SelectionKey registeredKey = client.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         registeredKey.attach(new ClientState(registeredKey));
@@ -200,43 +556,61 @@ public class MainEventLoop implements AutoCloseable {
     private void handleRead(SelectionKey key) throws IOException {
         SocketChannel client = (SocketChannel) key.channel();
         ClientState state = (ClientState) key.attachment();
+        if (state.closing) {
+            return;
+        }
         buffer.clear();
         int bytesRead = client.read(buffer);
         if (bytesRead == -1 && !state.pendingForAcks) {
             debug("Client %s disconnected", client.getRemoteAddress());
             client.close();
             servingClients.remove(client);
+            releaseClient(state);
             return;
         }
         if (bytesRead == -1) {
             return;
         }
         buffer.flip();
-        List<RespValue> respValues = parser.parse(buffer);
+        if (state == masterLink) {
+            replicationService.recordInput(bytesRead);
+            state.lastInteraction = System.currentTimeMillis();
+        }
+        if (state == masterLink && masterSync != null) {
+            if (!masterSync.feed(buffer)) {
+                return;
+            }
+            ByteBuffer stream = masterSync.leftover();
+            masterSync = null;
+            if (!stream.hasRemaining()) {
+                return;
+            }
+            processCommands(key, state, stream);
+            return;
+        }
+        processCommands(key, state, buffer);
+    }
+
+    private void processCommands(SelectionKey key, ClientState state, ByteBuffer input) throws IOException {
+        List<RespValue> respValues = parser.parse(input);
+        int streamPosition = input.position();
 
         for (RespValue respValue : respValues) {
             if (respValue instanceof RespArray array) {
                 List<RespValue> values = array.values();
                 String command = ((RespBulkString) values.getFirst()).value();
-                if (pubSub.containsKey(state) &&
-                    !"SUBSCRIBE".equalsIgnoreCase(command)
-                    && !"UNSUBSCRIBE".equalsIgnoreCase(command)
-                    && !"PSUBSCRIBE".equalsIgnoreCase(command)
-                    && !"PUNSUBSCRIBE".equalsIgnoreCase(command)
-                    && !"PING".equalsIgnoreCase(command)
-                    && !"QUIT".equalsIgnoreCase(command)) {
-                    sendResponse(state, new RespError("ERR Can't execute '%s': only (P|S)SUBSCRIBE / (P|S)UNSUBSCRIBE / PING / QUIT / RESET are allowed in this context".formatted(command)).serialize());
-                } else if (!("EXEC".equalsIgnoreCase(command) || "DISCARD".equalsIgnoreCase(command)) && transactions.containsKey(state)) {
-                    transactions.get(state).add(array);
-                    sendResponse(state, QUEUED);
+                state.lastInteraction = System.currentTimeMillis();
+                if (state == masterLink) {
+                    state.lastCommand = command.toLowerCase();
+                    applyFromMaster(array, state, input, streamPosition);
+                } else if (state.pendingForAcks) {
+                    // like Redis, a client waiting for a reply has its next commands run once it got it
+                    state.deferredCommands.add(array);
                 } else {
-                    byte[] response = handleCommand(array, state);
-                    if (response != null) {
-                        sendResponse(state, response);
-                    }
+                    processCommand(state, array);
                 }
-                lastCommand = command;
             }
+            streamPosition += respValue.getSize();
         }
 
         if (!state.pendingForAcks) {
@@ -244,19 +618,90 @@ public class MainEventLoop implements AutoCloseable {
         }
     }
 
+    private void processCommand(ClientState state, RespArray array) throws IOException {
+        List<RespValue> values = array.values();
+        String command = ((RespBulkString) values.getFirst()).value();
+        state.lastCommand = command.toLowerCase();
+        if (isSubscribed(state) &&
+            !"SUBSCRIBE".equalsIgnoreCase(command)
+            && !"UNSUBSCRIBE".equalsIgnoreCase(command)
+            && !"PSUBSCRIBE".equalsIgnoreCase(command)
+            && !"PUNSUBSCRIBE".equalsIgnoreCase(command)
+            && !"SSUBSCRIBE".equalsIgnoreCase(command)
+            && !"SUNSUBSCRIBE".equalsIgnoreCase(command)
+            && !"PING".equalsIgnoreCase(command)
+            && !"QUIT".equalsIgnoreCase(command)) {
+            sendResponse(state, new RespError("ERR Can't execute '%s': only (P|S)SUBSCRIBE / (P|S)UNSUBSCRIBE / PING / QUIT / RESET are allowed in this context".formatted(command)).serialize());
+        } else if (masterSync != null && masterSync.isLoading()
+                   && !LOADING_ALLOWED_COMMANDS.contains(command.toUpperCase())) {
+            sendResponse(state, LOADING);
+        } else if (!("EXEC".equalsIgnoreCase(command) || "DISCARD".equalsIgnoreCase(command)
+                     || "WATCH".equalsIgnoreCase(command)) && transactions.containsKey(state)) {
+            transactions.get(state).add(array);
+            sendResponse(state, QUEUED);
+        } else {
+            long offset = replicationService.getOffset();
+            byte[] response = handleCommand(array, state);
+            recordWrites(state, offset);
+            if (response != null) {
+                sendResponse(state, response);
+            }
+        }
+    }
+
+    /**
+     * Runs the commands a client sent while it waited for a reply, until one of them makes it wait again.
+     */
+    private void processDeferredCommands(ClientState state) throws IOException {
+        while (!state.pendingForAcks && !state.deferredCommands.isEmpty() && !state.closing) {
+            processCommand(state, state.deferredCommands.poll());
+        }
+    }
+
+    /**
+     * Records where the replication stream and the append-only file ended after a command of {@code state}, which
+     * its WAIT and its replies wait for.
+     *
+     * @param offset the replication offset before the command
+     */
+    private void recordWrites(ClientState state, long offset) {
+        if (replicationService.getOffset() != offset && config.getRole().equalsIgnoreCase("master")) {
+            state.replicationOffset = replicationService.getOffset();
+        }
+        if (appendOnlyFile != null) {
+            state.appendOffset = appendOnlyFile.getAppendedBytes();
+        }
+    }
+
+    /**
+     * Applies a command of the replication stream, answering only GETACK, and forwards it to our own replicas as
+     * received so that they keep the same offsets as we do.
+     */
+    private void applyFromMaster(RespArray array, ClientState state, ByteBuffer input, int position) throws IOException {
+        byte[] response = handleCommand(array, state);
+        if (response != null && "REPLCONF".equalsIgnoreCase(((RespBulkString) array.values().getFirst()).value())) {
+            sendResponse(state, response);
+        }
+        byte[] received = new byte[array.getSize()];
+        input.get(position, received);
+        replicationService.forward(received);
+    }
+
     private byte[] handleCommand(RespArray array, ClientState state) throws IOException {
         List<RespValue> values = array.values();
         String command = ((RespBulkString) values.getFirst()).value();
+        preserve(values);
         return switch (command) {
             case "PING" -> ping(state);
             case "ECHO" -> echo(values);
             case "SET" -> set(values, array);
             case "GET" -> get(values);
             case "CONFIG" -> configGet(values);
-            case "KEYS" -> keys();
-            case "INFO" -> info();
-            case "REPLCONF" -> replConf(values, array);
-            case "PSYNC" -> pSync(state);
+            case "KEYS" -> keys(values);
+            case "INFO" -> info(values);
+            case "CLIENT" -> client(values, state);
+            case "REPLCONF" -> replConf(values, array, state);
+            case "PSYNC" -> pSync(values, state);
             case "WAIT" -> wait(values, state);
             case "RPUSH" -> rPush(values, array);
             case "LRANGE" -> lRange(values);
@@ -266,32 +711,326 @@ public class MainEventLoop implements AutoCloseable {
             case "BLPOP" -> blPop(values, state, array);
             case "TYPE" -> type(values);
             case "XADD" -> xAdd(values);
-            case "XRANGE" -> xRange(values);
+            case "XRANGE" -> xRange(values, false);
+            case "XREVRANGE" -> xRange(values, true);
+            case "XLEN" -> xLen(values);
+            case "XTRIM" -> xTrim(values);
             case "XREAD" -> xRead(values, state);
+            case "XGROUP" -> xGroup(values);
+            case "XREADGROUP" -> xReadGroup(values, state);
+            case "XACK" -> xAck(values);
+            case "XPENDING" -> xPending(values);
+            case "XCLAIM" -> xClaim(values);
+            case "XAUTOCLAIM" -> xAutoClaim(values);
             case "INCR" -> incr(values);
             case "MULTI" -> multi(state);
             case "EXEC" -> exec(state);
             case "DISCARD" -> discard(state);
+            case "WATCH" -> watch(values, state);
+            case "UNWATCH" -> unwatch(state);
+            case "EVAL" -> eval(values, state, false);
+            case "EVALSHA" -> eval(values, state, true);
+            case "SCRIPT" -> script(values);
+            case "SAVE" -> save();
+            case "BGSAVE" -> bgSave();
+            case "LASTSAVE" -> new RespInteger(lastSave).serialize();
             case "SUBSCRIBE" -> subscribe(values, state);
             case "PUBLISH" -> publish(values);
             case "UNSUBSCRIBE" -> unsubscribe(values, state);
+            case "PSUBSCRIBE" -> pSubscribe(values, state);
+            case "PUNSUBSCRIBE" -> pUnsubscribe(values, state);
+            case "SSUBSCRIBE" -> sSubscribe(values, state);
+            case "SUNSUBSCRIBE" -> sUnsubscribe(values, state);
+            case "SPUBLISH" -> sPublish(values);
             case "ZADD" -> zAdd(values);
             case "ZRANK" -> zRank(values);
             case "ZRANGE" -> zRange(values);
             case "ZCARD" -> zCard(values);
             case "ZSCORE" -> zScore(values);
             case "ZREM" -> zRem(values);
-            default -> new RespSimpleString("ERR unknown command").serialize();
+            case "ZPOPMIN" -> zPop(values, false);
+            case "ZPOPMAX" -> zPop(values, true);
+            case "BZPOPMIN" -> bzPop(values, state, false);
+            case "BZPOPMAX" -> bzPop(values, state, true);
+            case "ZUNION" -> zAggregate(values, state, SortedSetAggregation.Operation.UNION, false);
+            case "ZUNIONSTORE" -> zAggregate(values, state, SortedSetAggregation.Operation.UNION, true);
+            case "ZINTER" -> zAggregate(values, state, SortedSetAggregation.Operation.INTER, false);
+            case "ZINTERSTORE" -> zAggregate(values, state, SortedSetAggregation.Operation.INTER, true);
+            case "ZDIFF" -> zAggregate(values, state, SortedSetAggregation.Operation.DIFF, false);
+            case "ZDIFFSTORE" -> zAggregate(values, state, SortedSetAggregation.Operation.DIFF, true);
+            default -> new RespError("ERR unknown command").serialize();
         };
     }
 
+    private byte[] zPop(List<RespValue> values, boolean max) {
+        RespValue key = values.get(1);
+        int count = 1;
+        if (values.size() > 2) {
+            try {
+                count = Integer.parseInt(((RespBulkString) values.get(2)).value());
+            } catch (NumberFormatException _) {
+                return new RespError("ERR value is out of range, must be positive").serialize();
+            }
+            if (count < 0) {
+                return new RespError("ERR value is out of range, must be positive").serialize();
+            }
+        }
+        RedisSortedSet sortedSet = writableSortedSet(key);
+        if (sortedSet == null) {
+            return new RespArray(List.of()).serialize();
+        }
+        RespArray popped = sortedSet.pop(count, max);
+        if (!popped.values().isEmpty()) {
+            touch(key);
+            propagatePop(key, popped.values());
+        }
+        if (sortedSet.count() == 0) {
+            sortedSets.remove(key);
+        }
+        return popped.serialize();
+    }
+
+    /**
+     * Propagates members popped from {@code key} as their ZREM, which removes the same members wherever it is
+     * applied, where a ZPOPMIN or ZPOPMAX would pop whatever ranks first there.
+     *
+     * @param popped member and score pairs, as {@link RedisSortedSet#pop} returns them
+     */
+    private void propagatePop(RespValue key, List<RespValue> popped) {
+        List<RespValue> command = new ArrayList<>(popped.size() / 2 + 2);
+        command.add(new RespBulkString("ZREM"));
+        command.add(key);
+        for (int i = 0; i < popped.size(); i += 2) {
+            command.add(popped.get(i));
+        }
+        propagate(new RespArray(command));
+    }
+
+    private byte[] bzPop(List<RespValue> values, ClientState state, boolean max) {
+        if (values.size() < 3) {
+            return new RespError("ERR wrong number of arguments for '%s' command"
+                    .formatted(((RespBulkString) values.getFirst()).value().toLowerCase())).serialize();
+        }
+        double timeout;
+        try {
+            timeout = Double.parseDouble(((RespBulkString) values.getLast()).value());
+        } catch (NumberFormatException _) {
+            return new RespError("ERR timeout is not a float or out of range").serialize();
+        }
+        if (timeout < 0) {
+            return new RespError("ERR timeout is negative").serialize();
+        }
+        List<RespValue> keys = values.subList(1, values.size() - 1);
+        for (RespValue key : keys) {
+            RedisSortedSet sortedSet = sortedSets.get(key);
+            if (sortedSet != null && sortedSet.count() > 0) {
+                sortedSet = writableSortedSet(key);
+                touch(key);
+                List<RespValue> popped = sortedSet.pop(1, max).values();
+                propagatePop(key, popped);
+                List<RespValue> response = new ArrayList<>();
+                response.add(key);
+                response.addAll(popped);
+                if (sortedSet.count() == 0) {
+                    sortedSets.remove(key);
+                }
+                return new RespArray(response).serialize();
+            }
+        }
+        if (cannotBlock(state)) {
+            // blocking commands inside MULTI or a script behave like their non-blocking form
+            return new RespBulkString(null).serialize();
+        }
+
+        long expiration = timeout == 0 ? -1 : System.currentTimeMillis() + (long) (timeout * 1000);
+        PendingZPop waiter = new PendingZPop(state, expiration, max, List.copyOf(keys));
+        state.pendingForAcks = true;
+        state.blockedPop = waiter;
+        for (RespValue key : keys) {
+            bzPopWaiters.computeIfAbsent(key, k -> new LinkedList<>()).offer(waiter);
+        }
+        if (expiration != -1) {
+            bzPopTimeouts.offer(waiter);
+        }
+        return null;
+    }
+
+    private byte[] zAggregate(List<RespValue> values, ClientState state, SortedSetAggregation.Operation operation,
+                             boolean store) {
+        String command = ((RespBulkString) values.getFirst()).value().toLowerCase();
+        int index = store ? 2 : 1;
+        if (values.size() <= index) {
+            return new RespError("ERR wrong number of arguments for '%s' command".formatted(command)).serialize();
+        }
+        int numKeys;
+        try {
+            numKeys = Integer.parseInt(((RespBulkString) values.get(index)).value());
+        } catch (NumberFormatException _) {
+            return new RespError("ERR value is not an integer or out of range").serialize();
+        }
+        if (numKeys < 1) {
+            return new RespError("ERR at least 1 input key is needed for '%s' command".formatted(command)).serialize();
+        }
+        index++;
+        if (values.size() < index + numKeys) {
+            return new RespError("ERR syntax error").serialize();
+        }
+        List<RespValue> keys = values.subList(index, index + numKeys);
+        index += numKeys;
+
+        double[] weights = null;
+        SortedSetAggregation.Aggregate aggregate = SortedSetAggregation.Aggregate.SUM;
+        boolean withScores = false;
+        while (index < values.size()) {
+            String option = ((RespBulkString) values.get(index)).value().toUpperCase();
+            if ("WEIGHTS".equals(option) && operation != SortedSetAggregation.Operation.DIFF
+                && values.size() > index + numKeys) {
+                weights = new double[numKeys];
+                for (int i = 0; i < numKeys; i++) {
+                    try {
+                        weights[i] = Double.parseDouble(((RespBulkString) values.get(index + 1 + i)).value());
+                    } catch (NumberFormatException _) {
+                        return new RespError("ERR weight value is not a float").serialize();
+                    }
+                }
+                index += numKeys + 1;
+            } else if ("AGGREGATE".equals(option) && operation != SortedSetAggregation.Operation.DIFF
+                       && values.size() > index + 1) {
+                try {
+                    aggregate = SortedSetAggregation.Aggregate.valueOf(
+                            ((RespBulkString) values.get(index + 1)).value().toUpperCase());
+                } catch (IllegalArgumentException _) {
+                    return new RespError("ERR syntax error").serialize();
+                }
+                index += 2;
+            } else if ("WITHSCORES".equals(option) && !store) {
+                withScores = true;
+                index++;
+            } else {
+                return new RespError("ERR syntax error").serialize();
+            }
+        }
+
+        SortedSetAggregation aggregation = new SortedSetAggregation(operation, weights, aggregate);
+        List<RedisSortedSet> inputs = sortedSetsOf(keys);
+        if (SortedSetAggregation.isParallel(inputs) && canAnswerLater(state)) {
+            PendingAggregation pending = new PendingAggregation(state, values, keys, aggregation, withScores, store);
+            pending.start();
+            aggregations.add(pending);
+            state.pendingForAcks = true;
+            return null;
+        }
+        RedisSortedSet result = aggregation.apply(inputs);
+        return store ? storeAggregation(values, result) : result.range(0, -1, withScores).serialize();
+    }
+
+    private List<RedisSortedSet> sortedSetsOf(List<RespValue> keys) {
+        List<RedisSortedSet> inputs = new ArrayList<>(keys.size());
+        for (RespValue key : keys) {
+            inputs.add(sortedSets.get(key));
+        }
+        return inputs;
+    }
+
+    /**
+     * Stores the result of a ZUNIONSTORE, ZINTERSTORE or ZDIFFSTORE, which is propagated as the command itself: its
+     * inputs are the same wherever it is applied next.
+     */
+    private byte[] storeAggregation(List<RespValue> values, RedisSortedSet result) {
+        RespValue destination = values.get(1);
+        try {
+            preserve(List.of(destination));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (result.count() == 0) {
+            sortedSets.remove(destination);
+        } else {
+            sortedSets.put(destination, result);
+        }
+        int stored = result.count();
+        touch(destination);
+        propagate(new RespArray(values));
+        serveBzPopWaiters(destination);
+        return new RespInteger(stored).serialize();
+    }
+
+    /**
+     * Answers the aggregations whose tasks completed. A STORE whose inputs were written while it ran is started
+     * again on the current inputs, and computed on the event loop once it has been overtaken too many times.
+     */
+    private void checkAggregations() {
+        Iterator<PendingAggregation> iterator = aggregations.iterator();
+        while (iterator.hasNext()) {
+            PendingAggregation pending = iterator.next();
+            if (!pending.result.isDone()) {
+                continue;
+            }
+            boolean stale = pending.store && pending.isStale();
+            pending.release();
+            if (stale && pending.attempts < MAX_AGGREGATION_ATTEMPTS) {
+                pending.start();
+                continue;
+            }
+            iterator.remove();
+            byte[] response;
+            try {
+                RedisSortedSet result = stale
+                        ? pending.aggregation.apply(sortedSetsOf(pending.keys))
+                        : pending.result.join();
+                if (pending.store) {
+                    long offset = replicationService.getOffset();
+                    response = storeAggregation(pending.command, result);
+                    recordWrites(pending.state, offset);
+                } else {
+                    response = result.range(0, -1, pending.withScores).serialize();
+                }
+            } catch (CompletionException e) {
+                error("Failed to aggregate %s: %s", pending.keys, e.getCause());
+                response = new RespError("ERR " + e.getCause().getMessage()).serialize();
+            }
+            if (pending.state.key.isValid()) {
+                sendResponse(pending.state, response);
+            }
+        }
+    }
+
+    /**
+     * @return the sorted set of {@code key} ready to be modified, a copy taking its place when an aggregation still
+     * reads it, {@code null} when there is none
+     */
+    private RedisSortedSet writableSortedSet(RespValue key) {
+        RedisSortedSet sortedSet = sortedSets.get(key);
+        if (sortedSet != null && sortedSet.isShared()) {
+            sortedSet = sortedSet.copy();
+            sortedSets.put(key, sortedSet);
+        }
+        return sortedSet;
+    }
+
     private byte[] zRem(List<RespValue> values) {
+        if (values.size() < 3) {
+            return new RespError("ERR wrong number of arguments for 'zrem' command").serialize();
+        }
         RespValue key = values.get(1);
-        if (!sortedSets.containsKey(key)) {
+        RedisSortedSet sortedSet = writableSortedSet(key);
+        if (sortedSet == null) {
             return new RespInteger(0).serialize();
         }
-        RespValue value = values.get(2);
-        return sortedSets.get(key).remove(value).serialize();
+        int removed = 0;
+        for (RespValue value : values.subList(2, values.size())) {
+            if (sortedSet.remove(value)) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            touch(key);
+            propagate(new RespArray(values));
+        }
+        if (sortedSet.count() == 0) {
+            sortedSets.remove(key);
+        }
+        return new RespInteger(removed).serialize();
     }
 
     private byte[] zScore(List<RespValue> values) {
@@ -343,46 +1082,148 @@ public class MainEventLoop implements AutoCloseable {
         RespValue key = values.get(1);
         double score = Double.parseDouble(((RespBulkString) values.get(2)).value());
         RespValue value = values.get(3);
-        boolean added = sortedSets.computeIfAbsent(key, k -> new RedisSortedSet()).add(value, score);
+        RedisSortedSet sortedSet = writableSortedSet(key);
+        if (sortedSet == null) {
+            sortedSet = new RedisSortedSet();
+            sortedSets.put(key, sortedSet);
+        }
+        boolean added = sortedSet.add(value, score);
+        touch(key);
+        propagate(new RespArray(values));
+        serveBzPopWaiters(key);
         return new RespInteger(added ? 1 : 0).serialize();
     }
 
     private byte[] unsubscribe(List<RespValue> values, ClientState state) {
-        RespValue channel = values.get(1);
-        Set<RespValue> subscriptions = pubSub.get(state);
-        if (subscriptions == null) {
-            return new RespArray(List.of(new RespBulkString("unsubscribe"), channel, new RespInteger(0))).serialize();
+        List<RespValue> channels = values.size() > 1 ? values.subList(1, values.size()) : pubSub.channels(state);
+        if (channels.isEmpty()) {
+            return subscriptionReply("unsubscribe", new RespBulkString(null), subscriptionCount(state)).serialize();
         }
+        RespWriter writer = new RespWriter();
+        for (RespValue channel : channels) {
+            pubSub.unsubscribe(state, channel);
+            writer.value(subscriptionReply("unsubscribe", channel, subscriptionCount(state)));
+        }
+        return writer.toByteArray();
+    }
 
-        subscriptions.remove(channel);
-        if (subscriptions.isEmpty()) {
-            pubSub.remove(state);
+    private byte[] pUnsubscribe(List<RespValue> values, ClientState state) {
+        List<RespValue> patterns = values.size() > 1
+                ? values.subList(1, values.size())
+                : patternSubscriptions.patterns(state);
+        if (patterns.isEmpty()) {
+            return subscriptionReply("punsubscribe", new RespBulkString(null), subscriptionCount(state)).serialize();
+        }
+        RespWriter writer = new RespWriter();
+        for (RespValue pattern : patterns) {
+            patternSubscriptions.unsubscribe(state, pattern);
+            writer.value(subscriptionReply("punsubscribe", pattern, subscriptionCount(state)));
         }
-        return new RespArray(List.of(new RespBulkString("unsubscribe"), channel, new RespInteger(subscriptions.size()))).serialize();
+        return writer.toByteArray();
     }
 
     private byte[] publish(List<RespValue> values) {
         RespValue channel = values.get(1);
         RespValue content = values.get(2);
-        int subscriptions = 0;
-        for (var entry : pubSub.entrySet()) {
-            if (entry.getValue().contains(channel)) {
-                subscriptions++;
-                sendResponse(entry.getKey(), new RespArray(List.of(new RespBulkString("message"), channel, content)).serialize());
+        Set<ClientState> subscribers = pubSub.subscribers(channel);
+        int receivers = subscribers.size();
+        if (!subscribers.isEmpty()) {
+            // encoded once, every subscriber gets its own read position over the same bytes
+            ByteBuffer message = ByteBuffer.wrap(
+                    new RespArray(List.of(new RespBulkString("message"), channel, content)).serialize()).asReadOnlyBuffer();
+            for (ClientState subscriber : subscribers) {
+                sendResponse(subscriber, message.duplicate());
             }
         }
-        return new RespInteger(subscriptions).serialize();
+        int[] patternReceivers = new int[1];
+        patternSubscriptions.match(((RespBulkString) channel).value(), (pattern, patternSubscribers) -> {
+            ByteBuffer message = ByteBuffer.wrap(new RespArray(List.of(
+                    new RespBulkString("pmessage"), pattern, channel, content)).serialize()).asReadOnlyBuffer();
+            for (ClientState subscriber : patternSubscribers) {
+                sendResponse(subscriber, message.duplicate());
+            }
+            patternReceivers[0] += patternSubscribers.size();
+        });
+        return new RespInteger(receivers + patternReceivers[0]).serialize();
     }
 
     private byte[] subscribe(List<RespValue> values, ClientState state) {
+        RespWriter writer = new RespWriter();
+        for (RespValue channel : values.subList(1, values.size())) {
+            pubSub.subscribe(state, channel);
+            writer.value(subscriptionReply("subscribe", channel, subscriptionCount(state)));
+        }
+        return writer.toByteArray();
+    }
+
+    private byte[] pSubscribe(List<RespValue> values, ClientState state) {
+        RespWriter writer = new RespWriter();
+        for (RespValue pattern : values.subList(1, values.size())) {
+            patternSubscriptions.subscribe(state, pattern);
+            writer.value(subscriptionReply("psubscribe", pattern, subscriptionCount(state)));
+        }
+        return writer.toByteArray();
+    }
+
+    private byte[] sSubscribe(List<RespValue> values, ClientState state) {
+        List<RespValue> channels = values.subList(1, values.size());
+        if (channels.stream().mapToInt(ShardChannels::slot).distinct().count() > 1) {
+            return new RespError("CROSSSLOT Keys in request don't hash to the same slot").serialize();
+        }
+        RespWriter writer = new RespWriter();
+        for (RespValue channel : channels) {
+            int subscriptions = shardChannels.subscribe(state, channel);
+            writer.value(subscriptionReply("ssubscribe", channel, subscriptions));
+        }
+        return writer.toByteArray();
+    }
+
+    private byte[] sUnsubscribe(List<RespValue> values, ClientState state) {
+        List<RespValue> channels = values.size() > 1 ? values.subList(1, values.size()) : shardChannels.channels(state);
+        if (channels.isEmpty()) {
+            return subscriptionReply("sunsubscribe", new RespBulkString(null), 0).serialize();
+        }
+        RespWriter writer = new RespWriter();
+        for (RespValue channel : channels) {
+            int remaining = shardChannels.unsubscribe(state, channel);
+            writer.value(subscriptionReply("sunsubscribe", channel, remaining));
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Delivers to the subscribers of the channel's slot only; this server runs a single event loop that owns every
+     * slot, so the slot's index is always local.
+     */
+    private byte[] sPublish(List<RespValue> values) {
         RespValue channel = values.get(1);
-        pubSub.computeIfAbsent(state, k -> new HashSet<>()).add(channel);
-        return new RespArray(List.of(new RespBulkString("subscribe"), channel, new RespInteger(pubSub.get(state).size()))).serialize();
+        Set<ClientState> subscribers = shardChannels.subscribers(channel);
+        if (!subscribers.isEmpty()) {
+            ByteBuffer message = ByteBuffer.wrap(new RespArray(List.of(
+                    new RespBulkString("smessage"), channel, values.get(2))).serialize()).asReadOnlyBuffer();
+            for (ClientState subscriber : subscribers) {
+                sendResponse(subscriber, message.duplicate());
+            }
+        }
+        return new RespInteger(subscribers.size()).serialize();
+    }
+
+    private static RespArray subscriptionReply(String kind, RespValue channel, int subscriptions) {
+        return new RespArray(List.of(new RespBulkString(kind), channel, new RespInteger(subscriptions)));
+    }
+
+    private boolean isSubscribed(ClientState state) {
+        return pubSub.isSubscribed(state) || patternSubscriptions.isSubscribed(state) || shardChannels.isSubscribed(state);
+    }
+
+    private int subscriptionCount(ClientState state) {
+        return pubSub.subscriptionCount(state) + patternSubscriptions.subscriptionCount(state);
     }
 
     private byte[] discard(ClientState state) {
         if (transactions.containsKey(state)) {
             transactions.remove(state);
+            unwatchAll(state);
             return OK;
         } else {
             return new RespError("ERR DISCARD without MULTI").serialize();
@@ -393,16 +1234,245 @@ public class MainEventLoop implements AutoCloseable {
         if (!transactions.containsKey(state)) {
             return new RespError("ERR EXEC without MULTI").serialize();
         } else {
-            byte[] response = exec(transactions.get(state), state);
-            transactions.remove(state);
-            return response;
+            Queue<RespArray> queue = transactions.remove(state);
+            boolean aborted = state.watchedKeyTouched;
+            unwatchAll(state);
+            return aborted ? NULL_ARRAY : exec(queue, state);
+        }
+    }
+
+    private byte[] eval(List<RespValue> values, ClientState state, boolean bySha) {
+        if (values.size() < 3) {
+            return new RespError("ERR wrong number of arguments for '%s' command"
+                    .formatted(bySha ? "evalsha" : "eval")).serialize();
+        }
+        int numberOfKeys;
+        try {
+            numberOfKeys = Integer.parseInt(((RespBulkString) values.get(2)).value());
+        } catch (NumberFormatException _) {
+            return new RespError("ERR value is not an integer or out of range").serialize();
+        }
+        if (numberOfKeys < 0) {
+            return new RespError("ERR Number of keys can't be negative").serialize();
+        }
+        if (numberOfKeys > values.size() - 3) {
+            return new RespError("ERR Number of keys can't be greater than number of args").serialize();
+        }
+        String script = ((RespBulkString) values.get(1)).value();
+        String sha;
+        try {
+            sha = bySha ? script : scripts.load(script);
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+        state.runningScript = true;
+        scriptWrote = false;
+        try {
+            return scripts.run(sha, values.subList(3, 3 + numberOfKeys), values.subList(3 + numberOfKeys, values.size()),
+                    command -> scriptCommand(command, state)).serialize();
+        } finally {
+            state.runningScript = false;
+        }
+    }
+
+    /**
+     * Runs a {@code redis.call} from a script through the regular command handlers.
+     */
+    private RespValue scriptCommand(List<RespValue> command, ClientState state) {
+        String name = ((RespBulkString) command.getFirst()).value();
+        if (SCRIPT_DENIED_COMMANDS.contains(name)) {
+            return new RespError("ERR This Redis command is not allowed from script");
+        }
+        try {
+            byte[] reply = handleCommand(new RespArray(command), state);
+            return reply == null ? new RespBulkString(null) : parser.parse(reply).getFirst();
+        } catch (IOException e) {
+            throw new RedisException(e);
+        }
+    }
+
+    private byte[] script(List<RespValue> values) {
+        if (values.size() < 2) {
+            return new RespError("ERR wrong number of arguments for 'script' command").serialize();
+        }
+        String subcommand = ((RespBulkString) values.get(1)).value().toUpperCase();
+        return switch (subcommand) {
+            case "LOAD" -> {
+                if (values.size() != 3) {
+                    yield new RespError("ERR wrong number of arguments for 'script|load' command").serialize();
+                }
+                try {
+                    yield new RespBulkString(scripts.load(((RespBulkString) values.get(2)).value())).serialize();
+                } catch (IllegalArgumentException e) {
+                    yield new RespError("ERR " + e.getMessage()).serialize();
+                }
+            }
+            case "EXISTS" -> new RespArray(values.subList(2, values.size()).stream()
+                    .<RespValue>map(sha -> new RespInteger(scripts.exists(((RespBulkString) sha).value()) ? 1 : 0))
+                    .toList()).serialize();
+            case "FLUSH" -> {
+                scripts.flush();
+                yield OK;
+            }
+            case "KILL" -> scriptKill();
+            default -> new RespError("ERR unknown subcommand '%s'. Try SCRIPT HELP.".formatted(subcommand)).serialize();
+        };
+    }
+
+    private byte[] scriptKill() {
+        if (!scripts.isBusy()) {
+            return new RespError("NOTBUSY No scripts in execution right now.").serialize();
+        }
+        if (scriptWrote) {
+            return new RespError("UNKILLABLE Sorry the script already executed write commands against the dataset. "
+                                 + "You can either wait the script termination or kill the server in a hard way.")
+                    .serialize();
+        }
+        scripts.kill();
+        return OK;
+    }
+
+    /**
+     * Called by a script running past its time limit. Like Redis, the other clients get their replies flushed and
+     * their commands answered BUSY, but for SCRIPT KILL. Clients waiting for a reply, the master and the replicas
+     * are left for after the script, since they must get their data in order.
+     */
+    private void serveWhileBusy() {
+        try {
+            selector.selectNow();
+            Set<SelectionKey> selected = selector.selectedKeys();
+            List<SelectionKey> keys = List.copyOf(selected);
+            selected.clear();
+            for (SelectionKey key : keys) {
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    handleAccept(key);
+                    continue;
+                }
+                if (!(key.attachment() instanceof ClientState state) || state.runningScript || state == masterLink
+                    || state.replica || state.closing || state.pendingForAcks || !state.deferredCommands.isEmpty()) {
+                    continue;
+                }
+                if (key.isReadable()) {
+                    answerBusy(key, state);
+                } else if (key.isWritable()) {
+                    handleWrite(key);
+                }
+            }
+        } catch (IOException e) {
+            error("Error serving clients while a script runs: %s", e);
+        }
+    }
+
+    private void answerBusy(SelectionKey key, ClientState state) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        ByteBuffer input = ByteBuffer.allocate(buffer.capacity());
+        if (client.read(input) == -1) {
+            debug("Client %s disconnected", client.getRemoteAddress());
+            client.close();
+            servingClients.remove(client);
+            releaseClient(state);
+            return;
+        }
+        input.flip();
+        for (RespValue value : parser.parse(input)) {
+            if (value instanceof RespArray array && array.values().size() == 2
+                && "SCRIPT".equalsIgnoreCase(((RespBulkString) array.values().get(0)).value())
+                && "KILL".equalsIgnoreCase(((RespBulkString) array.values().get(1)).value())) {
+                sendResponse(state, scriptKill());
+            } else {
+                sendResponse(state, BUSY);
+            }
+        }
+    }
+
+    /**
+     * Blocking commands run inside MULTI or a script must answer right away.
+     */
+    private boolean cannotBlock(ClientState state) {
+        return state.runningScript || state.runningTransaction || transactions.containsKey(state);
+    }
+
+    /**
+     * Whether a command may answer from a later iteration of the loop, as blocked clients do. Beyond what
+     * {@link #cannotBlock} excludes, the commands of the master and of the append-only file must take effect in the
+     * order they come in.
+     */
+    private boolean canAnswerLater(ClientState state) {
+        return !cannotBlock(state) && state != masterLink && !replaying;
+    }
+
+    private byte[] watch(List<RespValue> values, ClientState state) {
+        if (transactions.containsKey(state)) {
+            return new RespError("ERR WATCH inside MULTI is not allowed").serialize();
+        }
+        if (values.size() < 2) {
+            return new RespError("ERR wrong number of arguments for 'watch' command").serialize();
+        }
+        for (RespValue key : values.subList(1, values.size())) {
+            if (state.watchedKeys.add(key)) {
+                watchedKeys.computeIfAbsent(key, k -> new HashSet<>()).add(state);
+            }
+        }
+        return OK;
+    }
+
+    private byte[] unwatch(ClientState state) {
+        unwatchAll(state);
+        return OK;
+    }
+
+    private void unwatchAll(ClientState state) {
+        for (RespValue key : state.watchedKeys) {
+            Set<ClientState> clients = watchedKeys.get(key);
+            clients.remove(state);
+            if (clients.isEmpty()) {
+                watchedKeys.remove(key);
+            }
+        }
+        state.watchedKeys.clear();
+        state.watchedKeyTouched = false;
+    }
+
+    /**
+     * Signals a modification of {@code key}: every client watching it will have its next EXEC aborted. Keys nobody
+     * watches cost a single emptiness check, or one lookup while some client watches anything. The key is also
+     * marked dirty for the next delta save.
+     */
+    private void touch(RespValue key) {
+        markDirty(key);
+        if (watchedKeys.isEmpty()) {
+            return;
+        }
+        Set<ClientState> clients = watchedKeys.get(key);
+        if (clients != null) {
+            for (ClientState client : clients) {
+                client.watchedKeyTouched = true;
+            }
+        }
+    }
+
+    /**
+     * Records a write to {@code key} for the next delta save. Writes that no client can watch, as those to the
+     * consumer groups of a stream, only call this.
+     */
+    private void markDirty(RespValue key) {
+        if (deltaCheckpoints && !fullSaveNeeded) {
+            dirtyKeys.add(key);
         }
     }
 
     private byte[] exec(Queue<RespArray> queue, ClientState state) throws IOException {
         List<byte[]> responses = new ArrayList<>(queue.size());
-        while (!queue.isEmpty()) {
-            responses.add(handleCommand(queue.poll(), state));
+        state.runningTransaction = true;
+        try {
+            while (!queue.isEmpty()) {
+                responses.add(handleCommand(queue.poll(), state));
+            }
+        } finally {
+            state.runningTransaction = false;
         }
         int totalSize = 0;
         for (byte[] response : responses) {
@@ -431,63 +1501,539 @@ public class MainEventLoop implements AutoCloseable {
         return new RespBulkString("OK").serialize();
     }
 
+    /**
+     * Stores the incremented value as a new string, keeping the expiration time, rather than changing the cached
+     * one, which for a missing key is the placeholder all of them share.
+     */
     private byte[] incr(List<RespValue> values) {
         RespValue key = values.get(1);
         CachedValue<RespValue> cachedValue = cache.get(key);
-        RespBulkString respBulkString = (RespBulkString) cachedValue.value();
+        if (!(cachedValue.value() instanceof RespBulkString string)) {
+            return new RespError("WRONGTYPE Operation against a key holding the wrong kind of value").serialize();
+        }
+        long incremented;
         try {
-            if (respBulkString.value() == null) {
-                respBulkString.setValue("1");
-            } else {
-                respBulkString.setValue(Long.toString(Long.parseLong(respBulkString.value()) + 1));
+            incremented = string.value() == null ? 1 : Math.addExact(Long.parseLong(string.value()), 1);
+        } catch (NumberFormatException _) {
+            return new RespError("ERR value is not an integer or out of range").serialize();
+        } catch (ArithmeticException _) {
+            return new RespError("ERR increment or decrement would overflow").serialize();
+        }
+        cache.put(key, new RespBulkString(Long.toString(incremented)), cachedValue.expirationTime());
+        touch(key);
+        propagate(new RespArray(values));
+        return new RespInteger(incremented).serialize();
+    }
+
+    private byte[] xRead(List<RespValue> values, ClientState state) {
+        long timeout = -1;
+        int count = 0;
+        int index = 1;
+        while (index < values.size()) {
+            String option = ((RespBulkString) values.get(index)).value().toUpperCase();
+            if ("STREAMS".equals(option)) {
+                index++;
+                break;
+            }
+            switch (option) {
+                case "COUNT" -> {
+                    try {
+                        count = Integer.parseInt(((RespBulkString) values.get(index + 1)).value());
+                    } catch (NumberFormatException | IndexOutOfBoundsException _) {
+                        return new RespError("ERR value is not an integer or out of range").serialize();
+                    }
+                    index += 2;
+                }
+                case "BLOCK" -> {
+                    try {
+                        timeout = Long.parseLong(((RespBulkString) values.get(index + 1)).value());
+                    } catch (NumberFormatException | IndexOutOfBoundsException _) {
+                        return new RespError("ERR timeout is not an integer or out of range").serialize();
+                    }
+                    index += 2;
+                }
+                default -> {
+                    return new RespError("ERR syntax error").serialize();
+                }
+            }
+        }
+        int streamArguments = values.size() - index;
+        if (streamArguments == 0 || streamArguments % 2 != 0) {
+            return new RespError("ERR Unbalanced 'xread' list of streams: for each stream key an ID or '$' must be specified.")
+                    .serialize();
+        }
+        List<RespValue> keys = streams.resolveLastIds(values.subList(index, values.size()));
+        int readCount = count;
+        try {
+            if (timeout < 0) {
+                return streams.xRead(keys, count);
+            }
+            byte[] data = streams.xReadBlocking(keys, count);
+            if (data != null || cannotBlock(state)) {
+                return data != null ? data : new RespBulkString(null).serialize();
+            }
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+        block(new BlockedStreamRead(state, timeout, keys.subList(0, keys.size() / 2),
+                () -> streams.xReadBlocking(keys, readCount)));
+        return null;
+    }
+
+    private void block(BlockedStreamRead waiter) {
+        waiter.state.pendingForAcks = true;
+        waiter.state.blockedRead = waiter;
+        for (RespValue key : waiter.keys) {
+            streams.addListener(key, waiter);
+        }
+        if (waiter.expiration != -1) {
+            streamReadTimeouts.offer(waiter);
+        }
+    }
+
+    private byte[] xGroup(List<RespValue> values) {
+        if (values.size() < 4) {
+            return new RespError("ERR wrong number of arguments for 'xgroup' command").serialize();
+        }
+        String subcommand = ((RespBulkString) values.get(1)).value().toUpperCase();
+        RespValue key = values.get(2);
+        String group = ((RespBulkString) values.get(3)).value();
+        RespValue result;
+        try {
+            result = switch (subcommand) {
+                case "CREATE" -> values.size() < 5
+                        ? new RespError("ERR wrong number of arguments for 'xgroup|create' command")
+                        : streams.createGroup(key, group, ((RespBulkString) values.get(4)).value(),
+                        values.subList(5, values.size()).stream()
+                                .anyMatch(option -> "MKSTREAM".equalsIgnoreCase(((RespBulkString) option).value())));
+                case "SETID" -> values.size() < 5
+                        ? new RespError("ERR wrong number of arguments for 'xgroup|setid' command")
+                        : streams.setGroupId(key, group, ((RespBulkString) values.get(4)).value());
+                case "DESTROY" -> streams.destroyGroup(key, group);
+                case "CREATECONSUMER" -> values.size() < 5
+                        ? new RespError("ERR wrong number of arguments for 'xgroup|createconsumer' command")
+                        : streams.createConsumer(key, group, ((RespBulkString) values.get(4)).value());
+                case "DELCONSUMER" -> values.size() < 5
+                        ? new RespError("ERR wrong number of arguments for 'xgroup|delconsumer' command")
+                        : streams.deleteConsumer(key, group, ((RespBulkString) values.get(4)).value());
+                default -> new RespError("ERR unknown subcommand '%s'. Try XGROUP HELP.".formatted(subcommand));
+            };
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+        // DESTROY and CREATECONSUMER answer 0 when there was nothing to do, DELCONSUMER when the consumer had no
+        // pending entries
+        boolean unchanged = result instanceof RespError
+                            || result instanceof RespInteger count && count.value() == 0 && !"DELCONSUMER".equals(subcommand);
+        if (!unchanged) {
+            markDirty(key);
+            propagate(new RespArray(values));
+        }
+        return result.serialize();
+    }
+
+    private byte[] xReadGroup(List<RespValue> values, ClientState state) {
+        String group = null;
+        long timeout = -1;
+        String consumer = null;
+        int count = 0;
+        boolean noAck = false;
+        int index = 1;
+        while (index < values.size()) {
+            String option = ((RespBulkString) values.get(index)).value().toUpperCase();
+            if ("STREAMS".equals(option)) {
+                index++;
+                break;
+            }
+            switch (option) {
+                case "GROUP" -> {
+                    if (index + 2 >= values.size()) {
+                        return new RespError("ERR syntax error").serialize();
+                    }
+                    group = ((RespBulkString) values.get(index + 1)).value();
+                    consumer = ((RespBulkString) values.get(index + 2)).value();
+                    index += 3;
+                }
+                case "COUNT" -> {
+                    try {
+                        count = Integer.parseInt(((RespBulkString) values.get(index + 1)).value());
+                    } catch (NumberFormatException | IndexOutOfBoundsException _) {
+                        return new RespError("ERR value is not an integer or out of range").serialize();
+                    }
+                    index += 2;
+                }
+                case "BLOCK" -> {
+                    try {
+                        timeout = Long.parseLong(((RespBulkString) values.get(index + 1)).value());
+                    } catch (NumberFormatException | IndexOutOfBoundsException _) {
+                        return new RespError("ERR timeout is not an integer or out of range").serialize();
+                    }
+                    index += 2;
+                }
+                case "NOACK" -> {
+                    noAck = true;
+                    index++;
+                }
+                default -> {
+                    return new RespError("ERR syntax error").serialize();
+                }
+            }
+        }
+        int streamArguments = values.size() - index;
+        if (group == null || streamArguments == 0 || streamArguments % 2 != 0) {
+            return new RespError("ERR Unbalanced 'xreadgroup' list of streams: for each stream key an ID or '>' must be specified.")
+                    .serialize();
+        }
+        List<RespValue> keys = values.subList(index, index + streamArguments / 2);
+        List<String> ids = values.subList(index + streamArguments / 2, values.size()).stream()
+                .map(id -> ((RespBulkString) id).value())
+                .toList();
+        RespValue result;
+        try {
+            // the deliveries are marked and propagated by GroupPropagation
+            result = streams.readGroup(group, consumer, keys, ids, count, noAck);
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+        // only reads of new entries block, replaying the pending list always answers right away
+        if (timeout < 0 || !(result instanceof RespBulkString) || cannotBlock(state)) {
+            return result.serialize();
+        }
+        String groupName = group;
+        String consumerName = consumer;
+        int readCount = count;
+        boolean readNoAck = noAck;
+        block(new BlockedStreamRead(state, timeout, keys, () -> {
+            // served from the XADD of one of the keys, while the read may change the group of any of them
+            try {
+                preserve(keys);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            long offset = replicationService.getOffset();
+            RespValue read = streams.readGroup(groupName, consumerName, keys, ids, readCount, readNoAck);
+            recordWrites(state, offset);
+            return read instanceof RespBulkString ? null : read.serialize();
+        }));
+        return null;
+    }
+
+    private byte[] xAck(List<RespValue> values) {
+        if (values.size() < 4) {
+            return new RespError("ERR wrong number of arguments for 'xack' command").serialize();
+        }
+        List<String> ids = values.subList(3, values.size()).stream()
+                .map(id -> ((RespBulkString) id).value())
+                .toList();
+        RespValue acknowledged;
+        try {
+            acknowledged = streams.acknowledge(values.get(1), ((RespBulkString) values.get(2)).value(), ids);
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+        if (((RespInteger) acknowledged).value() > 0) {
+            markDirty(values.get(1));
+            propagate(new RespArray(values));
+        }
+        return acknowledged.serialize();
+    }
+
+    private byte[] xPending(List<RespValue> values) {
+        if (values.size() < 3) {
+            return new RespError("ERR wrong number of arguments for 'xpending' command").serialize();
+        }
+        RespValue key = values.get(1);
+        String group = ((RespBulkString) values.get(2)).value();
+        if (values.size() == 3) {
+            return streams.pendingSummary(key, group).serialize();
+        }
+        int index = 3;
+        long minIdleTime = 0;
+        try {
+            if ("IDLE".equalsIgnoreCase(((RespBulkString) values.get(index)).value())) {
+                minIdleTime = Long.parseLong(((RespBulkString) values.get(index + 1)).value());
+                index += 2;
+            }
+            if (values.size() < index + 3) {
+                return new RespError("ERR syntax error").serialize();
+            }
+            String start = ((RespBulkString) values.get(index)).value();
+            String end = ((RespBulkString) values.get(index + 1)).value();
+            int count = Integer.parseInt(((RespBulkString) values.get(index + 2)).value());
+            String consumer = values.size() > index + 3 ? ((RespBulkString) values.get(index + 3)).value() : null;
+            return streams.pending(key, group, minIdleTime, start, end, count, consumer).serialize();
+        } catch (IndexOutOfBoundsException _) {
+            return new RespError("ERR syntax error").serialize();
+        } catch (NumberFormatException _) {
+            return new RespError("ERR value is not an integer or out of range").serialize();
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+    }
+
+    private byte[] xClaim(List<RespValue> values) {
+        if (values.size() < 6) {
+            return new RespError("ERR wrong number of arguments for 'xclaim' command").serialize();
+        }
+        RespValue key = values.get(1);
+        String group = ((RespBulkString) values.get(2)).value();
+        String consumer = ((RespBulkString) values.get(3)).value();
+        try {
+            long minIdleTime = Long.parseLong(((RespBulkString) values.get(4)).value());
+            List<String> ids = new ArrayList<>();
+            int index = 5;
+            while (index < values.size()) {
+                String argument = ((RespBulkString) values.get(index)).value();
+                if (!argument.isEmpty() && Character.isDigit(argument.charAt(0))) {
+                    ids.add(argument);
+                    index++;
+                } else {
+                    break;
+                }
+            }
+            long idleTime = -1;
+            long time = -1;
+            long retryCount = -1;
+            boolean force = false;
+            boolean justId = false;
+            StreamId lastId = null;
+            while (index < values.size()) {
+                String option = ((RespBulkString) values.get(index)).value().toUpperCase();
+                switch (option) {
+                    case "IDLE" -> idleTime = Long.parseLong(((RespBulkString) values.get(++index)).value());
+                    case "TIME" -> time = Long.parseLong(((RespBulkString) values.get(++index)).value());
+                    case "RETRYCOUNT" -> retryCount = Long.parseLong(((RespBulkString) values.get(++index)).value());
+                    case "FORCE" -> force = true;
+                    case "JUSTID" -> justId = true;
+                    case "LASTID" -> lastId = StreamId.parse(((RespBulkString) values.get(++index)).value());
+                    default -> {
+                        return new RespError("ERR Unrecognized XCLAIM option '%s'".formatted(option)).serialize();
+                    }
+                }
+                index++;
             }
-            return new RespInteger(Long.parseLong(respBulkString.value())).serialize();
+            StreamCache.ClaimOptions options = new StreamCache.ClaimOptions(idleTime, time, retryCount, force, justId, lastId);
+            return streams.claim(key, group, consumer, minIdleTime, ids, options).serialize();
+        } catch (IndexOutOfBoundsException _) {
+            return new RespError("ERR syntax error").serialize();
         } catch (NumberFormatException _) {
             return new RespError("ERR value is not an integer or out of range").serialize();
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+    }
+
+    private byte[] xAutoClaim(List<RespValue> values) {
+        if (values.size() < 6) {
+            return new RespError("ERR wrong number of arguments for 'xautoclaim' command").serialize();
+        }
+        RespValue key = values.get(1);
+        String group = ((RespBulkString) values.get(2)).value();
+        String consumer = ((RespBulkString) values.get(3)).value();
+        try {
+            long minIdleTime = Long.parseLong(((RespBulkString) values.get(4)).value());
+            String start = ((RespBulkString) values.get(5)).value();
+            int count = 100;
+            boolean justId = false;
+            for (int index = 6; index < values.size(); index++) {
+                String option = ((RespBulkString) values.get(index)).value().toUpperCase();
+                if ("COUNT".equals(option)) {
+                    count = Integer.parseInt(((RespBulkString) values.get(++index)).value());
+                    if (count < 1) {
+                        return new RespError("ERR COUNT must be > 0").serialize();
+                    }
+                } else if ("JUSTID".equals(option)) {
+                    justId = true;
+                } else {
+                    return new RespError("ERR syntax error").serialize();
+                }
+            }
+            return streams.autoClaim(key, group, consumer, minIdleTime, start, count, justId).serialize();
+        } catch (IndexOutOfBoundsException _) {
+            return new RespError("ERR syntax error").serialize();
+        } catch (NumberFormatException _) {
+            return new RespError("ERR value is not an integer or out of range").serialize();
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+    }
+
+    private byte[] xRange(List<RespValue> values, boolean reverse) {
+        if (values.size() != 4 && values.size() != 6) {
+            return new RespError("ERR wrong number of arguments for '%s' command"
+                    .formatted(reverse ? "xrevrange" : "xrange")).serialize();
+        }
+        RespValue key = values.get(1);
+        String start = ((RespBulkString) values.get(reverse ? 3 : 2)).value();
+        String end = ((RespBulkString) values.get(reverse ? 2 : 3)).value();
+        int count = 0;
+        if (values.size() == 6) {
+            if (!"COUNT".equalsIgnoreCase(((RespBulkString) values.get(4)).value())) {
+                return new RespError("ERR syntax error").serialize();
+            }
+            try {
+                count = Integer.parseInt(((RespBulkString) values.get(5)).value());
+            } catch (NumberFormatException _) {
+                return new RespError("ERR value is not an integer or out of range").serialize();
+            }
+            if (count <= 0) {
+                return new RespArray(List.of()).serialize();
+            }
+        }
+
+        try {
+            return streams.range(key, start, end, count, reverse);
+        } catch (IllegalArgumentException e) {
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+    }
+
+    private byte[] xAdd(List<RespValue> values) {
+        RespValue key = values.get(1);
+        boolean makeStream = true;
+        RedisStream.TrimOptions trim = null;
+        int index = 2;
+        while (index < values.size()) {
+            String option = ((RespBulkString) values.get(index)).value();
+            if ("NOMKSTREAM".equalsIgnoreCase(option)) {
+                makeStream = false;
+                index++;
+            } else if (isTrimStrategy(option)) {
+                int start = index++;
+                if (index < values.size()) {
+                    String operator = ((RespBulkString) values.get(index)).value();
+                    if ("~".equals(operator) || "=".equals(operator)) {
+                        index++;
+                    }
+                }
+                index++;
+                if (index < values.size() && "LIMIT".equalsIgnoreCase(((RespBulkString) values.get(index)).value())) {
+                    index += 2;
+                }
+                try {
+                    trim = parseTrimOptions(values.subList(start, Math.min(index, values.size())));
+                } catch (IllegalArgumentException e) {
+                    return new RespError(e.getMessage()).serialize();
+                }
+            } else {
+                break;
+            }
+        }
+        if (values.size() < index + 3 || (values.size() - index - 1) % 2 != 0) {
+            return new RespError("ERR wrong number of arguments for 'xadd' command").serialize();
+        }
+        RespBulkString entryId = ((RespBulkString) values.get(index));
+        List<RespValue> streamValues = values.subList(index + 1, values.size());
+        RespValue result = streams.add(key, entryId, streamValues, makeStream, trim);
+        if (!(result instanceof RespError) && !(result instanceof RespBulkString id && id.value() == null)) {
+            touch(key);
+            // with the ID generated for * or <ms>-*, so the entry gets the same ID wherever it is applied, and the
+            // trimming made exact
+            List<RespValue> command = new ArrayList<>(values.subList(0, 2));
+            if (!makeStream) {
+                command.add(new RespBulkString("NOMKSTREAM"));
+            }
+            if (trim != null) {
+                command.addAll(exactTrim(key));
+            }
+            command.add(result);
+            command.addAll(streamValues);
+            propagate(new RespArray(command));
+            streams.notifyAppend(key);
+        }
+        return result.serialize();
+    }
+
+    /**
+     * @return {@code MAXLEN = <length>} for the stream as trimming left it. Where an approximate trim stops depends
+     * on how the entries are packed in nodes, which differs on a replica loaded from a snapshot, so trims are
+     * propagated in this exact form.
+     */
+    private List<RespValue> exactTrim(RespValue key) {
+        return List.of(new RespBulkString("MAXLEN"), new RespBulkString("="),
+                new RespBulkString(Long.toString(((RespInteger) streams.length(key)).value())));
+    }
+
+    private byte[] xTrim(List<RespValue> values) {
+        if (values.size() < 4) {
+            return new RespError("ERR wrong number of arguments for 'xtrim' command").serialize();
+        }
+        try {
+            RespValue key = values.get(1);
+            RespValue trimmed = streams.trim(key, parseTrimOptions(values.subList(2, values.size())));
+            if (((RespInteger) trimmed).value() > 0) {
+                touch(key);
+                List<RespValue> command = new ArrayList<>(values.subList(0, 2));
+                command.addAll(exactTrim(key));
+                propagate(new RespArray(command));
+            }
+            return trimmed.serialize();
+        } catch (IllegalArgumentException e) {
+            return new RespError(e.getMessage()).serialize();
+        }
+    }
+
+    private byte[] xLen(List<RespValue> values) {
+        return streams.length(values.get(1)).serialize();
+    }
+
+    private static boolean isTrimStrategy(String argument) {
+        return "MAXLEN".equalsIgnoreCase(argument) || "MINID".equalsIgnoreCase(argument);
+    }
+
+    /**
+     * Parses {@code MAXLEN|MINID [=|~] threshold [LIMIT count]}.
+     *
+     * @throws IllegalArgumentException with the Redis error message when the arguments are invalid
+     */
+    private static RedisStream.TrimOptions parseTrimOptions(List<RespValue> arguments) {
+        String strategy = ((RespBulkString) arguments.getFirst()).value();
+        if (!isTrimStrategy(strategy)) {
+            throw new IllegalArgumentException("ERR syntax error");
+        }
+        int index = 1;
+        boolean approximate = false;
+        if (arguments.size() > index) {
+            String operator = ((RespBulkString) arguments.get(index)).value();
+            if ("~".equals(operator) || "=".equals(operator)) {
+                approximate = "~".equals(operator);
+                index++;
+            }
+        }
+        if (arguments.size() <= index) {
+            throw new IllegalArgumentException("ERR syntax error");
+        }
+        String threshold = ((RespBulkString) arguments.get(index++)).value();
+        long limit = approximate ? RedisStream.DEFAULT_TRIM_LIMIT : 0;
+        if (arguments.size() > index) {
+            if (!"LIMIT".equalsIgnoreCase(((RespBulkString) arguments.get(index)).value()) || arguments.size() != index + 2) {
+                throw new IllegalArgumentException("ERR syntax error");
+            }
+            if (!approximate) {
+                throw new IllegalArgumentException("ERR syntax error, LIMIT cannot be used without the special ~ option");
+            }
+            try {
+                limit = Long.parseLong(((RespBulkString) arguments.get(index + 1)).value());
+            } catch (NumberFormatException _) {
+                throw new IllegalArgumentException("ERR value is not an integer or out of range");
+            }
         }
-    }
-
-    private byte[] xRead(List<RespValue> values, ClientState state) {
-        if (values.get(1) instanceof RespBulkString type
-            && type.value().equalsIgnoreCase("block")) {
-            int timeout = Integer.parseInt(((RespBulkString) values.get(2)).value());
-            List<RespValue> keys = values.subList(4, values.size());
-
-            RespArray data = streams.xReadBlocking(keys);
-            if (!data.values().isEmpty()) {
-                return data.serialize();
-            } else {
-                state.pendingForAcks = true;
-                PendingWait xReadWait = new PendingWait(state, -1, timeout == 0 ? -1 : System.currentTimeMillis() + timeout);
-                xReadWaiters.put(keys, xReadWait);
+        if ("MINID".equalsIgnoreCase(strategy)) {
+            try {
+                return new RedisStream.TrimOptions(0, StreamId.parse(threshold), approximate, limit);
+            } catch (IllegalArgumentException _) {
+                throw new IllegalArgumentException("ERR Invalid stream ID specified as stream command argument");
             }
-        } else {
-            List<RespValue> keys = values.subList(2, values.size());
-
-            return streams.xRead(keys).serialize();
         }
-        return null;
-    }
-
-    private byte[] xRange(List<RespValue> values) {
-        RespValue key = values.get(1);
-        String start = null;
-        String end = null;
-        if (values.size() > 2) {
-            start = ((RespBulkString) values.get(2)).value();
-            if (values.size() > 3) {
-                end = ((RespBulkString) values.get(3)).value();
+        try {
+            long maxLength = Long.parseLong(threshold);
+            if (maxLength < 0) {
+                throw new IllegalArgumentException("ERR The MAXLEN argument must be >= 0.");
             }
+            return new RedisStream.TrimOptions(maxLength, null, approximate, limit);
+        } catch (NumberFormatException _) {
+            throw new IllegalArgumentException("ERR value is not an integer or out of range");
         }
-
-        return streams.range(key, start, end).serialize();
-    }
-
-    private byte[] xAdd(List<RespValue> values) {
-        RespValue key = values.get(1);
-        RespBulkString entryId = ((RespBulkString) values.get(2));
-        List<RespValue> streamValues = values.subList(3, values.size());
-        return streams.add(key, entryId, streamValues).serialize();
     }
 
     private byte[] type(List<RespValue> values) {
@@ -511,10 +2057,13 @@ public class MainEventLoop implements AutoCloseable {
         return null;
     }
 
-    private byte[] blPop(List<RespValue> values, ClientState state, RespArray array) throws ClosedChannelException {
+    private byte[] blPop(List<RespValue> values, ClientState state, RespArray array) throws IOException {
         RespValue key = values.get(1);
         CachedValue<RespValue> cachedValue = cache.get(key);
         if (!(cachedValue.value() instanceof RespArray cachedArray)) {
+            if (cannotBlock(state)) {
+                return new RespBulkString(null).serialize();
+            }
             long expiration = -1;
             if (values.size() > 2) {
                 String value = ((RespBulkString) values.get(2)).value();
@@ -528,12 +2077,9 @@ public class MainEventLoop implements AutoCloseable {
         } else {
             boolean unblocked = checkBlPopWaiters(key);
             if (!unblocked) {
+                touch(key);
                 List<RespValue> list = cachedArray.values();
-                if (config.getRole().equalsIgnoreCase("master")) {
-                    replicationService.propagate(array, selector);
-                } else {
-                    replicationService.moveOffset(array.getSize());
-                }
+                propagate(array);
                 if (list.size() == 1) {
                     cache.remove(key);
                     return new RespArray(List.of(key, list.getFirst())).serialize();
@@ -545,20 +2091,18 @@ public class MainEventLoop implements AutoCloseable {
         return null;
     }
 
-    private byte[] lPop(List<RespValue> values, RespArray array) throws ClosedChannelException {
+    private byte[] lPop(List<RespValue> values, RespArray array) {
         RespValue key = values.get(1);
         int range = values.size() < 3 || (!(values.get(2) instanceof RespBulkString respBulkString))
                 ? 1
                 : Integer.parseInt(respBulkString.value());
         CachedValue<RespValue> cachedValue = cache.get(key);
-        if (config.getRole().equalsIgnoreCase("master")) {
-            replicationService.propagate(array, selector);
-        } else {
-            replicationService.moveOffset(array.getSize());
-        }
+        propagate(array);
         if (!(cachedValue.getValue() instanceof RespArray cachedArray) || cachedArray.values().isEmpty()) {
             return new RespBulkString(null).serialize();
-        } else if (cachedArray.values().size() <= range) {
+        }
+        touch(key);
+        if (cachedArray.values().size() <= range) {
             cache.remove(key);
             return cachedArray.serialize();
         } else if (range == 1) {
@@ -580,7 +2124,7 @@ public class MainEventLoop implements AutoCloseable {
         }
     }
 
-    private byte[] lPush(List<RespValue> values, RespArray array) throws ClosedChannelException {
+    private byte[] lPush(List<RespValue> values, RespArray array) {
         RespValue key = values.get(1);
         List<RespValue> listValue = new ArrayList<>();
         for (int i = 2; i < values.size(); i++) {
@@ -592,11 +2136,8 @@ public class MainEventLoop implements AutoCloseable {
             newArray.addAll(cachedArray.values());
         }
         cache.put(key, new RespArray(newArray), -1);
-        if (config.getRole().equalsIgnoreCase("master")) {
-            replicationService.propagate(array, selector);
-        } else {
-            replicationService.moveOffset(array.getSize());
-        }
+        touch(key);
+        propagate(array);
         return new RespInteger(newArray.size()).serialize();
     }
 
@@ -626,18 +2167,15 @@ public class MainEventLoop implements AutoCloseable {
         return index;
     }
 
-    private byte[] rPush(List<RespValue> values, RespArray array) throws ClosedChannelException {
+    private byte[] rPush(List<RespValue> values, RespArray array) {
         RespValue key = values.get(1);
         List<RespValue> listValues = new ArrayList<>();
         for (int i = 2; i < values.size(); i++) {
             listValues.add(values.get(i));
         }
         CachedValue<RespValue> cachedValue = cache.get(key);
-        if (config.getRole().equalsIgnoreCase("master")) {
-            replicationService.propagate(array, selector);
-        } else {
-            replicationService.moveOffset(array.getSize());
-        }
+        propagate(array);
+        touch(key);
         if (cachedValue == null || !(cachedValue.getValue() instanceof RespArray cachedArray)) {
             cache.put(key, new RespArray(new CopyOnWriteArrayList<>(listValues)), -1);
             return new RespInteger(listValues.size()).serialize();
@@ -647,94 +2185,487 @@ public class MainEventLoop implements AutoCloseable {
         }
     }
 
-    private byte[] wait(List<RespValue> values, ClientState state) throws IOException {
-        int numberOfReplicas = Integer.parseInt(((RespBulkString) values.get(1)).value());
-        int delta = Integer.parseInt(((RespBulkString) values.get(2)).value());
-        long timeout = System.currentTimeMillis() + delta;
+    /**
+     * Blocks the client until {@code numreplicas} replicas acknowledged its last write, or until the timeout.
+     */
+    private byte[] wait(List<RespValue> values, ClientState state) {
+        if (!config.getRole().equalsIgnoreCase("master")) {
+            return new RespError("ERR WAIT cannot be used with replica instances").serialize();
+        }
+        if (values.size() != 3) {
+            return new RespError("ERR wrong number of arguments for 'wait' command").serialize();
+        }
+        int numberOfReplicas;
+        long timeout;
+        try {
+            numberOfReplicas = Integer.parseInt(((RespBulkString) values.get(1)).value());
+            timeout = Long.parseLong(((RespBulkString) values.get(2)).value());
+        } catch (NumberFormatException _) {
+            return new RespError("ERR value is not an integer or out of range").serialize();
+        }
+        if (timeout < 0) {
+            return new RespError("ERR timeout is negative").serialize();
+        }
         debug("Received WAIT command with numslaves: %d and timeout: %d", numberOfReplicas, timeout);
-        if (!Objects.equals(lastCommand, "SET")) {
-            return new RespInteger(replicationService.getReplicaNumber()).serialize();
-        } else {
-            var numReplicas = Math.max(numberOfReplicas, replicationService.getReplicaNumber());
-            PendingWait pendingWaitSync = new PendingWait(state, numReplicas, timeout);
-            replicationService.propagate(ACK_COMMAND, selector);
-            pendingWait = pendingWaitSync;
-            state.pendingForAcks = true;
+        int acknowledged = replicationService.countAcknowledged(state.replicationOffset);
+        if (acknowledged >= numberOfReplicas) {
+            return new RespInteger(acknowledged).serialize();
         }
+        replicaWaits.add(new ReplicaWait(state, numberOfReplicas,
+                timeout == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout, state.replicationOffset));
+        replicationService.requestAck();
+        state.pendingForAcks = true;
         return null;
     }
 
     private byte[] ping(ClientState state) {
-        if (config.getRole().equalsIgnoreCase("master")) {
-            if (pubSub.containsKey(state)) {
-                return new RespArray(List.of(new RespBulkString("pong"), new RespBulkString(""))).serialize();
-            }
-            return PONG;
+        if (isSubscribed(state)) {
+            return new RespArray(List.of(new RespBulkString("pong"), new RespBulkString(""))).serialize();
         }
-        replicationService.moveOffset(PONG.length * 2);
-        return null;
+        return PONG;
     }
 
     private byte[] echo(List<RespValue> values) {
         return values.getLast().serialize();
     }
 
-    private byte[] pSync(ClientState state) {
+    private byte[] pSync(List<RespValue> values, ClientState state) throws IOException {
         debug("Received PSYNC command");
-        byte[] fullResyncResponse = new RespSimpleString("FULLRESYNC %s 0".formatted(config.getReplicationId())).serialize();
-
-        byte[] rdbContent = {'$', '8', '8', '\r', '\n', 0x52, 0x45, 0x44, 0x49, 0x53, 0x30, 0x30, 0x31, 0x31, (byte) 0xfa, 0x09, 0x72, 0x65,
-                0x64, 0x69, 0x73, 0x2d, 0x76, 0x65, 0x72, 0x05, 0x37, 0x2e, 0x32, 0x2e, 0x30, (byte) 0xfa, 0x0a, 0x72,
-                0x65, 0x64, 0x69, 0x73, 0x2d, 0x62, 0x69, 0x74, 0x73, (byte) 0xc0, 0x40, (byte) 0xfa, 0x05, 0x63, 0x74,
-                0x69, 0x6d, 0x65, (byte) 0xc2, 0x6d, 0x08, (byte) 0xbc, 0x65, (byte) 0xfa, 0x08, 0x75, 0x73, 0x65, 0x64,
-                0x2d, 0x6d, 0x65, 0x6d, (byte) 0xc2, (byte) 0xb0, (byte) 0xc4, 0x10, 0x00, (byte) 0xfa, 0x08, 0x61,
-                0x6f, 0x66, 0x2d, 0x62, 0x61, 0x73, 0x65, (byte) 0xc0, 0x00, (byte) 0xff, (byte) 0xf0, 0x6e, 0x3b,
-                (byte) 0xfe, (byte) 0xc0, (byte) 0xff, 0x5a, (byte) 0xa2};
-        byte[] fullResponse = new byte[fullResyncResponse.length + rdbContent.length];
-        System.arraycopy(fullResyncResponse, 0, fullResponse, 0, fullResyncResponse.length);
-        System.arraycopy(rdbContent, 0, fullResponse, fullResyncResponse.length, rdbContent.length);
-        debug("Sending response: %s", new String(rdbContent));
-        replicationService.addReplica(((SocketChannel) state.key.channel()));
-        return fullResponse;
-    }
-
-    private byte[] replConf(List<RespValue> values, RespArray array) {
+        if (config.getRole().equalsIgnoreCase("slave") && (masterLink == null || masterSync != null)) {
+            return new RespError("NOMASTERLINK Can't SYNC while not connected with my master").serialize();
+        }
+        if (values.size() > 2) {
+            try {
+                byte[] continuation = replicationService.partialResync(state, ((RespBulkString) values.get(1)).value(),
+                        Long.parseLong(((RespBulkString) values.get(2)).value()));
+                if (continuation != null) {
+                    return continuation;
+                }
+            } catch (NumberFormatException _) {
+                // not an offset, the replica gets a full resync
+            }
+        }
+        syncSnapshots.put(state, IncrementalSnapshot.full(cache, streams.streams(), sortedSets));
+        return replicationService.fullResync(state, state.replicaCapabilities.contains("eof"));
+    }
+
+    private byte[] replConf(List<RespValue> values, RespArray array, ClientState state) {
         debug("Received REPLCONF command: %s", values);
         String mode = ((RespBulkString) values.get(1)).value().toUpperCase();
         RespValue response = switch (mode) {
             case "ACK" -> {
-                var expectedOffset = replicationService.getOffset() - ACK_COMMAND.serialize().length;
-                var actualOffset = Integer.parseInt(((RespBulkString) values.get(2)).value());
-                debug("expected offset: %d, actual offset: %d", expectedOffset, actualOffset);
-                if (pendingWait != null && actualOffset == expectedOffset) {
-                    pendingWait.receivedAcks++;
-                }
+                replicationService.acknowledge(state, Long.parseLong(((RespBulkString) values.get(2)).value()));
                 checkWaitClients();
                 yield null;
             }
-            case "CAPA", "LISTENING-PORT" -> new RespSimpleString("OK");
+            case "CAPA", "LISTENING-PORT" -> {
+                for (int i = 1; i + 1 < values.size(); i += 2) {
+                    String option = ((RespBulkString) values.get(i)).value();
+                    String value = ((RespBulkString) values.get(i + 1)).value();
+                    if ("capa".equalsIgnoreCase(option)) {
+                        state.replicaCapabilities.add(value.toLowerCase());
+                    } else if ("listening-port".equalsIgnoreCase(option)) {
+                        try {
+                            state.listeningPort = Integer.parseInt(value);
+                        } catch (NumberFormatException _) {
+                            yield new RespError("ERR value is not an integer or out of range");
+                        }
+                    }
+                }
+                yield new RespSimpleString("OK");
+            }
             case "GETACK" ->
                     new RespArray(List.of(new RespBulkString("REPLCONF"), new RespBulkString("ACK"), new RespBulkString(Long.toString(replicationService.getOffset()))));
             default -> throw new RedisException("REPLCONF command requires a valid mode argument: " + mode);
         };
-        if (config.getRole().equalsIgnoreCase("slave")) {
-            long previous = replicationService.getOffset();
-            replicationService.moveOffset(array.getSize());
-            debug("manipulating offset by as replica: %d-%d-%d", previous, array.getSize(), replicationService.getOffset());
-        }
         return response == null ? null : response.serialize();
     }
 
-    private byte[] info() {
+    /**
+     * INFO with its persistence and replication sections, the only ones this server has; other sections are empty.
+     */
+    private byte[] info(List<RespValue> values) throws IOException {
         debug("Received INFO command");
-        return (config.getRole().equalsIgnoreCase("master")
-                ? new RespBulkString("role:%s\r\nmaster_repl_offset:0\r\nmaster_replid:%s".formatted(config.getRole(), config.getReplicationId()))
-                : new RespBulkString("role:%s".formatted(config.getRole()))).serialize();
+        boolean all = values.size() < 2;
+        Set<String> sections = new HashSet<>();
+        for (int i = 1; i < values.size(); i++) {
+            String section = ((RespBulkString) values.get(i)).value().toLowerCase();
+            all |= section.equals("all") || section.equals("default") || section.equals("everything");
+            sections.add(section);
+        }
+        StringBuilder info = new StringBuilder();
+        if (all || sections.contains("persistence")) {
+            info.append(persistenceInfo());
+        }
+        if (all || sections.contains("replication")) {
+            info.append(info.isEmpty() ? "" : "\r\n").append(replicationInfo());
+        }
+        return new RespBulkString(info.toString()).serialize();
+    }
+
+    private String persistenceInfo() {
+        return "# Persistence\r\n"
+               + "loading:" + (masterSync != null && masterSync.isLoading() ? 1 : 0) + "\r\n"
+               + "rdb_bgsave_in_progress:" + (backgroundSave != null && !compacting ? 1 : 0) + "\r\n"
+               + "rdb_last_save_time:" + lastSave + "\r\n"
+               + "rdb_last_bgsave_status:" + (lastBackgroundSaveFailed ? "err" : "ok") + "\r\n"
+               + "rdb_delta_files:" + rdbFile.getDeltaCount() + "\r\n"
+               + "rdb_dirty_keys:" + dirtyKeys.size() + "\r\n"
+               + "rdb_compaction_in_progress:" + (compacting ? 1 : 0) + "\r\n"
+               + "aof_enabled:" + (appendOnlyFile != null ? 1 : 0) + "\r\n"
+               + (appendOnlyFile == null ? "" : "aof_current_size:" + appendOnlyFile.getAppendedBytes() + "\r\n"
+                       + "aof_pending_bio_fsync:" + (appendOnlyFile.isSyncInProgress() ? 1 : 0) + "\r\n"
+                       + "aof_last_write_status:" + (appendOnlyFile.isLastWriteOk() ? "ok" : "err") + "\r\n");
+    }
+
+    /**
+     * The replication section, with the fields of Redis and, for each replica, how far behind it is: in bytes from
+     * its acknowledged offset, in milliseconds since it acknowledged, and in bytes still queued for it.
+     */
+    private String replicationInfo() throws IOException {
+        long now = System.currentTimeMillis();
+        long offset = replicationService.getOffset();
+        StringBuilder info = new StringBuilder("# Replication\r\n");
+        boolean master = config.getRole().equalsIgnoreCase("master");
+        info.append("role:").append(config.getRole()).append("\r\n");
+        if (!master) {
+            boolean linkUp = masterLink != null && masterSync == null;
+            info.append("master_host:").append(config.getMasterHost()).append("\r\n")
+                    .append("master_port:").append(config.getMasterPort()).append("\r\n")
+                    .append("master_link_status:").append(linkUp ? "up" : "down").append("\r\n")
+                    .append("master_last_io_seconds_ago:")
+                    .append(masterLink == null ? -1 : (now - masterLink.lastInteraction) / 1000).append("\r\n")
+                    .append("master_sync_in_progress:").append(masterSync != null ? 1 : 0).append("\r\n")
+                    .append("slave_repl_offset:").append(offset).append("\r\n");
+        }
+        info.append("connected_slaves:").append(replicationService.getReplicaNumber()).append("\r\n");
+        int index = 0;
+        for (ClientState state : replicationService.replicaClients()) {
+            Replica replica = replicationService.getReplica(state);
+            String ip = ((InetSocketAddress) ((SocketChannel) state.key.channel()).getRemoteAddress()).getAddress()
+                    .getHostAddress();
+            info.append("slave").append(index++).append(":")
+                    .append("ip=").append(ip)
+                    .append(",port=").append(state.listeningPort)
+                    .append(",state=").append(replica.isSyncing() ? "send_bulk" : "online")
+                    .append(",offset=").append(replica.getAckedOffset())
+                    .append(",lag=").append((now - replica.getAckTime()) / 1000)
+                    .append(",lag_bytes=").append(offset - replica.getAckedOffset())
+                    .append(",lag_ms=").append(replicationService.lagMillis(replica, now))
+                    .append(",output_buffer=").append(state.outputBytes + replicationService.pendingBytes(replica))
+                    .append("\r\n");
+        }
+        ReplicationBacklog backlog = replicationService.getBacklog();
+        info.append("master_failover_state:no-failover\r\n")
+                .append("master_replid:").append(replicationService.getReplicationId()).append("\r\n")
+                .append("master_repl_offset:").append(offset).append("\r\n")
+                .append("repl_backlog_active:1\r\n")
+                .append("repl_backlog_size:").append(backlog.capacity()).append("\r\n")
+                .append("repl_backlog_first_byte_offset:").append(backlog.getStartOffset() + 1).append("\r\n")
+                .append("repl_backlog_histlen:").append(backlog.size()).append("\r\n")
+                .append("total_net_repl_input_bytes:").append(replicationService.getInputBytes()).append("\r\n")
+                .append("total_net_repl_output_bytes:").append(replicationService.getOutputBytes()).append("\r\n")
+                .append("instantaneous_input_repl_bytes_per_sec:")
+                .append(replicationService.getInputBytesPerSecond()).append("\r\n")
+                .append("instantaneous_output_repl_bytes_per_sec:")
+                .append(replicationService.getOutputBytesPerSecond()).append("\r\n");
+        return info.toString();
+    }
+
+    /**
+     * Writes the keyspace to the RDB file, blocking every client until it is on disk. Under
+     * {@code rdbcheckpoint delta}, only the keys written since the previous save are, once there is a base to chain
+     * them to.
+     */
+    private byte[] save() {
+        if (backgroundSave != null) {
+            return new RespError("ERR Background save already in progress").serialize();
+        }
+        try {
+            if (isDeltaSave()) {
+                rdbFile.saveDelta(dirtyKeys, cache, streams.streams(), sortedSets);
+            } else {
+                rdbFile.save(cache, streams.streams(), sortedSets);
+                fullSaveNeeded = false;
+            }
+        } catch (IOException e) {
+            error("Failed to save the RDB file %s: %s", rdbFile.getPath(), e.getMessage());
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+        dirtyKeys.clear();
+        lastSave = System.currentTimeMillis() / 1000;
+        startCompaction();
+        return OK;
+    }
+
+    /**
+     * Saves the keyspace without blocking the clients. Without fork there is no copy-on-write view of the keyspace,
+     * so the point-in-time snapshot is encoded by the loop a slice at a time, see {@link IncrementalSnapshot}, and
+     * each slice is written to disk in the background while the next is encoded.
+     */
+    private byte[] bgSave() {
+        if (backgroundSave != null) {
+            return new RespError("ERR Background save already in progress").serialize();
+        }
+        boolean delta = isDeltaSave();
+        try {
+            savingFile = rdbFile.begin(delta);
+            savingSnapshot = delta
+                    ? IncrementalSnapshot.delta(dirtyKeys, cache, streams.streams(), sortedSets)
+                    : IncrementalSnapshot.full(cache, streams.streams(), sortedSets);
+        } catch (IOException e) {
+            error("Failed to start saving the RDB file %s: %s", rdbFile.getPath(), e.getMessage());
+            return new RespError("ERR " + e.getMessage()).serialize();
+        }
+        if (delta) {
+            savingKeys = dirtyKeys;
+        } else {
+            fullSaveNeeded = false;
+        }
+        // the writes from now on go to the next save
+        dirtyKeys = new HashSet<>();
+        backgroundSave = CompletableFuture.completedFuture(null);
+        debug("Background saving started%s", delta ? " of a delta" : "");
+        return new RespSimpleString("Background saving started").serialize();
+    }
+
+    /**
+     * @return the snapshots being encoded, of a BGSAVE and of full resyncs
+     */
+    private List<IncrementalSnapshot> snapshots() {
+        List<IncrementalSnapshot> snapshots = new ArrayList<>(syncSnapshots.values());
+        if (savingSnapshot != null) {
+            snapshots.add(savingSnapshot);
+        }
+        return snapshots;
+    }
+
+    /**
+     * Has the snapshots being encoded keep the values {@code keys} had when they started, before a command
+     * changes them.
+     */
+    private void preserve(List<RespValue> keys) throws IOException {
+        if (savingSnapshot != null) {
+            savingSnapshot.preserve(keys);
+        }
+        for (IncrementalSnapshot snapshot : syncSnapshots.values()) {
+            snapshot.preserve(keys);
+        }
+    }
+
+    /**
+     * Encodes the next slice of the full resync snapshots whose replicas drained the previous ones.
+     */
+    private void encodeSyncSnapshots() {
+        Iterator<Map.Entry<ClientState, IncrementalSnapshot>> iterator = syncSnapshots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ClientState, IncrementalSnapshot> entry = iterator.next();
+            ClientState replica = entry.getKey();
+            IncrementalSnapshot snapshot = entry.getValue();
+            if (!replicationService.wantsSnapshot(replica, SYNC_TRANSFER_WINDOW)) {
+                continue;
+            }
+            encodeSlice(snapshot);
+            replicationService.transferSnapshot(replica, snapshot.drain(), snapshot.isFinished(), snapshot.size());
+            if (snapshot.isFinished()) {
+                iterator.remove();
+            }
+            if (!replica.closing && replica.key.isValid()) {
+                replica.key.interestOps(replica.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Encodes batches of keys of {@code snapshot} until it is complete or the slice of this iteration is over.
+     */
+    private static void encodeSlice(IncrementalSnapshot snapshot) {
+        long deadline = System.nanoTime() + SNAPSHOT_SLICE_NANOS;
+        try {
+            boolean encoded = snapshot.advance(SNAPSHOT_BATCH);
+            while (!encoded && System.nanoTime() < deadline) {
+                encoded = snapshot.advance(SNAPSHOT_BATCH);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes the next slice of the BGSAVE snapshot and queues it for the disk, unless the disk is behind. Once the
+     * snapshot is complete, the file is committed after the last slice.
+     */
+    private void encodeSnapshot() {
+        if (savingSnapshot == null) {
+            return;
+        }
+        RdbFile.PartialFile file = savingFile;
+        if (backgroundSave.isCompletedExceptionally()) {
+            // a slice failed to be written and the file is gone, checkBackgroundSave reports it
+            savingSnapshot = null;
+            savingFile = null;
+            return;
+        }
+        if (unwrittenBytes.get() > SNAPSHOT_MAX_UNWRITTEN) {
+            return;
+        }
+        encodeSlice(savingSnapshot);
+        boolean finished = savingSnapshot.isFinished();
+        List<ByteBuffer> slice = savingSnapshot.drain();
+        long bytes = slice.stream().mapToLong(ByteBuffer::remaining).sum();
+        unwrittenBytes.addAndGet(bytes);
+        backgroundSave = backgroundSave.thenRunAsync(() -> {
+            try {
+                file.write(slice);
+                unwrittenBytes.addAndGet(-bytes);
+                if (finished) {
+                    file.commit();
+                }
+            } catch (IOException e) {
+                throw new RedisException(e);
+            }
+        });
+        if (finished) {
+            debug("Background saving encoded %d bytes", savingSnapshot.size());
+            savingSnapshot = null;
+            savingFile = null;
+        }
+    }
+
+    private boolean isDeltaSave() {
+        return deltaCheckpoints && !fullSaveNeeded && rdbFile.hasBase();
+    }
+
+    private void checkBackgroundSave() {
+        if (backgroundSave == null || savingSnapshot != null || !backgroundSave.isDone()) {
+            return;
+        }
+        unwrittenBytes.set(0);
+        boolean compacted = compacting;
+        try {
+            backgroundSave.join();
+            if (compacted) {
+                debug("Background compaction of %s terminated with success", rdbFile.getPath());
+            } else {
+                lastSave = System.currentTimeMillis() / 1000;
+                lastBackgroundSaveFailed = false;
+                debug("Background saving terminated with success");
+            }
+        } catch (CompletionException e) {
+            if (compacted) {
+                // the deltas are still in place, compaction is tried again after the next save
+                error("Background compaction of %s failed: %s", rdbFile.getPath(), e.getCause().getMessage());
+            } else {
+                lastBackgroundSaveFailed = true;
+                error("Background saving to %s failed: %s", rdbFile.getPath(), e.getCause().getMessage());
+                if (savingKeys != null) {
+                    dirtyKeys.addAll(savingKeys);
+                } else {
+                    fullSaveNeeded = true;
+                    dirtyKeys.clear();
+                }
+            }
+        }
+        backgroundSave = null;
+        savingKeys = null;
+        compacting = false;
+        if (!compacted) {
+            startCompaction();
+        }
+    }
+
+    /**
+     * Folds the RDB deltas into a new base in the background once they are many or large enough, saves being
+     * refused meanwhile as during a BGSAVE.
+     */
+    private void startCompaction() {
+        if (!deltaCheckpoints || backgroundSave != null || !rdbFile.needsCompaction()) {
+            return;
+        }
+        compacting = true;
+        backgroundSave = CompletableFuture.runAsync(() -> {
+            try {
+                rdbFile.compact();
+            } catch (IOException e) {
+                throw new RedisException(e);
+            }
+        });
+        debug("Background compaction of %d deltas started", rdbFile.getDeltaCount());
+    }
+
+    private byte[] client(List<RespValue> values, ClientState state) {
+        if (values.size() < 2) {
+            return new RespError("ERR wrong number of arguments for 'client' command").serialize();
+        }
+        String subcommand = ((RespBulkString) values.get(1)).value().toUpperCase();
+        return switch (subcommand) {
+            case "ID" -> new RespInteger(state.id).serialize();
+            case "INFO" -> new RespBulkString(clientInfo(state) + "\n").serialize();
+            case "LIST" -> {
+                StringBuilder list = new StringBuilder();
+                for (SocketChannel channel : servingClients) {
+                    SelectionKey key = channel.keyFor(selector);
+                    if (key != null && key.attachment() instanceof ClientState client) {
+                        list.append(clientInfo(client)).append('\n');
+                    }
+                }
+                yield new RespBulkString(list.toString()).serialize();
+            }
+            case "GETNAME" -> new RespBulkString(state.name.isEmpty() ? null : state.name).serialize();
+            case "SETNAME" -> {
+                if (values.size() != 3) {
+                    yield new RespError("ERR wrong number of arguments for 'client|setname' command").serialize();
+                }
+                String name = ((RespBulkString) values.get(2)).value();
+                if (name.chars().anyMatch(c -> c <= ' ' || c > '~')) {
+                    yield new RespError("ERR Client names cannot contain spaces, newlines or special characters.")
+                            .serialize();
+                }
+                state.name = name;
+                yield OK;
+            }
+            default -> new RespError("ERR unknown subcommand '%s'. Try CLIENT HELP.".formatted(subcommand)).serialize();
+        };
+    }
+
+    /**
+     * One CLIENT LIST line; {@code omem} is the output waiting in the client's queue and {@code oll} the number of
+     * queued buffers.
+     */
+    private String clientInfo(ClientState client) {
+        long now = System.currentTimeMillis();
+        String address;
+        try {
+            InetSocketAddress remote = (InetSocketAddress) ((SocketChannel) client.key.channel()).getRemoteAddress();
+            address = remote == null ? "" : remote.getHostString() + ":" + remote.getPort();
+        } catch (IOException _) {
+            address = "";
+        }
+        String flags = (client.replica ? "S" : "")
+                       + (isSubscribed(client) ? "P" : "")
+                       + (transactions.containsKey(client) ? "x" : "")
+                       + (client.closing ? "A" : "");
+        Queue<RespArray> transaction = transactions.get(client);
+        return "id=%d addr=%s name=%s age=%d idle=%d flags=%s sub=%d psub=%d ssub=%d multi=%d oll=%d omem=%d cmd=%s"
+                .formatted(client.id, address, client.name, (now - client.createdAt) / 1000,
+                        (now - client.lastInteraction) / 1000, flags.isEmpty() ? "N" : flags,
+                        pubSub.subscriptionCount(client), patternSubscriptions.subscriptionCount(client),
+                        shardChannels.subscriptionCount(client), transaction == null ? -1 : transaction.size(),
+                        client.pendingWrites.size(), client.outputBytes, client.lastCommand);
     }
 
-    private byte[] keys() {
-        debug("Received KEYS command");
-        return new RespArray(cache.getPersistedKeys()).serialize();
+    private byte[] keys(List<RespValue> values) {
+        if (values.size() != 2) {
+            return new RespError("ERR wrong number of arguments for 'keys' command").serialize();
+        }
+        // the glob matching of PSUBSCRIBE, with the pattern as the only subscription
+        PatternTrie<Boolean> pattern = new PatternTrie<>();
+        pattern.subscribe(Boolean.TRUE, values.get(1));
+        List<RespValue> keys = new ArrayList<>();
+        Stream.of(cache.entries().keySet(), streams.streams().keySet(), sortedSets.keySet())
+                .flatMap(Collection::stream)
+                .forEach(key -> pattern.match(((RespBulkString) key).value(), (_, _) -> keys.add(key)));
+        return new RespArray(keys).serialize();
     }
 
     private byte[] configGet(List<RespValue> values) {
@@ -762,19 +2693,25 @@ public class MainEventLoop implements AutoCloseable {
             }
             RespValue setKey = values.get(1);
             RespValue value = values.get(2);
-            if (values.size() > 3) {
-                cache.put(setKey, value, System.currentTimeMillis() + Long.parseLong(((RespBulkString) values.get(4)).value()));
+            if (values.size() > 4) {
+                long amount = Long.parseLong(((RespBulkString) values.get(4)).value());
+                long expirationTime = switch (((RespBulkString) values.get(3)).value().toUpperCase()) {
+                    case "EX" -> System.currentTimeMillis() + amount * 1000;
+                    case "EXAT" -> amount * 1000;
+                    case "PXAT" -> amount;
+                    default -> System.currentTimeMillis() + amount;
+                };
+                cache.put(setKey, value, expirationTime);
+                touch(setKey);
+                // replayed from the append-only file or applied by a replica later, the key expires at the same time
+                propagate(new RespArray(List.of(values.get(0), setKey, value, new RespBulkString("PXAT"),
+                        new RespBulkString(Long.toString(expirationTime)))));
             } else {
                 cache.put(setKey, value);
+                touch(setKey);
+                propagate(array);
             }
-            if (isMaster) {
-                replicationService.propagate(array, selector);
-                return OK;
-            } else {
-                long previous = replicationService.getOffset();
-                replicationService.moveOffset(array.getSize());
-                debug("manipulating offset by as replica: %d-%d-%d", previous, array.getSize(), replicationService.getOffset());
-            }
+            return OK;
         }
         return null;
     }
@@ -782,6 +2719,12 @@ public class MainEventLoop implements AutoCloseable {
     private void handleWrite(SelectionKey key) throws IOException {
         SocketChannel client = (SocketChannel) key.channel();
         ClientState state = (ClientState) key.attachment();
+        if (appendOnlyFile != null && !appendOnlyFile.isSynced(state.appendOffset)) {
+            // answered once its writes are on disk, see releaseSyncedReplies
+            key.interestOps(SelectionKey.OP_READ);
+            awaitingSync.add(state);
+            return;
+        }
 
         handleWrite(key, state, client);
     }
@@ -789,35 +2732,126 @@ public class MainEventLoop implements AutoCloseable {
     private void handleWrite(SelectionKey key, ClientState state, SocketChannel client) throws IOException {
         boolean written = false;
         while (!state.pendingWrites.isEmpty()) {
-            ByteBuffer stateBuffer = state.pendingWrites.poll();
-            if (stateBuffer == null || !stateBuffer.hasRemaining()) {
+            ByteBuffer stateBuffer = state.pendingWrites.peek();
+            if (!stateBuffer.hasRemaining()) {
+                state.pendingWrites.poll();
                 continue;
             }
-            debug("sending #%s# to the client: %s", new String(stateBuffer.array()), ((InetSocketAddress) client.getRemoteAddress()).getPort());
-            client.write(stateBuffer);
+            debug("sending #%s# to the client: %s", StandardCharsets.UTF_8.decode(stateBuffer.duplicate()),
+                    ((InetSocketAddress) client.getRemoteAddress()).getPort());
+            state.outputBytes -= client.write(stateBuffer);
             written = true;
             if (stateBuffer.hasRemaining()) {
+                // the socket buffer is full, the rest is written on the next OP_WRITE
                 return;
             }
+            state.pendingWrites.poll();
+        }
+        if (state.replica && !state.closing && !replicationService.writeStream(state, client)) {
+            // the socket buffer is full, the rest of the stream is written on the next OP_WRITE
+            return;
         }
 
         if (written || !((ClientState) key.attachment()).pendingForAcks) {
             key.interestOps(SelectionKey.OP_READ);
-            if (pendingWait != null && pendingWait.state == key.attachment()) {
-                ((ClientState) key.attachment()).pendingForAcks = false;
-                pendingWait = null;
-            }
             ((ClientState) key.attachment()).pendingForAcks = false;
+            processDeferredCommands(state);
         }
     }
 
     private void sendResponse(ClientState client, byte[] data) {
-        client.pendingWrites.add(ByteBuffer.wrap(data));
+        sendResponse(client, ByteBuffer.wrap(data));
+    }
+
+    private void sendResponse(ClientState client, ByteBuffer data) {
+        if (client.closing) {
+            return;
+        }
+        client.append(data);
         client.key.interestOps(SelectionKey.OP_WRITE);
+        enforceOutputLimit(client);
+    }
+
+    /**
+     * Schedules the client for disconnection once its pending output crosses the hard limit of its class, or has
+     * stayed above the soft limit for too long. The client is closed after the current batch of events, since it
+     * may still be referenced by a fan-out in progress.
+     */
+    private void enforceOutputLimit(ClientState client) {
+        OutputBufferLimit limit = client.replica
+                ? config.getReplicaOutputLimit()
+                : isSubscribed(client) ? config.getPubSubOutputLimit() : config.getNormalOutputLimit();
+        long pending = client.outputBytes;
+        Replica replica = client.replica ? replicationService.getReplica(client) : null;
+        if (replica != null) {
+            pending += replicationService.lag(replica);
+        }
+        long now = System.currentTimeMillis();
+        if (!limit.isOverSoftLimit(pending)) {
+            client.softLimitSince = -1;
+        } else if (client.softLimitSince == -1) {
+            client.softLimitSince = now;
+        }
+        if (limit.isExceeded(pending, client.softLimitSince, now)) {
+            warn("Client %s scheduled to be closed for exceeding its output buffer limit: %d bytes pending",
+                    client, pending);
+            scheduleClose(client);
+        }
+    }
+
+    private void scheduleClose(ClientState client) {
+        client.closing = true;
+        client.pendingWrites.clear();
+        clientsToClose.add(client);
+    }
+
+    private void closeScheduledClients() {
+        for (ClientState client : clientsToClose) {
+            client.key.cancel();
+            try {
+                client.key.channel().close();
+            } catch (IOException e) {
+                error("Error closing channel %s: %s", client.key.channel(), e);
+            }
+            servingClients.remove((SocketChannel) client.key.channel());
+            releaseClient(client);
+        }
+        clientsToClose.clear();
+    }
+
+    /**
+     * Drops the server-side state of a disconnected client.
+     */
+    private void releaseClient(ClientState state) {
+        if (state == masterLink) {
+            warn("Lost connection to master, reconnecting");
+            masterLink = null;
+            masterSync = null;
+            nextReconnectAttempt = System.currentTimeMillis() + RECONNECT_INTERVAL_MILLIS;
+        }
+        pubSub.unsubscribeAll(state);
+        patternSubscriptions.unsubscribeAll(state);
+        shardChannels.unsubscribeAll(state);
+        transactions.remove(state);
+        replicaWaits.removeIf(wait -> wait.state == state);
+        unwatchAll(state);
+        replicationService.removeReplica(state);
+        syncSnapshots.remove(state);
+        awaitingSync.remove(state);
+        if (state.blockedPop != null) {
+            dropBzPopWaiter(state.blockedPop);
+        }
+        if (state.blockedRead != null) {
+            streamReadTimeouts.remove(state.blockedRead);
+            state.blockedRead.finish(null);
+        }
     }
 
     @Override
     public void close() throws Exception {
+        if (appendOnlyFile != null) {
+            appendOnlyFile.close();
+        }
         serverChannel.close();
         selector.close();
         for (SocketChannel client : servingClients) {
@@ -826,16 +2860,61 @@ public class MainEventLoop implements AutoCloseable {
     }
 
     public static class ClientState {
+        private static final AtomicLong NEXT_ID = new AtomicLong(1);
         final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        // commands received while waiting for the reply of a blocking command
+        final Queue<RespArray> deferredCommands = new ArrayDeque<>();
         final SelectionKey key;
+        final long id;
+        final long createdAt;
         boolean pendingForAcks = false;
+        boolean replica;
+        boolean closing;
+        // bytes queued in pendingWrites and not yet written to the socket
+        long outputBytes;
+        long softLimitSince = -1;
+        long lastInteraction;
+        // keys this client WATCHes, and whether any of them was modified since
+        final Set<RespValue> watchedKeys = new HashSet<>();
+        boolean watchedKeyTouched;
+        boolean runningScript;
+        boolean runningTransaction;
+        // the BZPOPMIN / BZPOPMAX this client is blocked in, null otherwise
+        PendingZPop blockedPop;
+        // the XREAD / XREADGROUP this client is blocked in, null otherwise
+        BlockedStreamRead blockedRead;
+        // end of the replication stream after this client's last write
+        long replicationOffset;
+        // end of the append-only file after this client's last command, what its replies wait for under always
+        long appendOffset;
+        // from REPLCONF capa
+        final Set<String> replicaCapabilities = new HashSet<>();
+        // from REPLCONF listening-port, 0 when not announced
+        int listeningPort;
+        String lastCommand = "NULL";
+        String name = "";
 
         public ClientState(SelectionKey key) {
             this.key = key;
+            id = NEXT_ID.getAndIncrement();
+            createdAt = System.currentTimeMillis();
+            lastInteraction = createdAt;
         }
 
         public void append(ByteBuffer chunk) {
             pendingWrites.add(chunk);
+            outputBytes += chunk.remaining();
+        }
+
+        public SelectionKey key() {
+            return key;
+        }
+
+        /**
+         * Applies the replica output buffer limits to this connection.
+         */
+        public void markReplica() {
+            replica = true;
         }
 
         @Override
@@ -848,6 +2927,199 @@ public class MainEventLoop implements AutoCloseable {
         }
     }
 
+    /**
+     * Puts the keys of a snapshot, the RDB file's or the master's, into the keyspace as they are decoded.
+     */
+    private final class SnapshotLoader implements RdbReader.Sink {
+        @Override
+        public void put(RespValue key, RespValue value, long expirationTime) {
+            cache.put(key, value, expirationTime);
+        }
+
+        @Override
+        public void put(RespValue key, RedisSortedSet sortedSet) {
+            sortedSets.put(key, sortedSet);
+        }
+
+        @Override
+        public void put(RespValue key, RedisStream stream) {
+            streams.put(key, stream);
+        }
+
+        @Override
+        public void delete(RespValue key) {
+            cache.remove(key);
+            sortedSets.remove(key);
+            streams.remove(key);
+        }
+    }
+
+    /**
+     * Marks and propagates the consumer group changes of XREADGROUP, XCLAIM and XAUTOCLAIM as Redis does: each
+     * delivery or claim as the XCLAIM that forces the entry into the same state, with the last delivered ID of the
+     * group, a NOACK read as XGROUP SETID, and the entries found deleted as XACK.
+     */
+    private final class GroupPropagation implements StreamCache.GroupListener {
+        @Override
+        public void consumerCreated(RespValue key, StreamConsumerGroup group, StreamConsumerGroup.Consumer consumer) {
+            markDirty(key);
+            propagate(command("XGROUP", "CREATECONSUMER", key, group.getName(), consumer.getName()));
+        }
+
+        @Override
+        public void delivered(RespValue key, StreamConsumerGroup group, StreamConsumerGroup.PendingEntry entry) {
+            markDirty(key);
+            propagate(command("XCLAIM", key, group.getName(), entry.getOwner().getName(), "0",
+                    entry.getId().toString(), "TIME", Long.toString(entry.getDeliveryTime()),
+                    "RETRYCOUNT", Long.toString(entry.getDeliveryCount()), "FORCE", "JUSTID",
+                    "LASTID", group.getLastDeliveredId().toString()));
+        }
+
+        @Override
+        public void acknowledged(RespValue key, StreamConsumerGroup group, StreamId id) {
+            markDirty(key);
+            propagate(command("XACK", key, group.getName(), id.toString()));
+        }
+
+        @Override
+        public void lastDeliveredIdSet(RespValue key, StreamConsumerGroup group) {
+            markDirty(key);
+            propagate(command("XGROUP", "SETID", key, group.getName(), group.getLastDeliveredId().toString()));
+        }
+
+        /**
+         * @param arguments keys as they are, anything else as its string
+         */
+        private static RespArray command(Object... arguments) {
+            List<RespValue> values = new ArrayList<>(arguments.length);
+            for (Object argument : arguments) {
+                values.add(argument instanceof RespValue value ? value : new RespBulkString(argument.toString()));
+            }
+            return new RespArray(values);
+        }
+    }
+
+    /**
+     * A client blocked in XREAD / XREADGROUP. It listens on every stream it reads and re-runs its read only when one
+     * of them receives an entry.
+     */
+    private final class BlockedStreamRead extends PendingWait implements StreamCache.AppendListener {
+        final List<RespValue> keys;
+        private final Supplier<byte[]> read;
+        boolean served;
+
+        BlockedStreamRead(ClientState state, long timeout, List<RespValue> keys, Supplier<byte[]> read) {
+            super(state, 0, timeout == 0 ? -1 : System.currentTimeMillis() + timeout);
+            this.keys = keys;
+            this.read = read;
+        }
+
+        @Override
+        public void onAppend(RespValue key) {
+            if (served) {
+                return;
+            }
+            if (!state.key.isValid()) {
+                finish(null);
+                return;
+            }
+            byte[] result = read.get();
+            if (result != null) {
+                finish(result);
+            }
+        }
+
+        void finish(byte[] response) {
+            served = true;
+            state.blockedRead = null;
+            for (RespValue key : keys) {
+                streams.removeListener(key, this);
+            }
+            if (response != null && state.key.isValid()) {
+                sendResponse(state, response);
+            }
+        }
+    }
+
+    public static class PendingZPop extends PendingWait {
+        final boolean max;
+        final List<RespValue> keys;
+        boolean served;
+
+        public PendingZPop(ClientState state, long expiration, boolean max, List<RespValue> keys) {
+            super(state, 0, expiration);
+            this.max = max;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * A ZUNION, ZINTER or ZDIFF family command aggregating its inputs on the pool of its
+     * {@link SortedSetAggregation}. The inputs are retained meanwhile, so writes to them go to copies, see
+     * {@link #writableSortedSet}: a written input is then no longer the set of its key, which tells a stale STORE.
+     */
+    private final class PendingAggregation extends PendingWait {
+        final List<RespValue> command;
+        final List<RespValue> keys;
+        final SortedSetAggregation aggregation;
+        final boolean withScores;
+        final boolean store;
+        List<RedisSortedSet> inputs;
+        CompletableFuture<RedisSortedSet> result;
+        int attempts;
+
+        PendingAggregation(ClientState state, List<RespValue> command, List<RespValue> keys,
+                           SortedSetAggregation aggregation, boolean withScores, boolean store) {
+            super(state, 0, -1);
+            this.command = command;
+            this.keys = keys;
+            this.aggregation = aggregation;
+            this.withScores = withScores;
+            this.store = store;
+        }
+
+        void start() {
+            inputs = sortedSetsOf(keys);
+            for (RedisSortedSet input : inputs) {
+                if (input != null) {
+                    input.retain();
+                }
+            }
+            attempts++;
+            result = aggregation.applyAsync(inputs);
+            result.whenComplete((sortedSet, e) -> selector.wakeup());
+        }
+
+        void release() {
+            for (RedisSortedSet input : inputs) {
+                if (input != null) {
+                    input.release();
+                }
+            }
+        }
+
+        boolean isStale() {
+            for (int i = 0; i < keys.size(); i++) {
+                if (sortedSets.get(keys.get(i)) != inputs.get(i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A client blocked in WAIT until enough replicas acknowledged {@code targetOffset}.
+     */
+    private static final class ReplicaWait extends PendingWait {
+        final long targetOffset;
+
+        ReplicaWait(ClientState state, int requiredAcks, long expiration, long targetOffset) {
+            super(state, requiredAcks, expiration);
+            this.targetOffset = targetOffset;
+        }
+    }
+
     public static class PendingWait {
         final ClientState state;
         int receivedAcks;
@@ -1,13 +1,10 @@
 package redis.cache;
 
-import redis.persistence.DumpFileReader;
-import redis.persistence.NoopDumpFileReader;
-import redis.persistence.PersistentFileReader;
 import redis.resp.RespBulkString;
 import redis.resp.RespValue;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -15,15 +12,9 @@ public class Cache {
     private static final CachedValue<RespValue> EXPIRED_ENTRY
             = new CachedValue<>(new RespBulkString(null), -1);
     private final ConcurrentMap<RespValue, CachedValue<RespValue>> data;
-    private final PersistentFileReader dumpReader;
 
     public Cache() {
-        this(new NoopDumpFileReader());
-    }
-
-    public Cache(PersistentFileReader dumpFileReader) {
         this.data = new ConcurrentHashMap<>();
-        this.dumpReader = dumpFileReader;
     }
 
     public CachedValue<RespValue> get(RespValue key) {
@@ -35,16 +26,11 @@ public class Cache {
             return v;
         });
 
-        if (cachedValue != null) {
-            return cachedValue;
-        }
-        if (key instanceof RespBulkString bulkString && bulkString.value() != null) {
-            CachedValue<String> value = dumpReader.read().get(bulkString.value());
-            return value != null
-                    ? new CachedValue<>(new RespBulkString(value.value()), value.expirationTime())
-                    : EXPIRED_ENTRY;
-        }
-        return EXPIRED_ENTRY;
+        return cachedValue != null ? cachedValue : EXPIRED_ENTRY;
+    }
+
+    public boolean containsKey(RespValue key) {
+        return get(key) != EXPIRED_ENTRY;
     }
 
     public void put(RespValue setKey, RespValue value) {
@@ -62,19 +48,30 @@ public class Cache {
         data.remove(key);
     }
 
-    public List<RespValue> getPersistedKeys() {
-        List<RespValue> responseValues = new ArrayList<>();
-        dumpReader.read().keys().forEach(
-                k -> responseValues.add(new RespBulkString(k))
-        );
-        return responseValues;
+    /**
+     * Drops every key, as a replica does before loading its master's snapshot.
+     */
+    public void clear() {
+        data.clear();
+    }
+
+    /**
+     * @return the live keys and their values
+     */
+    public Map<RespValue, CachedValue<RespValue>> entries() {
+        Map<RespValue, CachedValue<RespValue>> entries = new LinkedHashMap<>();
+        data.forEach((key, value) -> {
+            if (value.isValid()) {
+                entries.put(key, value);
+            }
+        });
+        return entries;
     }
 
     @Override
     public String toString() {
         return "Cache{" +
                "data=" + data +
-               ", dumpReader=" + dumpReader +
                '}';
     }
 }
@@ -10,6 +10,8 @@ import java.util.*;
 public class RedisSortedSet {
     private final TreeSet<ScoredValue> scoreToValueMap;
     private final Map<RespValue, Double> valueToScoreMap;
+    // background aggregations reading this set, which must then be copied before it is modified
+    private int readers;
 
     public RedisSortedSet() {
         scoreToValueMap
@@ -18,6 +20,31 @@ public class RedisSortedSet {
         valueToScoreMap = new HashMap<>();
     }
 
+    private RedisSortedSet(RedisSortedSet other) {
+        scoreToValueMap = new TreeSet<>(other.scoreToValueMap);
+        valueToScoreMap = new HashMap<>(other.valueToScoreMap);
+    }
+
+    /**
+     * Marks the set as read by another thread until {@link #release()}; the owner then modifies a {@link #copy()}
+     * instead, so the reader keeps a frozen view.
+     */
+    public void retain() {
+        readers++;
+    }
+
+    public void release() {
+        readers--;
+    }
+
+    public boolean isShared() {
+        return readers > 0;
+    }
+
+    public RedisSortedSet copy() {
+        return new RedisSortedSet(this);
+    }
+
     public boolean add(RespValue value, double score) {
         if (valueToScoreMap.containsKey(value)) {
             Double oldScore = valueToScoreMap.get(value);
@@ -43,16 +70,26 @@ public class RedisSortedSet {
     }
 
     public RespArray range(int start, int end) {
+        return range(start, end, false);
+    }
+
+    public RespArray range(int start, int end, boolean withScores) {
         start = normalize(start);
         end = normalize(end);
         if (start > end) {
             return new RespArray(List.of());
         }
-        return new RespArray(
-                scoreToValueMap.stream()
-                        .skip(start)
-                        .limit(end - start + 1)
-                        .map(ScoredValue::value).toList());
+        List<RespValue> output = new ArrayList<>();
+        scoreToValueMap.stream()
+                .skip(start)
+                .limit(end - start + 1)
+                .forEach(scoredValue -> {
+                    output.add(scoredValue.value());
+                    if (withScores) {
+                        output.add(new RespBulkString(Double.toString(scoredValue.score())));
+                    }
+                });
+        return new RespArray(output);
     }
 
     private int normalize(int index) {
@@ -66,6 +103,23 @@ public class RedisSortedSet {
         return index;
     }
 
+    public int count() {
+        return valueToScoreMap.size();
+    }
+
+    /**
+     * Read-only member to score view, used by the multi-set aggregations and by persistence.
+     */
+    public Map<RespValue, Double> scores() {
+        return Collections.unmodifiableMap(valueToScoreMap);
+    }
+
+    static RedisSortedSet of(Map<RespValue, Double> scores) {
+        RedisSortedSet sortedSet = new RedisSortedSet();
+        scores.forEach((value, score) -> sortedSet.add(value, score));
+        return sortedSet;
+    }
+
     public RespValue size() {
         return new RespInteger(scoreToValueMap.size());
     }
@@ -75,16 +129,32 @@ public class RedisSortedSet {
         return score == null ? new RespBulkString(null) : new RespBulkString(score.toString());
     }
 
-    public RespValue remove(RespValue value) {
-        Double score = valueToScoreMap.get(value);
+    /**
+     * @return whether {@code value} was a member
+     */
+    public boolean remove(RespValue value) {
+        Double score = valueToScoreMap.remove(value);
         if (score == null) {
-            return new RespInteger(0);
+            return false;
         }
-
-        valueToScoreMap.remove(value);
         scoreToValueMap.remove(new ScoredValue(score, value));
+        return true;
+    }
 
-        return new RespInteger(1);
+    /**
+     * Removes up to {@code count} members from the low end ({@code max == false}) or the high end of the score index.
+     *
+     * @return flat array of popped member and score pairs, in pop order
+     */
+    public RespArray pop(int count, boolean max) {
+        List<RespValue> output = new ArrayList<>();
+        for (int i = 0; i < count && !scoreToValueMap.isEmpty(); i++) {
+            ScoredValue scoredValue = max ? scoreToValueMap.pollLast() : scoreToValueMap.pollFirst();
+            valueToScoreMap.remove(scoredValue.value());
+            output.add(scoredValue.value());
+            output.add(new RespBulkString(Double.toString(scoredValue.score())));
+        }
+        return new RespArray(output);
     }
 
     private record ScoredValue(double score, RespValue value) {
@@ -4,166 +4,620 @@ import redis.resp.RespArray;
 import redis.resp.RespBulkString;
 import redis.resp.RespError;
 import redis.resp.RespValue;
+import redis.resp.RespWriter;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.TreeMap;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
+/**
+ * Stream storage modeled after Redis' radix tree of listpacks: entries are packed into macro nodes of at most
+ * {@link #NODE_MAX_ENTRIES} entries / {@link #NODE_MAX_BYTES} bytes. Inside a node every entry ID is stored as a
+ * varint delta against the node's master ID and field names are replaced by indexes into a per-node dictionary.
+ * Nodes are kept in ID order, so range lookups binary search the node list and scan a single node at most.
+ * Trimming drops whole nodes from the head of the list; exact trimming additionally advances the head offset of
+ * the first remaining node.
+ */
 public class RedisStream {
+    static final int NODE_MAX_ENTRIES = 100;
+    static final int NODE_MAX_BYTES = 4096;
+    public static final long DEFAULT_TRIM_LIMIT = 100L * NODE_MAX_ENTRIES;
     private static final RespError KEY_VALIDATION_ERROR
             = new RespError("ERR The ID specified in XADD is equal or smaller than the target stream top item");
     private static final RespError ZERO_KEY_VALIDATION_ERROR
             = new RespError("ERR The ID specified in XADD must be greater than 0-0");
-    private final TreeMap<Long, StreamNode> streamStorage;
-    private long minEntryId;
-    private long maxEntryId;
+    private static final RespError INVALID_ID_ERROR
+            = new RespError("ERR Invalid stream ID specified as stream command argument");
+    private static final int COMPACTION_THRESHOLD = 64;
+    private final List<StreamNode> nodes;
+    private final Map<String, StreamConsumerGroup> groups;
+    // nodes before this index have been trimmed and are released lazily, see compactNodes()
+    private int firstNode;
+    private long length;
+    private long lastTimePart;
+    private long lastSequenceNumber;
+    // scratch space of the reverse iteration, one slot per entry of a node
+    private final int[] entryOffsets;
 
     public RedisStream() {
-        streamStorage = new TreeMap<>();
-        minEntryId = -1;
-        maxEntryId = -1;
+        nodes = new ArrayList<>();
+        groups = new LinkedHashMap<>();
+        firstNode = 0;
+        length = 0;
+        lastTimePart = 0;
+        lastSequenceNumber = 0;
+        entryOffsets = new int[NODE_MAX_ENTRIES];
     }
 
     public RespValue append(RespBulkString entryId, List<RespValue> values) {
         String value = entryId.value();
-        long timePart = -1;
+        long timePart;
         long sequenceNumber = -1;
-        if ("*".equalsIgnoreCase(value)) {
-            timePart = System.currentTimeMillis();
-        }
-        String[] rawIds = value.split("-");
-        if (timePart == -1) {
-            timePart = Long.parseLong(rawIds[0]);
+        boolean autoSequence = true;
+        if ("*".equals(value)) {
+            timePart = Math.max(System.currentTimeMillis(), lastTimePart);
+        } else {
+            int dash = value.indexOf('-');
+            try {
+                if (dash == -1) {
+                    timePart = Long.parseUnsignedLong(value);
+                } else {
+                    timePart = Long.parseUnsignedLong(value, 0, dash, 10);
+                    if (!(dash == value.length() - 2 && value.charAt(dash + 1) == '*')) {
+                        sequenceNumber = Long.parseUnsignedLong(value, dash + 1, value.length(), 10);
+                        autoSequence = false;
+                    }
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException _) {
+                return INVALID_ID_ERROR;
+            }
         }
-        if (rawIds.length != 1 && !"*".equalsIgnoreCase(rawIds[1])) {
-            sequenceNumber = Long.parseLong(rawIds[1]);
+        if (autoSequence) {
+            // the last ID starts at 0-0, so the first auto-generated ID with time part 0 is 0-1
+            sequenceNumber = timePart == lastTimePart ? lastSequenceNumber + 1 : 0;
         }
         if (timePart == 0 && sequenceNumber == 0) {
             return ZERO_KEY_VALIDATION_ERROR;
         }
-        if (minEntryId == -1) {
-            minEntryId = timePart;
-            maxEntryId = timePart;
-        } else if (maxEntryId > timePart) {
+        if (compare(timePart, sequenceNumber, lastTimePart, lastSequenceNumber) <= 0) {
             return KEY_VALIDATION_ERROR;
-        } else {
-            maxEntryId = timePart;
         }
 
-        return streamStorage.computeIfAbsent(timePart, k -> new StreamNode())
-                .append(timePart, sequenceNumber, values);
+        StreamNode tail = firstNode == nodes.size() ? null : nodes.getLast();
+        byte[][] encodedValues = encodeValues(values);
+        if (tail == null || !tail.hasRoomFor(encodedValues)) {
+            if (tail != null) {
+                tail.seal();
+            }
+            tail = new StreamNode(timePart, sequenceNumber);
+            nodes.add(tail);
+        }
+        tail.append(timePart, sequenceNumber, values, encodedValues);
+        length++;
+        lastTimePart = timePart;
+        lastSequenceNumber = sequenceNumber;
+        return new RespBulkString(Long.toUnsignedString(timePart) + "-" + Long.toUnsignedString(sequenceNumber));
     }
 
+    /**
+     * XRANGE without COUNT; a missing end sequence number selects the whole millisecond.
+     *
+     * @throws IllegalArgumentException when an ID is not valid
+     */
     public RespValue range(String left, String right) {
-        long[] start = getStart(left);
-        long[] end = getEnd(right);
+        StreamId start = left == null ? StreamId.MIN : StreamId.parse(left, 0);
+        StreamId end = right == null ? StreamId.MAX : StreamId.parse(right, -1L);
 
         List<RespValue> rangeValues = new ArrayList<>();
-        streamStorage.subMap(start[0], true, end[0], true)
-                .forEach((timePart, node) -> {
-                    long from = node.values.firstKey();
-                    long to = node.values.lastKey();
-                    if (timePart == start[0]) {
-                        from = start[1];
-                    }
-                    if (timePart == end[0] && end[1] != -1) {
-                        to = end[1];
-                    }
-
-                    node.values.subMap(from, true, to, true)
-                            .forEach((key, value)
-                                    -> rangeValues.add(
-                                    new RespArray(
-                                            List.of(
-                                                    new RespBulkString(timePart + "-" + key),
-                                                    new RespArray(value)))));
-                });
+        collect(start.timePart(), start.sequenceNumber(), end.timePart(), end.sequenceNumber(), 0,
+                entryCollector(rangeValues));
         return new RespArray(rangeValues);
     }
 
-    private long[] getStart(String left) {
-        if (left == null || "-".equalsIgnoreCase(left)) {
-            return new long[]{minEntryId, -1};
-        }
-        String[] split = left.split("-");
-        if (split.length == 1) {
-            return new long[]{Math.max(minEntryId, Long.parseLong(split[0])), -1};
+    /**
+     * XREAD of a single stream: entries with IDs strictly greater than {@code left}.
+     */
+    public RespArray read(String left) {
+        List<RespValue> rangeValues = new ArrayList<>();
+        if (left == null || "-".equals(left)) {
+            collect(0, 0, -1L, -1L, 0, entryCollector(rangeValues));
+        } else {
+            StreamId from = StreamId.parse(left);
+            if (!from.equals(StreamId.MAX)) {
+                from = from.next();
+                collect(from.timePart(), from.sequenceNumber(), -1L, -1L, 0, entryCollector(rangeValues));
+            }
         }
-
-        return new long[]{Math.max(minEntryId, Long.parseLong(split[0])), Long.parseLong(split[1])};
+        return new RespArray(rangeValues);
     }
 
-    private long[] getEnd(String right) {
-        if (right == null || "+".equalsIgnoreCase(right)) {
-            return new long[]{maxEntryId, -1};
+    /**
+     * Writes the entries with IDs in {@code [from, to]} straight into {@code writer} as {@code [id, [field, value,
+     * ...]]} arrays, newest first when {@code reverse}, stopping after {@code count} entries when it is positive.
+     * Nothing is decoded into {@link RespValue}s on the way: field names and values are copied from the packed node.
+     *
+     * @return the number of entries written; the caller writes the enclosing array header
+     */
+    public int writeRange(StreamId from, StreamId to, int count, boolean reverse, RespWriter writer) {
+        if (length == 0 || from.compareTo(to) > 0) {
+            return 0;
         }
-        String[] split = right.split("-");
-        if (split.length == 1) {
-            return new long[]{Math.min(maxEntryId, Long.parseLong(split[0])), -1};
+        return reverse
+                ? writeReverse(from.timePart(), from.sequenceNumber(), to.timePart(), to.sequenceNumber(), count, writer)
+                : writeForward(from.timePart(), from.sequenceNumber(), to.timePart(), to.sequenceNumber(), count, writer);
+    }
+
+    private int writeForward(long fromTimePart, long fromSequence, long toTimePart, long toSequence, int count,
+                             RespWriter writer) {
+        int written = 0;
+        for (int i = findNode(fromTimePart, fromSequence); i < nodes.size(); i++) {
+            StreamNode node = nodes.get(i);
+            if (compare(node.masterTimePart, node.masterSequence, toTimePart, toSequence) > 0) {
+                break;
+            }
+            EntryCursor cursor = node.cursor();
+            while (cursor.next()) {
+                if (compare(cursor.timePart, cursor.sequenceNumber, fromTimePart, fromSequence) < 0) {
+                    cursor.skipValues();
+                    continue;
+                }
+                if (compare(cursor.timePart, cursor.sequenceNumber, toTimePart, toSequence) > 0) {
+                    return written;
+                }
+                cursor.writeEntry(writer);
+                if (++written == count) {
+                    return written;
+                }
+            }
         }
+        return written;
+    }
 
-        return new long[]{Math.min(maxEntryId, Long.parseLong(split[0])), Long.parseLong(split[1])};
+    private int writeReverse(long fromTimePart, long fromSequence, long toTimePart, long toSequence, int count,
+                             RespWriter writer) {
+        int written = 0;
+        for (int i = findNode(toTimePart, toSequence); i >= firstNode; i--) {
+            StreamNode node = nodes.get(i);
+            if (compare(node.lastTimePart, node.lastSequence, fromTimePart, fromSequence) < 0) {
+                break;
+            }
+            // entries can only be decoded front to back, so remember where each one starts and walk them backwards
+            EntryCursor cursor = node.cursor();
+            int entries = 0;
+            while (true) {
+                int offset = cursor.position;
+                if (!cursor.next()) {
+                    break;
+                }
+                entryOffsets[entries++] = offset;
+                cursor.skipValues();
+            }
+            for (int j = entries - 1; j >= 0; j--) {
+                cursor.seek(entryOffsets[j]);
+                cursor.next();
+                if (compare(cursor.timePart, cursor.sequenceNumber, toTimePart, toSequence) > 0) {
+                    continue;
+                }
+                if (compare(cursor.timePart, cursor.sequenceNumber, fromTimePart, fromSequence) < 0) {
+                    return written;
+                }
+                cursor.writeEntry(writer);
+                if (++written == count) {
+                    return written;
+                }
+            }
+        }
+        return written;
     }
 
-    public RespArray read(String left) {
-        long[] start = getStart(left);
-        List<RespValue> rangeValues = new ArrayList<>();
-        streamStorage.tailMap(start[0], true)
-                .forEach((timePart, node) -> {
-                    long from = node.values.firstKey();
-                    if (timePart == start[0]) {
-                        from = start[1];
+    /**
+     * Delivers up to {@code count} entries after the group's last delivered ID to {@code consumer}, advancing the
+     * last delivered ID and, unless {@code noAck}, adding the entries to the pending lists.
+     *
+     * @return the delivered entries
+     */
+    public List<RespValue> readGroup(StreamConsumerGroup group, StreamConsumerGroup.Consumer consumer,
+                                     int count, boolean noAck, long now) {
+        List<RespValue> entries = new ArrayList<>();
+        StreamId from = group.getLastDeliveredId().next();
+        collect(from.timePart(), from.sequenceNumber(), -1L, -1L, count,
+                (timePart, sequenceNumber, values) -> {
+                    StreamId id = new StreamId(timePart, sequenceNumber);
+                    group.setLastDeliveredId(id);
+                    if (!noAck) {
+                        group.deliver(id, consumer, now);
                     }
-                    node.values.tailMap(from, false)
-                            .forEach((key, value)
-                                    -> rangeValues.add(
-                                    new RespArray(
-                                            List.of(
-                                                    new RespBulkString(timePart + "-" + key),
-                                                    new RespArray(value)))));
+                    entries.add(new RespArray(List.of(new RespBulkString(id.toString()), new RespArray(values))));
                 });
-        return new RespArray(rangeValues);
+        return entries;
     }
 
-    public String getMaxId() {
-        if (streamStorage.isEmpty()) {
-            return "0-0";
+    /**
+     * @return the entry as an {@code [id, [field, value, ...]]} array, or null when the stream does not hold it
+     */
+    public RespArray getEntry(StreamId id) {
+        List<RespValue> entry = new ArrayList<>(1);
+        collect(id.timePart(), id.sequenceNumber(), id.timePart(), id.sequenceNumber(), 1, entryCollector(entry));
+        return entry.isEmpty() ? null : (RespArray) entry.getFirst();
+    }
+
+    public StreamId getLastId() {
+        return new StreamId(lastTimePart, lastSequenceNumber);
+    }
+
+    /**
+     * Visits every entry in ID order.
+     */
+    public void forEach(EntryVisitor visitor) {
+        collect(0, 0, -1L, -1L, 0, visitor);
+    }
+
+    public Collection<StreamConsumerGroup> groups() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    /**
+     * Moves the last ID forward without adding an entry, for a stream whose newest entries were deleted before it
+     * was saved.
+     */
+    public void restoreLastId(StreamId id) {
+        if (compare(id.timePart(), id.sequenceNumber(), lastTimePart, lastSequenceNumber) > 0) {
+            lastTimePart = id.timePart();
+            lastSequenceNumber = id.sequenceNumber();
         }
+    }
 
-        Long timePart = streamStorage.lastKey();
-        Long sequenceNumber = streamStorage.get(timePart).values.lastKey();
-        return timePart + "-" + sequenceNumber;
+    public StreamConsumerGroup getGroup(String name) {
+        return groups.get(name);
     }
 
-    private static class StreamNode {
-        TreeMap<Long, List<RespValue>> values = new TreeMap<>();
+    public boolean createGroup(String name, StreamId lastDeliveredId) {
+        return groups.putIfAbsent(name, new StreamConsumerGroup(name, lastDeliveredId)) == null;
+    }
+
+    public boolean destroyGroup(String name) {
+        return groups.remove(name) != null;
+    }
 
-        public RespValue append(long timePart, long predefinedSequenceNumber, List<RespValue> streamValues) {
-            long sequenceNumber = getSequenceNumber(timePart, predefinedSequenceNumber);
-            if (!values.isEmpty() && sequenceNumber <= values.lastKey()) {
-                return KEY_VALIDATION_ERROR;
+    public String getMaxId() {
+        return getLastId().toString();
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Evicts the oldest entries according to {@code options}. The approximate form only ever drops whole nodes, so
+     * it may keep a few more entries than requested but costs O(1) amortized per call.
+     *
+     * @return the number of evicted entries
+     */
+    public long trim(TrimOptions options) {
+        long removed = 0;
+        long limit = options.approximate() && options.limit() > 0 ? options.limit() : Long.MAX_VALUE;
+        while (firstNode < nodes.size()) {
+            StreamNode head = nodes.get(firstNode);
+            long removable;
+            boolean wholeNode;
+            if (options.minId() != null) {
+                wholeNode = compare(head.lastTimePart, head.lastSequence,
+                        options.minId().timePart(), options.minId().sequenceNumber()) < 0;
+                removable = wholeNode
+                        ? head.live
+                        : head.countBelow(options.minId().timePart(), options.minId().sequenceNumber());
+            } else {
+                removable = Math.min(head.live, length - options.maxLength());
+                wholeNode = removable == head.live;
+            }
+            if (removable <= 0 || (options.approximate() && !wholeNode) || removed + removable > limit) {
+                break;
+            }
+            if (wholeNode) {
+                nodes.set(firstNode++, null);
+            } else {
+                head.dropFirst((int) removable);
+            }
+            removed += removable;
+            length -= removable;
+            if (!wholeNode) {
+                break;
             }
+        }
+        compactNodes();
+        return removed;
+    }
 
-            values.put(sequenceNumber, streamValues);
-            return new RespBulkString(timePart + "-" + sequenceNumber);
+    /**
+     * Releases the slots of trimmed nodes once they make up half of the node list, keeping head removal O(1)
+     * amortized instead of shifting the list on every trim.
+     */
+    private void compactNodes() {
+        if (firstNode == nodes.size()) {
+            nodes.clear();
+            firstNode = 0;
+        } else if (firstNode >= COMPACTION_THRESHOLD && firstNode * 2 >= nodes.size()) {
+            nodes.subList(0, firstNode).clear();
+            firstNode = 0;
         }
+    }
 
-        private long getSequenceNumber(long timePart, long predefinedSequenceNumber) {
-            long entryId;
-            if (predefinedSequenceNumber == -1) {
-                if (values.isEmpty()) {
-                    if (timePart == 0) {
-                        entryId = 1;
-                    } else {
-                        entryId = 0;
-                    }
-                } else {
-                    entryId = values.lastKey() + 1;
+    private static EntryVisitor entryCollector(List<RespValue> output) {
+        return (timePart, sequenceNumber, values) -> output.add(new RespArray(List.of(
+                new RespBulkString(new StreamId(timePart, sequenceNumber).toString()),
+                new RespArray(values))));
+    }
+
+    /**
+     * Visits entries with IDs in {@code [from, to]} in ID order, at most {@code count} of them when it is positive.
+     */
+    private void collect(long fromTimePart, long fromSequence, long toTimePart, long toSequence, int count,
+                         EntryVisitor visitor) {
+        if (length == 0 || compare(fromTimePart, fromSequence, toTimePart, toSequence) > 0) {
+            return;
+        }
+        int visited = 0;
+        for (int i = findNode(fromTimePart, fromSequence); i < nodes.size(); i++) {
+            StreamNode node = nodes.get(i);
+            if (compare(node.masterTimePart, node.masterSequence, toTimePart, toSequence) > 0) {
+                return;
+            }
+            EntryCursor cursor = node.cursor();
+            while (cursor.next()) {
+                if (compare(cursor.timePart, cursor.sequenceNumber, fromTimePart, fromSequence) < 0) {
+                    cursor.skipValues();
+                    continue;
+                }
+                if (compare(cursor.timePart, cursor.sequenceNumber, toTimePart, toSequence) > 0) {
+                    return;
+                }
+                visitor.visit(cursor.timePart, cursor.sequenceNumber, cursor.readValues());
+                if (++visited == count) {
+                    return;
                 }
+            }
+        }
+    }
+
+    /**
+     * @return index of the last live node whose master ID is not greater than the given ID, or the first live node
+     */
+    private int findNode(long timePart, long sequenceNumber) {
+        int low = firstNode;
+        int high = nodes.size() - 1;
+        int found = firstNode;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            StreamNode node = nodes.get(middle);
+            if (compare(node.masterTimePart, node.masterSequence, timePart, sequenceNumber) <= 0) {
+                found = middle;
+                low = middle + 1;
             } else {
-                entryId = predefinedSequenceNumber;
+                high = middle - 1;
             }
-            return entryId;
+        }
+        return found;
+    }
+
+    private static int compare(long leftTimePart, long leftSequence, long rightTimePart, long rightSequence) {
+        int result = Long.compareUnsigned(leftTimePart, rightTimePart);
+        return result != 0 ? result : Long.compareUnsigned(leftSequence, rightSequence);
+    }
+
+    private static byte[][] encodeValues(List<RespValue> values) {
+        byte[][] encoded = new byte[values.size()][];
+        for (int i = 1; i < values.size(); i += 2) {
+            encoded[i] = ((RespBulkString) values.get(i)).value().getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    /**
+     * XTRIM / XADD trimming strategy: MAXLEN when {@code minId} is null, MINID otherwise. {@code limit} caps the
+     * entries evicted by an approximate trim, 0 meaning no cap.
+     */
+    public record TrimOptions(long maxLength, StreamId minId, boolean approximate, long limit) {
+    }
+
+    @FunctionalInterface
+    public interface EntryVisitor {
+        void visit(long timePart, long sequenceNumber, List<RespValue> values);
+    }
+
+    private static final class StreamNode {
+        private static final int INITIAL_CAPACITY = 64;
+        final long masterTimePart;
+        final long masterSequence;
+        long lastTimePart;
+        long lastSequence;
+        private final List<byte[]> fields;
+        // looks up the fields of appended entries, dropped once the node is sealed
+        private Map<String, Integer> fieldIndexes;
+        private byte[] data;
+        private int used;
+        private int count;
+        // offset and number of the entries that survived exact trimming
+        private int head;
+        private int live;
+
+        StreamNode(long masterTimePart, long masterSequence) {
+            this.masterTimePart = masterTimePart;
+            this.masterSequence = masterSequence;
+            fields = new ArrayList<>();
+            fieldIndexes = new HashMap<>();
+            data = new byte[INITIAL_CAPACITY];
+        }
+
+        boolean hasRoomFor(byte[][] encodedValues) {
+            if (count >= NODE_MAX_ENTRIES) {
+                return false;
+            }
+            int estimate = 24;
+            for (int i = 1; i < encodedValues.length; i += 2) {
+                estimate += encodedValues[i].length + 10;
+            }
+            return used + estimate <= NODE_MAX_BYTES;
+        }
+
+        void append(long timePart, long sequenceNumber, List<RespValue> values, byte[][] encodedValues) {
+            writeVarLong(timePart - masterTimePart);
+            writeVarLong(zigZag(sequenceNumber - masterSequence));
+            writeVarLong(values.size() / 2);
+            for (int i = 0; i + 1 < values.size(); i += 2) {
+                String field = ((RespBulkString) values.get(i)).value();
+                Integer fieldIndex = fieldIndexes.get(field);
+                if (fieldIndex == null) {
+                    fieldIndex = fields.size();
+                    fields.add(field.getBytes(StandardCharsets.UTF_8));
+                    fieldIndexes.put(field, fieldIndex);
+                }
+                writeVarLong(fieldIndex);
+                writeVarLong(encodedValues[i + 1].length);
+                ensureCapacity(encodedValues[i + 1].length);
+                System.arraycopy(encodedValues[i + 1], 0, data, used, encodedValues[i + 1].length);
+                used += encodedValues[i + 1].length;
+            }
+            count++;
+            live++;
+            lastTimePart = timePart;
+            lastSequence = sequenceNumber;
+        }
+
+        int countBelow(long timePart, long sequenceNumber) {
+            EntryCursor cursor = cursor();
+            int below = 0;
+            while (cursor.next() && compare(cursor.timePart, cursor.sequenceNumber, timePart, sequenceNumber) < 0) {
+                cursor.skipValues();
+                below++;
+            }
+            return below;
+        }
+
+        void dropFirst(int entries) {
+            EntryCursor cursor = cursor();
+            for (int i = 0; i < entries && cursor.next(); i++) {
+                cursor.skipValues();
+            }
+            head = cursor.position;
+            live -= entries;
+        }
+
+        /**
+         * Releases the spare capacity and the field lookup of a node that will not receive more entries.
+         */
+        void seal() {
+            if (data.length != used) {
+                data = Arrays.copyOf(data, used);
+            }
+            fieldIndexes = null;
+        }
+
+        EntryCursor cursor() {
+            return new EntryCursor(this);
+        }
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                data[used++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[used++] = (byte) value;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (used + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, used + extra));
+            }
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    /**
+     * Forward-only decoder over the entries of one node. {@link #next()} decodes the ID of the next entry; the
+     * field/value pairs must then be consumed with either {@link #readValues()} or {@link #skipValues()}.
+     */
+    private static final class EntryCursor {
+        private final StreamNode node;
+        private int position;
+        private int remaining;
+        private int pairs;
+        long timePart;
+        long sequenceNumber;
+
+        EntryCursor(StreamNode node) {
+            this.node = node;
+            this.position = node.head;
+            this.remaining = node.live;
+        }
+
+        boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            timePart = node.masterTimePart + readVarLong();
+            sequenceNumber = node.masterSequence + StreamNode.unZigZag(readVarLong());
+            pairs = (int) readVarLong();
+            return true;
+        }
+
+        List<RespValue> readValues() {
+            List<RespValue> values = new ArrayList<>(pairs * 2);
+            for (int i = 0; i < pairs; i++) {
+                values.add(new RespBulkString(new String(node.fields.get((int) readVarLong()), StandardCharsets.UTF_8)));
+                int length = (int) readVarLong();
+                values.add(new RespBulkString(new String(node.data, position, length, StandardCharsets.UTF_8)));
+                position += length;
+            }
+            return values;
+        }
+
+        /**
+         * Writes the current entry as {@code [id, [field, value, ...]]}, consuming its field/value pairs.
+         */
+        void writeEntry(RespWriter writer) {
+            writer.arrayHeader(2).streamId(timePart, sequenceNumber).arrayHeader(pairs * 2);
+            for (int i = 0; i < pairs; i++) {
+                writer.bulkString(node.fields.get((int) readVarLong()));
+                int length = (int) readVarLong();
+                writer.bulkString(node.data, position, length);
+                position += length;
+            }
+        }
+
+        /**
+         * Positions the cursor at an entry offset previously observed before a call to {@link #next()}.
+         */
+        void seek(int offset) {
+            position = offset;
+            remaining = 1;
+        }
+
+        void skipValues() {
+            for (int i = 0; i < pairs; i++) {
+                readVarLong();
+                int length = (int) readVarLong();
+                position += length;
+            }
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = node.data[position++];
+                value |= (long) (current & 0x7F) << shift;
+                shift += 7;
+            } while ((current & 0x80) != 0);
+            return value;
         }
     }
 }
@@ -0,0 +1,250 @@
+package redis.cache;
+
+import redis.resp.RespValue;
+
+import java.io.Serial;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes ZUNION / ZINTER / ZDIFF over a list of sorted sets. Inputs whose combined size exceeds
+ * {@link #PARALLEL_THRESHOLD} are merged with fork-join tasks: unions split over the inputs, intersections and
+ * differences split over the members of the driving set. Such inputs are better aggregated with
+ * {@link #applyAsync}, so the calling thread does not wait for the tasks.
+ */
+public final class SortedSetAggregation {
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int CHUNK_SIZE = 1 << 14;
+
+    public enum Operation {
+        UNION, INTER, DIFF
+    }
+
+    public enum Aggregate {
+        SUM, MIN, MAX;
+
+        double apply(double left, double right) {
+            return switch (this) {
+                case SUM -> {
+                    double sum = left + right;
+                    // inf + -inf is NaN in Java, Redis treats it as 0
+                    yield Double.isNaN(sum) ? 0 : sum;
+                }
+                case MIN -> Math.min(left, right);
+                case MAX -> Math.max(left, right);
+            };
+        }
+    }
+
+    private final Operation operation;
+    private final double[] weights;
+    private final Aggregate aggregate;
+    private final ForkJoinPool pool;
+
+    public SortedSetAggregation(Operation operation, double[] weights, Aggregate aggregate) {
+        this(operation, weights, aggregate, ForkJoinPool.commonPool());
+    }
+
+    SortedSetAggregation(Operation operation, double[] weights, Aggregate aggregate, ForkJoinPool pool) {
+        this.operation = operation;
+        this.weights = weights;
+        this.aggregate = aggregate;
+        this.pool = pool;
+    }
+
+    /**
+     * @param inputs sorted sets in key order, {@code null} for keys that do not exist
+     * @return whether the inputs are large enough to be aggregated by fork-join tasks
+     */
+    public static boolean isParallel(List<RedisSortedSet> inputs) {
+        long totalSize = 0;
+        for (RedisSortedSet input : inputs) {
+            totalSize += input == null ? 0 : input.count();
+        }
+        return totalSize > PARALLEL_THRESHOLD;
+    }
+
+    /**
+     * @param inputs sorted sets in key order, {@code null} for keys that do not exist
+     * @return a new sorted set holding the result, empty when nothing matched
+     */
+    public RedisSortedSet apply(List<RedisSortedSet> inputs) {
+        List<Map<RespValue, Double>> sources = new ArrayList<>(inputs.size());
+        for (RedisSortedSet input : inputs) {
+            sources.add(input == null ? Map.of() : input.scores());
+        }
+        boolean parallel = isParallel(inputs);
+        Map<RespValue, Double> result = switch (operation) {
+            case UNION -> parallel
+                    ? pool.invoke(new UnionTask(this, sources, 0, sources.size()))
+                    : union(sources, 0, sources.size());
+            case INTER -> intersect(sources, parallel);
+            case DIFF -> diff(sources, parallel);
+        };
+        return RedisSortedSet.of(result);
+    }
+
+    /**
+     * Runs {@link #apply} on the pool. The inputs must not be modified until the returned future completes.
+     */
+    public CompletableFuture<RedisSortedSet> applyAsync(List<RedisSortedSet> inputs) {
+        return CompletableFuture.supplyAsync(() -> apply(inputs), pool);
+    }
+
+    private double weight(int index) {
+        return weights == null ? 1 : weights[index];
+    }
+
+    private Map<RespValue, Double> union(List<Map<RespValue, Double>> sources, int from, int to) {
+        Map<RespValue, Double> result = new HashMap<>();
+        for (int i = from; i < to; i++) {
+            double weight = weight(i);
+            sources.get(i).forEach((value, score) -> result.merge(value, weighted(score, weight), aggregate::apply));
+        }
+        return result;
+    }
+
+    private Map<RespValue, Double> intersect(List<Map<RespValue, Double>> sources, boolean parallel) {
+        int smallest = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).size() < sources.get(smallest).size()) {
+                smallest = i;
+            }
+        }
+        if (sources.get(smallest).isEmpty()) {
+            return Map.of();
+        }
+        int driver = smallest;
+        List<RespValue> members = new ArrayList<>(sources.get(driver).keySet());
+        MemberFilter filter = (from, to) -> {
+            Map<RespValue, Double> result = new HashMap<>();
+            for (int m = from; m < to; m++) {
+                RespValue member = members.get(m);
+                Double score = null;
+                for (int i = 0; i < sources.size(); i++) {
+                    Double current = sources.get(i).get(member);
+                    if (current == null) {
+                        score = null;
+                        break;
+                    }
+                    double weightedScore = weighted(current, weight(i));
+                    score = score == null ? weightedScore : aggregate.apply(score, weightedScore);
+                }
+                if (score != null) {
+                    result.put(member, score);
+                }
+            }
+            return result;
+        };
+        return parallel
+                ? pool.invoke(new FilterTask(filter, 0, members.size()))
+                : filter.apply(0, members.size());
+    }
+
+    private Map<RespValue, Double> diff(List<Map<RespValue, Double>> sources, boolean parallel) {
+        Map<RespValue, Double> first = sources.getFirst();
+        if (first.isEmpty()) {
+            return Map.of();
+        }
+        List<RespValue> members = new ArrayList<>(first.keySet());
+        MemberFilter filter = (from, to) -> {
+            Map<RespValue, Double> result = new HashMap<>();
+            for (int m = from; m < to; m++) {
+                RespValue member = members.get(m);
+                boolean excluded = false;
+                for (int i = 1; i < sources.size() && !excluded; i++) {
+                    excluded = sources.get(i).containsKey(member);
+                }
+                if (!excluded) {
+                    result.put(member, first.get(member));
+                }
+            }
+            return result;
+        };
+        return parallel
+                ? pool.invoke(new FilterTask(filter, 0, members.size()))
+                : filter.apply(0, members.size());
+    }
+
+    private static double weighted(double score, double weight) {
+        double weightedScore = score * weight;
+        // 0 * inf is NaN in Java, Redis treats it as 0
+        return Double.isNaN(weightedScore) ? 0 : weightedScore;
+    }
+
+    private static Map<RespValue, Double> mergeDisjoint(Map<RespValue, Double> left, Map<RespValue, Double> right) {
+        if (left.size() < right.size()) {
+            right.putAll(left);
+            return right;
+        }
+        left.putAll(right);
+        return left;
+    }
+
+    @FunctionalInterface
+    private interface MemberFilter {
+        Map<RespValue, Double> apply(int from, int to);
+    }
+
+    // the tasks are never serialized, RecursiveTask merely happens to be Serializable
+    private static final class UnionTask extends RecursiveTask<Map<RespValue, Double>> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final transient SortedSetAggregation aggregation;
+        private final transient List<Map<RespValue, Double>> sources;
+        private final int from;
+        private final int to;
+
+        UnionTask(SortedSetAggregation aggregation, List<Map<RespValue, Double>> sources, int from, int to) {
+            this.aggregation = aggregation;
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<RespValue, Double> compute() {
+            if (to - from <= 1) {
+                return aggregation.union(sources, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            UnionTask left = new UnionTask(aggregation, sources, from, middle);
+            left.fork();
+            Map<RespValue, Double> right = new UnionTask(aggregation, sources, middle, to).compute();
+            Map<RespValue, Double> joined = left.join();
+            // fold the smaller partial result into the larger one
+            Map<RespValue, Double> target = joined.size() >= right.size() ? joined : right;
+            Map<RespValue, Double> other = target == joined ? right : joined;
+            other.forEach((value, score) -> target.merge(value, score, aggregation.aggregate::apply));
+            return target;
+        }
+    }
+
+    private static final class FilterTask extends RecursiveTask<Map<RespValue, Double>> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final transient MemberFilter filter;
+        private final int from;
+        private final int to;
+
+        FilterTask(MemberFilter filter, int from, int to) {
+            this.filter = filter;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<RespValue, Double> compute() {
+            if (to - from <= CHUNK_SIZE) {
+                return filter.apply(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            FilterTask left = new FilterTask(filter, from, middle);
+            left.fork();
+            Map<RespValue, Double> right = new FilterTask(filter, middle, to).compute();
+            return mergeDisjoint(left.join(), right);
+        }
+    }
+}
@@ -1,19 +1,62 @@
 package redis.cache;
 
-import redis.resp.RespArray;
-import redis.resp.RespBulkString;
-import redis.resp.RespValue;
+import redis.resp.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 public class StreamCache {
+    private static final RespSimpleString OK = new RespSimpleString("OK");
     private final Map<RespValue, RedisStream> streams;
+    private final Map<RespValue, Set<AppendListener>> listeners;
+    private GroupListener groupListener;
 
     public StreamCache() {
         streams = new HashMap<>();
+        listeners = new HashMap<>();
+    }
+
+    /**
+     * Sets the listener told of the consumer group changes made by XREADGROUP, XCLAIM and XAUTOCLAIM.
+     */
+    public void setGroupListener(GroupListener groupListener) {
+        this.groupListener = groupListener;
+    }
+
+    /**
+     * Registers a reader blocked on {@code key}; it is called back for every append to that stream reported by
+     * {@link #notifyAppend} until it is removed.
+     */
+    public void addListener(RespValue key, AppendListener listener) {
+        listeners.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(listener);
+    }
+
+    public void removeListener(RespValue key, AppendListener listener) {
+        Set<AppendListener> keyListeners = listeners.get(key);
+        if (keyListeners != null && keyListeners.remove(listener) && keyListeners.isEmpty()) {
+            listeners.remove(key);
+        }
+    }
+
+    /**
+     * Adds a stream loaded from a snapshot, replacing any stream with the same key.
+     */
+    public void put(RespValue key, RedisStream stream) {
+        streams.put(key, stream);
+    }
+
+    public void remove(RespValue key) {
+        streams.remove(key);
+    }
+
+    public void clear() {
+        streams.clear();
+    }
+
+    /**
+     * @return a read-only view of the streams by key
+     */
+    public Map<RespValue, RedisStream> streams() {
+        return Collections.unmodifiableMap(streams);
     }
 
     public boolean containsKey(RespValue key) {
@@ -21,53 +64,515 @@ public class StreamCache {
     }
 
     public RespValue add(RespValue key, RespBulkString entryId, List<RespValue> streamValues) {
-        if (!containsKey(key)) {
-            streams.put(key, new RedisStream());
-        }
-        return streams.get(key).append(entryId, streamValues);
+        return add(key, entryId, streamValues, true, null);
     }
 
-    public RespValue range(RespValue key, String start, String end) {
+    /**
+     * XADD with its options: {@code makeStream == false} is NOMKSTREAM, a non-null {@code trim} evicts old entries
+     * once the new one has been appended.
+     */
+    public RespValue add(RespValue key, RespBulkString entryId, List<RespValue> streamValues, boolean makeStream,
+                         RedisStream.TrimOptions trim) {
         RedisStream stream = streams.get(key);
         if (stream == null) {
-            return new RespArray(List.of());
+            if (!makeStream) {
+                return new RespBulkString(null);
+            }
+            stream = new RedisStream();
+            streams.put(key, stream);
+        }
+        RespValue result = stream.append(entryId, streamValues);
+        if (result instanceof RespError) {
+            return result;
+        }
+        if (trim != null) {
+            stream.trim(trim);
         }
-        return stream.range(start, end);
+        return result;
     }
 
-    public RespValue xRead(List<RespValue> keys) {
-        List<RespValue> output = new ArrayList<>();
+    /**
+     * Serves the readers blocked on {@code key} after an append. It is left to the caller, so the append is
+     * propagated ahead of the group deliveries it leads to.
+     */
+    public void notifyAppend(RespValue key) {
+        Set<AppendListener> keyListeners = listeners.get(key);
+        if (keyListeners != null) {
+            // listeners unregister themselves once served
+            for (AppendListener listener : List.copyOf(keyListeners)) {
+                listener.onAppend(key);
+            }
+        }
+    }
+
+    public RespValue trim(RespValue key, RedisStream.TrimOptions trim) {
+        RedisStream stream = streams.get(key);
+        return new RespInteger(stream == null ? 0 : stream.trim(trim));
+    }
+
+    public RespValue length(RespValue key) {
+        RedisStream stream = streams.get(key);
+        return new RespInteger(stream == null ? 0 : stream.length());
+    }
+
+    /**
+     * XRANGE / XREVRANGE: {@code start} is the lower and {@code end} the upper bound in both directions.
+     *
+     * @throws IllegalArgumentException when an ID is not valid
+     */
+    public byte[] range(RespValue key, String start, String end, int count, boolean reverse) {
+        StreamId from = start == null ? StreamId.MIN : StreamId.parse(start, 0);
+        StreamId to = end == null ? StreamId.MAX : StreamId.parse(end, -1L);
+        RedisStream stream = streams.get(key);
+        RespWriter writer = new RespWriter();
+        int written = stream == null ? 0 : stream.writeRange(from, to, count, reverse, writer);
+        return writer.insertArrayHeader(0, written).toByteArray();
+    }
+
+    /**
+     * @param keys keys followed by their IDs; only entries after each ID are returned
+     * @throws IllegalArgumentException when an ID is not valid
+     */
+    public byte[] xRead(List<RespValue> keys, int count) {
+        RespWriter writer = new RespWriter();
+        writer.arrayHeader(keys.size() / 2);
         for (int i = 0; i < keys.size() / 2; i++) {
             RespValue key = keys.get(i);
-            String start = ((RespBulkString) keys.get(i + keys.size() / 2)).value();
-            RedisStream stream = streams.get(key);
+            writer.arrayHeader(2).value(key);
+            writeAfter(key, keys.get(i + keys.size() / 2), count, writer);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Replaces every {@code $} ID of an XREAD {@code keys... ids...} list with the current last ID of its stream.
+     *
+     * @return a resolved copy of the arguments
+     */
+    public List<RespValue> resolveLastIds(List<RespValue> keys) {
+        List<RespValue> resolved = new ArrayList<>(keys);
+        for (int i = 0; i < keys.size() / 2; i++) {
+            RespValue id = keys.get(i + keys.size() / 2);
+            if (id instanceof RespBulkString bulkString && "$".equals(bulkString.value())) {
+                RedisStream stream = streams.get(keys.get(i));
+                resolved.set(i + keys.size() / 2, new RespBulkString(stream == null ? "0-0" : stream.getMaxId()));
+            }
+        }
+        return resolved;
+    }
 
-            output.add(new RespArray(List.of(key, (
-                    stream == null
-                            ? new RespArray(List.of())
-                            : stream.read(start)))));
+    /**
+     * XREAD for a blocking caller: only streams with new entries are part of the reply.
+     *
+     * @param keys keys followed by already resolved IDs, see {@link #resolveLastIds(List)}
+     * @return the reply, or null when none of the streams has new entries
+     */
+    public byte[] xReadBlocking(List<RespValue> keys, int count) {
+        RespWriter writer = new RespWriter();
+        int streamsWithEntries = 0;
+        for (int i = 0; i < keys.size() / 2; i++) {
+            RespValue key = keys.get(i);
+            int mark = writer.mark();
+            writer.arrayHeader(2).value(key);
+            if (writeAfter(key, keys.get(i + keys.size() / 2), count, writer) > 0) {
+                streamsWithEntries++;
+            } else {
+                writer.reset(mark);
+            }
         }
-        return new RespArray(output);
+        return streamsWithEntries == 0 ? null : writer.insertArrayHeader(0, streamsWithEntries).toByteArray();
+    }
+
+    /**
+     * Writes the entries of {@code key} with IDs greater than {@code id} as an array.
+     *
+     * @return the number of entries written
+     */
+    private int writeAfter(RespValue key, RespValue id, int count, RespWriter writer) {
+        StreamId last = StreamId.parse(((RespBulkString) id).value());
+        RedisStream stream = streams.get(key);
+        int mark = writer.mark();
+        int written = stream == null || last.equals(StreamId.MAX)
+                ? 0
+                : stream.writeRange(last.next(), StreamId.MAX, count, false, writer);
+        writer.insertArrayHeader(mark, written);
+        return written;
+    }
+
+    public RespValue createGroup(RespValue key, String group, String id, boolean makeStream) {
+        RedisStream stream = streams.get(key);
+        if (stream == null) {
+            if (!makeStream) {
+                return new RespError("ERR The XGROUP subcommand requires the key to exist. "
+                                     + "Note that for CREATE you may want to use the MKSTREAM option to create an empty stream automatically.");
+            }
+            stream = new RedisStream();
+            streams.put(key, stream);
+        }
+        StreamId lastDeliveredId = "$".equals(id) ? stream.getLastId() : StreamId.parse(id);
+        if (!stream.createGroup(group, lastDeliveredId)) {
+            return new RespError("BUSYGROUP Consumer Group name already exists");
+        }
+        return OK;
+    }
+
+    public RespValue setGroupId(RespValue key, String group, String id) {
+        RedisStream stream = streams.get(key);
+        StreamConsumerGroup consumerGroup = stream == null ? null : stream.getGroup(group);
+        if (consumerGroup == null) {
+            return noGroup(key, group);
+        }
+        consumerGroup.setLastDeliveredId("$".equals(id) ? stream.getLastId() : StreamId.parse(id));
+        return OK;
+    }
+
+    public RespValue destroyGroup(RespValue key, String group) {
+        RedisStream stream = streams.get(key);
+        return new RespInteger(stream != null && stream.destroyGroup(group) ? 1 : 0);
     }
 
-    public RespArray xReadBlocking(List<RespValue> keys) {
+    public RespValue createConsumer(RespValue key, String group, String consumer) {
+        StreamConsumerGroup consumerGroup = group(key, group);
+        if (consumerGroup == null) {
+            return noGroup(key, group);
+        }
+        return new RespInteger(consumerGroup.createConsumer(consumer, System.currentTimeMillis()) ? 1 : 0);
+    }
+
+    public RespValue deleteConsumer(RespValue key, String group, String consumer) {
+        StreamConsumerGroup consumerGroup = group(key, group);
+        if (consumerGroup == null) {
+            return noGroup(key, group);
+        }
+        return new RespInteger(Math.max(0, consumerGroup.deleteConsumer(consumer)));
+    }
+
+    /**
+     * XREADGROUP over {@code keys}: {@code >} reads new entries, any other ID replays the consumer's pending
+     * entries after it.
+     *
+     * @return the reply, or a null bulk string when only new entries were requested and there were none
+     */
+    public RespValue readGroup(String group, String consumer, List<RespValue> keys, List<String> ids,
+                               int count, boolean noAck) {
+        long now = System.currentTimeMillis();
+        for (RespValue key : keys) {
+            if (group(key, group) == null) {
+                return new RespError("NOGROUP No such key '%s' or consumer group '%s' in XREADGROUP with GROUP option"
+                        .formatted(keyName(key), group));
+            }
+        }
         List<RespValue> output = new ArrayList<>();
-        for (int i = 0; i < keys.size() / 2; i++) {
+        for (int i = 0; i < keys.size(); i++) {
             RespValue key = keys.get(i);
-            String start = ((RespBulkString) keys.get(i + keys.size() / 2)).value();
             RedisStream stream = streams.get(key);
+            StreamConsumerGroup consumerGroup = stream.getGroup(group);
+            StreamConsumerGroup.Consumer groupConsumer = consumer(key, consumerGroup, consumer, now);
+            if (">".equals(ids.get(i))) {
+                List<RespValue> entries = stream.readGroup(consumerGroup, groupConsumer, count, noAck, now);
+                if (!entries.isEmpty()) {
+                    output.add(new RespArray(List.of(key, new RespArray(entries))));
+                    if (noAck) {
+                        if (groupListener != null) {
+                            groupListener.lastDeliveredIdSet(key, consumerGroup);
+                        }
+                    } else {
+                        for (RespValue entry : entries) {
+                            delivered(key, consumerGroup, StreamId.parse(
+                                    ((RespBulkString) ((RespArray) entry).values().getFirst()).value()));
+                        }
+                    }
+                }
+            } else {
+                StreamId from = StreamId.parse(ids.get(i)).next();
+                List<StreamConsumerGroup.PendingEntry> replayed = new ArrayList<>();
+                for (StreamConsumerGroup.PendingEntry entry
+                        : consumerGroup.pendingRange(from, StreamId.MAX, groupConsumer).values()) {
+                    if (count > 0 && replayed.size() == count) {
+                        break;
+                    }
+                    replayed.add(entry);
+                }
+                List<RespValue> entries = new ArrayList<>(replayed.size());
+                for (StreamConsumerGroup.PendingEntry entry : replayed) {
+                    RespArray streamEntry = stream.getEntry(entry.getId());
+                    entries.add(streamEntry != null
+                            ? streamEntry
+                            : new RespArray(List.of(new RespBulkString(entry.getId().toString()), new RespBulkString(null))));
+                    consumerGroup.deliver(entry.getId(), groupConsumer, now);
+                    delivered(key, consumerGroup, entry.getId());
+                }
+                output.add(new RespArray(List.of(key, new RespArray(entries))));
+            }
+        }
+        return output.isEmpty() ? new RespBulkString(null) : new RespArray(output);
+    }
+
+    public RespValue acknowledge(RespValue key, String group, List<String> ids) {
+        StreamConsumerGroup consumerGroup = group(key, group);
+        if (consumerGroup == null) {
+            return new RespInteger(0);
+        }
+        List<StreamId> parsedIds = ids.stream().map(StreamId::parse).toList();
+        long acknowledged = 0;
+        for (StreamId id : parsedIds) {
+            if (consumerGroup.acknowledge(id)) {
+                acknowledged++;
+            }
+        }
+        return new RespInteger(acknowledged);
+    }
+
+    /**
+     * XPENDING summary form: count, smallest and greatest pending ID and the per-consumer counts.
+     */
+    public RespValue pendingSummary(RespValue key, String group) {
+        StreamConsumerGroup consumerGroup = group(key, group);
+        if (consumerGroup == null) {
+            return noGroup(key, group);
+        }
+        if (consumerGroup.pendingCount() == 0) {
+            return new RespArray(List.of(new RespInteger(0), new RespBulkString(null), new RespBulkString(null),
+                    new RespBulkString(null)));
+        }
+        List<RespValue> consumers = new ArrayList<>();
+        for (StreamConsumerGroup.Consumer consumer : consumerGroup.consumers()) {
+            if (consumer.pendingCount() > 0) {
+                consumers.add(new RespArray(List.of(new RespBulkString(consumer.getName()),
+                        new RespBulkString(Long.toString(consumer.pendingCount())))));
+            }
+        }
+        return new RespArray(List.of(
+                new RespInteger(consumerGroup.pendingCount()),
+                new RespBulkString(consumerGroup.firstPendingId().toString()),
+                new RespBulkString(consumerGroup.lastPendingId().toString()),
+                new RespArray(consumers)));
+    }
+
+    /**
+     * XPENDING extended form: up to {@code count} pending entries in {@code [start, end]} idle for at least
+     * {@code minIdleTime}, optionally restricted to one consumer.
+     */
+    public RespValue pending(RespValue key, String group, long minIdleTime, String start, String end, int count,
+                             String consumer) {
+        StreamConsumerGroup consumerGroup = group(key, group);
+        if (consumerGroup == null) {
+            return noGroup(key, group);
+        }
+        StreamConsumerGroup.Consumer groupConsumer = null;
+        if (consumer != null) {
+            groupConsumer = consumerGroup.getConsumer(consumer);
+            if (groupConsumer == null) {
+                return new RespArray(List.of());
+            }
+        }
+        long now = System.currentTimeMillis();
+        List<RespValue> output = new ArrayList<>();
+        for (StreamConsumerGroup.PendingEntry entry : consumerGroup
+                .pendingRange(parseRangeStart(start), parseRangeEnd(end), groupConsumer).values()) {
+            if (output.size() >= count) {
+                break;
+            }
+            long idleTime = entry.idleTime(now);
+            if (idleTime < minIdleTime) {
+                continue;
+            }
+            output.add(new RespArray(List.of(
+                    new RespBulkString(entry.getId().toString()),
+                    new RespBulkString(entry.getOwner().getName()),
+                    new RespInteger(idleTime),
+                    new RespInteger(entry.getDeliveryCount()))));
+        }
+        return new RespArray(output);
+    }
 
-            if ("$".equalsIgnoreCase(start)) {
-                keys.set(i + keys.size() / 2, stream == null
-                        ? new RespBulkString("0-0")
-                        : new RespBulkString(stream.getMaxId()));
-            } else if (stream != null) {
-                RespArray read = stream.read(start);
-                if (!read.values().isEmpty()) {
-                    output.add(new RespArray(List.of(key, read)));
+    public RespValue claim(RespValue key, String group, String consumer, long minIdleTime, List<String> ids,
+                           ClaimOptions options) {
+        StreamConsumerGroup consumerGroup = group(key, group);
+        if (consumerGroup == null) {
+            return noGroup(key, group);
+        }
+        RedisStream stream = streams.get(key);
+        List<StreamId> parsedIds = ids.stream().map(StreamId::parse).toList();
+        long now = System.currentTimeMillis();
+        if (options.lastId() != null && options.lastId().compareTo(consumerGroup.getLastDeliveredId()) > 0) {
+            consumerGroup.setLastDeliveredId(options.lastId());
+            if (groupListener != null) {
+                groupListener.lastDeliveredIdSet(key, consumerGroup);
+            }
+        }
+        StreamConsumerGroup.Consumer groupConsumer = consumer(key, consumerGroup, consumer, now);
+        List<RespValue> output = new ArrayList<>();
+        for (StreamId id : parsedIds) {
+            StreamConsumerGroup.PendingEntry entry = consumerGroup.getPending(id);
+            RespArray streamEntry = stream.getEntry(id);
+            if (entry == null) {
+                if (!options.force() || streamEntry == null) {
+                    continue;
                 }
+                entry = consumerGroup.forcePending(id, groupConsumer, now);
+            } else if (streamEntry == null) {
+                acknowledgeDeleted(key, consumerGroup, id);
+                continue;
+            }
+            if (minIdleTime > 0 && entry.idleTime(now) < minIdleTime) {
+                continue;
+            }
+            consumerGroup.claim(entry, groupConsumer, options.deliveryTime(now), !options.justId());
+            if (options.retryCount() >= 0) {
+                entry.setDeliveryCount(options.retryCount());
             }
+            delivered(key, consumerGroup, id);
+            output.add(options.justId() ? new RespBulkString(id.toString()) : streamEntry);
         }
         return new RespArray(output);
     }
+
+    /**
+     * XAUTOCLAIM: scans the group PEL from {@code start}, at most {@code count * 10} entries, claiming those idle for
+     * at least {@code minIdleTime}.
+     *
+     * @return {@code [next start ID, claimed entries, IDs no longer in the stream]}
+     */
+    public RespValue autoClaim(RespValue key, String group, String consumer, long minIdleTime, String start,
+                               int count, boolean justId) {
+        StreamConsumerGroup consumerGroup = group(key, group);
+        if (consumerGroup == null) {
+            return noGroup(key, group);
+        }
+        RedisStream stream = streams.get(key);
+        long now = System.currentTimeMillis();
+        StreamConsumerGroup.Consumer groupConsumer = consumer(key, consumerGroup, consumer, now);
+        List<StreamConsumerGroup.PendingEntry> candidates = new ArrayList<>();
+        StreamId next = StreamId.MIN;
+        long attempts = (long) count * 10;
+        for (StreamConsumerGroup.PendingEntry entry
+                : consumerGroup.pendingRange(parseRangeStart(start), StreamId.MAX, null).values()) {
+            if (candidates.size() == count || attempts-- == 0) {
+                next = entry.getId();
+                break;
+            }
+            candidates.add(entry);
+        }
+
+        List<RespValue> claimed = new ArrayList<>();
+        List<RespValue> deleted = new ArrayList<>();
+        int scanned = 0;
+        for (StreamConsumerGroup.PendingEntry entry : candidates) {
+            scanned++;
+            RespArray streamEntry = stream.getEntry(entry.getId());
+            if (streamEntry == null) {
+                acknowledgeDeleted(key, consumerGroup, entry.getId());
+                deleted.add(new RespBulkString(entry.getId().toString()));
+                continue;
+            }
+            if (entry.idleTime(now) < minIdleTime) {
+                continue;
+            }
+            consumerGroup.claim(entry, groupConsumer, now, !justId);
+            delivered(key, consumerGroup, entry.getId());
+            claimed.add(justId ? new RespBulkString(entry.getId().toString()) : streamEntry);
+            if (claimed.size() == count && scanned < candidates.size()) {
+                next = candidates.get(scanned).getId();
+                break;
+            }
+        }
+        return new RespArray(List.of(new RespBulkString(next.toString()), new RespArray(claimed), new RespArray(deleted)));
+    }
+
+    private StreamConsumerGroup.Consumer consumer(RespValue key, StreamConsumerGroup group, String consumer, long now) {
+        if (groupListener != null && group.getConsumer(consumer) == null) {
+            StreamConsumerGroup.Consumer created = group.consumer(consumer, now);
+            groupListener.consumerCreated(key, group, created);
+            return created;
+        }
+        return group.consumer(consumer, now);
+    }
+
+    private void delivered(RespValue key, StreamConsumerGroup group, StreamId id) {
+        if (groupListener != null) {
+            groupListener.delivered(key, group, group.getPending(id));
+        }
+    }
+
+    private void acknowledgeDeleted(RespValue key, StreamConsumerGroup group, StreamId id) {
+        group.acknowledge(id);
+        if (groupListener != null) {
+            groupListener.acknowledged(key, group, id);
+        }
+    }
+
+    private StreamConsumerGroup group(RespValue key, String group) {
+        RedisStream stream = streams.get(key);
+        return stream == null ? null : stream.getGroup(group);
+    }
+
+    private static StreamId parseRangeStart(String start) {
+        if (start.startsWith("(")) {
+            return StreamId.parse(start.substring(1), 0).next();
+        }
+        return StreamId.parse(start, 0);
+    }
+
+    private static StreamId parseRangeEnd(String end) {
+        if (end.startsWith("(")) {
+            StreamId id = StreamId.parse(end.substring(1), -1L);
+            if (id.equals(StreamId.MIN)) {
+                throw new IllegalArgumentException("invalid end ID for the interval");
+            }
+            return id.sequenceNumber() != 0
+                    ? new StreamId(id.timePart(), id.sequenceNumber() - 1)
+                    : new StreamId(id.timePart() - 1, -1L);
+        }
+        return StreamId.parse(end, -1L);
+    }
+
+    private static RespError noGroup(RespValue key, String group) {
+        return new RespError("NOGROUP No such key '%s' or consumer group '%s'".formatted(keyName(key), group));
+    }
+
+    private static String keyName(RespValue key) {
+        return key instanceof RespBulkString bulkString ? bulkString.value() : String.valueOf(key);
+    }
+
+    @FunctionalInterface
+    public interface AppendListener {
+        void onAppend(RespValue key);
+    }
+
+    /**
+     * Told of each change XREADGROUP, XCLAIM and XAUTOCLAIM make to a consumer group. Their replies do not
+     * describe these changes, and running the commands again elsewhere would not reproduce them, since what they
+     * deliver or claim depends on the time and on the entries appended meanwhile.
+     */
+    public interface GroupListener {
+        void consumerCreated(RespValue key, StreamConsumerGroup group, StreamConsumerGroup.Consumer consumer);
+
+        /**
+         * {@code entry} was delivered or claimed, and is now owned, timed and counted as it says.
+         */
+        void delivered(RespValue key, StreamConsumerGroup group, StreamConsumerGroup.PendingEntry entry);
+
+        /**
+         * {@code id} left the pending entries because the stream no longer holds it.
+         */
+        void acknowledged(RespValue key, StreamConsumerGroup group, StreamId id);
+
+        void lastDeliveredIdSet(RespValue key, StreamConsumerGroup group);
+    }
+
+    /**
+     * Optional XCLAIM arguments. {@code idleTime} and {@code time} are -1 when not given, {@code retryCount} is -1
+     * when the delivery counter should be left to the claim.
+     */
+    public record ClaimOptions(long idleTime, long time, long retryCount, boolean force, boolean justId,
+                               StreamId lastId) {
+
+        long deliveryTime(long now) {
+            if (time >= 0) {
+                return time;
+            }
+            return idleTime >= 0 ? now - idleTime : now;
+        }
+    }
 }
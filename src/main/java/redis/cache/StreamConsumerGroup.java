@@ -0,0 +1,234 @@
+package redis.cache;
+
+import java.util.*;
+
+/**
+ * Consumer group state of one stream: the last delivered ID and the pending entries list (PEL). Every pending
+ * entry is indexed twice, by ID in the group-wide PEL and by ID in its owner's PEL, so the XPENDING summary is
+ * answered from the first/last keys and per-consumer sizes without walking the entries.
+ */
+public class StreamConsumerGroup {
+    private final String name;
+    private final TreeMap<StreamId, PendingEntry> pending;
+    private final Map<String, Consumer> consumers;
+    private StreamId lastDeliveredId;
+
+    public StreamConsumerGroup(String name, StreamId lastDeliveredId) {
+        this.name = name;
+        this.lastDeliveredId = lastDeliveredId;
+        pending = new TreeMap<>();
+        consumers = new LinkedHashMap<>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public StreamId getLastDeliveredId() {
+        return lastDeliveredId;
+    }
+
+    public void setLastDeliveredId(StreamId lastDeliveredId) {
+        this.lastDeliveredId = lastDeliveredId;
+    }
+
+    /**
+     * @return the consumer, created on first use as XREADGROUP and XCLAIM do
+     */
+    public Consumer consumer(String consumerName, long now) {
+        Consumer consumer = consumers.computeIfAbsent(consumerName, Consumer::new);
+        consumer.seenTime = now;
+        return consumer;
+    }
+
+    public boolean createConsumer(String consumerName, long now) {
+        if (consumers.containsKey(consumerName)) {
+            return false;
+        }
+        consumer(consumerName, now);
+        return true;
+    }
+
+    /**
+     * Removes a consumer together with its pending entries.
+     *
+     * @return the number of pending entries the consumer still had, or -1 when it did not exist
+     */
+    public long deleteConsumer(String consumerName) {
+        Consumer consumer = consumers.remove(consumerName);
+        if (consumer == null) {
+            return -1;
+        }
+        consumer.pending.keySet().forEach(pending::remove);
+        return consumer.pending.size();
+    }
+
+    /**
+     * Records a new delivery of {@code id} to {@code consumer}, moving the entry to it if another consumer owned it.
+     */
+    public void deliver(StreamId id, Consumer consumer, long now) {
+        PendingEntry entry = pending.get(id);
+        if (entry == null) {
+            entry = new PendingEntry(id, consumer, now);
+            pending.put(id, entry);
+        } else {
+            assign(entry, consumer);
+            entry.deliveryTime = now;
+            entry.deliveryCount++;
+        }
+        consumer.pending.put(id, entry);
+        consumer.activeTime = now;
+    }
+
+    /**
+     * Puts back a pending entry of a saved group, with its delivery time and count as they were.
+     */
+    public void restorePending(StreamId id, Consumer consumer, long deliveryTime, long deliveryCount) {
+        PendingEntry entry = new PendingEntry(id, consumer, deliveryTime);
+        entry.deliveryCount = deliveryCount;
+        pending.put(id, entry);
+        consumer.pending.put(id, entry);
+    }
+
+    public boolean acknowledge(StreamId id) {
+        PendingEntry entry = pending.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        entry.owner.pending.remove(id);
+        return true;
+    }
+
+    public PendingEntry getPending(StreamId id) {
+        return pending.get(id);
+    }
+
+    public long pendingCount() {
+        return pending.size();
+    }
+
+    public StreamId firstPendingId() {
+        return pending.isEmpty() ? null : pending.firstKey();
+    }
+
+    public StreamId lastPendingId() {
+        return pending.isEmpty() ? null : pending.lastKey();
+    }
+
+    public Collection<Consumer> consumers() {
+        return consumers.values();
+    }
+
+    public Consumer getConsumer(String consumerName) {
+        return consumers.get(consumerName);
+    }
+
+    /**
+     * @return pending entries with IDs in {@code [from, to]}, of the whole group or of one consumer
+     */
+    public NavigableMap<StreamId, PendingEntry> pendingRange(StreamId from, StreamId to, Consumer consumer) {
+        TreeMap<StreamId, PendingEntry> source = consumer == null ? pending : consumer.pending;
+        if (from.compareTo(to) > 0) {
+            return Collections.emptyNavigableMap();
+        }
+        return source.subMap(from, true, to, true);
+    }
+
+    /**
+     * Transfers ownership of a pending entry to {@code consumer} as part of XCLAIM / XAUTOCLAIM.
+     */
+    public void claim(PendingEntry entry, Consumer consumer, long deliveryTime, boolean incrementDeliveries) {
+        assign(entry, consumer);
+        entry.deliveryTime = deliveryTime;
+        if (incrementDeliveries) {
+            entry.deliveryCount++;
+        }
+        consumer.activeTime = deliveryTime;
+    }
+
+    /**
+     * Creates a pending entry for an ID that is not in the PEL, as XCLAIM ... FORCE does.
+     */
+    public PendingEntry forcePending(StreamId id, Consumer consumer, long now) {
+        PendingEntry entry = new PendingEntry(id, consumer, now);
+        entry.deliveryCount = 0;
+        pending.put(id, entry);
+        consumer.pending.put(id, entry);
+        return entry;
+    }
+
+    private void assign(PendingEntry entry, Consumer consumer) {
+        if (entry.owner != consumer) {
+            entry.owner.pending.remove(entry.id);
+            entry.owner = consumer;
+            consumer.pending.put(entry.id, entry);
+        }
+    }
+
+    public static class Consumer {
+        private final String name;
+        private final TreeMap<StreamId, PendingEntry> pending;
+        private long seenTime;
+        private long activeTime;
+
+        Consumer(String name) {
+            this.name = name;
+            pending = new TreeMap<>();
+            activeTime = -1;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long pendingCount() {
+            return pending.size();
+        }
+
+        public long getSeenTime() {
+            return seenTime;
+        }
+
+        public long getActiveTime() {
+            return activeTime;
+        }
+    }
+
+    public static class PendingEntry {
+        private final StreamId id;
+        private Consumer owner;
+        private long deliveryTime;
+        private long deliveryCount;
+
+        PendingEntry(StreamId id, Consumer owner, long deliveryTime) {
+            this.id = id;
+            this.owner = owner;
+            this.deliveryTime = deliveryTime;
+            this.deliveryCount = 1;
+        }
+
+        public StreamId getId() {
+            return id;
+        }
+
+        public Consumer getOwner() {
+            return owner;
+        }
+
+        public long getDeliveryTime() {
+            return deliveryTime;
+        }
+
+        public long getDeliveryCount() {
+            return deliveryCount;
+        }
+
+        public void setDeliveryCount(long deliveryCount) {
+            this.deliveryCount = deliveryCount;
+        }
+
+        public long idleTime(long now) {
+            return Math.max(0, now - deliveryTime);
+        }
+    }
+}
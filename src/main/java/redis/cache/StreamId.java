@@ -0,0 +1,58 @@
+package redis.cache;
+
+/**
+ * Stream entry ID: milliseconds time part and sequence number, both treated as unsigned 64-bit values.
+ */
+public record StreamId(long timePart, long sequenceNumber) implements Comparable<StreamId> {
+    public static final StreamId MIN = new StreamId(0, 0);
+    public static final StreamId MAX = new StreamId(-1L, -1L);
+
+    /**
+     * Parses {@code ms-seq}, {@code ms} (sequence defaults to {@code missingSequence}), {@code -} and {@code +}.
+     *
+     * @throws IllegalArgumentException when the value is not a valid ID
+     */
+    public static StreamId parse(String value, long missingSequence) {
+        if ("-".equals(value)) {
+            return MIN;
+        }
+        if ("+".equals(value)) {
+            return MAX;
+        }
+        try {
+            int dash = value.indexOf('-');
+            if (dash == -1) {
+                return new StreamId(Long.parseUnsignedLong(value), missingSequence);
+            }
+            return new StreamId(Long.parseUnsignedLong(value, 0, dash, 10),
+                    Long.parseUnsignedLong(value, dash + 1, value.length(), 10));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid stream ID specified as stream command argument", e);
+        }
+    }
+
+    public static StreamId parse(String value) {
+        return parse(value, 0);
+    }
+
+    /**
+     * @return the smallest ID greater than this one, or this ID when it is already {@link #MAX}
+     */
+    public StreamId next() {
+        if (sequenceNumber != -1L) {
+            return new StreamId(timePart, sequenceNumber + 1);
+        }
+        return timePart == -1L ? this : new StreamId(timePart + 1, 0);
+    }
+
+    @Override
+    public int compareTo(StreamId other) {
+        int result = Long.compareUnsigned(timePart, other.timePart);
+        return result != 0 ? result : Long.compareUnsigned(sequenceNumber, other.sequenceNumber);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toUnsignedString(timePart) + "-" + Long.toUnsignedString(sequenceNumber);
+    }
+}
@@ -0,0 +1,64 @@
+package redis.config;
+
+import redis.exception.RedisException;
+
+import java.util.Locale;
+
+/**
+ * {@code client-output-buffer-limit} of one client class: a client is disconnected as soon as its pending output
+ * reaches {@code hardLimit}, or once it has stayed at or above {@code softLimit} for {@code softSeconds}. A limit
+ * of 0 disables the check.
+ */
+public record OutputBufferLimit(long hardLimit, long softLimit, long softSeconds) {
+    public static final OutputBufferLimit NORMAL = new OutputBufferLimit(0, 0, 0);
+    public static final OutputBufferLimit REPLICA = new OutputBufferLimit(256L << 20, 64L << 20, 60);
+    public static final OutputBufferLimit PUBSUB = new OutputBufferLimit(32L << 20, 8L << 20, 60);
+
+    /**
+     * @param softLimitSince when the client first reached the soft limit, -1 when it is below it
+     */
+    public boolean isExceeded(long pendingBytes, long softLimitSince, long now) {
+        if (hardLimit > 0 && pendingBytes >= hardLimit) {
+            return true;
+        }
+        return softLimit > 0 && softLimitSince != -1 && pendingBytes >= softLimit
+               && now - softLimitSince >= softSeconds * 1000;
+    }
+
+    public boolean isOverSoftLimit(long pendingBytes) {
+        return softLimit > 0 && pendingBytes >= softLimit;
+    }
+
+    /**
+     * Parses a memory amount as Redis does: {@code 1048576}, {@code 64mb}, or {@code 1g} where the units without a
+     * trailing {@code b} are powers of 1000.
+     */
+    public static long parseBytes(String value) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        int end = lower.length();
+        if (lower.endsWith("gb")) {
+            multiplier = 1L << 30;
+        } else if (lower.endsWith("g")) {
+            multiplier = 1_000_000_000L;
+        } else if (lower.endsWith("mb")) {
+            multiplier = 1L << 20;
+        } else if (lower.endsWith("m")) {
+            multiplier = 1_000_000L;
+        } else if (lower.endsWith("kb")) {
+            multiplier = 1L << 10;
+        } else if (lower.endsWith("k")) {
+            multiplier = 1000L;
+        } else if (lower.endsWith("b")) {
+            end--;
+        }
+        if (multiplier != 1) {
+            end -= lower.endsWith("b") ? 2 : 1;
+        }
+        try {
+            return Long.parseLong(lower, 0, end, 10) * multiplier;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new RedisException("Invalid memory amount: " + value);
+        }
+    }
+}
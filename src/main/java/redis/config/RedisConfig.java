@@ -1,18 +1,37 @@
 package redis.config;
 
 import redis.exception.RedisException;
+import redis.persistence.AppendOnlyFile;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
 
 public class RedisConfig {
     public static final String DEFAULT_DIR = "/tmp/redis-data";
     public static final String DEFAULT_RDB_FILENAME = "dump.rdb";
     public static final int DEFAULT_PORT = 6379;
-    private static final String REPLICATION_ID = "8371b4fb1155b71f4a04d3e1bc3e18c4a990aeeb";
+    public static final int DEFAULT_REPL_BACKLOG_SIZE = 1 << 20;
+    public static final String DEFAULT_AOF_FILENAME = "appendonly.aof";
+    public static final long DEFAULT_LUA_TIME_LIMIT = 5000;
     private String dir = DEFAULT_DIR;
     private String dbFileName = DEFAULT_RDB_FILENAME;
     private int port = DEFAULT_PORT;
     private String role = "master";
     private String masterHost;
     private int masterPort;
+    private OutputBufferLimit normalOutputLimit = OutputBufferLimit.NORMAL;
+    private OutputBufferLimit replicaOutputLimit = OutputBufferLimit.REPLICA;
+    private OutputBufferLimit pubSubOutputLimit = OutputBufferLimit.PUBSUB;
+    private int replBacklogSize = DEFAULT_REPL_BACKLOG_SIZE;
+    private boolean appendOnly;
+    private String appendFileName = DEFAULT_AOF_FILENAME;
+    private AppendOnlyFile.FsyncPolicy appendFsync = AppendOnlyFile.FsyncPolicy.EVERYSEC;
+    // rdbcheckpoint delta: saves write only the keys changed since the previous one, chained to the last full save
+    private boolean deltaCheckpoints;
+    // milliseconds a script runs before other clients are answered BUSY and SCRIPT KILL is accepted
+    private long luaTimeLimit = DEFAULT_LUA_TIME_LIMIT;
+    // a new id on every start, so replicas never resume a stream whose offsets were reset
+    private final String replicationId = randomReplicationId();
 
     public RedisConfig(String[] args) {
         if (args != null && args.length > 0) {
@@ -68,6 +87,108 @@ public class RedisConfig {
                         throw new RedisException("Missing value for 'replicaOf' argument");
                     }
                 }
+
+                if (args[i].equalsIgnoreCase("--repl-backlog-size")) {
+                    if (i + 1 < args.length) {
+                        long size = OutputBufferLimit.parseBytes(args[i + 1]);
+                        if (size <= 0 || size > Integer.MAX_VALUE) {
+                            throw new RedisException("Invalid repl-backlog-size: " + args[i + 1]);
+                        }
+                        replBacklogSize = (int) size;
+                    } else {
+                        throw new RedisException("Missing value for 'repl-backlog-size' argument");
+                    }
+                }
+
+                if (args[i].equalsIgnoreCase("--appendonly")) {
+                    if (i + 1 < args.length) {
+                        if (!args[i + 1].equalsIgnoreCase("yes") && !args[i + 1].equalsIgnoreCase("no")) {
+                            throw new RedisException("Invalid appendonly: " + args[i + 1]);
+                        }
+                        appendOnly = args[i + 1].equalsIgnoreCase("yes");
+                    } else {
+                        throw new RedisException("Missing value for 'appendonly' argument");
+                    }
+                }
+
+                if (args[i].equalsIgnoreCase("--appendfilename")) {
+                    if (i + 1 < args.length) {
+                        appendFileName = args[i + 1];
+                    } else {
+                        throw new RedisException("Missing value for 'appendfilename' argument");
+                    }
+                }
+
+                if (args[i].equalsIgnoreCase("--appendfsync")) {
+                    if (i + 1 < args.length) {
+                        try {
+                            appendFsync = AppendOnlyFile.FsyncPolicy.parse(args[i + 1]);
+                        } catch (IllegalArgumentException e) {
+                            throw new RedisException("Invalid appendfsync: " + args[i + 1]);
+                        }
+                    } else {
+                        throw new RedisException("Missing value for 'appendfsync' argument");
+                    }
+                }
+
+                if (args[i].equalsIgnoreCase("--rdbcheckpoint")) {
+                    if (i + 1 < args.length) {
+                        if (!args[i + 1].equalsIgnoreCase("full") && !args[i + 1].equalsIgnoreCase("delta")) {
+                            throw new RedisException("Invalid rdbcheckpoint: " + args[i + 1]);
+                        }
+                        deltaCheckpoints = args[i + 1].equalsIgnoreCase("delta");
+                    } else {
+                        throw new RedisException("Missing value for 'rdbcheckpoint' argument");
+                    }
+                }
+
+                if (args[i].equalsIgnoreCase("--lua-time-limit")) {
+                    if (i + 1 < args.length) {
+                        try {
+                            luaTimeLimit = Long.parseLong(args[i + 1]);
+                        } catch (NumberFormatException e) {
+                            throw new RedisException("Invalid lua-time-limit: " + args[i + 1]);
+                        }
+                        if (luaTimeLimit <= 0) {
+                            throw new RedisException("Invalid lua-time-limit: " + args[i + 1]);
+                        }
+                    } else {
+                        throw new RedisException("Missing value for 'lua-time-limit' argument");
+                    }
+                }
+
+                if (args[i].equalsIgnoreCase("--client-output-buffer-limit")) {
+                    if (i + 1 < args.length) {
+                        parseOutputBufferLimits(args[i + 1]);
+                    } else {
+                        throw new RedisException("Missing value for 'client-output-buffer-limit' argument");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses {@code <class> <hard> <soft> <seconds>} groups, the class being normal, replica (or slave) or pubsub.
+     */
+    private void parseOutputBufferLimits(String value) {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length % 4 != 0) {
+            throw new RedisException("Invalid client-output-buffer-limit: " + value);
+        }
+        for (int i = 0; i < parts.length; i += 4) {
+            OutputBufferLimit limit;
+            try {
+                limit = new OutputBufferLimit(OutputBufferLimit.parseBytes(parts[i + 1]),
+                        OutputBufferLimit.parseBytes(parts[i + 2]), Long.parseLong(parts[i + 3]));
+            } catch (NumberFormatException e) {
+                throw new RedisException("Invalid client-output-buffer-limit: " + value);
+            }
+            switch (parts[i].toLowerCase()) {
+                case "normal" -> normalOutputLimit = limit;
+                case "replica", "slave" -> replicaOutputLimit = limit;
+                case "pubsub" -> pubSubOutputLimit = limit;
+                default -> throw new RedisException("Invalid client class: " + parts[i]);
             }
         }
     }
@@ -104,7 +225,49 @@ public class RedisConfig {
         return masterPort;
     }
 
+    public OutputBufferLimit getNormalOutputLimit() {
+        return normalOutputLimit;
+    }
+
+    public OutputBufferLimit getReplicaOutputLimit() {
+        return replicaOutputLimit;
+    }
+
+    public OutputBufferLimit getPubSubOutputLimit() {
+        return pubSubOutputLimit;
+    }
+
+    public int getReplBacklogSize() {
+        return replBacklogSize;
+    }
+
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    public String getAppendFileName() {
+        return appendFileName;
+    }
+
+    public AppendOnlyFile.FsyncPolicy getAppendFsync() {
+        return appendFsync;
+    }
+
+    public boolean isDeltaCheckpoints() {
+        return deltaCheckpoints;
+    }
+
+    public long getLuaTimeLimit() {
+        return luaTimeLimit;
+    }
+
     public String getReplicationId() {
-        return REPLICATION_ID;
+        return replicationId;
+    }
+
+    private static String randomReplicationId() {
+        byte[] bytes = new byte[20];
+        new SecureRandom().nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
     }
 }
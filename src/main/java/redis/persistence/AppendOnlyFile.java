@@ -0,0 +1,346 @@
+package redis.persistence;
+
+import redis.cache.Cache;
+import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.config.RedisConfig;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static redis.util.Logger.debug;
+import static redis.util.Logger.error;
+import static redis.util.Logger.warn;
+
+/**
+ * The append-only file of the configured {@code dir} and {@code appendfilename}: an RDB preamble holding the
+ * keyspace the file was started from, followed by every write command since, in the RESP form clients send.
+ * <p>
+ * Commands are buffered as they are executed and written once per event loop iteration by {@link #flush}, so the
+ * writes of all the clients served in an iteration cost a single write and share a single fsync, which runs on a
+ * background thread. Under {@code appendfsync always}, the event loop holds the replies to the writes until
+ * {@link #isSynced} says their bytes reached the disk; under {@code everysec} the file is synced at most once a
+ * second, and under {@code no} only when the operating system decides to.
+ */
+public class AppendOnlyFile {
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private final Path path;
+    private final FsyncPolicy policy;
+    private final Runnable onSync;
+    private final ExecutorService syncThread;
+    private final ByteArrayOutputStream pending;
+    private FileChannel channel;
+    // bytes written to the file, and those known to be on disk
+    private long writtenBytes;
+    private volatile long syncedBytes;
+    private volatile boolean syncInProgress;
+    private volatile boolean lastSyncFailed;
+    private boolean lastWriteFailed;
+    private long lastSync;
+
+    public enum FsyncPolicy {
+        ALWAYS, EVERYSEC, NO;
+
+        public static FsyncPolicy parse(String value) {
+            return valueOf(value.toUpperCase());
+        }
+    }
+
+    /**
+     * @param onSync called on the background thread once an fsync completed, to wake the event loop up
+     */
+    public AppendOnlyFile(RedisConfig config, Runnable onSync) {
+        path = Path.of(config.getDir(), config.getAppendFileName());
+        policy = config.getAppendFsync();
+        this.onSync = onSync;
+        syncThread = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("aof-fsync").daemon().factory());
+        pending = new ByteArrayOutputStream();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    public boolean exists() {
+        return Files.isRegularFile(path);
+    }
+
+    /**
+     * Replays the file: the keys of its RDB preamble go to {@code sink}, and its commands to {@code executor}, in
+     * order. A command cut short by a crash while it was written is dropped, and the file truncated before it.
+     *
+     * @throws IOException when the file cannot be read or is corrupt
+     */
+    public void load(RdbReader.Sink sink, Consumer<RespArray> executor) throws IOException {
+        long start = System.currentTimeMillis();
+        long commands = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            RdbReader preamble = null;
+            // the offset of the first byte of input
+            long offset = 0;
+            boolean end = false;
+            while (!end) {
+                end = file.read(input) == -1;
+                input.flip();
+                if (offset == 0 && preamble == null && input.remaining() >= RdbFormat.MAGIC.length
+                    && input.get(0) == RdbFormat.MAGIC[0]) {
+                    preamble = new RdbReader();
+                }
+                if (preamble != null && !preamble.isDone()) {
+                    try {
+                        preamble.read(input, sink);
+                    } catch (IllegalStateException | IllegalArgumentException e) {
+                        throw new IOException("Corrupt RDB preamble in %s: %s".formatted(path, e.getMessage()), e);
+                    }
+                }
+                if (preamble == null || preamble.isDone()) {
+                    try {
+                        RespArray command;
+                        while ((command = readCommand(input)) != null) {
+                            executor.accept(command);
+                            commands++;
+                        }
+                    } catch (IllegalStateException e) {
+                        throw new IOException("Corrupt command in %s near offset %d: %s"
+                                .formatted(path, offset + input.position(), e.getMessage()), e);
+                    }
+                }
+                int consumed = input.position();
+                offset += consumed;
+                if (end && input.hasRemaining()) {
+                    if (preamble != null && !preamble.isDone()) {
+                        throw new IOException("RDB preamble of %s ends before its EOF opcode".formatted(path));
+                    }
+                    warn("%s ends with an incomplete command, truncating it to %d bytes", path, offset);
+                    file.truncate(offset);
+                }
+                if (!input.hasRemaining() || consumed > 0) {
+                    input.compact();
+                } else {
+                    // a single command or value larger than the buffer
+                    input = ByteBuffer.allocate(input.capacity() * 2).put(input);
+                }
+            }
+        }
+        debug("Loaded %s, %d commands, in %d ms", path, commands, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Creates the file with the given keyspace as its preamble, as when the file is enabled on a server that has
+     * data, which would otherwise not survive the next restart.
+     */
+    public void create(Cache cache, Map<RespValue, RedisStream> streams,
+                       Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = directory.resolve("temp-%d.aof".formatted(ProcessHandle.current().pid()));
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file), READ_BUFFER_SIZE);
+            new RdbWriter(out).writeSnapshot(cache, streams, sortedSets);
+            out.flush();
+            file.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Opens the file for appending, creating it empty when it does not exist.
+     */
+    public void open() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        writtenBytes = channel.size();
+        syncedBytes = writtenBytes;
+        lastSync = System.currentTimeMillis();
+    }
+
+    public void append(RespArray command) {
+        pending.writeBytes(command.serialize());
+    }
+
+    /**
+     * @return the size of the file once the commands buffered so far are written
+     */
+    public long getAppendedBytes() {
+        return writtenBytes + pending.size();
+    }
+
+    /**
+     * @return whether a client whose last write ended at {@code offset} may be answered, which under
+     * {@code appendfsync always} waits for that write to be synced
+     */
+    public boolean isSynced(long offset) {
+        return policy != FsyncPolicy.ALWAYS || offset <= syncedBytes;
+    }
+
+    /**
+     * Writes the commands buffered during this event loop iteration, then starts an fsync if the policy calls for
+     * one and none is running. Commands written while an fsync runs are covered by the next one.
+     */
+    public void flush(long now) {
+        if (pending.size() > 0) {
+            try {
+                ByteBuffer data = ByteBuffer.wrap(pending.toByteArray());
+                while (data.hasRemaining()) {
+                    writtenBytes += channel.write(data);
+                }
+                pending.reset();
+                lastWriteFailed = false;
+            } catch (IOException e) {
+                // kept buffered, and written again on the next iteration
+                if (!lastWriteFailed) {
+                    error("Failed to write to %s: %s", path, e.getMessage());
+                }
+                lastWriteFailed = true;
+                return;
+            }
+        }
+        if (syncInProgress || writtenBytes == syncedBytes) {
+            return;
+        }
+        if (policy == FsyncPolicy.ALWAYS || policy == FsyncPolicy.EVERYSEC && now - lastSync >= SYNC_INTERVAL_MILLIS) {
+            lastSync = now;
+            sync(writtenBytes);
+        }
+    }
+
+    private void sync(long target) {
+        syncInProgress = true;
+        syncThread.execute(() -> {
+            try {
+                channel.force(false);
+                syncedBytes = target;
+                lastSyncFailed = false;
+            } catch (IOException e) {
+                error("Failed to fsync %s: %s", path, e.getMessage());
+                lastSyncFailed = true;
+            } finally {
+                syncInProgress = false;
+                onSync.run();
+            }
+        });
+    }
+
+    public boolean isSyncInProgress() {
+        return syncInProgress;
+    }
+
+    public boolean isLastWriteOk() {
+        return !lastWriteFailed && !lastSyncFailed;
+    }
+
+    /**
+     * Reads a command, an array of bulk strings, leaving the buffer where it was when it is not complete.
+     *
+     * @return the command, or null when the buffer does not hold all of it
+     * @throws IllegalStateException when the bytes are not such a command
+     */
+    static RespArray readCommand(ByteBuffer input) {
+        int start = input.position();
+        long count = readNumber(input, '*');
+        if (count < 0) {
+            input.position(start);
+            return null;
+        }
+        List<RespValue> arguments = new ArrayList<>((int) Math.min(count, 1024));
+        for (long i = 0; i < count; i++) {
+            long length = readNumber(input, '$');
+            if (length < 0 || input.remaining() < length + 2) {
+                input.position(start);
+                return null;
+            }
+            byte[] argument = new byte[(int) length];
+            input.get(argument);
+            input.position(input.position() + 2);
+            arguments.add(new RespBulkString(new String(argument, StandardCharsets.UTF_8)));
+        }
+        return new RespArray(arguments);
+    }
+
+    /**
+     * Reads {@code <type><number>\r\n}.
+     *
+     * @return the number, or -1 when the buffer ends before the line does
+     * @throws IllegalStateException when the bytes are not such a line
+     */
+    private static long readNumber(ByteBuffer input, char type) {
+        if (!input.hasRemaining()) {
+            return -1;
+        }
+        if (input.get() != type) {
+            throw new IllegalStateException("expected '%c'".formatted(type));
+        }
+        long value = 0;
+        while (input.hasRemaining()) {
+            byte b = input.get();
+            if (b == '\r') {
+                if (!input.hasRemaining()) {
+                    return -1;
+                }
+                input.get();
+                return value;
+            }
+            if (b < '0' || b > '9') {
+                throw new IllegalStateException("invalid length");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return -1;
+    }
+
+    /**
+     * Writes what is buffered and syncs it, as the server stops.
+     */
+    public void close() throws IOException {
+        syncThread.shutdown();
+        try {
+            // an fsync still running would fail on the closed channel
+            syncThread.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(pending.toByteArray());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package redis.persistence;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory output kept as a list of fixed-size chunks, so a large snapshot never needs one contiguous array nor
+ * the copies of a growing one, and can be handed to a socket a chunk at a time.
+ */
+public class ChunkedOutputStream extends OutputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks;
+    private byte[] current;
+    private int position;
+    private long size;
+
+    public ChunkedOutputStream() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedOutputStream(int chunkSize) {
+        this.chunkSize = chunkSize;
+        chunks = new ArrayList<>();
+    }
+
+    @Override
+    public void write(int b) {
+        if (current == null || position == current.length) {
+            nextChunk();
+        }
+        current[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            int copied = Math.min(length, current.length - position);
+            System.arraycopy(bytes, offset, current, position, copied);
+            position += copied;
+            offset += copied;
+            length -= copied;
+            size += copied;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return read-only views of the chunks written so far, in order
+     */
+    public List<ByteBuffer> chunks() {
+        List<ByteBuffer> views = new ArrayList<>(chunks.size() + 1);
+        for (ByteBuffer chunk : chunks) {
+            views.add(chunk.asReadOnlyBuffer());
+        }
+        if (current != null) {
+            views.add(ByteBuffer.wrap(current, 0, position).asReadOnlyBuffer());
+        }
+        return views;
+    }
+
+    /**
+     * Hands over the chunks written since the previous call, the stream starting a new chunk for what comes next.
+     */
+    public List<ByteBuffer> drain() {
+        List<ByteBuffer> drained = chunks();
+        chunks.clear();
+        current = null;
+        return drained;
+    }
+
+    private void nextChunk() {
+        if (current != null) {
+            chunks.add(ByteBuffer.wrap(current));
+        }
+        current = new byte[chunkSize];
+        position = 0;
+    }
+}
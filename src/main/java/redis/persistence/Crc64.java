@@ -0,0 +1,76 @@
+package redis.persistence;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * The CRC-64 Redis ends its RDB files with: the Jones polynomial, reflected, with an initial value of 0 and no final
+ * XOR. Computed a word at a time with 8 lookup tables (slicing-by-8), which folds the 8 bytes of a word into the
+ * remainder in one step instead of 8 dependent ones.
+ */
+public class Crc64 implements Checksum {
+    // 0xAD93D23594C935A9 reflected
+    private static final long POLYNOMIAL = 0x95AC9329AC4BC9B5L;
+    private static final long[][] TABLES = new long[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            long crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int table = 1; table < 8; table++) {
+            for (int i = 0; i < 256; i++) {
+                long previous = TABLES[table - 1][i];
+                TABLES[table][i] = (previous >>> 8) ^ TABLES[0][(int) (previous & 0xFF)];
+            }
+        }
+    }
+
+    private long crc;
+
+    @Override
+    public void update(int b) {
+        crc = TABLES[0][(int) ((crc ^ b) & 0xFF)] ^ (crc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        update(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        ByteBuffer words = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        long value = crc;
+        while (words.remaining() >= 8) {
+            value ^= words.getLong();
+            value = TABLES[7][(int) (value & 0xFF)]
+                    ^ TABLES[6][(int) ((value >>> 8) & 0xFF)]
+                    ^ TABLES[5][(int) ((value >>> 16) & 0xFF)]
+                    ^ TABLES[4][(int) ((value >>> 24) & 0xFF)]
+                    ^ TABLES[3][(int) ((value >>> 32) & 0xFF)]
+                    ^ TABLES[2][(int) ((value >>> 40) & 0xFF)]
+                    ^ TABLES[1][(int) ((value >>> 48) & 0xFF)]
+                    ^ TABLES[0][(int) (value >>> 56)];
+        }
+        while (words.hasRemaining()) {
+            value = TABLES[0][(int) ((value ^ words.get()) & 0xFF)] ^ (value >>> 8);
+        }
+        crc = value;
+        buffer.position(buffer.limit());
+    }
+
+    @Override
+    public long getValue() {
+        return crc;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0;
+    }
+}
@@ -0,0 +1,141 @@
+package redis.persistence;
+
+import redis.cache.Cache;
+import redis.cache.CachedValue;
+import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.resp.RespValue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A point-in-time snapshot of the keyspace encoded on the event loop a few keys at a time, as Redis would have a
+ * forked child do, so neither a copy of the keyspace nor the whole encoded snapshot is ever held in memory. The keys
+ * are listed when it starts; {@link #advance} encodes the next of them, and {@link #preserve} must be called with
+ * the keys a command is about to change, which are then encoded first, with the value they had until then. Keys
+ * created meanwhile are left out, and so are keys that expire meanwhile, which loading would drop anyway.
+ * <p>
+ * The encoded bytes are taken with {@link #drain} as they come, to be written to a file or a replica.
+ */
+public class IncrementalSnapshot {
+    private final Cache cache;
+    private final Map<RespValue, RedisStream> streams;
+    private final Map<RespValue, RedisSortedSet> sortedSets;
+    private final boolean delta;
+    private final ChunkedOutputStream output;
+    private final RdbWriter writer;
+    private final Iterator<RespValue> keys;
+    // the keys not encoded yet
+    private final Set<RespValue> pending;
+    private boolean finished;
+
+    private IncrementalSnapshot(Collection<RespValue> keys, boolean delta, Cache cache,
+                                Map<RespValue, RedisStream> streams,
+                                Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        this.cache = cache;
+        this.streams = streams;
+        this.sortedSets = sortedSets;
+        this.delta = delta;
+        List<RespValue> listed = new ArrayList<>(keys);
+        this.keys = listed.iterator();
+        pending = new HashSet<>(listed);
+        output = new ChunkedOutputStream();
+        writer = new RdbWriter(output);
+        writer.writeHeader();
+    }
+
+    /**
+     * Starts a snapshot of the whole keyspace.
+     */
+    public static IncrementalSnapshot full(Cache cache, Map<RespValue, RedisStream> streams,
+                                           Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        Map<RespValue, CachedValue<RespValue>> values = cache.entries();
+        long expires = values.values().stream().filter(value -> value.expirationTime() != -1).count();
+        List<RespValue> keys = new ArrayList<>(values.keySet());
+        keys.addAll(sortedSets.keySet());
+        keys.addAll(streams.keySet());
+        IncrementalSnapshot snapshot = new IncrementalSnapshot(keys, false, cache, streams, sortedSets);
+        snapshot.writer.writeResizeDb(keys.size(), expires);
+        return snapshot;
+    }
+
+    /**
+     * Starts a delta file holding {@code keys}, see {@link RdbWriter#writeDelta}.
+     */
+    public static IncrementalSnapshot delta(Collection<RespValue> keys, Cache cache,
+                                            Map<RespValue, RedisStream> streams,
+                                            Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        return new IncrementalSnapshot(keys, true, cache, streams, sortedSets);
+    }
+
+    /**
+     * Encodes the keys among {@code values} not encoded yet, before a command changes them.
+     */
+    public void preserve(List<RespValue> values) throws IOException {
+        for (RespValue value : values) {
+            if (pending.remove(value)) {
+                write(value);
+            }
+        }
+    }
+
+    /**
+     * Encodes every key not encoded yet, before the keyspace is replaced as a whole.
+     */
+    public void preserveAll() throws IOException {
+        advance(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Encodes up to {@code count} more keys, ending the snapshot once none is left.
+     *
+     * @return whether the snapshot is complete
+     */
+    public boolean advance(int count) throws IOException {
+        while (count > 0 && keys.hasNext()) {
+            RespValue key = keys.next();
+            if (pending.remove(key)) {
+                write(key);
+                count--;
+            }
+        }
+        if (!keys.hasNext() && !finished) {
+            writer.writeFooter();
+            finished = true;
+        }
+        return finished;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the bytes encoded since the previous call
+     */
+    public List<ByteBuffer> drain() {
+        return output.drain();
+    }
+
+    /**
+     * @return the number of bytes encoded so far
+     */
+    public long size() {
+        return output.size();
+    }
+
+    private void write(RespValue key) throws IOException {
+        if (delta) {
+            writer.writeDeletion(key);
+        }
+        writer.writeKey(key, cache, streams, sortedSets);
+    }
+}
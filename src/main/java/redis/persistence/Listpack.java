@@ -0,0 +1,239 @@
+package redis.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoder of the listpack format Redis stores stream nodes in: a 6 byte header (total size and element count, both
+ * little endian), the elements, and a 0xFF terminator. Each element is its encoding byte(s), its data and a
+ * backward length, so the pack can be walked from either end. {@link Cursor} decodes a pack front to back.
+ */
+public class Listpack {
+    static final int END = 0xFF;
+    private final ByteArrayOutputStream elements;
+    private final byte[] scratch;
+    private int count;
+
+    public Listpack() {
+        elements = new ByteArrayOutputStream();
+        scratch = new byte[9];
+    }
+
+    /**
+     * Appends an integer in the smallest of the 7, 13, 16, 24, 32 or 64 bit encodings that holds it.
+     */
+    public Listpack append(long value) {
+        int length;
+        if (value >= 0 && value <= 127) {
+            scratch[0] = (byte) value;
+            length = 1;
+        } else if (value >= -4096 && value <= 4095) {
+            long encoded = value < 0 ? (1 << 13) + value : value;
+            scratch[0] = (byte) (0xC0 | (encoded >> 8));
+            scratch[1] = (byte) encoded;
+            length = 2;
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            scratch[0] = (byte) 0xF1;
+            length = 1 + littleEndian(value, 2);
+        } else if (value >= -(1 << 23) && value < (1 << 23)) {
+            scratch[0] = (byte) 0xF2;
+            length = 1 + littleEndian(value, 3);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            scratch[0] = (byte) 0xF3;
+            length = 1 + littleEndian(value, 4);
+        } else {
+            scratch[0] = (byte) 0xF4;
+            length = 1 + littleEndian(value, 8);
+        }
+        elements.write(scratch, 0, length);
+        writeBackLength(length);
+        count++;
+        return this;
+    }
+
+    public Listpack append(String value) {
+        return append(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends a string with the 6, 12 or 32 bit length encoding.
+     */
+    public Listpack append(byte[] value) {
+        int header;
+        if (value.length < 64) {
+            elements.write(0x80 | value.length);
+            header = 1;
+        } else if (value.length < 4096) {
+            elements.write(0xE0 | (value.length >> 8));
+            elements.write(value.length & 0xFF);
+            header = 2;
+        } else {
+            elements.write(0xF0);
+            littleEndian(value.length, 4);
+            elements.write(scratch, 1, 4);
+            header = 5;
+        }
+        elements.write(value, 0, value.length);
+        writeBackLength(header + value.length);
+        count++;
+        return this;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public byte[] toByteArray() {
+        int total = 6 + elements.size() + 1;
+        byte[] pack = new byte[total];
+        pack[0] = (byte) total;
+        pack[1] = (byte) (total >>> 8);
+        pack[2] = (byte) (total >>> 16);
+        pack[3] = (byte) (total >>> 24);
+        // like Redis, an element count that does not fit in 16 bits is stored as 65535, meaning "walk to count"
+        int storedCount = Math.min(count, 0xFFFF);
+        pack[4] = (byte) storedCount;
+        pack[5] = (byte) (storedCount >>> 8);
+        System.arraycopy(elements.toByteArray(), 0, pack, 6, elements.size());
+        pack[total - 1] = (byte) END;
+        return pack;
+    }
+
+    /**
+     * Writes the lowest {@code bytes} bytes of {@code value} into the scratch buffer after the encoding byte.
+     */
+    private int littleEndian(long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            scratch[1 + i] = (byte) (value >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * The length of the element so far, most significant 7 bit group first; every byte but the first has its high
+     * bit set, which is what lets a reader coming from the right find where the length starts.
+     */
+    private void writeBackLength(int length) {
+        int bytes = backLengthSize(length);
+        for (int i = bytes - 1; i >= 0; i--) {
+            int group = (length >>> (7 * i)) & 0x7F;
+            elements.write(i == bytes - 1 ? group : group | 0x80);
+        }
+    }
+
+    static int backLengthSize(int length) {
+        if (length <= 127) {
+            return 1;
+        } else if (length < 16383) {
+            return 2;
+        } else if (length < 2097151) {
+            return 3;
+        } else if (length < 268435455) {
+            return 4;
+        }
+        return 5;
+    }
+
+    /**
+     * Forward-only decoder of a listpack. Every element can be read either as an integer or as a string, whatever
+     * its encoding, since writers are free to store a numeric string as an integer.
+     */
+    public static final class Cursor {
+        private final byte[] pack;
+        private int position;
+        private boolean string;
+        private long integer;
+        private int stringOffset;
+        private int stringLength;
+
+        public Cursor(byte[] pack) {
+            if (pack.length < 7 || (pack[0] & 0xFF | (pack[1] & 0xFF) << 8 | (pack[2] & 0xFF) << 16
+                                    | (pack[3] & 0xFF) << 24) != pack.length) {
+                throw new IllegalArgumentException("Corrupt listpack: size does not match the header");
+            }
+            this.pack = pack;
+            position = 6;
+        }
+
+        public boolean hasNext() {
+            return (pack[position] & 0xFF) != END;
+        }
+
+        public long nextLong() {
+            next();
+            if (string) {
+                return Long.parseLong(new String(pack, stringOffset, stringLength, StandardCharsets.US_ASCII));
+            }
+            return integer;
+        }
+
+        public byte[] nextBytes() {
+            next();
+            if (string) {
+                byte[] value = new byte[stringLength];
+                System.arraycopy(pack, stringOffset, value, 0, stringLength);
+                return value;
+            }
+            return Long.toString(integer).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        public String nextString() {
+            next();
+            return string ? new String(pack, stringOffset, stringLength, StandardCharsets.UTF_8) : Long.toString(integer);
+        }
+
+        private void next() {
+            if (!hasNext()) {
+                throw new IllegalStateException("Corrupt listpack: read past the last element");
+            }
+            int start = position;
+            int encoding = pack[position] & 0xFF;
+            string = false;
+            if (encoding < 0x80) {
+                integer = encoding;
+                position += 1;
+            } else if ((encoding & 0xC0) == 0x80) {
+                readString(position + 1, encoding & 0x3F);
+            } else if ((encoding & 0xE0) == 0xC0) {
+                long value = ((encoding & 0x1F) << 8) | (pack[position + 1] & 0xFF);
+                integer = value >= 1 << 12 ? value - (1 << 13) : value;
+                position += 2;
+            } else if ((encoding & 0xF0) == 0xE0) {
+                readString(position + 2, ((encoding & 0x0F) << 8) | (pack[position + 1] & 0xFF));
+            } else {
+                switch (encoding) {
+                    case 0xF0 -> readString(position + 5, (int) littleEndian(position + 1, 4));
+                    case 0xF1 -> readInteger(2);
+                    case 0xF2 -> readInteger(3);
+                    case 0xF3 -> readInteger(4);
+                    case 0xF4 -> readInteger(8);
+                    default -> throw new IllegalStateException("Corrupt listpack: unknown encoding 0x%02X".formatted(encoding));
+                }
+            }
+            position += backLengthSize(position - start);
+        }
+
+        private void readString(int offset, int length) {
+            string = true;
+            stringOffset = offset;
+            stringLength = length;
+            position = offset + length;
+        }
+
+        private void readInteger(int bytes) {
+            long value = littleEndian(position + 1, bytes);
+            // sign-extend from the stored width
+            int shift = 64 - 8 * bytes;
+            integer = (value << shift) >> shift;
+            position += 1 + bytes;
+        }
+
+        private long littleEndian(int offset, int bytes) {
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value |= (long) (pack[offset + i] & 0xFF) << (8 * i);
+            }
+            return value;
+        }
+    }
+}
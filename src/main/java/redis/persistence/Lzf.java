@@ -0,0 +1,59 @@
+package redis.persistence;
+
+/**
+ * Decompressor of the LZF format Redis compresses long strings with when {@code rdbcompression} is on. The input is
+ * a sequence of runs, each starting with a control byte: below 32, it is followed by that many plus one literal
+ * bytes; otherwise its 3 high bits (extended by the next byte when all set) give the length of a back reference
+ * minus 2, and its 5 low bits with the next byte its distance minus 1.
+ */
+public class Lzf {
+
+    private Lzf() {
+    }
+
+    /**
+     * @param length the decompressed length, stored by Redis next to the compressed one
+     * @throws IllegalStateException when the input is corrupt or does not decompress to {@code length} bytes
+     */
+    public static byte[] decompress(byte[] input, int length) {
+        byte[] output = new byte[length];
+        int in = 0;
+        int out = 0;
+        while (in < input.length) {
+            int control = input[in++] & 0xFF;
+            if (control < 32) {
+                int run = control + 1;
+                if (in + run > input.length || out + run > length) {
+                    throw new IllegalStateException("Corrupt LZF literal run at offset " + (in - 1));
+                }
+                System.arraycopy(input, in, output, out, run);
+                in += run;
+                out += run;
+                continue;
+            }
+            int run = control >> 5;
+            if (run == 7) {
+                if (in >= input.length) {
+                    throw new IllegalStateException("Truncated LZF back reference");
+                }
+                run += input[in++] & 0xFF;
+            }
+            if (in >= input.length) {
+                throw new IllegalStateException("Truncated LZF back reference");
+            }
+            int reference = out - ((control & 0x1F) << 8) - (input[in++] & 0xFF) - 1;
+            run += 2;
+            if (reference < 0 || out + run > length) {
+                throw new IllegalStateException("Corrupt LZF back reference at offset " + (in - 2));
+            }
+            // the reference may overlap the bytes being written, which repeats them
+            for (int i = 0; i < run; i++) {
+                output[out++] = output[reference++];
+            }
+        }
+        if (out != length) {
+            throw new IllegalStateException("LZF data decompressed to %d bytes instead of %d".formatted(out, length));
+        }
+        return output;
+    }
+}
@@ -0,0 +1,348 @@
+package redis.persistence;
+
+import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.resp.RespValue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static redis.persistence.RdbFormat.*;
+import static redis.persistence.RdbReader.readLength;
+import static redis.persistence.RdbReader.skipBytes;
+import static redis.persistence.RdbReader.skipString;
+
+/**
+ * Loads a mapped RDB file in three stages, as decoding rather than I/O bounds the time it takes:
+ * <ol>
+ *     <li>the calling thread frames the file, finding where each key ends by reading lengths only, and cuts it
+ *     into batches of about {@value #BATCH_SIZE} bytes;</li>
+ *     <li>a pool of workers decodes the batches, building the values;</li>
+ *     <li>the calling thread puts the keys of each batch into the sink, in file order, so the sink needs no
+ *     synchronization and a key written twice keeps its last value.</li>
+ * </ol>
+ * The checksum is computed meanwhile on another thread, and verified once the end of the file is reached.
+ */
+class ParallelRdbLoader {
+    private static final int BATCH_SIZE = 1024 * 1024;
+    private static final int CHECKSUM_LENGTH = 8;
+    private final Path path;
+    private final FileChannel channel;
+    private final RdbReader.Sink sink;
+    private final Deque<Future<Batch>> inFlight;
+    private ExecutorService workers;
+    private int maxInFlight;
+    private long skippedKeys;
+
+    /**
+     * The decoded keys of a batch, each a call to make on the sink.
+     */
+    private record Batch(List<Consumer<RdbReader.Sink>> keys, long skippedKeys) {
+    }
+
+    ParallelRdbLoader(Path path, FileChannel channel, RdbReader.Sink sink) {
+        this.path = path;
+        this.channel = channel;
+        this.sink = sink;
+        inFlight = new ArrayDeque<>();
+    }
+
+    /**
+     * @param window the size of the mapped part of the file, doubled when a single key does not fit in it
+     * @return the number of keys decoded but skipped, see {@link RdbReader#getSkippedKeys()}
+     * @throws IOException when the file is corrupt, ends before its EOF opcode, or its checksum does not match
+     */
+    long load(long window) throws IOException {
+        long size = channel.size();
+        long expectedChecksum = size < CHECKSUM_LENGTH ? 0 : storedChecksum(channel, path, size);
+        // 0 stands for a file written without a checksum
+        CompletableFuture<Long> checksum = expectedChecksum == 0
+                ? null
+                : CompletableFuture.supplyAsync(() -> checksum(size - CHECKSUM_LENGTH, window));
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        workers = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("rdb-load-", 0).daemon().factory());
+        maxInFlight = threads * 2;
+        try {
+            long end = frame(size, window);
+            while (!inFlight.isEmpty()) {
+                insert(inFlight.poll());
+            }
+            if (checksum != null) {
+                verify(checksum, expectedChecksum, end, size);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return skippedKeys;
+    }
+
+    /**
+     * Frames the whole file, handing the batches to the workers and inserting those decoded as it goes.
+     *
+     * @return the offset of the end of the file's checksum
+     */
+    private long frame(long size, long window) throws IOException {
+        long offset = 0;
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(window, size));
+        try {
+            RdbReader.checkHeader(map);
+        } catch (BufferUnderflowException _) {
+            throw new IOException("RDB file %s ends before its header".formatted(path));
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Invalid RDB file %s: %s".formatted(path, e.getMessage()), e);
+        }
+        int batchStart = map.position();
+        // the end of the last complete key, after which a batch may be cut
+        int boundary = batchStart;
+        while (true) {
+            int recordStart = map.position();
+            int opcode;
+            try {
+                opcode = frameRecord(map);
+            } catch (BufferUnderflowException _) {
+                submit(map, batchStart, boundary);
+                if (offset + map.limit() == size) {
+                    throw new IOException("RDB file %s ends before its EOF opcode".formatted(path));
+                }
+                if (boundary == 0) {
+                    window = Math.min(window * 2, Integer.MAX_VALUE);
+                }
+                offset += boundary;
+                map = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(window, size - offset));
+                batchStart = 0;
+                boundary = 0;
+                continue;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                throw new IOException("Corrupt RDB file %s near offset %d: %s"
+                        .formatted(path, offset + recordStart, e.getMessage()), e);
+            }
+            if (opcode == OPCODE_EOF) {
+                submit(map, batchStart, recordStart);
+                return offset + map.position();
+            }
+            // an expiry, idle time or frequency belongs with the key that follows it
+            if (opcode != OPCODE_EXPIRETIME_MS && opcode != OPCODE_EXPIRETIME && opcode != OPCODE_IDLE
+                && opcode != OPCODE_FREQ) {
+                boundary = map.position();
+                if (boundary - batchStart >= BATCH_SIZE) {
+                    submit(map, batchStart, boundary);
+                    batchStart = boundary;
+                }
+            }
+        }
+    }
+
+    private void submit(ByteBuffer map, int start, int end) throws IOException {
+        if (end == start) {
+            return;
+        }
+        ByteBuffer batch = map.slice(start, end - start);
+        inFlight.add(workers.submit(() -> decode(batch)));
+        while (inFlight.size() > maxInFlight) {
+            insert(inFlight.poll());
+        }
+    }
+
+    private static Batch decode(ByteBuffer batch) {
+        List<Consumer<RdbReader.Sink>> keys = new ArrayList<>();
+        RdbReader reader = new RdbReader(false);
+        reader.read(batch, new RdbReader.Sink() {
+            @Override
+            public void put(RespValue key, RespValue value, long expirationTime) {
+                keys.add(sink -> sink.put(key, value, expirationTime));
+            }
+
+            @Override
+            public void put(RespValue key, RedisSortedSet sortedSet) {
+                keys.add(sink -> sink.put(key, sortedSet));
+            }
+
+            @Override
+            public void put(RespValue key, RedisStream stream) {
+                keys.add(sink -> sink.put(key, stream));
+            }
+
+            @Override
+            public void delete(RespValue key) {
+                keys.add(sink -> sink.delete(key));
+            }
+        });
+        if (batch.hasRemaining()) {
+            throw new IllegalStateException("Batch ends inside a key");
+        }
+        return new Batch(keys, reader.getSkippedKeys());
+    }
+
+    private void insert(Future<Batch> future) throws IOException {
+        Batch batch;
+        try {
+            batch = future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Corrupt RDB file %s: %s".formatted(path, e.getCause().getMessage()), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + path, e);
+        }
+        batch.keys().forEach(key -> key.accept(sink));
+        skippedKeys += batch.skippedKeys();
+    }
+
+    private void verify(CompletableFuture<Long> checksum, long expected, long end, long size) throws IOException {
+        if (end != size) {
+            throw new IOException("RDB file %s has %d bytes after its checksum".formatted(path, size - end));
+        }
+        long actual;
+        try {
+            actual = checksum.join();
+        } catch (CompletionException e) {
+            throw new IOException("Cannot compute the checksum of " + path, e.getCause());
+        }
+        if (actual != expected) {
+            throw new IOException("Wrong checksum of RDB file %s: expected %016x, got %016x"
+                    .formatted(path, expected, actual));
+        }
+    }
+
+    static long storedChecksum(FileChannel channel, Path path, long size) throws IOException {
+        ByteBuffer stored = ByteBuffer.allocate(CHECKSUM_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        while (stored.hasRemaining()) {
+            if (channel.read(stored, size - CHECKSUM_LENGTH + stored.position()) < 0) {
+                throw new IOException("Cannot read the checksum of " + path);
+            }
+        }
+        return stored.getLong(0);
+    }
+
+    /**
+     * @return the CRC-64 of the first {@code length} bytes of the file
+     */
+    private long checksum(long length, long window) {
+        Crc64 crc = new Crc64();
+        try {
+            for (long offset = 0; offset < length; offset += window) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(window, length - offset)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Moves past one opcode, with its arguments, or one key and its value, without decoding them.
+     *
+     * @return the opcode or value type
+     * @throws BufferUnderflowException when the input ends before the record does
+     */
+    static int frameRecord(ByteBuffer input) {
+        int opcode = input.get() & 0xFF;
+        switch (opcode) {
+            case OPCODE_AUX -> {
+                skipString(input);
+                skipString(input);
+            }
+            case OPCODE_SELECTDB, OPCODE_IDLE -> readLength(input);
+            case OPCODE_RESIZEDB -> {
+                readLength(input);
+                readLength(input);
+            }
+            case OPCODE_EXPIRETIME_MS -> skipBytes(input, 8);
+            case OPCODE_EXPIRETIME -> skipBytes(input, 4);
+            case OPCODE_FREQ -> skipBytes(input, 1);
+            case OPCODE_FUNCTION2 -> skipString(input);
+            case OPCODE_EOF -> skipBytes(input, CHECKSUM_LENGTH);
+            case TYPE_STRING, TYPE_LIST_ZIPLIST, TYPE_ZSET_ZIPLIST, TYPE_ZSET_LISTPACK, TYPE_SET_INTSET,
+                 TYPE_SET_LISTPACK, TYPE_HASH_ZIPMAP, TYPE_HASH_ZIPLIST, TYPE_HASH_LISTPACK -> {
+                skipString(input);
+                skipString(input);
+            }
+            case TYPE_LIST, TYPE_SET, TYPE_LIST_QUICKLIST -> {
+                skipString(input);
+                for (long i = readLength(input); i > 0; i--) {
+                    skipString(input);
+                }
+            }
+            case TYPE_LIST_QUICKLIST_2 -> {
+                skipString(input);
+                for (long i = readLength(input); i > 0; i--) {
+                    readLength(input);
+                    skipString(input);
+                }
+            }
+            case TYPE_HASH -> {
+                skipString(input);
+                for (long i = readLength(input); i > 0; i--) {
+                    skipString(input);
+                    skipString(input);
+                }
+            }
+            case TYPE_ZSET -> {
+                skipString(input);
+                for (long i = readLength(input); i > 0; i--) {
+                    skipString(input);
+                    int length = input.get() & 0xFF;
+                    // 253 to 255 stand for NaN and the infinities
+                    skipBytes(input, length < 253 ? length : 0);
+                }
+            }
+            case TYPE_ZSET_2 -> {
+                skipString(input);
+                for (long i = readLength(input); i > 0; i--) {
+                    skipString(input);
+                    skipBytes(input, 8);
+                }
+            }
+            case TYPE_STREAM_LISTPACKS, TYPE_STREAM_LISTPACKS_2, TYPE_STREAM_LISTPACKS_3 -> frameStream(input, opcode);
+            default -> throw new IllegalStateException("Unsupported RDB opcode or type 0x%02X".formatted(opcode));
+        }
+        return opcode;
+    }
+
+    private static void frameStream(ByteBuffer input, int type) {
+        skipString(input);
+        for (long nodes = readLength(input); nodes > 0; nodes--) {
+            skipString(input);
+            skipString(input);
+        }
+        // length and last ID, then first ID, max deleted entry ID and entries added
+        int metadata = type == TYPE_STREAM_LISTPACKS ? 3 : 8;
+        for (int i = 0; i < metadata; i++) {
+            readLength(input);
+        }
+        for (long groups = readLength(input); groups > 0; groups--) {
+            skipString(input);
+            readLength(input);
+            readLength(input);
+            if (type != TYPE_STREAM_LISTPACKS) {
+                readLength(input);
+            }
+            for (long pending = readLength(input); pending > 0; pending--) {
+                // ID and delivery time, then delivery count
+                skipBytes(input, 24);
+                readLength(input);
+            }
+            for (long consumers = readLength(input); consumers > 0; consumers--) {
+                skipString(input);
+                skipBytes(input, type == TYPE_STREAM_LISTPACKS_3 ? 16 : 8);
+                skipBytes(input, 16 * readLength(input));
+            }
+        }
+    }
+}
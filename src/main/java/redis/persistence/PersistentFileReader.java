@@ -1,6 +0,0 @@
-package redis.persistence;
-
-public interface PersistentFileReader {
-
-    DumpFileContent read();
-}
@@ -0,0 +1,391 @@
+package redis.persistence;
+
+import redis.cache.Cache;
+import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.config.RedisConfig;
+import redis.resp.RespValue;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static redis.util.Logger.debug;
+import static redis.util.Logger.warn;
+
+/**
+ * The RDB file of the configured {@code dir} and {@code dbfilename}. Like Redis, a snapshot is written to a
+ * temporary file next to it, flushed to disk and renamed over it, so a crash during a save leaves the previous
+ * snapshot in place. It is loaded at startup by mapping it in memory, a window at a time, so the decoder reads the
+ * page cache directly instead of copying the file through read buffers, and its keys are decoded in parallel by
+ * {@link ParallelRdbLoader}.
+ * <p>
+ * The full snapshot, the base, may be followed by delta files holding the keys changed since the previous save, see
+ * {@link RdbWriter#writeDelta}. They are named {@code <dbfilename>.<base checksum>.<sequence>.delta}: a delta only
+ * applies to the base whose CRC-64 it carries, so deltas left over by a crash between writing a new base and
+ * deleting the old deltas are never loaded over the wrong snapshot. {@link #compact} folds the deltas into a new
+ * base once they grow too many or too large.
+ */
+public class RdbFile {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final String DELTA_SUFFIX = ".delta";
+    private static final int MAX_DELTAS = 16;
+    private final Path path;
+    // the checksum of the base the deltas are chained to, 0 when there is none to chain them to
+    private volatile long base;
+    private volatile long baseBytes;
+    private volatile int deltas;
+    private volatile long deltaBytes;
+
+    public RdbFile(RedisConfig config) {
+        path = Path.of(config.getDir(), config.getDbFileName());
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return whether a base was loaded or saved, to which a delta can be chained
+     */
+    public boolean hasBase() {
+        return base != 0;
+    }
+
+    public int getDeltaCount() {
+        return deltas;
+    }
+
+    /**
+     * @return whether the deltas are many enough, or their size half that of the base, for {@link #compact} to
+     * pay off
+     */
+    public boolean needsCompaction() {
+        return deltas >= MAX_DELTAS || deltas > 0 && deltaBytes * 2 >= baseBytes;
+    }
+
+    /**
+     * Decodes the file into {@code sink}, followed by the deltas chained to it, nothing happening when it does not
+     * exist.
+     *
+     * @return whether there was a file to load
+     * @throws IOException when the file or a delta cannot be read, is corrupt, ends before its EOF opcode, or does
+     *                     not match its checksum
+     */
+    public boolean load(RdbReader.Sink sink) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            debug("No RDB file at %s, starting empty", path);
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        load(path, sink);
+        rebase();
+        if (hasBase()) {
+            long bytes = 0;
+            int sequence = 1;
+            for (Path delta = deltaPath(sequence); Files.isRegularFile(delta); delta = deltaPath(++sequence)) {
+                load(delta, sink);
+                bytes += Files.size(delta);
+            }
+            deltas = sequence - 1;
+            deltaBytes = bytes;
+        }
+        debug("Loaded %s and %d deltas in %d ms", path, deltas, System.currentTimeMillis() - start);
+        return true;
+    }
+
+    private static void load(Path file, RdbReader.Sink sink) throws IOException {
+        long skippedKeys;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            skippedKeys = new ParallelRdbLoader(file, channel, sink).load(MAP_WINDOW);
+        }
+        if (skippedKeys > 0) {
+            warn("Skipped %d keys of %s, expired or of a type this server does not support", skippedKeys, file);
+        }
+    }
+
+    /**
+     * Encodes the keyspace straight into the file, as SAVE does.
+     */
+    public void save(Cache cache, Map<RespValue, RedisStream> streams,
+                     Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        encodeFile(path, out -> new RdbWriter(out).writeSnapshot(cache, streams, sortedSets));
+        rebase();
+    }
+
+    /**
+     * Starts writing a snapshot encoded elsewhere a part at a time, as BGSAVE does with an
+     * {@link IncrementalSnapshot}: the base, or the next delta of the chain when {@code delta}.
+     */
+    public PartialFile begin(boolean delta) throws IOException {
+        if (delta) {
+            checkBase();
+        }
+        return new PartialFile(delta ? deltaPath(deltas + 1) : path, delta);
+    }
+
+    /**
+     * Encodes {@code keys} into the next delta of the chain, as SAVE does under {@code rdbcheckpoint delta}.
+     */
+    public void saveDelta(Collection<RespValue> keys, Cache cache, Map<RespValue, RedisStream> streams,
+                          Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        checkBase();
+        Path delta = deltaPath(deltas + 1);
+        deltaWritten(encodeFile(delta, out -> new RdbWriter(out).writeDelta(keys, cache, streams, sortedSets)));
+    }
+
+    private void checkBase() {
+        if (!hasBase()) {
+            throw new IllegalStateException("No base snapshot to chain a delta to");
+        }
+    }
+
+    private void deltaWritten(long bytes) {
+        deltaBytes += bytes;
+        deltas++;
+    }
+
+    /**
+     * Folds the deltas into a new base. The base is streamed through the decoder into the new file, its keys that a
+     * delta changed or deleted left out, followed by the keys as the last delta left them, so only the changed keys
+     * are held in memory. Until the new base replaces the old one, a failure leaves the chain as it was.
+     */
+    public void compact() throws IOException {
+        if (deltas == 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int count = deltas;
+        // the last state of every key a delta holds, null for a deleted one
+        Map<RespValue, KeyWriter> changes = new LinkedHashMap<>();
+        for (int sequence = 1; sequence <= count; sequence++) {
+            load(deltaPath(sequence), new RdbReader.Sink() {
+                @Override
+                public void put(RespValue key, RespValue value, long expirationTime) {
+                    changes.put(key, writer -> writer.writeKey(key, value, expirationTime));
+                }
+
+                @Override
+                public void put(RespValue key, RedisSortedSet sortedSet) {
+                    changes.put(key, writer -> writer.writeKey(key, sortedSet));
+                }
+
+                @Override
+                public void put(RespValue key, RedisStream stream) {
+                    changes.put(key, writer -> writer.writeKey(key, stream));
+                }
+
+                @Override
+                public void delete(RespValue key) {
+                    changes.put(key, null);
+                }
+            });
+        }
+        encodeFile(path, out -> {
+            RdbWriter writer = new RdbWriter(out);
+            writer.writeHeader();
+            try {
+                load(path, new RdbReader.Sink() {
+                    @Override
+                    public void put(RespValue key, RespValue value, long expirationTime) {
+                        copy(key, w -> w.writeKey(key, value, expirationTime));
+                    }
+
+                    @Override
+                    public void put(RespValue key, RedisSortedSet sortedSet) {
+                        copy(key, w -> w.writeKey(key, sortedSet));
+                    }
+
+                    @Override
+                    public void put(RespValue key, RedisStream stream) {
+                        copy(key, w -> w.writeKey(key, stream));
+                    }
+
+                    private void copy(RespValue key, KeyWriter keyWriter) {
+                        if (changes.containsKey(key)) {
+                            return;
+                        }
+                        try {
+                            keyWriter.write(writer);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            for (KeyWriter change : changes.values()) {
+                if (change != null) {
+                    change.write(writer);
+                }
+            }
+            writer.writeFooter();
+        });
+        rebase();
+        debug("Compacted %s with %d deltas, %d keys changed, in %d ms", path, count, changes.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Makes the file just loaded or written the base, and deletes the deltas of previous bases.
+     */
+    private void rebase() throws IOException {
+        long size = Files.size(path);
+        base = storedChecksum(path, size);
+        baseBytes = size;
+        deltas = 0;
+        deltaBytes = 0;
+        String prefix = path.getFileName() + ".";
+        String current = "%s%016x.".formatted(prefix, base);
+        try (Stream<Path> files = Files.list(path.toAbsolutePath().getParent())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(DELTA_SUFFIX) && (base == 0 || !name.startsWith(current))) {
+                    try {
+                        Files.delete(file);
+                    } catch (IOException e) {
+                        warn("Failed to delete stale delta %s: %s", file, e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private Path deltaPath(int sequence) {
+        return path.resolveSibling("%s.%016x.%d%s".formatted(path.getFileName(), base, sequence, DELTA_SUFFIX));
+    }
+
+    /**
+     * @return the checksum at the end of the file, 0 when it was written without one
+     */
+    private static long storedChecksum(Path file, long size) throws IOException {
+        if (size < Long.BYTES) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return ParallelRdbLoader.storedChecksum(channel, file, size);
+        }
+    }
+
+    private long encodeFile(Path target, Encoder encoder) throws IOException {
+        return writeFile(target, channel -> {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            encoder.encode(out);
+            out.flush();
+        });
+    }
+
+    /**
+     * Writes {@code target} through a temporary file, synced and renamed over it.
+     *
+     * @return the size of the file written
+     */
+    private long writeFile(Path target, FileContent content) throws IOException {
+        Path temp = tempFile();
+        long size;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            content.write(channel);
+            channel.force(true);
+            size = channel.size();
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return size;
+    }
+
+    private Path tempFile() throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        return directory.resolve("temp-%d.rdb".formatted(ProcessHandle.current().pid()));
+    }
+
+    /**
+     * A snapshot being written to the temporary file, which replaces its target once committed. Its methods may
+     * be called from any thread, one at a time.
+     */
+    public final class PartialFile {
+        private final Path target;
+        private final boolean delta;
+        private final Path temp;
+        private final FileChannel channel;
+
+        private PartialFile(Path target, boolean delta) throws IOException {
+            this.target = target;
+            this.delta = delta;
+            temp = tempFile();
+            channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public void write(List<ByteBuffer> parts) throws IOException {
+            try {
+                for (ByteBuffer part : parts) {
+                    while (part.hasRemaining()) {
+                        channel.write(part);
+                    }
+                }
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        /**
+         * Syncs the file and renames it over its target.
+         */
+        public void commit() throws IOException {
+            long size;
+            try (channel) {
+                channel.force(true);
+                size = channel.size();
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (delta) {
+                deltaWritten(size);
+            } else {
+                rebase();
+            }
+        }
+
+        /**
+         * Drops the file, leaving its target as it was.
+         */
+        public void abort() throws IOException {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private interface FileContent {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    private interface Encoder {
+        void encode(OutputStream out) throws IOException;
+    }
+
+    private interface KeyWriter {
+        void write(RdbWriter writer) throws IOException;
+    }
+}
@@ -0,0 +1,73 @@
+package redis.persistence;
+
+/**
+ * Opcodes and value types of the RDB format, version 11 (Redis 7.x).
+ */
+final class RdbFormat {
+    static final byte[] MAGIC = {'R', 'E', 'D', 'I', 'S'};
+    static final int VERSION = 11;
+    // the newest version this reader knows, Redis 7.4
+    static final int MAX_VERSION = 12;
+
+    static final int TYPE_STRING = 0;
+    static final int TYPE_LIST = 1;
+    static final int TYPE_SET = 2;
+    // scores as strings
+    static final int TYPE_ZSET = 3;
+    static final int TYPE_HASH = 4;
+    // scores as little endian doubles
+    static final int TYPE_ZSET_2 = 5;
+    static final int TYPE_HASH_ZIPMAP = 9;
+    static final int TYPE_LIST_ZIPLIST = 10;
+    static final int TYPE_SET_INTSET = 11;
+    static final int TYPE_ZSET_ZIPLIST = 12;
+    static final int TYPE_HASH_ZIPLIST = 13;
+    static final int TYPE_LIST_QUICKLIST = 14;
+    static final int TYPE_STREAM_LISTPACKS = 15;
+    static final int TYPE_HASH_LISTPACK = 16;
+    static final int TYPE_ZSET_LISTPACK = 17;
+    static final int TYPE_LIST_QUICKLIST_2 = 18;
+    // streams with their first ID, max deleted ID and entries added, and groups with their entries read
+    static final int TYPE_STREAM_LISTPACKS_2 = 19;
+    static final int TYPE_SET_LISTPACK = 20;
+    // as above, and consumers with their active time
+    static final int TYPE_STREAM_LISTPACKS_3 = 21;
+
+    // quicklist 2 nodes: a single large element, or a listpack
+    static final int QUICKLIST_NODE_PLAIN = 1;
+    static final int QUICKLIST_NODE_PACKED = 2;
+
+    static final int OPCODE_FUNCTION2 = 0xF5;
+
+    static final int OPCODE_IDLE = 0xF8;
+    static final int OPCODE_FREQ = 0xF9;
+
+    static final int OPCODE_AUX = 0xFA;
+    // the auxiliary field of a delta file that removes a key, ahead of its new value when it still exists
+    static final String AUX_DELETED_KEY = "deleted-key";
+    static final int OPCODE_RESIZEDB = 0xFB;
+    static final int OPCODE_EXPIRETIME_MS = 0xFC;
+    static final int OPCODE_EXPIRETIME = 0xFD;
+    static final int OPCODE_SELECTDB = 0xFE;
+    static final int OPCODE_EOF = 0xFF;
+
+    // the two high bits of the first byte of a length tell how it is encoded
+    static final int LENGTH_6BIT = 0;
+    static final int LENGTH_14BIT = 1;
+    static final int LENGTH_32BIT = 0x80;
+    static final int LENGTH_64BIT = 0x81;
+    static final int LENGTH_ENCODED = 3;
+    // strings stored as integers, after the LENGTH_ENCODED bits
+    static final int ENCODING_INT8 = 0xC0;
+    static final int ENCODING_INT16 = 0xC1;
+    static final int ENCODING_INT32 = 0xC2;
+    static final int ENCODING_LZF = 0xC3;
+
+    // stream entry flags inside a listpack node
+    static final int STREAM_ITEM_FLAG_NONE = 0;
+    static final int STREAM_ITEM_FLAG_DELETED = 1;
+    static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+
+    private RdbFormat() {
+    }
+}
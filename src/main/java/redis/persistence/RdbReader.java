@@ -0,0 +1,557 @@
+package redis.persistence;
+
+import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.cache.StreamConsumerGroup;
+import redis.cache.StreamId;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static redis.persistence.RdbFormat.*;
+
+/**
+ * Incremental RDB decoder. The input may arrive in pieces of any size: {@link #read} decodes as much as the buffer
+ * holds and stops at the first unit that is not complete yet, leaving the buffer positioned at its start. A unit
+ * is an opcode, or one element of a list or sorted set, or one node of a quicklist or a stream, so a large value
+ * never needs to be buffered whole and an incomplete unit costs a few header bytes to retry.
+ * <p>
+ * Reads strings (LZF-compressed or stored as integers included), lists (plain, ziplist, quicklist 1 and 2), sorted
+ * sets (plain, binary scores, ziplist, listpack) and streams ({@code RDB_TYPE_STREAM_LISTPACKS} 1 to 3) into
+ * {@link Sink}. Sets and hashes, in all their encodings, are decoded and counted as skipped, as this server has no
+ * such types; keys that have expired are skipped too, as Redis does when it loads a file.
+ */
+public class RdbReader {
+    private boolean headerRead;
+    private boolean done;
+    private long expirationTime = -1;
+    // the collection being read, type is -1 between keys
+    private int type = -1;
+    private RespBulkString key;
+    private long remaining;
+    private List<RespValue> list;
+    private RedisSortedSet sortedSet;
+    private RedisStream stream;
+    private StreamPhase streamPhase;
+    private long skippedKeys;
+
+    private enum StreamPhase { NODES, METADATA, GROUPS }
+
+    public RdbReader() {
+        this(true);
+    }
+
+    /**
+     * @param header false to decode a run of keys taken from the middle of a file, which then has no end either
+     */
+    RdbReader(boolean header) {
+        headerRead = !header;
+    }
+
+    /**
+     * Receives the keys as they are decoded.
+     */
+    public interface Sink {
+        /**
+         * A string or a list.
+         *
+         * @param expirationTime unix time in milliseconds, -1 when the key does not expire
+         */
+        void put(RespValue key, RespValue value, long expirationTime);
+
+        void put(RespValue key, RedisSortedSet sortedSet);
+
+        void put(RespValue key, RedisStream stream);
+
+        /**
+         * A key removed since the save a delta file is chained to, see {@link RdbWriter#writeDelta}. Only delta
+         * files hold deletions, so sinks that never load one need not implement it.
+         */
+        default void delete(RespValue key) {
+            throw new IllegalStateException("Unexpected deletion of " + key + " outside of a delta file");
+        }
+    }
+
+    /**
+     * Decodes the units {@code input} holds completely.
+     *
+     * @param input a big endian buffer, as ByteBuffers are by default
+     * @return true once the end of the file and its checksum were read
+     * @throws IllegalStateException when the input is not a valid RDB file or holds a type that is not supported
+     */
+    public boolean read(ByteBuffer input, Sink sink) {
+        while (!done) {
+            int start = input.position();
+            try {
+                readUnit(input, sink);
+            } catch (BufferUnderflowException e) {
+                input.position(start);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the number of keys decoded but not passed to the sink: sets and hashes, and keys that expired
+     */
+    public long getSkippedKeys() {
+        return skippedKeys;
+    }
+
+    private void readUnit(ByteBuffer input, Sink sink) {
+        if (!headerRead) {
+            readHeader(input);
+        } else if (type == -1) {
+            readOpcode(input, sink);
+        } else if (type == TYPE_STREAM_LISTPACKS || type == TYPE_STREAM_LISTPACKS_2 || type == TYPE_STREAM_LISTPACKS_3) {
+            readStreamUnit(input, sink);
+        } else {
+            readElement(input, sink);
+        }
+    }
+
+    private void readHeader(ByteBuffer input) {
+        checkHeader(input);
+        headerRead = true;
+    }
+
+    /**
+     * Reads the magic string and the version.
+     *
+     * @throws IllegalStateException when they are not those of an RDB file this reader understands
+     */
+    static void checkHeader(ByteBuffer input) {
+        byte[] header = readBytes(input, 9);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new IllegalStateException("Not an RDB file");
+            }
+        }
+        int version = Integer.parseInt(new String(header, MAGIC.length, 4, StandardCharsets.US_ASCII));
+        if (version > MAX_VERSION) {
+            throw new IllegalStateException("Unsupported RDB version " + version);
+        }
+    }
+
+    private void readOpcode(ByteBuffer input, Sink sink) {
+        int opcode = input.get() & 0xFF;
+        switch (opcode) {
+            case OPCODE_AUX -> {
+                RespBulkString field = readString(input);
+                RespBulkString value = readString(input);
+                if (AUX_DELETED_KEY.equals(field.value())) {
+                    sink.delete(value);
+                }
+            }
+            case OPCODE_SELECTDB -> readLength(input);
+            case OPCODE_RESIZEDB -> {
+                readLength(input);
+                readLength(input);
+            }
+            case OPCODE_EXPIRETIME_MS -> expirationTime = Long.reverseBytes(input.getLong());
+            case OPCODE_EXPIRETIME -> expirationTime = (Integer.reverseBytes(input.getInt()) & 0xFFFFFFFFL) * 1000;
+            case OPCODE_IDLE -> readLength(input);
+            case OPCODE_FREQ -> input.get();
+            // a library of functions, which this server cannot run
+            case OPCODE_FUNCTION2 -> readString(input, true);
+            case OPCODE_EOF -> {
+                // the checksum, not verified
+                input.getLong();
+                done = true;
+            }
+            case TYPE_STRING -> {
+                RespBulkString stringKey = readString(input);
+                RespBulkString value = readString(input);
+                putValue(sink, stringKey, value);
+            }
+            case TYPE_LIST_ZIPLIST -> {
+                RespBulkString listKey = readString(input);
+                List<RespValue> elements = new ArrayList<>();
+                Ziplist.forEach(readString(input, true), element -> elements.add(new RespBulkString(element)));
+                putValue(sink, listKey, new RespArray(elements));
+            }
+            case TYPE_ZSET_ZIPLIST, TYPE_ZSET_LISTPACK -> {
+                RespBulkString zsetKey = readString(input);
+                byte[] pack = readString(input, true);
+                RedisSortedSet members = new RedisSortedSet();
+                List<String> pairs = new ArrayList<>();
+                if (opcode == TYPE_ZSET_ZIPLIST) {
+                    Ziplist.forEach(pack, pairs::add);
+                } else {
+                    Listpack.Cursor cursor = new Listpack.Cursor(pack);
+                    while (cursor.hasNext()) {
+                        pairs.add(cursor.nextString());
+                    }
+                }
+                for (int i = 0; i + 1 < pairs.size(); i += 2) {
+                    members.add(new RespBulkString(pairs.get(i)), Double.parseDouble(pairs.get(i + 1)));
+                }
+                putSortedSet(sink, zsetKey, members);
+            }
+            case TYPE_SET_INTSET, TYPE_SET_LISTPACK, TYPE_HASH_ZIPMAP, TYPE_HASH_ZIPLIST, TYPE_HASH_LISTPACK -> {
+                // the key, then the whole value in one blob
+                readString(input, true);
+                readString(input, true);
+                skip();
+            }
+            case TYPE_LIST, TYPE_LIST_QUICKLIST, TYPE_LIST_QUICKLIST_2, TYPE_ZSET, TYPE_ZSET_2, TYPE_SET, TYPE_HASH -> {
+                RespBulkString collectionKey = readString(input);
+                long size = readLength(input);
+                startCollection(opcode, collectionKey, size);
+                if (opcode == TYPE_LIST || opcode == TYPE_LIST_QUICKLIST || opcode == TYPE_LIST_QUICKLIST_2) {
+                    list = new ArrayList<>((int) Math.min(size, 1 << 16));
+                } else if (opcode == TYPE_ZSET || opcode == TYPE_ZSET_2) {
+                    sortedSet = new RedisSortedSet();
+                }
+                finishCollectionIfRead(sink);
+            }
+            case TYPE_STREAM_LISTPACKS, TYPE_STREAM_LISTPACKS_2, TYPE_STREAM_LISTPACKS_3 -> {
+                RespBulkString streamKey = readString(input);
+                long nodes = readLength(input);
+                startCollection(opcode, streamKey, nodes);
+                stream = new RedisStream();
+                streamPhase = StreamPhase.NODES;
+                if (nodes == 0) {
+                    streamPhase = StreamPhase.METADATA;
+                }
+            }
+            default -> throw new IllegalStateException("Unsupported RDB opcode or type 0x%02X".formatted(opcode));
+        }
+    }
+
+    private void startCollection(int collectionType, RespBulkString collectionKey, long size) {
+        type = collectionType;
+        key = collectionKey;
+        remaining = size;
+    }
+
+    private void readElement(ByteBuffer input, Sink sink) {
+        switch (type) {
+            case TYPE_LIST -> list.add(readString(input));
+            case TYPE_LIST_QUICKLIST -> {
+                byte[] ziplist = readString(input, true);
+                Ziplist.forEach(ziplist, element -> list.add(new RespBulkString(element)));
+            }
+            case TYPE_LIST_QUICKLIST_2 -> {
+                long container = readLength(input);
+                byte[] node = readString(input, true);
+                if (container == QUICKLIST_NODE_PLAIN) {
+                    list.add(new RespBulkString(new String(node, StandardCharsets.UTF_8)));
+                } else {
+                    Listpack.Cursor cursor = new Listpack.Cursor(node);
+                    while (cursor.hasNext()) {
+                        list.add(new RespBulkString(cursor.nextString()));
+                    }
+                }
+            }
+            case TYPE_ZSET -> {
+                RespBulkString member = readString(input);
+                sortedSet.add(member, readDoubleString(input));
+            }
+            case TYPE_ZSET_2 -> {
+                RespBulkString member = readString(input);
+                sortedSet.add(member, Double.longBitsToDouble(Long.reverseBytes(input.getLong())));
+            }
+            case TYPE_SET -> readString(input, true);
+            case TYPE_HASH -> {
+                readString(input, true);
+                readString(input, true);
+            }
+            default -> throw new IllegalStateException("Unexpected element of type " + type);
+        }
+        remaining--;
+        finishCollectionIfRead(sink);
+    }
+
+    private void finishCollectionIfRead(Sink sink) {
+        if (remaining > 0) {
+            return;
+        }
+        switch (type) {
+            case TYPE_LIST, TYPE_LIST_QUICKLIST, TYPE_LIST_QUICKLIST_2 -> putValue(sink, key, new RespArray(list));
+            case TYPE_ZSET, TYPE_ZSET_2 -> putSortedSet(sink, key, sortedSet);
+            default -> skip();
+        }
+        endCollection();
+    }
+
+    private void putValue(Sink sink, RespBulkString valueKey, RespValue value) {
+        if (isExpired()) {
+            skip();
+        } else {
+            sink.put(valueKey, value, expirationTime);
+        }
+        expirationTime = -1;
+    }
+
+    private void putSortedSet(Sink sink, RespBulkString zsetKey, RedisSortedSet members) {
+        if (isExpired()) {
+            skip();
+        } else {
+            sink.put(zsetKey, members);
+        }
+        expirationTime = -1;
+    }
+
+    private boolean isExpired() {
+        return expirationTime != -1 && expirationTime <= System.currentTimeMillis();
+    }
+
+    private void skip() {
+        skippedKeys++;
+        expirationTime = -1;
+    }
+
+    private void endCollection() {
+        type = -1;
+        key = null;
+        list = null;
+        sortedSet = null;
+        stream = null;
+        expirationTime = -1;
+    }
+
+    private void readStreamUnit(ByteBuffer input, Sink sink) {
+        switch (streamPhase) {
+            case NODES -> {
+                byte[] masterId = readString(input, true);
+                byte[] listpack = readString(input, true);
+                readStreamNode(ByteBuffer.wrap(masterId), listpack);
+                if (--remaining == 0) {
+                    streamPhase = StreamPhase.METADATA;
+                }
+            }
+            case METADATA -> {
+                readLength(input);
+                StreamId lastId = new StreamId(readLength(input), readLength(input));
+                if (type != TYPE_STREAM_LISTPACKS) {
+                    // first ID, max deleted entry ID and entries added, which this stream derives from its entries
+                    readLength(input);
+                    readLength(input);
+                    readLength(input);
+                    readLength(input);
+                    readLength(input);
+                }
+                long groups = readLength(input);
+                stream.restoreLastId(lastId);
+                remaining = groups;
+                streamPhase = StreamPhase.GROUPS;
+            }
+            case GROUPS -> {
+                if (remaining > 0) {
+                    readGroup(input);
+                    remaining--;
+                }
+            }
+        }
+        if (streamPhase == StreamPhase.GROUPS && remaining == 0) {
+            sink.put(key, stream);
+            endCollection();
+        }
+    }
+
+    /**
+     * Appends the entries of one listpack node; see {@code RdbWriter} for its layout.
+     */
+    private void readStreamNode(ByteBuffer masterId, byte[] listpack) {
+        long masterTimePart = masterId.getLong();
+        long masterSequence = masterId.getLong();
+        Listpack.Cursor cursor = new Listpack.Cursor(listpack);
+        long count = cursor.nextLong();
+        long deleted = cursor.nextLong();
+        int fieldCount = (int) cursor.nextLong();
+        List<RespValue> masterFields = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            masterFields.add(new RespBulkString(cursor.nextString()));
+        }
+        cursor.nextLong();
+        for (long entry = 0; entry < count + deleted; entry++) {
+            int flags = (int) cursor.nextLong();
+            long timePart = masterTimePart + cursor.nextLong();
+            long sequenceNumber = masterSequence + cursor.nextLong();
+            boolean sameFields = (flags & STREAM_ITEM_FLAG_SAMEFIELDS) != 0;
+            int pairs = sameFields ? fieldCount : (int) cursor.nextLong();
+            List<RespValue> values = new ArrayList<>(pairs * 2);
+            for (int i = 0; i < pairs; i++) {
+                values.add(sameFields ? masterFields.get(i) : new RespBulkString(cursor.nextString()));
+                values.add(new RespBulkString(cursor.nextString()));
+            }
+            cursor.nextLong();
+            if ((flags & STREAM_ITEM_FLAG_DELETED) == 0) {
+                stream.append(new RespBulkString(new StreamId(timePart, sequenceNumber).toString()), values);
+            }
+        }
+    }
+
+    private void readGroup(ByteBuffer input) {
+        String name = readString(input).value();
+        StreamId lastDeliveredId = new StreamId(readLength(input), readLength(input));
+        if (type != TYPE_STREAM_LISTPACKS) {
+            // entries read, derived again when needed
+            readLength(input);
+        }
+        long pendingCount = readLength(input);
+        Map<StreamId, long[]> pending = new HashMap<>();
+        for (long i = 0; i < pendingCount; i++) {
+            StreamId id = new StreamId(input.getLong(), input.getLong());
+            pending.put(id, new long[]{Long.reverseBytes(input.getLong()), readLength(input)});
+        }
+        long consumerCount = readLength(input);
+        List<Runnable> restores = new ArrayList<>();
+        for (long i = 0; i < consumerCount; i++) {
+            String consumerName = readString(input).value();
+            long seenTime = Long.reverseBytes(input.getLong());
+            if (type == TYPE_STREAM_LISTPACKS_3) {
+                input.getLong();
+            }
+            long owned = readLength(input);
+            List<StreamId> ids = new ArrayList<>();
+            for (long j = 0; j < owned; j++) {
+                ids.add(new StreamId(input.getLong(), input.getLong()));
+            }
+            restores.add(() -> {
+                StreamConsumerGroup group = stream.getGroup(name);
+                StreamConsumerGroup.Consumer consumer = group.consumer(consumerName, seenTime);
+                for (StreamId id : ids) {
+                    long[] delivery = pending.get(id);
+                    if (delivery != null) {
+                        group.restorePending(id, consumer, delivery[0], delivery[1]);
+                    }
+                }
+            });
+        }
+        // only touch the stream once the whole group was read, so that a retried unit starts from scratch
+        stream.createGroup(name, lastDeliveredId);
+        restores.forEach(Runnable::run);
+    }
+
+    /**
+     * Reads a length, or a 64-bit unsigned number, in the 6, 14, 32 or 64 bit length encoding.
+     */
+    static long readLength(ByteBuffer input) {
+        int first = input.get() & 0xFF;
+        return switch (first >> 6) {
+            case LENGTH_6BIT -> first & 0x3F;
+            case LENGTH_14BIT -> ((first & 0x3F) << 8) | (input.get() & 0xFF);
+            default -> switch (first) {
+                case LENGTH_32BIT -> input.getInt() & 0xFFFFFFFFL;
+                case LENGTH_64BIT -> input.getLong();
+                default -> throw new IllegalStateException("Unexpected length encoding 0x%02X".formatted(first));
+            };
+        };
+    }
+
+    private static RespBulkString readString(ByteBuffer input) {
+        return new RespBulkString(new String(readString(input, false), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a string, which may be LZF-compressed or stored as an 8, 16 or 32 bit integer.
+     *
+     * @param raw whether the bytes are needed as stored, as for IDs and listpacks, integer encodings being refused
+     */
+    private static byte[] readString(ByteBuffer input, boolean raw) {
+        if (!input.hasRemaining()) {
+            throw new BufferUnderflowException();
+        }
+        int first = input.get(input.position()) & 0xFF;
+        if (first >> 6 != LENGTH_ENCODED) {
+            long length = readLength(input);
+            if (length > input.remaining()) {
+                // checked before allocating, so waiting for a large value is cheap
+                throw new BufferUnderflowException();
+            }
+            return readBytes(input, (int) length);
+        }
+        input.get();
+        if (first == ENCODING_LZF) {
+            long compressedLength = readLength(input);
+            long length = readLength(input);
+            if (compressedLength > input.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Compressed string of %d bytes is too large".formatted(length));
+            }
+            return Lzf.decompress(readBytes(input, (int) compressedLength), (int) length);
+        }
+        if (raw) {
+            throw new IllegalStateException("Unexpected integer encoding 0x%02X".formatted(first));
+        }
+        long value = switch (first) {
+            case ENCODING_INT8 -> input.get();
+            case ENCODING_INT16 -> Short.reverseBytes(input.getShort());
+            case ENCODING_INT32 -> Integer.reverseBytes(input.getInt());
+            default -> throw new IllegalStateException("Unsupported string encoding 0x%02X".formatted(first));
+        };
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Moves past a string without decoding it, however it is encoded.
+     */
+    static void skipString(ByteBuffer input) {
+        if (!input.hasRemaining()) {
+            throw new BufferUnderflowException();
+        }
+        int first = input.get(input.position()) & 0xFF;
+        if (first >> 6 != LENGTH_ENCODED) {
+            skipBytes(input, readLength(input));
+            return;
+        }
+        input.get();
+        switch (first) {
+            case ENCODING_INT8 -> skipBytes(input, 1);
+            case ENCODING_INT16 -> skipBytes(input, 2);
+            case ENCODING_INT32 -> skipBytes(input, 4);
+            case ENCODING_LZF -> {
+                long compressedLength = readLength(input);
+                readLength(input);
+                skipBytes(input, compressedLength);
+            }
+            default -> throw new IllegalStateException("Unsupported string encoding 0x%02X".formatted(first));
+        }
+    }
+
+    static void skipBytes(ByteBuffer input, long length) {
+        if (length < 0) {
+            throw new IllegalStateException("Invalid length " + length);
+        }
+        if (length > input.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        input.position(input.position() + (int) length);
+    }
+
+    /**
+     * Reads a score of {@code RDB_TYPE_ZSET}, stored as its decimal representation.
+     */
+    private static double readDoubleString(ByteBuffer input) {
+        int length = input.get() & 0xFF;
+        return switch (length) {
+            case 253 -> Double.NaN;
+            case 254 -> Double.POSITIVE_INFINITY;
+            case 255 -> Double.NEGATIVE_INFINITY;
+            default -> Double.parseDouble(new String(readBytes(input, length), StandardCharsets.US_ASCII));
+        };
+    }
+
+    private static byte[] readBytes(ByteBuffer input, int length) {
+        byte[] bytes = new byte[length];
+        input.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,371 @@
+package redis.persistence;
+
+import redis.cache.Cache;
+import redis.cache.CachedValue;
+import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.cache.StreamConsumerGroup;
+import redis.cache.StreamId;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CheckedOutputStream;
+
+import static redis.persistence.RdbFormat.*;
+import static redis.util.Logger.warn;
+
+/**
+ * Writes the keyspace in the RDB format: strings, lists (as plain {@code RDB_TYPE_LIST}), sorted sets
+ * ({@code RDB_TYPE_ZSET_2}) and streams with their consumer groups ({@code RDB_TYPE_STREAM_LISTPACKS}), all in
+ * database 0. Values are written uncompressed, and the file ends with the CRC-64 of everything before it. Besides
+ * whole snapshots, it writes the delta files of incremental checkpoints, which hold only the keys changed since the
+ * previous save.
+ */
+public class RdbWriter {
+    private static final String REDIS_VERSION = "7.2.0";
+    // the defaults of stream-node-max-entries and stream-node-max-bytes
+    private static final int STREAM_NODE_MAX_ENTRIES = 100;
+    private static final int STREAM_NODE_MAX_BYTES = 4096;
+    private final OutputStream out;
+    private final Crc64 checksum;
+    private final byte[] scratch;
+
+    public RdbWriter(OutputStream out) {
+        checksum = new Crc64();
+        this.out = new CheckedOutputStream(out, checksum);
+        scratch = new byte[9];
+    }
+
+    public void writeSnapshot(Cache cache, Map<RespValue, RedisStream> streams,
+                              Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        Map<RespValue, CachedValue<RespValue>> values = cache.entries();
+        long expires = values.values().stream().filter(value -> value.expirationTime() != -1).count();
+        writeHeader();
+        writeResizeDb(values.size() + streams.size() + sortedSets.size(), expires);
+        for (Map.Entry<RespValue, CachedValue<RespValue>> entry : values.entrySet()) {
+            writeValue(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<RespValue, RedisSortedSet> entry : sortedSets.entrySet()) {
+            writeKey(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<RespValue, RedisStream> entry : streams.entrySet()) {
+            writeKey(entry.getKey(), entry.getValue());
+        }
+        writeFooter();
+    }
+
+    /**
+     * Writes a delta file: every key of {@code keys} is recorded as deleted, then written again when it still
+     * exists, so loading the file over the keyspace of the previous save yields the current one. Deletions are
+     * auxiliary fields, which Redis ignores, so a delta file stays a valid RDB file on its own.
+     */
+    public void writeDelta(Collection<RespValue> keys, Cache cache, Map<RespValue, RedisStream> streams,
+                           Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        writeHeader();
+        for (RespValue key : keys) {
+            writeDeletion(key);
+            writeKey(key, cache, streams, sortedSets);
+        }
+        writeFooter();
+    }
+
+    void writeHeader() throws IOException {
+        out.write(MAGIC);
+        out.write("%04d".formatted(VERSION).getBytes(StandardCharsets.US_ASCII));
+        writeAux("redis-ver", REDIS_VERSION);
+        writeAux("redis-bits", "64");
+        writeAux("ctime", Long.toString(System.currentTimeMillis() / 1000));
+        writeAux("aof-base", "0");
+        out.write(OPCODE_SELECTDB);
+        writeLength(0);
+    }
+
+    void writeResizeDb(long size, long expires) throws IOException {
+        out.write(OPCODE_RESIZEDB);
+        writeLength(size);
+        writeLength(expires);
+    }
+
+    /**
+     * Records {@code key} as deleted, for a delta file.
+     */
+    void writeDeletion(RespValue key) throws IOException {
+        writeAux(AUX_DELETED_KEY.getBytes(StandardCharsets.UTF_8), key);
+    }
+
+    /**
+     * Writes {@code key} with its current value, nothing when it does not exist.
+     */
+    void writeKey(RespValue key, Cache cache, Map<RespValue, RedisStream> streams,
+                  Map<RespValue, RedisSortedSet> sortedSets) throws IOException {
+        if (cache.containsKey(key)) {
+            writeValue(key, cache.get(key));
+        } else if (sortedSets.containsKey(key)) {
+            writeKey(key, sortedSets.get(key));
+        } else if (streams.containsKey(key)) {
+            writeKey(key, streams.get(key));
+        }
+    }
+
+    void writeFooter() throws IOException {
+        out.write(OPCODE_EOF);
+        writeLittleEndian(checksum.getValue(), 8);
+    }
+
+    /**
+     * Writes a string or a list.
+     */
+    void writeKey(RespValue key, RespValue value, long expirationTime) throws IOException {
+        writeValue(key, new CachedValue<>(value, expirationTime));
+    }
+
+    void writeKey(RespValue key, RedisSortedSet sortedSet) throws IOException {
+        out.write(TYPE_ZSET_2);
+        writeString(key);
+        writeSortedSet(sortedSet);
+    }
+
+    void writeKey(RespValue key, RedisStream stream) throws IOException {
+        out.write(TYPE_STREAM_LISTPACKS);
+        writeString(key);
+        writeStream(stream);
+    }
+
+    private void writeAux(String field, String value) throws IOException {
+        out.write(OPCODE_AUX);
+        writeString(field.getBytes(StandardCharsets.UTF_8));
+        writeString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeAux(byte[] field, RespValue value) throws IOException {
+        out.write(OPCODE_AUX);
+        writeString(field);
+        writeString(value);
+    }
+
+    private void writeValue(RespValue key, CachedValue<RespValue> value) throws IOException {
+        switch (value.value()) {
+            case RespBulkString string when string.value() != null -> {
+                writeExpiry(value.expirationTime());
+                out.write(TYPE_STRING);
+                writeString(key);
+                writeString(string);
+            }
+            case RespArray list -> {
+                writeExpiry(value.expirationTime());
+                out.write(TYPE_LIST);
+                writeString(key);
+                writeLength(list.values().size());
+                for (RespValue element : list.values()) {
+                    writeString(element);
+                }
+            }
+            default -> warn("Skipping key %s of a type that cannot be persisted: %s", key, value.value());
+        }
+    }
+
+    private void writeExpiry(long expirationTime) throws IOException {
+        if (expirationTime != -1) {
+            out.write(OPCODE_EXPIRETIME_MS);
+            writeLittleEndian(expirationTime, 8);
+        }
+    }
+
+    private void writeSortedSet(RedisSortedSet sortedSet) throws IOException {
+        Map<RespValue, Double> scores = sortedSet.scores();
+        writeLength(scores.size());
+        for (Map.Entry<RespValue, Double> member : scores.entrySet()) {
+            writeString(member.getKey());
+            writeLittleEndian(Double.doubleToLongBits(member.getValue()), 8);
+        }
+    }
+
+    /**
+     * Writes the entries as listpack nodes keyed by their master ID, followed by the stream metadata and the
+     * consumer groups with their pending entries lists.
+     */
+    private void writeStream(RedisStream stream) throws IOException {
+        List<StreamNodeEncoder> nodes = new ArrayList<>();
+        stream.forEach((timePart, sequenceNumber, values) -> {
+            StreamNodeEncoder tail = nodes.isEmpty() ? null : nodes.getLast();
+            if (tail == null || tail.isFull()) {
+                tail = new StreamNodeEncoder(timePart, sequenceNumber, values);
+                nodes.add(tail);
+            }
+            tail.add(timePart, sequenceNumber, values);
+        });
+        writeLength(nodes.size());
+        for (StreamNodeEncoder node : nodes) {
+            writeString(node.masterId());
+            writeString(node.encode());
+        }
+        StreamId lastId = stream.getLastId();
+        writeLength(stream.length());
+        writeLength(lastId.timePart());
+        writeLength(lastId.sequenceNumber());
+
+        writeLength(stream.groups().size());
+        for (StreamConsumerGroup group : stream.groups()) {
+            writeString(group.getName().getBytes(StandardCharsets.UTF_8));
+            writeLength(group.getLastDeliveredId().timePart());
+            writeLength(group.getLastDeliveredId().sequenceNumber());
+            Map<StreamId, StreamConsumerGroup.PendingEntry> pending = group.pendingRange(StreamId.MIN, StreamId.MAX, null);
+            writeLength(pending.size());
+            for (StreamConsumerGroup.PendingEntry entry : pending.values()) {
+                writeRawId(entry.getId());
+                writeLittleEndian(entry.getDeliveryTime(), 8);
+                writeLength(entry.getDeliveryCount());
+            }
+            writeLength(group.consumers().size());
+            for (StreamConsumerGroup.Consumer consumer : group.consumers()) {
+                writeString(consumer.getName().getBytes(StandardCharsets.UTF_8));
+                writeLittleEndian(consumer.getSeenTime(), 8);
+                Map<StreamId, StreamConsumerGroup.PendingEntry> owned = group.pendingRange(StreamId.MIN, StreamId.MAX, consumer);
+                writeLength(owned.size());
+                for (StreamId id : owned.keySet()) {
+                    writeRawId(id);
+                }
+            }
+        }
+    }
+
+    private void writeRawId(StreamId id) throws IOException {
+        out.write(rawId(id.timePart(), id.sequenceNumber()));
+    }
+
+    /**
+     * Writes a length or a 64-bit unsigned number in the 6, 14, 32 or 64 bit length encoding.
+     */
+    private void writeLength(long length) throws IOException {
+        if (length >= 0 && length < (1 << 6)) {
+            out.write((LENGTH_6BIT << 6) | (int) length);
+        } else if (length >= 0 && length < (1 << 14)) {
+            out.write((LENGTH_14BIT << 6) | (int) (length >> 8));
+            out.write((int) length & 0xFF);
+        } else if (length >= 0 && length <= 0xFFFFFFFFL) {
+            out.write(LENGTH_32BIT);
+            writeBigEndian(length, 4);
+        } else {
+            out.write(LENGTH_64BIT);
+            writeBigEndian(length, 8);
+        }
+    }
+
+    private void writeString(RespValue value) throws IOException {
+        writeString(((RespBulkString) value).value().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeString(byte[] value) throws IOException {
+        writeLength(value.length);
+        out.write(value);
+    }
+
+    private void writeLittleEndian(long value, int bytes) throws IOException {
+        for (int i = 0; i < bytes; i++) {
+            scratch[i] = (byte) (value >>> (8 * i));
+        }
+        out.write(scratch, 0, bytes);
+    }
+
+    private void writeBigEndian(long value, int bytes) throws IOException {
+        for (int i = 0; i < bytes; i++) {
+            scratch[i] = (byte) (value >>> (8 * (bytes - 1 - i)));
+        }
+        out.write(scratch, 0, bytes);
+    }
+
+    static byte[] rawId(long timePart, long sequenceNumber) {
+        byte[] id = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            id[i] = (byte) (timePart >>> (8 * (7 - i)));
+            id[8 + i] = (byte) (sequenceNumber >>> (8 * (7 - i)));
+        }
+        return id;
+    }
+
+    /**
+     * One listpack node of a stream. The fields of its first entry become the master fields, and entries with
+     * exactly those fields only store their values, flagged SAMEFIELDS, as Redis does.
+     */
+    private static final class StreamNodeEncoder {
+        private final long masterTimePart;
+        private final long masterSequence;
+        private final List<String> masterFields;
+        private final List<long[]> ids;
+        private final List<List<RespValue>> entries;
+        private int estimatedBytes;
+
+        StreamNodeEncoder(long masterTimePart, long masterSequence, List<RespValue> firstEntry) {
+            this.masterTimePart = masterTimePart;
+            this.masterSequence = masterSequence;
+            masterFields = new ArrayList<>(firstEntry.size() / 2);
+            for (int i = 0; i + 1 < firstEntry.size(); i += 2) {
+                masterFields.add(((RespBulkString) firstEntry.get(i)).value());
+            }
+            ids = new ArrayList<>();
+            entries = new ArrayList<>();
+        }
+
+        boolean isFull() {
+            return entries.size() >= STREAM_NODE_MAX_ENTRIES || estimatedBytes >= STREAM_NODE_MAX_BYTES;
+        }
+
+        void add(long timePart, long sequenceNumber, List<RespValue> values) {
+            ids.add(new long[]{timePart, sequenceNumber});
+            entries.add(values);
+            for (RespValue value : values) {
+                estimatedBytes += ((RespBulkString) value).value().length() + 2;
+            }
+        }
+
+        byte[] masterId() {
+            return rawId(masterTimePart, masterSequence);
+        }
+
+        byte[] encode() {
+            Listpack listpack = new Listpack()
+                    .append(entries.size())
+                    .append(0)
+                    .append(masterFields.size());
+            masterFields.forEach(listpack::append);
+            listpack.append(0);
+            for (int i = 0; i < entries.size(); i++) {
+                List<RespValue> values = entries.get(i);
+                int pairs = values.size() / 2;
+                boolean sameFields = hasMasterFields(values);
+                listpack.append(sameFields ? STREAM_ITEM_FLAG_SAMEFIELDS : STREAM_ITEM_FLAG_NONE)
+                        .append(ids.get(i)[0] - masterTimePart)
+                        .append(ids.get(i)[1] - masterSequence);
+                if (!sameFields) {
+                    listpack.append(pairs);
+                }
+                for (int j = sameFields ? 1 : 0; j < pairs * 2; j += sameFields ? 2 : 1) {
+                    listpack.append(((RespBulkString) values.get(j)).value());
+                }
+                // the number of elements of the entry before this one, to walk the node backwards
+                listpack.append(sameFields ? pairs + 3 : pairs * 2 + 4);
+            }
+            return listpack.toByteArray();
+        }
+
+        private boolean hasMasterFields(List<RespValue> values) {
+            if (values.size() / 2 != masterFields.size()) {
+                return false;
+            }
+            for (int i = 0; i < masterFields.size(); i++) {
+                if (!masterFields.get(i).equals(((RespBulkString) values.get(i * 2)).value())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
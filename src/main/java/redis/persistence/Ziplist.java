@@ -0,0 +1,105 @@
+package redis.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Decoder of the ziplist format older Redis versions stored small lists and sorted sets in, before listpacks: a
+ * 10 byte header (total size, offset of the last entry, entry count, all little endian), the entries, and a 0xFF
+ * terminator. Each entry is the length of the previous one (1 byte, or 0xFE and 4 bytes), an encoding, and the data.
+ */
+public class Ziplist {
+    private static final int HEADER_SIZE = 10;
+    private static final int END = 0xFF;
+
+    private Ziplist() {
+    }
+
+    /**
+     * Passes each entry to {@code consumer}, integers in their decimal representation.
+     *
+     * @throws IllegalStateException when the ziplist is corrupt
+     */
+    public static void forEach(byte[] ziplist, Consumer<String> consumer) {
+        int position = HEADER_SIZE;
+        try {
+            while ((ziplist[position] & 0xFF) != END) {
+                position += (ziplist[position] & 0xFF) == 0xFE ? 5 : 1;
+                int encoding = ziplist[position] & 0xFF;
+                switch (encoding >> 6) {
+                    case 0 -> {
+                        int length = encoding & 0x3F;
+                        consumer.accept(string(ziplist, position + 1, length));
+                        position += 1 + length;
+                    }
+                    case 1 -> {
+                        int length = ((encoding & 0x3F) << 8) | (ziplist[position + 1] & 0xFF);
+                        consumer.accept(string(ziplist, position + 2, length));
+                        position += 2 + length;
+                    }
+                    case 2 -> {
+                        int length = (int) bigEndian(ziplist, position + 1);
+                        consumer.accept(string(ziplist, position + 5, length));
+                        position += 5 + length;
+                    }
+                    default -> {
+                        int size = integerSize(encoding);
+                        long value = size == 0
+                                ? (encoding & 0x0F) - 1
+                                : littleEndian(ziplist, position + 1, size);
+                        consumer.accept(Long.toString(value));
+                        position += 1 + size;
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("Ziplist ends before its terminator", e);
+        }
+    }
+
+    /**
+     * @return the size of an integer entry, 0 for the 4 bit values stored in the encoding itself
+     */
+    private static int integerSize(int encoding) {
+        return switch (encoding) {
+            case 0xC0 -> 2;
+            case 0xD0 -> 4;
+            case 0xE0 -> 8;
+            case 0xF0 -> 3;
+            case 0xFE -> 1;
+            default -> {
+                if (encoding >= 0xF1 && encoding <= 0xFD) {
+                    yield 0;
+                }
+                throw new IllegalStateException("Unknown ziplist encoding 0x%02X".formatted(encoding));
+            }
+        };
+    }
+
+    private static String string(byte[] ziplist, int offset, int length) {
+        if (offset + length > ziplist.length) {
+            throw new IllegalStateException("Ziplist entry of %d bytes overflows the ziplist".formatted(length));
+        }
+        return new String(ziplist, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private static long bigEndian(byte[] ziplist, int offset) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (ziplist[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a signed little endian integer of {@code size} bytes.
+     */
+    private static long littleEndian(byte[] ziplist, int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (ziplist[offset + i] & 0xFF);
+        }
+        int shift = 64 - size * 8;
+        return (value << shift) >> shift;
+    }
+}
@@ -0,0 +1,93 @@
+package redis.pubsub;
+
+import redis.resp.RespValue;
+
+import java.util.*;
+
+/**
+ * Two-way index of channel subscriptions: channel to subscribers for publishing, subscriber to channels for
+ * replies and cleanup. PUBLISH only touches the subscribers of its channel, no matter how many clients are
+ * subscribed to other channels.
+ *
+ * @param <S> subscriber type
+ */
+public class ChannelIndex<S> {
+    private final Map<RespValue, Set<S>> subscribers;
+    private final Map<S, Set<RespValue>> channels;
+
+    public ChannelIndex() {
+        subscribers = new HashMap<>();
+        channels = new HashMap<>();
+    }
+
+    /**
+     * @return the number of channels {@code subscriber} is subscribed to afterwards
+     */
+    public int subscribe(S subscriber, RespValue channel) {
+        Set<RespValue> subscribed = channels.computeIfAbsent(subscriber, k -> new LinkedHashSet<>());
+        if (subscribed.add(channel)) {
+            subscribers.computeIfAbsent(channel, k -> new LinkedHashSet<>()).add(subscriber);
+        }
+        return subscribed.size();
+    }
+
+    /**
+     * @return the number of channels {@code subscriber} is still subscribed to
+     */
+    public int unsubscribe(S subscriber, RespValue channel) {
+        Set<RespValue> subscribed = channels.get(subscriber);
+        if (subscribed == null) {
+            return 0;
+        }
+        if (subscribed.remove(channel)) {
+            Set<S> channelSubscribers = subscribers.get(channel);
+            channelSubscribers.remove(subscriber);
+            if (channelSubscribers.isEmpty()) {
+                subscribers.remove(channel);
+            }
+        }
+        if (subscribed.isEmpty()) {
+            channels.remove(subscriber);
+        }
+        return subscribed.size();
+    }
+
+    /**
+     * @return the channels {@code subscriber} was subscribed to, in subscription order
+     */
+    public List<RespValue> unsubscribeAll(S subscriber) {
+        Set<RespValue> subscribed = channels.remove(subscriber);
+        if (subscribed == null) {
+            return List.of();
+        }
+        for (RespValue channel : subscribed) {
+            Set<S> channelSubscribers = subscribers.get(channel);
+            channelSubscribers.remove(subscriber);
+            if (channelSubscribers.isEmpty()) {
+                subscribers.remove(channel);
+            }
+        }
+        return new ArrayList<>(subscribed);
+    }
+
+    /**
+     * @return a copy of the channels {@code subscriber} is subscribed to, in subscription order
+     */
+    public List<RespValue> channels(S subscriber) {
+        Set<RespValue> subscribed = channels.get(subscriber);
+        return subscribed == null ? List.of() : new ArrayList<>(subscribed);
+    }
+
+    public Set<S> subscribers(RespValue channel) {
+        return subscribers.getOrDefault(channel, Set.of());
+    }
+
+    public int subscriptionCount(S subscriber) {
+        Set<RespValue> subscribed = channels.get(subscriber);
+        return subscribed == null ? 0 : subscribed.size();
+    }
+
+    public boolean isSubscribed(S subscriber) {
+        return channels.containsKey(subscriber);
+    }
+}
@@ -0,0 +1,346 @@
+package redis.pubsub;
+
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Pattern subscriptions compiled into a trie of glob tokens ({@code *}, {@code ?}, {@code [...]} classes and
+ * literal characters). Patterns sharing a prefix share trie nodes, and matching walks the trie as an NFA: one step
+ * per channel character over the set of active nodes. The cost is proportional to the channel length times the
+ * number of simultaneously active nodes, not to the number of subscribed patterns.
+ *
+ * @param <S> subscriber type
+ */
+public class PatternTrie<S> {
+    private final Node<S> root;
+    private final Map<S, Set<RespValue>> patterns;
+    // reused between matches; a node is active for the current step when its mark equals the generation
+    private List<Node<S>> active;
+    private List<Node<S>> next;
+    private int generation;
+
+    public PatternTrie() {
+        root = new Node<>(false);
+        patterns = new HashMap<>();
+        active = new ArrayList<>();
+        next = new ArrayList<>();
+    }
+
+    /**
+     * @return the number of patterns {@code subscriber} is subscribed to afterwards
+     */
+    public int subscribe(S subscriber, RespValue pattern) {
+        Set<RespValue> subscribed = patterns.computeIfAbsent(subscriber, k -> new LinkedHashSet<>());
+        if (subscribed.add(pattern)) {
+            Node<S> node = root;
+            for (Token token : tokenize(((RespBulkString) pattern).value())) {
+                node = node.child(token);
+            }
+            node.subscribers.computeIfAbsent(pattern, k -> new LinkedHashSet<>()).add(subscriber);
+        }
+        return subscribed.size();
+    }
+
+    /**
+     * @return the number of patterns {@code subscriber} is still subscribed to
+     */
+    public int unsubscribe(S subscriber, RespValue pattern) {
+        Set<RespValue> subscribed = patterns.get(subscriber);
+        if (subscribed == null) {
+            return 0;
+        }
+        if (subscribed.remove(pattern)) {
+            remove(subscriber, pattern);
+        }
+        if (subscribed.isEmpty()) {
+            patterns.remove(subscriber);
+        }
+        return subscribed.size();
+    }
+
+    public void unsubscribeAll(S subscriber) {
+        Set<RespValue> subscribed = patterns.remove(subscriber);
+        if (subscribed != null) {
+            subscribed.forEach(pattern -> remove(subscriber, pattern));
+        }
+    }
+
+    /**
+     * @return a copy of the patterns {@code subscriber} is subscribed to, in subscription order
+     */
+    public List<RespValue> patterns(S subscriber) {
+        Set<RespValue> subscribed = patterns.get(subscriber);
+        return subscribed == null ? List.of() : new ArrayList<>(subscribed);
+    }
+
+    public int subscriptionCount(S subscriber) {
+        Set<RespValue> subscribed = patterns.get(subscriber);
+        return subscribed == null ? 0 : subscribed.size();
+    }
+
+    public boolean isSubscribed(S subscriber) {
+        return patterns.containsKey(subscriber);
+    }
+
+    /**
+     * Calls {@code consumer} once for every subscribed pattern matching {@code channel}, with its subscribers.
+     * Patterns that compile to the same tokens, such as {@code a*} and {@code a**}, end at the same node and are
+     * reported each with its own subscribers.
+     */
+    public void match(String channel, BiConsumer<RespValue, Set<S>> consumer) {
+        if (patterns.isEmpty()) {
+            return;
+        }
+        active.clear();
+        generation++;
+        activate(root, active);
+        for (int i = 0; i < channel.length() && !active.isEmpty(); i++) {
+            char current = channel.charAt(i);
+            next.clear();
+            generation++;
+            for (Node<S> node : active) {
+                if (node.star) {
+                    activate(node, next);
+                }
+                Node<S> literal = node.literals.get(current);
+                if (literal != null) {
+                    activate(literal, next);
+                }
+                if (node.any != null) {
+                    activate(node.any, next);
+                }
+                for (Node<S> classNode : node.classes.values()) {
+                    if (classNode.charClass.matches(current)) {
+                        activate(classNode, next);
+                    }
+                }
+            }
+            List<Node<S>> swap = active;
+            active = next;
+            next = swap;
+        }
+        for (Node<S> node : active) {
+            node.subscribers.forEach(consumer);
+        }
+    }
+
+    /**
+     * Adds {@code node} to the active set together with the star nodes reachable from it without consuming a
+     * character, since {@code *} also matches the empty string.
+     */
+    private void activate(Node<S> node, List<Node<S>> nodes) {
+        while (node != null && node.mark != generation) {
+            node.mark = generation;
+            nodes.add(node);
+            node = node.starChild;
+        }
+    }
+
+    private void remove(S subscriber, RespValue pattern) {
+        List<Token> tokens = tokenize(((RespBulkString) pattern).value());
+        List<Node<S>> path = new ArrayList<>(tokens.size() + 1);
+        Node<S> node = root;
+        path.add(node);
+        for (Token token : tokens) {
+            node = node.existingChild(token);
+            if (node == null) {
+                return;
+            }
+            path.add(node);
+        }
+        Set<S> subscribers = node.subscribers.get(pattern);
+        if (subscribers != null && subscribers.remove(subscriber) && subscribers.isEmpty()) {
+            node.subscribers.remove(pattern);
+        }
+        // prune the branch bottom-up while nodes hold neither subscribers nor children
+        for (int i = tokens.size(); i > 0; i--) {
+            Node<S> current = path.get(i);
+            if (!current.subscribers.isEmpty() || !current.isLeaf()) {
+                return;
+            }
+            path.get(i - 1).removeChild(tokens.get(i - 1));
+        }
+    }
+
+    /**
+     * Splits a glob pattern into tokens; runs of {@code *} collapse into one and an unterminated {@code [} is
+     * taken literally.
+     */
+    static List<Token> tokenize(String pattern) {
+        List<Token> tokens = new ArrayList<>(pattern.length());
+        int i = 0;
+        while (i < pattern.length()) {
+            char current = pattern.charAt(i);
+            switch (current) {
+                case '*' -> {
+                    if (tokens.isEmpty() || tokens.getLast().kind != Token.Kind.STAR) {
+                        tokens.add(Token.STAR);
+                    }
+                    i++;
+                }
+                case '?' -> {
+                    tokens.add(Token.ANY);
+                    i++;
+                }
+                case '\\' -> {
+                    tokens.add(Token.literal(i + 1 < pattern.length() ? pattern.charAt(i + 1) : '\\'));
+                    i += 2;
+                }
+                case '[' -> {
+                    int end = classEnd(pattern, i + 1);
+                    if (end == -1) {
+                        tokens.add(Token.literal('['));
+                        i++;
+                    } else {
+                        tokens.add(Token.charClass(pattern.substring(i, end + 1)));
+                        i = end + 1;
+                    }
+                }
+                default -> {
+                    tokens.add(Token.literal(current));
+                    i++;
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private static int classEnd(String pattern, int from) {
+        int i = from;
+        if (i < pattern.length() && pattern.charAt(i) == '^') {
+            i++;
+        }
+        // a ']' right after the opening bracket is a member of the class
+        if (i < pattern.length() && pattern.charAt(i) == ']') {
+            i++;
+        }
+        while (i < pattern.length()) {
+            char current = pattern.charAt(i);
+            if (current == '\\') {
+                i += 2;
+            } else if (current == ']') {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    record Token(Kind kind, char literal, String source) {
+        static final Token STAR = new Token(Kind.STAR, '\0', "*");
+        static final Token ANY = new Token(Kind.ANY, '\0', "?");
+
+        enum Kind {LITERAL, ANY, STAR, CLASS}
+
+        static Token literal(char literal) {
+            return new Token(Kind.LITERAL, literal, null);
+        }
+
+        static Token charClass(String source) {
+            return new Token(Kind.CLASS, '\0', source);
+        }
+    }
+
+    /**
+     * A compiled {@code [...]} class: a list of inclusive character ranges, optionally negated.
+     */
+    static final class CharClass {
+        private final char[] ranges;
+        private final boolean negated;
+
+        CharClass(String source) {
+            int i = 1;
+            negated = source.charAt(i) == '^';
+            if (negated) {
+                i++;
+            }
+            StringBuilder bounds = new StringBuilder();
+            int end = source.length() - 1;
+            while (i < end) {
+                char low = source.charAt(i);
+                if (low == '\\' && i + 1 < end) {
+                    low = source.charAt(++i);
+                }
+                char high = low;
+                if (i + 2 < end && source.charAt(i + 1) == '-') {
+                    high = source.charAt(i + 2);
+                    if (high == '\\' && i + 3 < end) {
+                        high = source.charAt(i + 3);
+                        i++;
+                    }
+                    i += 2;
+                }
+                bounds.append((char) Math.min(low, high)).append((char) Math.max(low, high));
+                i++;
+            }
+            ranges = bounds.toString().toCharArray();
+        }
+
+        boolean matches(char value) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (value >= ranges[i] && value <= ranges[i + 1]) {
+                    return !negated;
+                }
+            }
+            return negated;
+        }
+    }
+
+    private static final class Node<S> {
+        final boolean star;
+        final Map<Character, Node<S>> literals;
+        final Map<String, Node<S>> classes;
+        // the patterns ending here, each with its subscribers
+        final Map<RespValue, Set<S>> subscribers;
+        Node<S> any;
+        Node<S> starChild;
+        CharClass charClass;
+        int mark;
+
+        Node(boolean star) {
+            this.star = star;
+            literals = new HashMap<>(4);
+            classes = new HashMap<>(1);
+            subscribers = new LinkedHashMap<>(1);
+        }
+
+        Node<S> child(Token token) {
+            return switch (token.kind()) {
+                case LITERAL -> literals.computeIfAbsent(token.literal(), k -> new Node<>(false));
+                case ANY -> any == null ? any = new Node<>(false) : any;
+                case STAR -> starChild == null ? starChild = new Node<>(true) : starChild;
+                case CLASS -> classes.computeIfAbsent(token.source(), source -> {
+                    Node<S> node = new Node<>(false);
+                    node.charClass = new CharClass(source);
+                    return node;
+                });
+            };
+        }
+
+        Node<S> existingChild(Token token) {
+            return switch (token.kind()) {
+                case LITERAL -> literals.get(token.literal());
+                case ANY -> any;
+                case STAR -> starChild;
+                case CLASS -> classes.get(token.source());
+            };
+        }
+
+        void removeChild(Token token) {
+            switch (token.kind()) {
+                case LITERAL -> literals.remove(token.literal());
+                case ANY -> any = null;
+                case STAR -> starChild = null;
+                case CLASS -> classes.remove(token.source());
+            }
+        }
+
+        boolean isLeaf() {
+            return literals.isEmpty() && classes.isEmpty() && any == null && starChild == null;
+        }
+    }
+}
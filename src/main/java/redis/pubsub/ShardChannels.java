@@ -0,0 +1,100 @@
+package redis.pubsub;
+
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+import redis.util.KeySlot;
+
+import java.util.*;
+
+/**
+ * Sharded pub/sub channels (SSUBSCRIBE / SPUBLISH), kept apart from the channels of SUBSCRIBE. A shard channel
+ * hashes to a key slot like a key does, and its subscribers are indexed under that slot, which is all SPUBLISH
+ * looks up. The channels of each subscriber, for replies and cleanup, are indexed once for all slots.
+ *
+ * @param <S> subscriber type
+ */
+public class ShardChannels<S> {
+    // per slot, null while nobody subscribes to its channels: channel to subscribers
+    private final List<Map<RespValue, Set<S>>> slots;
+    private final Map<S, Set<RespValue>> channels;
+
+    public ShardChannels() {
+        slots = new ArrayList<>(Collections.nCopies(KeySlot.SLOTS, null));
+        channels = new HashMap<>();
+    }
+
+    public static int slot(RespValue channel) {
+        return KeySlot.slot(((RespBulkString) channel).value());
+    }
+
+    /**
+     * @return the number of shard channels {@code subscriber} is subscribed to afterwards
+     */
+    public int subscribe(S subscriber, RespValue channel) {
+        Set<RespValue> subscribed = channels.computeIfAbsent(subscriber, k -> new LinkedHashSet<>());
+        if (subscribed.add(channel)) {
+            int slot = slot(channel);
+            Map<RespValue, Set<S>> slotChannels = slots.get(slot);
+            if (slotChannels == null) {
+                slotChannels = new HashMap<>();
+                slots.set(slot, slotChannels);
+            }
+            slotChannels.computeIfAbsent(channel, k -> new LinkedHashSet<>()).add(subscriber);
+        }
+        return subscribed.size();
+    }
+
+    /**
+     * @return the number of shard channels {@code subscriber} is still subscribed to
+     */
+    public int unsubscribe(S subscriber, RespValue channel) {
+        Set<RespValue> subscribed = channels.get(subscriber);
+        if (subscribed == null) {
+            return 0;
+        }
+        if (subscribed.remove(channel)) {
+            int slot = slot(channel);
+            Map<RespValue, Set<S>> slotChannels = slots.get(slot);
+            Set<S> channelSubscribers = slotChannels.get(channel);
+            channelSubscribers.remove(subscriber);
+            if (channelSubscribers.isEmpty()) {
+                slotChannels.remove(channel);
+                if (slotChannels.isEmpty()) {
+                    slots.set(slot, null);
+                }
+            }
+        }
+        if (subscribed.isEmpty()) {
+            channels.remove(subscriber);
+        }
+        return subscribed.size();
+    }
+
+    public void unsubscribeAll(S subscriber) {
+        for (RespValue channel : channels(subscriber)) {
+            unsubscribe(subscriber, channel);
+        }
+    }
+
+    /**
+     * @return a copy of the shard channels {@code subscriber} is subscribed to, in subscription order
+     */
+    public List<RespValue> channels(S subscriber) {
+        Set<RespValue> subscribed = channels.get(subscriber);
+        return subscribed == null ? List.of() : new ArrayList<>(subscribed);
+    }
+
+    public Set<S> subscribers(RespValue channel) {
+        Map<RespValue, Set<S>> slotChannels = slots.get(slot(channel));
+        return slotChannels == null ? Set.of() : slotChannels.getOrDefault(channel, Set.of());
+    }
+
+    public int subscriptionCount(S subscriber) {
+        Set<RespValue> subscribed = channels.get(subscriber);
+        return subscribed == null ? 0 : subscribed.size();
+    }
+
+    public boolean isSubscribed(S subscriber) {
+        return channels.containsKey(subscriber);
+    }
+}
@@ -1,147 +1,351 @@
 package redis.replication;
 
 import redis.MainEventLoop;
-import redis.RedisSocket;
 import redis.config.RedisConfig;
-import redis.resp.Parser;
 import redis.resp.RespArray;
 import redis.resp.RespBulkString;
 import redis.resp.RespSimpleString;
+import redis.util.RateMeter;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.security.SecureRandom;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static redis.util.Logger.debug;
-import static redis.util.Logger.error;
 
 public class EventReplicationService {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final RespArray GETACK = new RespArray(List.of(
+            new RespBulkString("REPLCONF"),
+            new RespBulkString("GETACK"),
+            new RespBulkString("*")
+    ));
     private final RedisConfig config;
-    private final Parser parser;
-    private final String fullResyncMessage;
     private final AtomicLong offset;
-    private volatile boolean fullSyncCompleted;
-    private final Set<SocketChannel> replicas;
+    private final Map<MainEventLoop.ClientState, Replica> replicas;
+    private final ReplicationBacklog backlog;
+    // when the stream reached each offset, sampled once per millisecond at most, over the bytes the backlog holds
+    private final Deque<Produced> produced;
+    // null until the first sync with our master
+    private String masterReplicationId;
+    // end of the stream on the previous replicasBehind
+    private long announcedOffset;
+    private boolean ackRequested;
+    private long inputBytes;
+    private long outputBytes;
+    private final RateMeter inputRate;
+    private final RateMeter outputRate;
 
-    public EventReplicationService(RedisConfig redisConfig, Parser parser, long initialOffset) {
+    public EventReplicationService(RedisConfig redisConfig, long initialOffset) {
         config = redisConfig;
-        this.parser = parser;
-        this.fullResyncMessage = "+FULLRESYNC " + config.getReplicationId() + " 0\r\n";
-        fullSyncCompleted = false;
-        replicas = new CopyOnWriteArraySet<>();
+        replicas = new LinkedHashMap<>();
         offset = new AtomicLong(initialOffset);
+        backlog = new ReplicationBacklog(config.getReplBacklogSize(), initialOffset);
+        produced = new ArrayDeque<>();
+        announcedOffset = initialOffset;
+        inputRate = new RateMeter();
+        outputRate = new RateMeter();
     }
 
-    public SocketChannel establishReplication() throws IOException {
-        if (config.getRole().equalsIgnoreCase("master")) {
-            throw new IllegalStateException("Replication can only be established from a slave to a master.");
-        }
-        InetSocketAddress inetSocketAddress = new InetSocketAddress(config.getMasterHost(), config.getMasterPort());
-        SocketChannel socketChannel = SocketChannel.open(inetSocketAddress);
-        socketChannel.configureBlocking(true);
-        RedisSocket socket = new RedisSocket(socketChannel);
-        try {
-            while (!fullSyncCompleted) {
-                if (handshake(socket)) {
-                    byte[] rdbSizeHeader = socket.readUntil((byte) '\n');
-                    int rdbSize = Integer.parseInt(new String(Arrays.copyOfRange(rdbSizeHeader, 1, rdbSizeHeader.length - 2)));
-                    Optional<byte[]> read = socket.read(rdbSize);
-                    if (read.isPresent()) {
-                        createDumpFile(read.get());
-                        fullSyncCompleted = true;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            error("Failed to establish replication with master %s%n", e.getMessage());
+    /**
+     * Starts a full resync at the current end of the stream. With {@code eofMark}, the snapshot is streamed as it is
+     * encoded; otherwise it is sent with its length once complete.
+     */
+    public byte[] fullResync(MainEventLoop.ClientState state, boolean eofMark) {
+        Replica replica = addReplica(state, backlog.getEndOffset());
+        replica.syncing = true;
+        if (eofMark) {
+            replica.eofMark = randomMark();
+            replica.transfer.add(ByteBuffer.wrap(("$EOF:" + new String(replica.eofMark, StandardCharsets.US_ASCII)
+                                                  + "\r\n").getBytes(StandardCharsets.US_ASCII)));
         }
-        return socketChannel;
+        debug("Full resync at offset %d", backlog.getEndOffset());
+        return new RespSimpleString("FULLRESYNC %s %d".formatted(getReplicationId(), backlog.getEndOffset()))
+                .serialize();
     }
 
-    private boolean handshake(RedisSocket socket) {
-        write(socket, new RespArray(List.of(new RespBulkString("PING"))));
-        byte[] buffer = socket.read(256).orElse(null);
-        if (buffer == null || !(parser.parse(buffer).getFirst() instanceof RespSimpleString respSimpleString) || !respSimpleString.value().equalsIgnoreCase("PONG")) {
-            return false;
-        }
+    /**
+     * @return whether to encode more of the replica's snapshot; a streamed one only while under {@code window} bytes
+     * are queued
+     */
+    public boolean wantsSnapshot(MainEventLoop.ClientState state, long window) {
+        Replica replica = replicas.get(state);
+        return replica != null && !replica.encoded && (replica.eofMark == null || replica.transferBytes() < window);
+    }
 
-        write(socket, new RespArray(List.of(new RespBulkString("REPLCONF"), new RespBulkString("listening-port"), new RespBulkString(Integer.toString(config.getPort())))));
-        buffer = socket.read(256).orElse(null);
-        if (buffer == null || !(parser.parse(buffer).getFirst() instanceof RespSimpleString respBulkString) || !respBulkString.value().equals("OK")) {
-            error("Failed to set replication configuration with master at %s:%d", config.getMasterHost(), config.getMasterPort());
-            return false;
+    public void transferSnapshot(MainEventLoop.ClientState state, List<ByteBuffer> part, boolean last, long rdbSize) {
+        Replica replica = replicas.get(state);
+        if (replica == null) {
+            return;
         }
+        replica.transfer.addAll(part);
+        if (!last) {
+            return;
+        }
+        if (replica.eofMark != null) {
+            replica.transfer.add(ByteBuffer.wrap(replica.eofMark));
+        } else {
+            replica.transfer.addFirst(ByteBuffer.wrap(("$" + rdbSize + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+        }
+        replica.encoded = true;
+        debug("Snapshot of %d bytes encoded for a full resync", rdbSize);
+    }
 
-        write(socket, new RespArray(List.of(new RespBulkString("REPLCONF"), new RespBulkString("capa"), new RespBulkString("psync2"))));
+    private Replica addReplica(MainEventLoop.ClientState state, long fromOffset) {
+        state.markReplica();
+        Replica replica = new Replica(state.key(), backlog.open(fromOffset));
+        replicas.put(state, replica);
+        return replica;
+    }
 
-        buffer = socket.read(256).orElse(null);
-        if (buffer == null || !(parser.parse(buffer).getFirst() instanceof RespSimpleString replConfSecondResult) || !replConfSecondResult.value().equals("OK")) {
-            error("Failed to set replication configuration with master at %s:%d", config.getMasterHost(), config.getMasterPort());
-            return false;
+    private static byte[] randomMark() {
+        byte[] bytes = new byte[20];
+        RANDOM.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public void removeReplica(MainEventLoop.ClientState state) {
+        Replica replica = replicas.remove(state);
+        if (replica != null) {
+            backlog.close(replica.cursor);
         }
+    }
+
+    public void propagate(RespArray array) {
+        forward(array.serialize());
+    }
 
-        write(socket, new RespArray(List.of(new RespBulkString("PSYNC"), new RespBulkString("?"), new RespBulkString("-1"))));
+    /**
+     * Appends a command from our master, as it encoded it, to the stream of our own replicas.
+     */
+    public void forward(byte[] command) {
+        long now = System.currentTimeMillis();
+        if (produced.isEmpty() || produced.peekLast().time() != now) {
+            produced.add(new Produced(backlog.getEndOffset(), now));
+        }
+        backlog.append(command);
+        offset.addAndGet(command.length);
+        while (produced.size() > 1) {
+            Produced oldest = produced.poll();
+            if (produced.peek().offset() > backlog.getHeldOffset()) {
+                produced.addFirst(oldest);
+                break;
+            }
+        }
+    }
 
-        buffer = socket.read((fullResyncMessage.getBytes(StandardCharsets.UTF_8).length)).orElse(null);
-        return buffer != null;
+    /**
+     * @return the replicas not sent the whole stream yet, empty when nothing was propagated since the last call
+     */
+    public List<MainEventLoop.ClientState> replicasBehind() {
+        if (backlog.getEndOffset() == announcedOffset) {
+            return List.of();
+        }
+        announcedOffset = backlog.getEndOffset();
+        List<MainEventLoop.ClientState> behind = new ArrayList<>();
+        for (Map.Entry<MainEventLoop.ClientState, Replica> replica : replicas.entrySet()) {
+            if (replica.getValue().getSentOffset() < announcedOffset) {
+                behind.add(replica.getKey());
+            }
+        }
+        return behind;
     }
 
-    private void createDumpFile(byte[] buffer) throws IOException {
-        File file = new File("%s/%s".formatted(config.getDir(), config.getDbFileName()));
-        File parentFile = file.getParentFile();
-        parentFile.mkdirs();
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            fileOutputStream.write(buffer);
+    /**
+     * @return false when the socket could not take everything
+     */
+    public boolean writeStream(MainEventLoop.ClientState state, SocketChannel channel) throws IOException {
+        Replica replica = replicas.get(state);
+        if (replica == null) {
+            return true;
+        }
+        if (replica.syncing) {
+            if (replica.eofMark != null || replica.encoded) {
+                while (!replica.transfer.isEmpty()) {
+                    ByteBuffer chunk = replica.transfer.peek();
+                    outputBytes += channel.write(chunk);
+                    if (chunk.hasRemaining()) {
+                        return false;
+                    }
+                    replica.transfer.poll();
+                }
+            }
+            if (!replica.encoded) {
+                // written again once the next part of the snapshot is encoded
+                return true;
+            }
+            replica.syncing = false;
         }
-        debug("created a dump file %s: %s", file, new String(buffer));
+        if (replica.getSentOffset() == backlog.getEndOffset()) {
+            return true;
+        }
+        outputBytes += backlog.writeTo(replica.cursor, channel);
+        return replica.getSentOffset() == backlog.getEndOffset();
     }
 
-    private void write(RedisSocket socket, RespArray respArray) {
-        socket.write(respArray.serialize());
+    /**
+     * @return the {@code +CONTINUE} reply, or null when the replica needs a full resync
+     */
+    public byte[] partialResync(MainEventLoop.ClientState state, String replicationId, long psyncOffset) {
+        if (!getReplicationId().equals(replicationId) || !backlog.contains(psyncOffset - 1)) {
+            return null;
+        }
+        addReplica(state, psyncOffset - 1);
+        debug("Partial resync from offset %d, %d bytes behind", psyncOffset, backlog.getEndOffset() - psyncOffset + 1);
+        return new RespSimpleString("CONTINUE " + getReplicationId()).serialize();
     }
 
-    public void addReplica(SocketChannel channel) {
-        if (config.getRole().equalsIgnoreCase("master")) {
-            replicas.add(channel);
+    public void acknowledge(MainEventLoop.ClientState state, long ackedOffset) {
+        Replica replica = replicas.get(state);
+        if (replica == null) {
+            return;
         }
+        replica.ackedOffset = Math.max(replica.ackedOffset, ackedOffset);
+        replica.ackTime = System.currentTimeMillis();
     }
 
-    public void propagate(RespArray array, Selector selector) throws ClosedChannelException {
-        for (SocketChannel replica : replicas) {
-            if (replica.isOpen() && replica.isConnected()) {
-                SelectionKey key = replica.register(selector, SelectionKey.OP_WRITE);
-                MainEventLoop.ClientState state = new MainEventLoop.ClientState(key);
-                state.append(ByteBuffer.wrap(array.serialize()));
-                key.attach(state);
-            } else {
-                replicas.remove(replica);
+    public int countAcknowledged(long offset) {
+        int count = 0;
+        for (Replica replica : replicas.values()) {
+            if (replica.ackedOffset >= offset) {
+                count++;
             }
         }
-        offset.addAndGet(array.serialize().length);
+        return count;
+    }
+
+    public void requestAck() {
+        ackRequested = true;
+    }
+
+    /**
+     * Propagates one GETACK for all the {@link #requestAck} calls since the previous one.
+     */
+    public void sendAckRequest() {
+        if (ackRequested) {
+            ackRequested = false;
+            propagate(GETACK);
+        }
     }
 
     public long getOffset() {
         return offset.get();
     }
 
-    public void moveOffset(int length) {
-        offset.addAndGet(length);
+    /**
+     * Moves to the offset of a full resync from our master. The backlog restarts there empty.
+     */
+    public void setOffset(long newOffset) {
+        offset.set(newOffset);
+        backlog.reset(newOffset);
+        produced.clear();
+        announcedOffset = newOffset;
+    }
+
+    /**
+     * @return our master's replication id when we have one, so that sub-replicas can resume on any server of the chain
+     */
+    public String getReplicationId() {
+        return masterReplicationId != null ? masterReplicationId : config.getReplicationId();
+    }
+
+    public List<MainEventLoop.ClientState> replicaClients() {
+        return new ArrayList<>(replicas.keySet());
+    }
+
+    public String getMasterReplicationId() {
+        return masterReplicationId;
+    }
+
+    public void setMasterReplicationId(String replicationId) {
+        masterReplicationId = replicationId;
     }
 
     public int getReplicaNumber() {
         return replicas.size();
     }
+
+    /**
+     * @return null when {@code state} is not a replica
+     */
+    public Replica getReplica(MainEventLoop.ClientState state) {
+        return replicas.get(state);
+    }
+
+    /**
+     * @return the bytes not sent to the replica yet, snapshot included
+     */
+    public long pendingBytes(Replica replica) {
+        return replica.transferBytes() + lag(replica);
+    }
+
+    /**
+     * @return the stream bytes not sent to the replica yet, which its output limit bounds
+     */
+    public long lag(Replica replica) {
+        return backlog.getEndOffset() - replica.getSentOffset();
+    }
+
+    /**
+     * @return how long ago the first stream byte the replica has not acknowledged was produced, 0 when it
+     * acknowledged everything
+     */
+    public long lagMillis(Replica replica, long now) {
+        long acknowledged = Math.max(replica.ackedOffset, replica.joinOffset);
+        if (acknowledged >= backlog.getEndOffset()) {
+            return 0;
+        }
+        Iterator<Produced> newestFirst = produced.descendingIterator();
+        Produced sample = null;
+        while (newestFirst.hasNext()) {
+            sample = newestFirst.next();
+            if (sample.offset() <= acknowledged) {
+                break;
+            }
+        }
+        return sample == null ? 0 : now - sample.time();
+    }
+
+    public ReplicationBacklog getBacklog() {
+        return backlog;
+    }
+
+    public void recordInput(int bytes) {
+        inputBytes += bytes;
+    }
+
+    public void sampleRates(long now) {
+        inputRate.sample(inputBytes, now);
+        outputRate.sample(outputBytes, now);
+    }
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public long getInputBytesPerSecond() {
+        return inputRate.perSecond();
+    }
+
+    public long getOutputBytesPerSecond() {
+        return outputRate.perSecond();
+    }
+
+    private record Produced(long offset, long time) {
+    }
 }
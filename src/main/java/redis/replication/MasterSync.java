@@ -0,0 +1,267 @@
+package redis.replication;
+
+import redis.config.RedisConfig;
+import redis.persistence.RdbReader;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static redis.util.Logger.debug;
+
+/**
+ * The replica side of the handshake with the master and of the snapshot transfer, driven by the event loop: every
+ * read from the master link is handed to {@link #feed}, which goes as far as the bytes allow and returns. The
+ * snapshot is decoded as it arrives, straight into the keyspace, so the replica keeps serving its own clients
+ * meanwhile and never holds more of the snapshot than its largest value.
+ */
+public class MasterSync {
+    private static final int EOF_MARK_LENGTH = 40;
+    private final RedisConfig config;
+    private final EventReplicationService replicationService;
+    private final Consumer<byte[]> sender;
+    private final Runnable flush;
+    private final RdbReader.Sink sink;
+    private ByteBuffer input;
+    private Step step;
+    private RdbReader reader;
+    // the end mark of a snapshot framed with $EOF:, null when it was framed with its length
+    private byte[] eofMark;
+    private long snapshotRemaining;
+    private String snapshotReplicationId;
+
+    private enum Step { PONG, LISTENING_PORT, CAPA, PSYNC, SNAPSHOT_HEADER, SNAPSHOT, EOF_MARK, DONE }
+
+    /**
+     * @param sender writes a command to the master
+     * @param flush empties the keyspace before the snapshot is loaded into it
+     * @param sink receives the keys of the snapshot
+     */
+    public MasterSync(RedisConfig config, EventReplicationService replicationService, Consumer<byte[]> sender,
+                      Runnable flush, RdbReader.Sink sink) {
+        this.config = config;
+        this.replicationService = replicationService;
+        this.sender = sender;
+        this.flush = flush;
+        this.sink = sink;
+        input = ByteBuffer.allocate(1024);
+    }
+
+    /**
+     * Sends the first command of the handshake, once the connection to the master is established.
+     */
+    public void start() {
+        step = Step.PONG;
+        send("PING");
+    }
+
+    /**
+     * Consumes what was read from the master.
+     *
+     * @return true once the replica is in sync and the master link carries the replication stream
+     * @throws IOException when the master refuses the handshake or sends a corrupt snapshot
+     */
+    public boolean feed(ByteBuffer data) throws IOException {
+        if (input.remaining() < data.remaining()) {
+            input = ByteBuffer.allocate(Math.max(input.capacity() * 2, input.position() + data.remaining()))
+                    .put(input.flip());
+        }
+        input.put(data);
+        input.flip();
+        try {
+            while (step != Step.DONE && advance()) {
+                // each step consumes its part of the input
+            }
+        } finally {
+            input.compact();
+        }
+        return step == Step.DONE;
+    }
+
+    /**
+     * @return the bytes received after the snapshot, the beginning of the replication stream
+     */
+    public ByteBuffer leftover() {
+        return input.duplicate().flip();
+    }
+
+    /**
+     * @return whether the keyspace is being replaced by the master's snapshot
+     */
+    public boolean isLoading() {
+        return step == Step.SNAPSHOT_HEADER || step == Step.SNAPSHOT || step == Step.EOF_MARK;
+    }
+
+    /**
+     * @return false when the current step needs more input
+     */
+    private boolean advance() throws IOException {
+        return switch (step) {
+            case SNAPSHOT -> readSnapshot();
+            case EOF_MARK -> readEofMark();
+            default -> {
+                String line = readLine();
+                if (line == null) {
+                    yield false;
+                }
+                if (!line.isEmpty()) {
+                    // the master sends empty lines to keep the link alive while it prepares the snapshot
+                    onReply(line);
+                }
+                yield true;
+            }
+        };
+    }
+
+    private void onReply(String line) throws IOException {
+        switch (step) {
+            case PONG -> {
+                expect(line, "+PONG");
+                step = Step.LISTENING_PORT;
+                send("REPLCONF", "listening-port", Integer.toString(config.getPort()));
+            }
+            case LISTENING_PORT -> {
+                expect(line, "+OK");
+                step = Step.CAPA;
+                send("REPLCONF", "capa", "eof", "capa", "psync2");
+            }
+            case CAPA -> {
+                expect(line, "+OK");
+                step = Step.PSYNC;
+                // like Redis, ask for the first byte not processed yet
+                String replicationId = replicationService.getMasterReplicationId();
+                if (replicationId == null) {
+                    send("PSYNC", "?", "-1");
+                } else {
+                    send("PSYNC", replicationId, Long.toString(replicationService.getOffset() + 1));
+                }
+            }
+            case PSYNC -> onPsyncReply(line);
+            case SNAPSHOT_HEADER -> onSnapshotHeader(line);
+            default -> throw new IllegalStateException("No reply expected in step " + step);
+        }
+    }
+
+    private void onPsyncReply(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts[0].equals("+CONTINUE")) {
+            if (parts.length > 1) {
+                replicationService.setMasterReplicationId(parts[1]);
+            }
+            debug("Continuing replication of %s from offset %d", replicationService.getMasterReplicationId(),
+                    replicationService.getOffset());
+            step = Step.DONE;
+        } else if (parts[0].equals("+FULLRESYNC") && parts.length == 3) {
+            // the id is only adopted once the snapshot is loaded, so that a link lost meanwhile is not continued
+            // on top of a partial keyspace
+            replicationService.setMasterReplicationId(null);
+            snapshotReplicationId = parts[1];
+            replicationService.setOffset(Long.parseLong(parts[2]));
+            flush.run();
+            step = Step.SNAPSHOT_HEADER;
+        } else {
+            throw new IOException("Unexpected reply to PSYNC from master at %s:%d: %s"
+                    .formatted(config.getMasterHost(), config.getMasterPort(), line));
+        }
+    }
+
+    private void onSnapshotHeader(String line) throws IOException {
+        if (line.startsWith("$EOF:") && line.length() == 5 + EOF_MARK_LENGTH) {
+            eofMark = line.substring(5).getBytes(StandardCharsets.US_ASCII);
+            snapshotRemaining = Long.MAX_VALUE;
+        } else if (line.startsWith("$")) {
+            try {
+                snapshotRemaining = Long.parseLong(line.substring(1));
+            } catch (NumberFormatException _) {
+                throw new IOException("Invalid snapshot header from master: " + line);
+            }
+        } else {
+            throw new IOException("Invalid snapshot header from master: " + line);
+        }
+        debug("Loading the master's snapshot, %s", eofMark == null ? snapshotRemaining + " bytes" : "up to its end mark");
+        reader = new RdbReader();
+        step = Step.SNAPSHOT;
+    }
+
+    private boolean readSnapshot() throws IOException {
+        // the bytes after a snapshot framed by its length belong to the stream, the reader must not see them
+        ByteBuffer view = input.slice(input.position(), (int) Math.min(input.remaining(), snapshotRemaining));
+        boolean done;
+        try {
+            done = reader.read(view, sink);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot from master: " + e.getMessage(), e);
+        }
+        input.position(input.position() + view.position());
+        if (eofMark == null) {
+            snapshotRemaining -= view.position();
+        }
+        if (!done) {
+            if (snapshotRemaining == 0) {
+                throw new IOException("Snapshot from master ended before its EOF opcode");
+            }
+            return false;
+        }
+        if (eofMark == null && snapshotRemaining != 0) {
+            throw new IOException("Snapshot from master has %d bytes after its EOF opcode".formatted(snapshotRemaining));
+        }
+        if (eofMark == null) {
+            finishSnapshot();
+        } else {
+            step = Step.EOF_MARK;
+        }
+        return true;
+    }
+
+    private boolean readEofMark() throws IOException {
+        if (input.remaining() < EOF_MARK_LENGTH) {
+            return false;
+        }
+        byte[] mark = new byte[EOF_MARK_LENGTH];
+        input.get(mark);
+        if (!Arrays.equals(mark, eofMark)) {
+            throw new IOException("Snapshot from master does not end with its announced end mark");
+        }
+        finishSnapshot();
+        return true;
+    }
+
+    private void finishSnapshot() {
+        replicationService.setMasterReplicationId(snapshotReplicationId);
+        step = Step.DONE;
+        debug("Loaded the snapshot of %s", snapshotReplicationId);
+    }
+
+    /**
+     * @return the next line without its CRLF, or null when it has not been fully received
+     */
+    private String readLine() {
+        for (int i = input.position(); i < input.limit(); i++) {
+            if (input.get(i) == '\n') {
+                byte[] line = new byte[i - input.position()];
+                input.get(line);
+                input.get();
+                int length = line.length > 0 && line[line.length - 1] == '\r' ? line.length - 1 : line.length;
+                return new String(line, 0, length, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private void expect(String line, String expected) throws IOException {
+        if (!line.equalsIgnoreCase(expected)) {
+            throw new IOException("Unexpected reply from master at %s:%d in step %s: %s"
+                    .formatted(config.getMasterHost(), config.getMasterPort(), step, line));
+        }
+    }
+
+    private void send(String... command) {
+        sender.accept(new RespArray(Arrays.stream(command).<RespValue>map(RespBulkString::new).toList())
+                .serialize());
+    }
+}
@@ -0,0 +1,57 @@
+package redis.replication;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A replica as seen by the master. Its cursor in the backlog waits at the snapshot offset during a full resync.
+ */
+public class Replica {
+    final SelectionKey key;
+    final ReplicationBacklog.Cursor cursor;
+    // where the replica joined the stream, what it holds before acknowledging anything
+    final long joinOffset;
+    // the snapshot still to send, the stream follows once it is drained
+    final Deque<ByteBuffer> transfer;
+    // null when the snapshot is framed by its length
+    byte[] eofMark;
+    boolean encoded;
+    boolean syncing;
+    long ackedOffset;
+    // time of the last REPLCONF ACK, or of the connection
+    long ackTime;
+
+    Replica(SelectionKey key, ReplicationBacklog.Cursor cursor) {
+        this.key = key;
+        this.cursor = cursor;
+        joinOffset = cursor.offset();
+        transfer = new ArrayDeque<>();
+        ackTime = System.currentTimeMillis();
+    }
+
+    public long getSentOffset() {
+        return cursor.offset();
+    }
+
+    public long getAckedOffset() {
+        return ackedOffset;
+    }
+
+    public long getAckTime() {
+        return ackTime;
+    }
+
+    public long transferBytes() {
+        long bytes = 0;
+        for (ByteBuffer chunk : transfer) {
+            bytes += chunk.remaining();
+        }
+        return bytes;
+    }
+
+    public boolean isSyncing() {
+        return syncing;
+    }
+}
@@ -0,0 +1,245 @@
+package redis.replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The replication stream, held once for every replica and for the replicas to come. Offsets are absolute positions
+ * in the stream, and {@code endOffset} is the master replication offset. A replica that lost its connection can
+ * resume from any offset in {@code [startOffset, endOffset]}, the last {@code capacity} bytes, instead of going
+ * through a full resynchronization.
+ * <p>
+ * The bytes are kept in a chain of fixed-size blocks. Connected replicas read it through a {@link Cursor}, which
+ * holds a reference on its block: a block is only dropped once it fell out of the last {@code capacity} bytes and
+ * no cursor references it or any block before it, so a slow replica is never cut off by the backlog size, only by
+ * its output limit.
+ */
+public class ReplicationBacklog {
+    static final int BLOCK_SIZE = 16 * 1024;
+    private final int capacity;
+    private Block head;
+    private Block tail;
+    // the last block trimmed, reused for the next one rather than allocating it
+    private Block spare;
+    // incremented by reset, which invalidates the cursors opened before it
+    private int generation;
+    private long startOffset;
+    private long endOffset;
+    // bytes held in blocks, including those before startOffset that cursors still reference
+    private long heldBytes;
+
+    public ReplicationBacklog(int capacity, long initialOffset) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Backlog capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        head = new Block();
+        head.start(initialOffset);
+        tail = head;
+        startOffset = initialOffset;
+        endOffset = initialOffset;
+    }
+
+    public void append(byte[] data) {
+        append(data, 0, data.length);
+    }
+
+    public void append(byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (tail.length == tail.data.length) {
+                Block block = spare != null ? spare : new Block();
+                spare = null;
+                block.start(endOffset);
+                tail.next = block;
+                tail = block;
+            }
+            int chunk = Math.min(length, tail.data.length - tail.length);
+            System.arraycopy(data, offset, tail.data, tail.length, chunk);
+            tail.length += chunk;
+            offset += chunk;
+            length -= chunk;
+            endOffset += chunk;
+            heldBytes += chunk;
+        }
+        startOffset = Math.max(startOffset, endOffset - capacity);
+        trim();
+    }
+
+    /**
+     * Empties the backlog and restarts it at {@code offset}, for a stream that is not the continuation of the one
+     * held so far. The cursors opened before can no longer be read from.
+     */
+    public void reset(long offset) {
+        head = new Block();
+        head.start(offset);
+        tail = head;
+        generation++;
+        startOffset = offset;
+        endOffset = offset;
+        heldBytes = 0;
+    }
+
+    /**
+     * @return whether the stream can be resumed from {@code offset}, i.e. every byte after it is still held
+     */
+    public boolean contains(long offset) {
+        return offset >= startOffset && offset <= endOffset;
+    }
+
+    /**
+     * Starts reading the stream from {@code offset}, which stays held until the cursor moves past it or is closed.
+     *
+     * @throws IllegalArgumentException when {@code offset} is no longer, or not yet, in the backlog
+     */
+    public Cursor open(long offset) {
+        if (!contains(offset)) {
+            throw new IllegalArgumentException("Offset %d is outside of the backlog [%d, %d]"
+                    .formatted(offset, startOffset, endOffset));
+        }
+        Block block = head;
+        while (offset >= block.offset + block.length && block.next != null) {
+            block = block.next;
+        }
+        block.references++;
+        return new Cursor(block, offset, generation);
+    }
+
+    /**
+     * Writes the stream from the cursor up to the current end straight out of the blocks, without copying it, and
+     * moves the cursor past what was written.
+     *
+     * @return the number of bytes written, less than available when the channel could not take them all
+     * @throws IllegalStateException when the backlog was reset since the cursor was opened
+     */
+    public int writeTo(Cursor cursor, WritableByteChannel channel) throws IOException {
+        if (cursor.generation != generation || cursor.block == null) {
+            throw new IllegalStateException("Cursor at offset %d was closed or reset".formatted(cursor.offset));
+        }
+        int written = 0;
+        while (cursor.offset < endOffset) {
+            Block block = cursor.block;
+            int position = (int) (cursor.offset - block.offset);
+            if (position == block.length) {
+                block.references--;
+                block.next.references++;
+                cursor.block = block.next;
+                continue;
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(block.data, position, block.length - position);
+            int count = channel.write(chunk);
+            written += count;
+            cursor.offset += count;
+            if (chunk.hasRemaining()) {
+                break;
+            }
+        }
+        trim();
+        return written;
+    }
+
+    /**
+     * Writes the stream from {@code offset} up to the current end, for a reader that holds no cursor.
+     *
+     * @return the number of bytes written, less than available when the channel could not take them all
+     * @throws IllegalArgumentException when {@code offset} is no longer, or not yet, in the backlog
+     */
+    public int writeTo(long offset, WritableByteChannel channel) throws IOException {
+        Cursor cursor = open(offset);
+        try {
+            return writeTo(cursor, channel);
+        } finally {
+            close(cursor);
+        }
+    }
+
+    /**
+     * Releases what the cursor held. Closing it twice, or after a reset, has no effect.
+     */
+    public void close(Cursor cursor) {
+        if (cursor.block == null) {
+            return;
+        }
+        if (cursor.generation == generation) {
+            cursor.block.references--;
+            trim();
+        }
+        cursor.block = null;
+    }
+
+    private void trim() {
+        while (head != tail && head.references == 0 && head.offset + head.length <= startOffset) {
+            heldBytes -= head.length;
+            spare = head;
+            head = head.next;
+        }
+    }
+
+    /**
+     * @return the offset of the oldest byte held, before {@link #getStartOffset()} while a cursor still needs it
+     */
+    public long getHeldOffset() {
+        return head.offset;
+    }
+
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    public int size() {
+        return (int) (endOffset - startOffset);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the bytes held in memory, more than {@link #size()} while a lagging replica still needs older ones
+     */
+    public long heldBytes() {
+        return heldBytes;
+    }
+
+    private static final class Block {
+        final byte[] data = new byte[BLOCK_SIZE];
+        long offset;
+        int length;
+        // cursors positioned in this block
+        int references;
+        Block next;
+
+        void start(long offset) {
+            this.offset = offset;
+            length = 0;
+            references = 0;
+            next = null;
+        }
+    }
+
+    /**
+     * A reader's position in the stream.
+     */
+    public static final class Cursor {
+        private Block block;
+        private long offset;
+        private final int generation;
+
+        private Cursor(Block block, long offset, int generation) {
+            this.block = block;
+            this.offset = offset;
+            this.generation = generation;
+        }
+
+        /**
+         * @return the offset of the next byte to read
+         */
+        public long offset() {
+            return offset;
+        }
+    }
+}
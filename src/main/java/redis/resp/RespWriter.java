@@ -0,0 +1,143 @@
+package redis.resp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Appends RESP frames to a single growable buffer, for replies that are produced while iterating a data structure
+ * instead of from a tree of {@link RespValue}s. Array lengths that are only known after the elements have been
+ * written can be inserted at a {@link #mark()} with {@link #insertArrayHeader(int, int)}.
+ */
+public final class RespWriter {
+    private static final int INITIAL_CAPACITY = 256;
+    private byte[] buffer;
+    private int position;
+
+    public RespWriter() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public RespWriter(int capacity) {
+        buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    public RespWriter arrayHeader(int length) {
+        ensureCapacity(23);
+        buffer[position++] = '*';
+        writeDecimal(length);
+        writeCrLf();
+        return this;
+    }
+
+    public RespWriter bulkString(byte[] value) {
+        return bulkString(value, 0, value.length);
+    }
+
+    public RespWriter bulkString(byte[] value, int offset, int length) {
+        ensureCapacity(length + 25);
+        buffer[position++] = '$';
+        writeDecimal(length);
+        writeCrLf();
+        System.arraycopy(value, offset, buffer, position, length);
+        position += length;
+        writeCrLf();
+        return this;
+    }
+
+    public RespWriter bulkString(String value) {
+        return bulkString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a {@code timePart-sequenceNumber} stream ID as a bulk string without building the string first.
+     */
+    public RespWriter streamId(long timePart, long sequenceNumber) {
+        if (timePart < 0 || sequenceNumber < 0) {
+            return bulkString(Long.toUnsignedString(timePart) + "-" + Long.toUnsignedString(sequenceNumber));
+        }
+        int length = digits(timePart) + 1 + digits(sequenceNumber);
+        ensureCapacity(length + 25);
+        buffer[position++] = '$';
+        writeDecimal(length);
+        writeCrLf();
+        writeDecimal(timePart);
+        buffer[position++] = '-';
+        writeDecimal(sequenceNumber);
+        writeCrLf();
+        return this;
+    }
+
+    public RespWriter value(RespValue value) {
+        return raw(value.serialize());
+    }
+
+    public RespWriter raw(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+        return this;
+    }
+
+    public int mark() {
+        return position;
+    }
+
+    /**
+     * Inserts an array header at {@code mark}, shifting everything written after it.
+     */
+    public RespWriter insertArrayHeader(int mark, int length) {
+        int headerLength = 3 + digits(length);
+        ensureCapacity(headerLength);
+        System.arraycopy(buffer, mark, buffer, mark + headerLength, position - mark);
+        int end = position + headerLength;
+        position = mark;
+        arrayHeader(length);
+        position = end;
+        return this;
+    }
+
+    /**
+     * Discards everything written after {@code mark}.
+     */
+    public RespWriter reset(int mark) {
+        position = mark;
+        return this;
+    }
+
+    public int size() {
+        return position;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void writeCrLf() {
+        buffer[position++] = '\r';
+        buffer[position++] = '\n';
+    }
+
+    private void writeDecimal(long value) {
+        int length = digits(value);
+        for (int i = position + length - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += length;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+}
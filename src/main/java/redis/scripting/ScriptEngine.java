@@ -0,0 +1,370 @@
+package redis.scripting;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.BaseLib;
+import org.luaj.vm2.lib.Bit32Lib;
+import org.luaj.vm2.lib.DebugLib;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.StringLib;
+import org.luaj.vm2.lib.TableLib;
+import org.luaj.vm2.lib.ThreeArgFunction;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JseMathLib;
+import redis.resp.*;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Lua scripting for EVAL / EVALSHA / SCRIPT LOAD. Scripts run in a sandbox holding only the base, table, string,
+ * math and bit32 libraries, without file loading, {@code require} or {@code print}. Every script is compiled once
+ * and kept by the SHA1 of its source.
+ * <p>
+ * Each run gets its own global environment holding its {@code KEYS} and {@code ARGV}, which reads the libraries
+ * through a protected metatable: a script can neither create globals nor modify the libraries, so nothing it does
+ * is seen by the next one. A run going past its time limit has the busy handler called every few thousand
+ * instructions, from which {@link #kill} stops it.
+ * <p>
+ * {@code redis.call} and {@code redis.pcall} go through the executor given to {@link #run}, and replies are
+ * converted between RESP and Lua types the way Redis does.
+ */
+public class ScriptEngine {
+    // instructions run between two checks of the time limit
+    private static final int CHECK_INTERVAL = 1000;
+    private static final String READ_ONLY = "Attempt to modify a readonly table";
+    private final Globals globals;
+    // the metatable of the environment of each run
+    private final LuaTable sandbox;
+    private final Set<LuaValue> readOnlyTables;
+    private final Map<String, Prototype> scripts;
+    private final long timeLimitNanos;
+    private final Runnable busyHandler;
+    private Function<List<RespValue>, RespValue> executor;
+    private long started;
+    private boolean busy;
+    private boolean killed;
+
+    public ScriptEngine() {
+        this(Long.MAX_VALUE, () -> {
+        });
+    }
+
+    /**
+     * @param timeLimitMillis how long a script runs before {@code busyHandler} is called, again and again until the
+     *                        script returns or is killed
+     */
+    public ScriptEngine(long timeLimitMillis, Runnable busyHandler) {
+        this.timeLimitNanos = TimeUnit.MILLISECONDS.toNanos(timeLimitMillis);
+        this.busyHandler = busyHandler;
+        globals = new Globals();
+        globals.load(new BaseLib());
+        globals.load(new PackageLib());
+        globals.load(new Bit32Lib());
+        globals.load(new TableLib());
+        globals.load(new StringLib());
+        globals.load(new JseMathLib());
+        globals.load(new InstructionHook());
+        LoadState.install(globals);
+        LuaC.install(globals);
+        for (String unsafe : List.of("dofile", "loadfile", "load", "loadstring", "require", "module", "package",
+                "debug", "print", "_G")) {
+            globals.set(unsafe, LuaValue.NIL);
+        }
+        globals.set("redis", redisLibrary());
+        readOnlyTables = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (String library : List.of("string", "table", "math", "bit32", "redis")) {
+            globals.set(library, readOnly(globals.get(library)));
+        }
+        // the metatable of strings leads to the string library itself
+        LuaString.s_metatable.rawset(LuaValue.METATABLE, LuaValue.FALSE);
+        LuaValue rawset = globals.get("rawset");
+        globals.set("rawset", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                if (readOnlyTables.contains(args.arg1())) {
+                    throw new LuaError(READ_ONLY);
+                }
+                return rawset.invoke(args);
+            }
+        });
+        sandbox = LuaValue.tableOf(new LuaValue[]{
+                LuaValue.INDEX, globals,
+                LuaValue.NEWINDEX, new ThreeArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue table, LuaValue name, LuaValue value) {
+                        throw new LuaError("Script attempted to create global variable '" + name.tojstring() + "'");
+                    }
+                },
+                LuaValue.METATABLE, LuaValue.FALSE});
+        scripts = new HashMap<>();
+    }
+
+    /**
+     * Compiles and caches a script.
+     *
+     * @return the SHA1 the script can be run by
+     * @throws IllegalArgumentException when the script does not compile
+     */
+    public String load(String source) {
+        String sha = sha1(source);
+        if (!scripts.containsKey(sha)) {
+            try {
+                scripts.put(sha, globals.compilePrototype(new StringReader(source), "@user_script"));
+            } catch (LuaError | IOException e) {
+                throw new IllegalArgumentException("Error compiling script (new function): " + e.getMessage(), e);
+            }
+        }
+        return sha;
+    }
+
+    public boolean exists(String sha) {
+        return scripts.containsKey(sha.toLowerCase());
+    }
+
+    public void flush() {
+        scripts.clear();
+    }
+
+    /**
+     * @return whether a script is running past its time limit
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * Stops the script running past its time limit once the busy handler returns. The script cannot catch it with
+     * {@code pcall}.
+     */
+    public void kill() {
+        killed = true;
+    }
+
+    /**
+     * Runs a loaded script.
+     *
+     * @param executor runs one command for {@code redis.call} / {@code redis.pcall} and returns its reply
+     * @return the script's reply converted to RESP, or a NOSCRIPT error when the SHA1 is unknown
+     */
+    public RespValue run(String sha, List<RespValue> keys, List<RespValue> arguments,
+                         Function<List<RespValue>, RespValue> executor) {
+        Prototype script = scripts.get(sha.toLowerCase());
+        if (script == null) {
+            return new RespError("NOSCRIPT No matching script. Please use EVAL.");
+        }
+        Globals environment = new Globals();
+        environment.debuglib = globals.debuglib;
+        environment.rawset("KEYS", toLuaArray(keys));
+        environment.rawset("ARGV", toLuaArray(arguments));
+        environment.rawset("_G", environment);
+        environment.setmetatable(sandbox);
+        this.executor = executor;
+        started = System.nanoTime();
+        try {
+            return toResp(new LuaClosure(script, environment).call());
+        } catch (LuaError e) {
+            String message = e.getMessage() == null ? "script error" : e.getMessage();
+            return new RespError((message.startsWith("ERR ") ? message : "ERR " + message) + " script: " + sha);
+        } catch (ScriptKilled e) {
+            return new RespError("ERR " + e.getMessage() + " script: " + sha);
+        } finally {
+            this.executor = null;
+            busy = false;
+            killed = false;
+        }
+    }
+
+    public static String sha1(String source) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1")
+                    .digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private LuaTable redisLibrary() {
+        LuaTable redis = new LuaTable();
+        redis.set("call", new CommandFunction(true));
+        redis.set("pcall", new CommandFunction(false));
+        redis.set("status_reply", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue status) {
+                return singleField("ok", status);
+            }
+        });
+        redis.set("error_reply", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue error) {
+                return singleField("err", error);
+            }
+        });
+        redis.set("sha1hex", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue source) {
+                return LuaValue.valueOf(sha1(source.checkjstring()));
+            }
+        });
+        return redis;
+    }
+
+    private LuaTable readOnly(LuaValue library) {
+        LuaTable table = new LuaTable();
+        table.setmetatable(LuaValue.tableOf(new LuaValue[]{
+                LuaValue.INDEX, library,
+                LuaValue.NEWINDEX, new ThreeArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue table, LuaValue name, LuaValue value) {
+                        throw new LuaError(READ_ONLY);
+                    }
+                },
+                LuaValue.METATABLE, LuaValue.FALSE}));
+        readOnlyTables.add(table);
+        return table;
+    }
+
+    /**
+     * Counts the instructions of the running script, luaj calling it for each one, to enforce the time limit.
+     */
+    private final class InstructionHook extends DebugLib {
+        private int instructions;
+
+        @Override
+        public void onInstruction(int pc, Varargs v, int top) {
+            if (++instructions < CHECK_INTERVAL) {
+                return;
+            }
+            instructions = 0;
+            if (!busy && System.nanoTime() - started >= timeLimitNanos) {
+                busy = true;
+            }
+            if (busy) {
+                busyHandler.run();
+                if (killed) {
+                    throw new ScriptKilled();
+                }
+            }
+        }
+    }
+
+    /**
+     * An Error rather than a LuaError, which {@code pcall} would catch.
+     */
+    private static final class ScriptKilled extends Error {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        ScriptKilled() {
+            super("Script killed by user with SCRIPT KILL...", null, false, false);
+        }
+    }
+
+    private final class CommandFunction extends VarArgFunction {
+        private final boolean raiseErrors;
+
+        CommandFunction(boolean raiseErrors) {
+            this.raiseErrors = raiseErrors;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            if (args.narg() == 0) {
+                throw new LuaError("Please specify at least one argument for this redis lib call");
+            }
+            List<RespValue> command = new ArrayList<>(args.narg());
+            for (int i = 1; i <= args.narg(); i++) {
+                LuaValue argument = args.arg(i);
+                if (!argument.isstring()) {
+                    throw new LuaError("Lua redis lib command arguments must be strings or integers");
+                }
+                String value = argument.tojstring();
+                command.add(new RespBulkString(i == 1 ? value.toUpperCase() : value));
+            }
+            RespValue reply = executor.apply(command);
+            if (raiseErrors && reply instanceof RespError error) {
+                throw new LuaError(error.value());
+            }
+            return toLua(reply);
+        }
+    }
+
+    private static LuaTable singleField(String name, LuaValue value) {
+        LuaTable table = new LuaTable();
+        table.set(name, value);
+        return table;
+    }
+
+    private static LuaTable toLuaArray(List<RespValue> values) {
+        LuaTable table = new LuaTable(values.size(), 0);
+        for (int i = 0; i < values.size(); i++) {
+            table.set(i + 1, LuaValue.valueOf(((RespBulkString) values.get(i)).value()));
+        }
+        return table;
+    }
+
+    private static LuaValue toLua(RespValue value) {
+        return switch (value) {
+            case null -> LuaValue.FALSE;
+            case RespBulkString bulkString -> bulkString.value() == null
+                    ? LuaValue.FALSE
+                    : LuaValue.valueOf(bulkString.value());
+            case RespInteger integer -> LuaValue.valueOf(integer.value());
+            case RespSimpleString status -> singleField("ok", LuaValue.valueOf(status.value()));
+            case RespError error -> singleField("err", LuaValue.valueOf(error.value()));
+            case RespArray array -> {
+                LuaTable table = new LuaTable(array.values().size(), 0);
+                for (int i = 0; i < array.values().size(); i++) {
+                    table.set(i + 1, toLua(array.values().get(i)));
+                }
+                yield table;
+            }
+            default -> LuaValue.valueOf(new String(value.serialize(), StandardCharsets.UTF_8));
+        };
+    }
+
+    private static RespValue toResp(LuaValue value) {
+        if (value.type() == LuaValue.TNUMBER) {
+            return new RespInteger((long) value.todouble());
+        }
+        if (value.isstring()) {
+            return new RespBulkString(value.tojstring());
+        }
+        if (value.isboolean()) {
+            return value.toboolean() ? new RespInteger(1) : new RespBulkString(null);
+        }
+        if (value.istable()) {
+            LuaValue error = value.get("err");
+            if (error.isstring()) {
+                return new RespError(error.tojstring());
+            }
+            LuaValue status = value.get("ok");
+            if (status.isstring()) {
+                return new RespSimpleString(status.tojstring());
+            }
+            List<RespValue> values = new ArrayList<>();
+            // like Redis, the array ends at the first nil
+            for (int i = 1; !value.get(i).isnil(); i++) {
+                values.add(toResp(value.get(i)));
+            }
+            return new RespArray(values);
+        }
+        return new RespBulkString(null);
+    }
+}
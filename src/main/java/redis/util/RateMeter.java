@@ -0,0 +1,52 @@
+package redis.util;
+
+/**
+ * Instantaneous rate of an ever-growing counter, computed the way Redis computes its {@code instantaneous_*}
+ * metrics: the counter is sampled at most every 100 ms, and the rate is the mean of the last 16 samples.
+ */
+public class RateMeter {
+    private static final int SAMPLES = 16;
+    private static final long SAMPLE_INTERVAL_MILLIS = 100;
+    private final long[] samples;
+    private int next;
+    private int count;
+    private long lastTime;
+    private long lastValue;
+
+    public RateMeter() {
+        samples = new long[SAMPLES];
+        lastTime = -1;
+    }
+
+    /**
+     * Takes a sample of {@code value} if the previous one is old enough; cheap enough to call on every event loop
+     * iteration.
+     */
+    public void sample(long value, long now) {
+        if (lastTime == -1) {
+            lastTime = now;
+            lastValue = value;
+            return;
+        }
+        long elapsed = now - lastTime;
+        if (elapsed < SAMPLE_INTERVAL_MILLIS) {
+            return;
+        }
+        samples[next] = (value - lastValue) * 1000 / elapsed;
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+        lastTime = now;
+        lastValue = value;
+    }
+
+    public long perSecond() {
+        if (count == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        return sum / count;
+    }
+}
@@ -0,0 +1,60 @@
+package cache;
+
+import org.junit.jupiter.api.Test;
+import redis.cache.RedisSortedSet;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RedisSortedSetTest {
+
+    @Test
+    void testPopTakesLowestScoresFirst() {
+        RedisSortedSet sortedSet = sortedSet("c", 3, "a", 1, "b", 2);
+
+        assertThat(sortedSet.pop(2, false)).isEqualTo(array("a", "1.0", "b", "2.0"));
+        assertThat(sortedSet.range(0, -1, true)).isEqualTo(array("c", "3.0"));
+    }
+
+    @Test
+    void testPopMaxTakesHighestScoresFirst() {
+        RedisSortedSet sortedSet = sortedSet("c", 3, "a", 1, "b", 2);
+
+        assertThat(sortedSet.pop(2, true)).isEqualTo(array("c", "3.0", "b", "2.0"));
+        assertThat(sortedSet.score(new RespBulkString("c"))).isEqualTo(new RespBulkString(null));
+        assertThat(sortedSet.count()).isEqualTo(1);
+    }
+
+    @Test
+    void testPopStopsWhenEmpty() {
+        RedisSortedSet sortedSet = sortedSet("a", 1, "b", 2);
+
+        assertThat(sortedSet.pop(5, false)).isEqualTo(array("a", "1.0", "b", "2.0"));
+        assertThat(sortedSet.count()).isZero();
+        assertThat(sortedSet.pop(1, true)).isEqualTo(array());
+    }
+
+    @Test
+    void testPopZeroLeavesSetUntouched() {
+        RedisSortedSet sortedSet = sortedSet("a", 1);
+
+        assertThat(sortedSet.pop(0, false)).isEqualTo(array());
+        assertThat(sortedSet.count()).isEqualTo(1);
+    }
+
+    private static RedisSortedSet sortedSet(Object... membersAndScores) {
+        RedisSortedSet sortedSet = new RedisSortedSet();
+        for (int i = 0; i < membersAndScores.length; i += 2) {
+            sortedSet.add(new RespBulkString((String) membersAndScores[i]), ((Number) membersAndScores[i + 1]).doubleValue());
+        }
+        return sortedSet;
+    }
+
+    private static RespArray array(String... values) {
+        return new RespArray(Arrays.stream(values).<RespValue>map(RespBulkString::new).toList());
+    }
+}
@@ -0,0 +1,143 @@
+package cache;
+
+import org.junit.jupiter.api.Test;
+import redis.cache.RedisStream;
+import redis.cache.StreamId;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespError;
+import redis.resp.RespValue;
+import redis.resp.RespWriter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RedisStreamTest {
+
+    @Test
+    void testAppendGeneratesSequenceNumbers() {
+        RedisStream stream = new RedisStream();
+
+        assertThat(stream.append(new RespBulkString("0-*"), fields("a", "1"))).isEqualTo(new RespBulkString("0-1"));
+        assertThat(stream.append(new RespBulkString("5-*"), fields("a", "1"))).isEqualTo(new RespBulkString("5-0"));
+        assertThat(stream.append(new RespBulkString("5-*"), fields("a", "1"))).isEqualTo(new RespBulkString("5-1"));
+        assertThat(stream.getMaxId()).isEqualTo("5-1");
+    }
+
+    @Test
+    void testAppendRejectsNonIncreasingIds() {
+        RedisStream stream = new RedisStream();
+
+        assertThat(stream.append(new RespBulkString("0-0"), fields("a", "1"))).isInstanceOf(RespError.class);
+        stream.append(new RespBulkString("3-3"), fields("a", "1"));
+        assertThat(stream.append(new RespBulkString("3-3"), fields("a", "1"))).isInstanceOf(RespError.class);
+        assertThat(stream.append(new RespBulkString("2-9"), fields("a", "1"))).isInstanceOf(RespError.class);
+    }
+
+    @Test
+    void testRangeAcrossNodes() {
+        RedisStream stream = new RedisStream();
+        for (int i = 1; i <= 1_000; i++) {
+            stream.append(new RespBulkString(i + "-" + (i % 3)), fields("temperature", Integer.toString(i), "humidity", "h" + i));
+        }
+
+        List<RespValue> all = ((RespArray) stream.range("-", "+")).values();
+        List<RespValue> middle = ((RespArray) stream.range("250", "260")).values();
+
+        assertThat(all).hasSize(1_000);
+        assertThat(middle).hasSize(11);
+        assertThat(middle.getFirst()).isEqualTo(entry("250-1", "temperature", "250", "humidity", "h250"));
+        assertThat(middle.getLast()).isEqualTo(entry("260-2", "temperature", "260", "humidity", "h260"));
+    }
+
+    @Test
+    void testReadIsExclusive() {
+        RedisStream stream = new RedisStream();
+        for (int i = 1; i <= 300; i++) {
+            stream.append(new RespBulkString(i + "-0"), fields("n", Integer.toString(i)));
+        }
+
+        List<RespValue> tail = stream.read("298-0").values();
+
+        assertThat(tail).containsExactly(entry("299-0", "n", "299"), entry("300-0", "n", "300"));
+        assertThat(stream.read("300-0").values()).isEmpty();
+    }
+
+    @Test
+    void testExactMaxLenTrim() {
+        RedisStream stream = streamOf(250);
+
+        long removed = stream.trim(new RedisStream.TrimOptions(120, null, false, 0));
+
+        assertThat(removed).isEqualTo(130);
+        assertThat(stream.length()).isEqualTo(120);
+        assertThat(((RespArray) stream.range("-", "+")).values().getFirst()).isEqualTo(entry("131-0", "n", "131"));
+    }
+
+    @Test
+    void testApproximateTrimOnlyDropsWholeNodes() {
+        RedisStream stream = streamOf(250);
+
+        long removed = stream.trim(new RedisStream.TrimOptions(120, null, true, RedisStream.DEFAULT_TRIM_LIMIT));
+
+        assertThat(removed).isEqualTo(100);
+        assertThat(stream.length()).isEqualTo(150);
+        assertThat(((RespArray) stream.range("-", "+")).values().getFirst()).isEqualTo(entry("101-0", "n", "101"));
+    }
+
+    @Test
+    void testMinIdTrimKeepsLastIdForNewEntries() {
+        RedisStream stream = streamOf(250);
+
+        long removed = stream.trim(new RedisStream.TrimOptions(0, new StreamId(300, 0), false, 0));
+
+        assertThat(removed).isEqualTo(250);
+        assertThat(stream.length()).isZero();
+        assertThat(stream.getMaxId()).isEqualTo("250-0");
+        assertThat(stream.append(new RespBulkString("100-0"), fields("n", "x"))).isInstanceOf(RespError.class);
+        assertThat(stream.append(new RespBulkString("251-0"), fields("n", "x"))).isEqualTo(new RespBulkString("251-0"));
+        assertThat(stream.length()).isEqualTo(1);
+    }
+
+    @Test
+    void testWriteRangeStopsAfterCount() {
+        RedisStream stream = streamOf(250);
+        RespWriter forward = new RespWriter();
+        RespWriter reverse = new RespWriter();
+
+        int forwardCount = stream.writeRange(new StreamId(99, 0), StreamId.MAX, 2, false, forward);
+        int reverseCount = stream.writeRange(StreamId.MIN, new StreamId(101, 0), 3, true, reverse);
+
+        assertThat(forwardCount).isEqualTo(2);
+        assertThat(forward.toByteArray()).isEqualTo(entries(entry("99-0", "n", "99"), entry("100-0", "n", "100")));
+        assertThat(reverseCount).isEqualTo(3);
+        assertThat(reverse.toByteArray()).isEqualTo(entries(
+                entry("101-0", "n", "101"), entry("100-0", "n", "100"), entry("99-0", "n", "99")));
+    }
+
+    private static byte[] entries(RespArray... entries) {
+        RespWriter writer = new RespWriter();
+        for (RespArray entry : entries) {
+            writer.value(entry);
+        }
+        return writer.toByteArray();
+    }
+
+    private static RedisStream streamOf(int entries) {
+        RedisStream stream = new RedisStream();
+        for (int i = 1; i <= entries; i++) {
+            stream.append(new RespBulkString(i + "-0"), fields("n", Integer.toString(i)));
+        }
+        return stream;
+    }
+
+    private static List<RespValue> fields(String... values) {
+        return Arrays.stream(values).<RespValue>map(RespBulkString::new).toList();
+    }
+
+    private static RespArray entry(String id, String... values) {
+        return new RespArray(List.of(new RespBulkString(id), new RespArray(fields(values))));
+    }
+}
@@ -0,0 +1,100 @@
+package cache;
+
+import org.junit.jupiter.api.Test;
+import redis.cache.RedisSortedSet;
+import redis.cache.SortedSetAggregation;
+import redis.cache.SortedSetAggregation.Aggregate;
+import redis.cache.SortedSetAggregation.Operation;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SortedSetAggregationTest {
+
+    @Test
+    void testWeightedUnionWithSum() {
+        RedisSortedSet first = sortedSet("a", 1, "b", 2);
+        RedisSortedSet second = sortedSet("b", 3, "c", 4);
+
+        RedisSortedSet result = new SortedSetAggregation(Operation.UNION, new double[]{2, 1, 5}, Aggregate.SUM)
+                .apply(Arrays.asList(first, second, null));
+
+        assertThat(result.range(0, -1, true)).isEqualTo(array("a", "2.0", "c", "4.0", "b", "7.0"));
+    }
+
+    @Test
+    void testIntersectionWithMax() {
+        RedisSortedSet first = sortedSet("a", 1, "b", 5, "c", 1);
+        RedisSortedSet second = sortedSet("b", 3, "c", 4);
+
+        RedisSortedSet result = new SortedSetAggregation(Operation.INTER, null, Aggregate.MAX)
+                .apply(List.of(first, second));
+
+        assertThat(result.range(0, -1, true)).isEqualTo(array("c", "4.0", "b", "5.0"));
+    }
+
+    @Test
+    void testIntersectionWithMissingKeyIsEmpty() {
+        RedisSortedSet first = sortedSet("a", 1);
+
+        RedisSortedSet result = new SortedSetAggregation(Operation.INTER, null, Aggregate.SUM)
+                .apply(Arrays.asList(first, null));
+
+        assertThat(result.count()).isZero();
+    }
+
+    @Test
+    void testDifferenceKeepsScoresOfFirstSet() {
+        RedisSortedSet first = sortedSet("a", 1, "b", 2, "c", 3);
+        RedisSortedSet second = sortedSet("b", 10);
+
+        RedisSortedSet result = new SortedSetAggregation(Operation.DIFF, null, Aggregate.SUM)
+                .apply(List.of(first, second));
+
+        assertThat(result.range(0, -1, true)).isEqualTo(array("a", "1.0", "c", "3.0"));
+    }
+
+    @Test
+    void testParallelAggregationMatchesSequentialSemantics() {
+        int size = 100_000;
+        RedisSortedSet first = new RedisSortedSet();
+        RedisSortedSet second = new RedisSortedSet();
+        for (int i = 0; i < size; i++) {
+            first.add(new RespBulkString("m" + i), i);
+            if (i % 2 == 0) {
+                second.add(new RespBulkString("m" + i), 1);
+            }
+        }
+
+        RedisSortedSet union = new SortedSetAggregation(Operation.UNION, null, Aggregate.SUM)
+                .apply(List.of(first, second));
+        RedisSortedSet inter = new SortedSetAggregation(Operation.INTER, null, Aggregate.MIN)
+                .apply(List.of(first, second));
+        RedisSortedSet diff = new SortedSetAggregation(Operation.DIFF, null, Aggregate.SUM)
+                .apply(List.of(first, second));
+
+        assertThat(union.count()).isEqualTo(size);
+        assertThat(union.score(new RespBulkString("m4"))).isEqualTo(new RespBulkString("5.0"));
+        assertThat(inter.count()).isEqualTo(size / 2);
+        assertThat(inter.score(new RespBulkString("m4"))).isEqualTo(new RespBulkString("1.0"));
+        assertThat(diff.count()).isEqualTo(size / 2);
+        assertThat(diff.score(new RespBulkString("m4"))).isEqualTo(new RespBulkString(null));
+    }
+
+    private static RedisSortedSet sortedSet(Object... membersAndScores) {
+        RedisSortedSet sortedSet = new RedisSortedSet();
+        for (int i = 0; i < membersAndScores.length; i += 2) {
+            sortedSet.add(new RespBulkString((String) membersAndScores[i]), ((Number) membersAndScores[i + 1]).doubleValue());
+        }
+        return sortedSet;
+    }
+
+    private static RespArray array(String... values) {
+        return new RespArray(Arrays.stream(values).<RespValue>map(RespBulkString::new).toList());
+    }
+}
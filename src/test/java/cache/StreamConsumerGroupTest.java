@@ -0,0 +1,67 @@
+package cache;
+
+import org.junit.jupiter.api.Test;
+import redis.cache.StreamConsumerGroup;
+import redis.cache.StreamId;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamConsumerGroupTest {
+
+    @Test
+    void testDeliveriesAreIndexedByGroupAndConsumer() {
+        StreamConsumerGroup group = new StreamConsumerGroup("workers", StreamId.MIN);
+        StreamConsumerGroup.Consumer alice = group.consumer("alice", 0);
+        StreamConsumerGroup.Consumer bob = group.consumer("bob", 0);
+
+        group.deliver(new StreamId(1, 0), alice, 10);
+        group.deliver(new StreamId(2, 0), bob, 10);
+        group.deliver(new StreamId(3, 0), alice, 10);
+
+        assertThat(group.pendingCount()).isEqualTo(3);
+        assertThat(group.firstPendingId()).isEqualTo(new StreamId(1, 0));
+        assertThat(group.lastPendingId()).isEqualTo(new StreamId(3, 0));
+        assertThat(alice.pendingCount()).isEqualTo(2);
+        assertThat(bob.pendingCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testClaimMovesEntryBetweenConsumers() {
+        StreamConsumerGroup group = new StreamConsumerGroup("workers", StreamId.MIN);
+        StreamConsumerGroup.Consumer alice = group.consumer("alice", 0);
+        StreamConsumerGroup.Consumer bob = group.consumer("bob", 0);
+        group.deliver(new StreamId(1, 0), alice, 10);
+
+        StreamConsumerGroup.PendingEntry entry = group.getPending(new StreamId(1, 0));
+        group.claim(entry, bob, 50, true);
+
+        assertThat(entry.getOwner()).isSameAs(bob);
+        assertThat(entry.getDeliveryCount()).isEqualTo(2);
+        assertThat(entry.idleTime(80)).isEqualTo(30);
+        assertThat(alice.pendingCount()).isZero();
+        assertThat(bob.pendingCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testAcknowledgeAndDeleteConsumer() {
+        StreamConsumerGroup group = new StreamConsumerGroup("workers", StreamId.MIN);
+        StreamConsumerGroup.Consumer alice = group.consumer("alice", 0);
+        group.deliver(new StreamId(1, 0), alice, 10);
+        group.deliver(new StreamId(2, 0), alice, 10);
+
+        assertThat(group.acknowledge(new StreamId(1, 0))).isTrue();
+        assertThat(group.acknowledge(new StreamId(1, 0))).isFalse();
+        assertThat(group.deleteConsumer("alice")).isEqualTo(1);
+        assertThat(group.pendingCount()).isZero();
+        assertThat(group.firstPendingId()).isNull();
+    }
+
+    @Test
+    void testStreamIdParsing() {
+        assertThat(StreamId.parse("5-3")).isEqualTo(new StreamId(5, 3));
+        assertThat(StreamId.parse("5", -1L)).isEqualTo(new StreamId(5, -1L));
+        assertThat(StreamId.parse("+")).isEqualTo(StreamId.MAX);
+        assertThat(new StreamId(5, -1L).next()).isEqualTo(new StreamId(6, 0));
+        assertThat(StreamId.MAX.compareTo(new StreamId(Long.MAX_VALUE, 0))).isPositive();
+    }
+}
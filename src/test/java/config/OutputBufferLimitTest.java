@@ -0,0 +1,58 @@
+package config;
+
+import org.junit.jupiter.api.Test;
+import redis.config.OutputBufferLimit;
+import redis.exception.RedisException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OutputBufferLimitTest {
+
+    @Test
+    void testHardLimitDisconnectsAtOnce() {
+        OutputBufferLimit limit = new OutputBufferLimit(1000, 0, 0);
+
+        assertThat(limit.isExceeded(999, -1, 0)).isFalse();
+        assertThat(limit.isExceeded(1000, -1, 0)).isTrue();
+        assertThat(limit.isOverSoftLimit(1_000_000)).isFalse();
+    }
+
+    @Test
+    void testSoftLimitDisconnectsOnlyAfterItsDuration() {
+        OutputBufferLimit limit = new OutputBufferLimit(0, 100, 10);
+
+        assertThat(limit.isOverSoftLimit(99)).isFalse();
+        assertThat(limit.isOverSoftLimit(100)).isTrue();
+        assertThat(limit.isExceeded(500, -1, 60_000)).isFalse();
+        assertThat(limit.isExceeded(500, 50_000, 59_999)).isFalse();
+        assertThat(limit.isExceeded(500, 50_000, 60_000)).isTrue();
+        assertThat(limit.isExceeded(99, 50_000, 60_000)).isFalse();
+    }
+
+    @Test
+    void testZeroDisablesLimits() {
+        assertThat(OutputBufferLimit.NORMAL.isExceeded(Long.MAX_VALUE, 0, Long.MAX_VALUE)).isFalse();
+        assertThat(OutputBufferLimit.NORMAL.isOverSoftLimit(Long.MAX_VALUE)).isFalse();
+        assertThat(new OutputBufferLimit(0, 100, 0).isExceeded(100, 0, 0)).isTrue();
+    }
+
+    @Test
+    void testParseBytesUnits() {
+        assertThat(OutputBufferLimit.parseBytes("1048576")).isEqualTo(1048576);
+        assertThat(OutputBufferLimit.parseBytes("512b")).isEqualTo(512);
+        assertThat(OutputBufferLimit.parseBytes("1k")).isEqualTo(1000);
+        assertThat(OutputBufferLimit.parseBytes("1kb")).isEqualTo(1024);
+        assertThat(OutputBufferLimit.parseBytes("64MB")).isEqualTo(64L << 20);
+        assertThat(OutputBufferLimit.parseBytes("2m")).isEqualTo(2_000_000);
+        assertThat(OutputBufferLimit.parseBytes("1gb")).isEqualTo(1L << 30);
+        assertThat(OutputBufferLimit.parseBytes("0")).isZero();
+    }
+
+    @Test
+    void testParseBytesRejectsGarbage() {
+        assertThatThrownBy(() -> OutputBufferLimit.parseBytes("mb")).isInstanceOf(RedisException.class);
+        assertThatThrownBy(() -> OutputBufferLimit.parseBytes("12x")).isInstanceOf(RedisException.class);
+        assertThatThrownBy(() -> OutputBufferLimit.parseBytes("")).isInstanceOf(RedisException.class);
+    }
+}
@@ -0,0 +1,167 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+import redis.MainEventLoop;
+import redis.cache.Cache;
+import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.cache.StreamCache;
+import redis.config.RedisConfig;
+import redis.persistence.AppendOnlyFile;
+import redis.persistence.RdbReader;
+import redis.resp.RespArray;
+import redis.resp.Parser;
+import redis.resp.RespBulkString;
+import redis.resp.RespInteger;
+import redis.resp.RespValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AppendOnlyFileTest {
+
+    @Test
+    void testPreambleAndCommandsAreReplayedAndTornTailTruncated() throws IOException {
+        Path directory = Files.createTempDirectory("aof");
+        RedisConfig config = new RedisConfig(new String[]{"--dir", directory.toString(), "--appendonly", "yes",
+                "--appendfsync", "always"});
+        AppendOnlyFile file = new AppendOnlyFile(config, () -> {
+        });
+        Cache cache = new Cache();
+        cache.put(new RespBulkString("before"), new RespBulkString("1"));
+        file.create(cache, Map.of(), Map.of());
+        file.open();
+        RespArray set = command("SET", "after", "2");
+        RespArray push = command("RPUSH", "list", "a", "b");
+        file.append(set);
+        file.append(push);
+        assertThat(file.isSynced(file.getAppendedBytes())).isFalse();
+        file.flush(System.currentTimeMillis());
+        file.close();
+        long size = Files.size(file.getPath());
+        Files.writeString(file.getPath(), "*3\r\n$3\r\nSET\r\n$1\r\nx", StandardCharsets.US_ASCII,
+                StandardOpenOption.APPEND);
+
+        Map<RespValue, RespValue> values = new HashMap<>();
+        List<RespArray> commands = new ArrayList<>();
+        new AppendOnlyFile(config, () -> {
+        }).load(new RdbReader.Sink() {
+            @Override
+            public void put(RespValue key, RespValue value, long expirationTime) {
+                values.put(key, value);
+            }
+
+            @Override
+            public void put(RespValue key, RedisSortedSet sortedSet) {
+            }
+
+            @Override
+            public void put(RespValue key, RedisStream stream) {
+            }
+        }, commands::add);
+
+        assertThat(values).containsEntry(new RespBulkString("before"), new RespBulkString("1"));
+        assertThat(commands).containsExactly(set, push);
+        assertThat(Files.size(file.getPath())).isEqualTo(size);
+    }
+
+    @Test
+    void testEveryWriteIsReplayedAsItTookEffect() throws Exception {
+        Path directory = Files.createTempDirectory("aof");
+        String[] arguments = {"--dir", directory.toString(), "--appendonly", "yes", "--appendfsync", "always",
+                "--port", Integer.toString(freePort())};
+        try (MainEventLoop loop = new MainEventLoop(new RedisConfig(arguments), new Cache(), new StreamCache())) {
+            Thread thread = serve(loop);
+            try (Socket client = new Socket("127.0.0.1", Integer.parseInt(arguments[7]))) {
+                for (String member : List.of("a", "b", "c", "d")) {
+                    call(client, "ZADD", "zset", Integer.toString(member.charAt(0) - 'a'), member);
+                }
+                assertThat(call(client, "ZREM", "zset", "a", "missing")).isEqualTo(new RespInteger(1));
+                call(client, "ZPOPMIN", "zset");
+                call(client, "BZPOPMAX", "zset", "0");
+                call(client, "ZUNIONSTORE", "union", "1", "zset");
+                for (int i = 1; i <= 3; i++) {
+                    call(client, "XADD", "stream", i + "-0", "field", Integer.toString(i));
+                }
+                assertThat(call(client, "XTRIM", "stream", "MAXLEN", "1")).isEqualTo(new RespInteger(2));
+                call(client, "INCR", "counter");
+                assertThat(call(client, "INCR", "counter")).isEqualTo(new RespInteger(2));
+            }
+            thread.interrupt();
+            thread.join();
+        }
+
+        arguments[7] = Integer.toString(freePort());
+        try (MainEventLoop loop = new MainEventLoop(new RedisConfig(arguments), new Cache(), new StreamCache())) {
+            Thread thread = serve(loop);
+            try (Socket client = new Socket("127.0.0.1", Integer.parseInt(arguments[7]))) {
+                RespArray remaining = new RespArray(List.of(new RespBulkString("c")));
+                assertThat(call(client, "ZRANGE", "zset", "0", "-1")).isEqualTo(remaining);
+                assertThat(call(client, "ZRANGE", "union", "0", "-1")).isEqualTo(remaining);
+                assertThat(call(client, "XLEN", "stream")).isEqualTo(new RespInteger(1));
+                assertThat(call(client, "GET", "counter")).isEqualTo(new RespBulkString("2"));
+                assertThat(call(client, "GET", "missing")).isEqualTo(new RespBulkString(null));
+            }
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Thread serve(MainEventLoop loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static RespValue call(Socket client, String... arguments) throws IOException {
+        client.getOutputStream().write(command(arguments).serialize());
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        while (true) {
+            int read = client.getInputStream().read(chunk);
+            if (read == -1) {
+                throw new EOFException("Connection closed before the reply to " + arguments[0]);
+            }
+            reply.write(chunk, 0, read);
+            try {
+                return new Parser().parse(reply.toByteArray()).getFirst();
+            } catch (IllegalArgumentException _) {
+                // the reply is not complete yet
+            }
+        }
+    }
+
+    private static RespArray command(String... arguments) {
+        List<RespValue> values = new ArrayList<>();
+        for (String argument : arguments) {
+            values.add(new RespBulkString(argument));
+        }
+        return new RespArray(values);
+    }
+}
@@ -0,0 +1,34 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+import redis.persistence.Crc64;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Crc64Test {
+
+    @Test
+    void testCheckValueOfRedis() {
+        Crc64 crc = new Crc64();
+        crc.update("123456789".getBytes(StandardCharsets.US_ASCII));
+        assertThat(crc.getValue()).isEqualTo(0xe9c6d914c4b8d9caL);
+    }
+
+    @Test
+    void testWordsAndBytesAgree() {
+        byte[] data = new byte[1001];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        Crc64 whole = new Crc64();
+        whole.update(ByteBuffer.wrap(data));
+        Crc64 bytewise = new Crc64();
+        for (byte b : data) {
+            bytewise.update(b);
+        }
+        assertThat(whole.getValue()).isEqualTo(bytewise.getValue());
+    }
+}
@@ -0,0 +1,325 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+import redis.cache.Cache;
+import redis.cache.CachedValue;
+import redis.cache.RedisSortedSet;
+import redis.cache.RedisStream;
+import redis.cache.StreamConsumerGroup;
+import redis.cache.StreamId;
+import redis.config.RedisConfig;
+import redis.persistence.IncrementalSnapshot;
+import redis.persistence.Listpack;
+import redis.persistence.RdbFile;
+import redis.persistence.RdbReader;
+import redis.persistence.RdbWriter;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RdbReaderTest {
+
+    @Test
+    void testSnapshotIsDecodedFromSmallChunks() throws IOException {
+        Cache cache = new Cache();
+        cache.put(new RespBulkString("plain"), new RespBulkString("value"));
+        cache.put(new RespBulkString("expiring"), new RespBulkString("x".repeat(300)), 4_000_000_000_000L);
+        cache.put(new RespBulkString("list"), new RespArray(List.of(new RespBulkString("a"), new RespBulkString("b"))));
+        RedisSortedSet sortedSet = new RedisSortedSet();
+        sortedSet.add(new RespBulkString("one"), 1.5);
+        sortedSet.add(new RespBulkString("two"), -2);
+        RedisStream stream = new RedisStream();
+        for (int i = 1; i <= 250; i++) {
+            List<RespValue> values = i % 3 == 0
+                    ? List.of(new RespBulkString("other"), new RespBulkString(Integer.toString(i)))
+                    : List.of(new RespBulkString("field"), new RespBulkString(Integer.toString(i)));
+            stream.append(new RespBulkString(i + "-0"), values);
+        }
+        stream.createGroup("workers", new StreamId(5, 0));
+        StreamConsumerGroup group = stream.getGroup("workers");
+        group.deliver(new StreamId(4, 0), group.consumer("alice", 100), 200);
+        ByteArrayOutputStream rdb = new ByteArrayOutputStream();
+        new RdbWriter(rdb).writeSnapshot(cache, Map.of(new RespBulkString("stream"), stream),
+                Map.of(new RespBulkString("zset"), sortedSet));
+
+        Map<RespValue, CachedValue<RespValue>> values = new HashMap<>();
+        Map<RespValue, RedisSortedSet> sortedSets = new HashMap<>();
+        Map<RespValue, RedisStream> streams = new HashMap<>();
+        RdbReader reader = new RdbReader();
+        RdbReader.Sink sink = sink(values, sortedSets, streams);
+        byte[] bytes = rdb.toByteArray();
+        ByteBuffer input = ByteBuffer.allocate(bytes.length);
+        boolean done = false;
+        for (int offset = 0; offset < bytes.length; offset += 7) {
+            input.put(bytes, offset, Math.min(7, bytes.length - offset));
+            input.flip();
+            done = reader.read(input, sink);
+            input.compact();
+        }
+
+        assertThat(done).isTrue();
+        assertThat(values.get(new RespBulkString("plain"))).isEqualTo(new CachedValue<>(new RespBulkString("value"), -1));
+        assertThat(values.get(new RespBulkString("expiring")).expirationTime()).isEqualTo(4_000_000_000_000L);
+        assertThat(values.get(new RespBulkString("list")).value())
+                .isEqualTo(new RespArray(List.of(new RespBulkString("a"), new RespBulkString("b"))));
+        assertThat(sortedSets.get(new RespBulkString("zset")).scores())
+                .containsEntry(new RespBulkString("one"), 1.5)
+                .containsEntry(new RespBulkString("two"), -2.0);
+        RedisStream loaded = streams.get(new RespBulkString("stream"));
+        assertThat(loaded.length()).isEqualTo(250);
+        assertThat(loaded.range("-", "+")).isEqualTo(stream.range("-", "+"));
+        StreamConsumerGroup loadedGroup = loaded.getGroup("workers");
+        assertThat(loadedGroup.getLastDeliveredId()).isEqualTo(new StreamId(5, 0));
+        assertThat(loadedGroup.getPending(new StreamId(4, 0)).getOwner().getName()).isEqualTo("alice");
+        assertThat(loadedGroup.getPending(new StreamId(4, 0)).getDeliveryTime()).isEqualTo(200);
+    }
+
+    @Test
+    void testLegacyEncodingsAreDecoded() {
+        ByteArrayOutputStream rdb = new ByteArrayOutputStream();
+        rdb.writeBytes("REDIS0009".getBytes(StandardCharsets.US_ASCII));
+        // a string of 21 bytes compressed by LZF: a literal "a", then a back reference repeating it 20 times
+        rdb.write(0);
+        writeString(rdb, "lzf");
+        rdb.writeBytes(new byte[]{(byte) 0xC3, 5, 21, 0, 'a', (byte) 0xE0, 11, 0});
+        // a list in a ziplist: a 6 bit string, a 4 bit immediate integer and a 16 bit integer
+        rdb.write(10);
+        writeString(rdb, "ziplist");
+        byte[] ziplist = {20, 0, 0, 0, 15, 0, 0, 0, 3, 0, 0, 1, 'x', 3, (byte) 0xF6, 2, (byte) 0xC0, (byte) 0xFE,
+                (byte) 0xFF, (byte) 0xFF};
+        rdb.write(ziplist.length);
+        rdb.writeBytes(ziplist);
+        // a sorted set with its scores as strings
+        rdb.write(3);
+        writeString(rdb, "zset");
+        rdb.write(2);
+        writeString(rdb, "a");
+        writeString(rdb, "1.5");
+        writeString(rdb, "b");
+        rdb.write(254);
+        // a quicklist of a plain node and a listpack node
+        rdb.write(18);
+        writeString(rdb, "quicklist");
+        rdb.write(2);
+        rdb.write(1);
+        writeString(rdb, "first");
+        rdb.write(2);
+        byte[] listpack = new Listpack().append("second").append(3).toByteArray();
+        rdb.write(listpack.length);
+        rdb.writeBytes(listpack);
+        // a set, which this server does not support, and an expired string
+        rdb.write(2);
+        writeString(rdb, "set");
+        rdb.write(1);
+        writeString(rdb, "member");
+        rdb.write(0xFC);
+        rdb.writeBytes(new byte[]{1, 0, 0, 0, 0, 0, 0, 0});
+        rdb.write(0);
+        writeString(rdb, "expired");
+        writeString(rdb, "value");
+        rdb.write(0xFF);
+        rdb.writeBytes(new byte[8]);
+
+        Map<RespValue, CachedValue<RespValue>> values = new HashMap<>();
+        Map<RespValue, RedisSortedSet> sortedSets = new HashMap<>();
+        RdbReader reader = new RdbReader();
+        boolean done = reader.read(ByteBuffer.wrap(rdb.toByteArray()), sink(values, sortedSets, new HashMap<>()));
+
+        assertThat(done).isTrue();
+        assertThat(values.get(new RespBulkString("lzf")).value()).isEqualTo(new RespBulkString("a".repeat(21)));
+        assertThat(values.get(new RespBulkString("ziplist")).value()).isEqualTo(new RespArray(List.of(
+                new RespBulkString("x"), new RespBulkString("5"), new RespBulkString("-2"))));
+        assertThat(sortedSets.get(new RespBulkString("zset")).scores())
+                .containsEntry(new RespBulkString("a"), 1.5)
+                .containsEntry(new RespBulkString("b"), Double.POSITIVE_INFINITY);
+        assertThat(values.get(new RespBulkString("quicklist")).value()).isEqualTo(new RespArray(List.of(
+                new RespBulkString("first"), new RespBulkString("second"), new RespBulkString("3"))));
+        assertThat(values).doesNotContainKeys(new RespBulkString("set"), new RespBulkString("expired"));
+        assertThat(reader.getSkippedKeys()).isEqualTo(2);
+    }
+
+    @Test
+    void testSavedFileIsLoaded() throws IOException {
+        Path directory = Files.createTempDirectory("rdb");
+        RdbFile file = new RdbFile(new RedisConfig(new String[]{"--dir", directory.toString(), "--dbfilename", "dump.rdb"}));
+        Cache cache = new Cache();
+        cache.put(new RespBulkString("key"), new RespBulkString("value"));
+        Map<RespValue, CachedValue<RespValue>> values = new HashMap<>();
+        RdbReader.Sink sink = sink(values, new HashMap<>(), new HashMap<>());
+
+        assertThat(file.load(sink)).isFalse();
+        file.save(cache, Map.of(), Map.of());
+        assertThat(file.load(sink)).isTrue();
+        assertThat(values.get(new RespBulkString("key")).value()).isEqualTo(new RespBulkString("value"));
+
+        Files.write(file.getPath(), Arrays.copyOf(Files.readAllBytes(file.getPath()), 20));
+        assertThatThrownBy(() -> file.load(sink)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void testLargeFileIsLoadedInOrderAndChecked() throws IOException {
+        Path directory = Files.createTempDirectory("rdb");
+        RdbFile file = new RdbFile(new RedisConfig(new String[]{"--dir", directory.toString(), "--dbfilename", "dump.rdb"}));
+        Cache cache = new Cache();
+        for (int i = 0; i < 50_000; i++) {
+            cache.put(new RespBulkString("key" + i), new RespBulkString("value" + i + "x".repeat(i % 100)),
+                    i % 2 == 0 ? -1 : 4_000_000_000_000L);
+        }
+        RedisSortedSet sortedSet = new RedisSortedSet();
+        sortedSet.add(new RespBulkString("member"), 3);
+        file.save(cache, Map.of(), Map.of(new RespBulkString("zset"), sortedSet));
+        Map<RespValue, CachedValue<RespValue>> values = new HashMap<>();
+        Map<RespValue, RedisSortedSet> sortedSets = new HashMap<>();
+
+        file.load(sink(values, sortedSets, new HashMap<>()));
+
+        assertThat(values).hasSize(50_000);
+        assertThat(values.get(new RespBulkString("key7")))
+                .isEqualTo(new CachedValue<>(new RespBulkString("value7xxxxxxx"), 4_000_000_000_000L));
+        assertThat(sortedSets.get(new RespBulkString("zset")).scores()).containsEntry(new RespBulkString("member"), 3.0);
+
+        byte[] bytes = Files.readAllBytes(file.getPath());
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file.getPath(), bytes);
+        assertThatThrownBy(() -> file.load(sink(new HashMap<>(), new HashMap<>(), new HashMap<>())))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void testDeltasAreChainedToTheBaseAndCompacted() throws IOException {
+        Path directory = Files.createTempDirectory("rdb");
+        RdbFile file = new RdbFile(new RedisConfig(new String[]{"--dir", directory.toString(), "--dbfilename", "dump.rdb"}));
+        Cache cache = new Cache();
+        for (int i = 0; i < 1000; i++) {
+            cache.put(new RespBulkString("key" + i), new RespBulkString("value" + i));
+        }
+        file.save(cache, Map.of(), Map.of());
+        cache.put(new RespBulkString("key1"), new RespBulkString("changed"));
+        cache.remove(new RespBulkString("key2"));
+        file.saveDelta(List.of(new RespBulkString("key1"), new RespBulkString("key2")), cache, Map.of(), Map.of());
+        cache.remove(new RespBulkString("key3"));
+        RedisSortedSet sortedSet = new RedisSortedSet();
+        sortedSet.add(new RespBulkString("member"), 1);
+        file.saveDelta(List.of(new RespBulkString("key3"), new RespBulkString("zset")), cache, Map.of(),
+                Map.of(new RespBulkString("zset"), sortedSet));
+
+        Map<RespValue, CachedValue<RespValue>> values = new HashMap<>();
+        Map<RespValue, RedisSortedSet> sortedSets = new HashMap<>();
+        RdbFile restarted = new RdbFile(new RedisConfig(new String[]{"--dir", directory.toString(), "--dbfilename", "dump.rdb"}));
+        restarted.load(sink(values, sortedSets, new HashMap<>()));
+
+        assertThat(restarted.getDeltaCount()).isEqualTo(2);
+        assertThat(values).hasSize(998).doesNotContainKeys(new RespBulkString("key2"), new RespBulkString("key3"));
+        assertThat(values.get(new RespBulkString("key1")).value()).isEqualTo(new RespBulkString("changed"));
+        assertThat(sortedSets).containsKey(new RespBulkString("zset"));
+
+        restarted.compact();
+        Map<RespValue, CachedValue<RespValue>> compacted = new HashMap<>();
+        Map<RespValue, RedisSortedSet> compactedSortedSets = new HashMap<>();
+        restarted.load(sink(compacted, compactedSortedSets, new HashMap<>()));
+
+        assertThat(restarted.getDeltaCount()).isZero();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.map(path -> path.getFileName().toString())).containsExactly("dump.rdb");
+        }
+        assertThat(compacted).isEqualTo(values);
+        assertThat(compactedSortedSets.get(new RespBulkString("zset")).scores())
+                .containsEntry(new RespBulkString("member"), 1.0);
+    }
+
+    @Test
+    void testIncrementalSnapshotKeepsTheValuesItStartedWith() throws IOException {
+        Path directory = Files.createTempDirectory("rdb");
+        RdbFile file = new RdbFile(new RedisConfig(new String[]{"--dir", directory.toString(), "--dbfilename", "dump.rdb"}));
+        Cache cache = new Cache();
+        for (int i = 0; i < 100; i++) {
+            cache.put(new RespBulkString("key" + i), new RespBulkString("value" + i));
+        }
+        RedisSortedSet sortedSet = new RedisSortedSet();
+        sortedSet.add(new RespBulkString("member"), 1);
+        Map<RespValue, RedisSortedSet> live = new HashMap<>(Map.of(new RespBulkString("zset"), sortedSet));
+        RdbFile.PartialFile partial = file.begin(false);
+        IncrementalSnapshot snapshot = IncrementalSnapshot.full(cache, Map.of(), live);
+
+        assertThat(snapshot.advance(10)).isFalse();
+        partial.write(snapshot.drain());
+        for (int i = 0; i < 100; i += 10) {
+            RespValue key = new RespBulkString("key" + i);
+            snapshot.preserve(List.of(new RespBulkString("SET"), key, new RespBulkString("changed")));
+            cache.put(key, new RespBulkString("changed"));
+        }
+        snapshot.preserve(List.of(new RespBulkString("ZREM"), new RespBulkString("zset"), new RespBulkString("member")));
+        live.remove(new RespBulkString("zset"));
+        snapshot.preserve(List.of(new RespBulkString("DEL"), new RespBulkString("key55")));
+        cache.remove(new RespBulkString("key55"));
+        cache.put(new RespBulkString("created"), new RespBulkString("later"));
+        while (!snapshot.advance(7)) {
+            partial.write(snapshot.drain());
+        }
+        partial.write(snapshot.drain());
+        partial.commit();
+
+        Map<RespValue, CachedValue<RespValue>> values = new HashMap<>();
+        Map<RespValue, RedisSortedSet> sortedSets = new HashMap<>();
+        file.load(sink(values, sortedSets, new HashMap<>()));
+
+        assertThat(values).hasSize(100).doesNotContainKey(new RespBulkString("created"));
+        assertThat(values.get(new RespBulkString("key50")).value()).isEqualTo(new RespBulkString("value50"));
+        assertThat(values.get(new RespBulkString("key55")).value()).isEqualTo(new RespBulkString("value55"));
+        assertThat(sortedSets.get(new RespBulkString("zset")).scores()).containsEntry(new RespBulkString("member"), 1.0);
+    }
+
+    @Test
+    void testRejectsOtherFiles() {
+        assertThatThrownBy(() -> new RdbReader().read(ByteBuffer.wrap("NOTREDIS0011".getBytes()), null))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        out.write(value.length());
+        out.writeBytes(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static RdbReader.Sink sink(Map<RespValue, CachedValue<RespValue>> values,
+                                       Map<RespValue, RedisSortedSet> sortedSets,
+                                       Map<RespValue, RedisStream> streams) {
+        return new RdbReader.Sink() {
+            @Override
+            public void put(RespValue key, RespValue value, long expirationTime) {
+                values.put(key, new CachedValue<>(value, expirationTime));
+            }
+
+            @Override
+            public void put(RespValue key, RedisSortedSet sortedSet) {
+                sortedSets.put(key, sortedSet);
+            }
+
+            @Override
+            public void put(RespValue key, RedisStream stream) {
+                streams.put(key, stream);
+            }
+
+            @Override
+            public void delete(RespValue key) {
+                values.remove(key);
+                sortedSets.remove(key);
+                streams.remove(key);
+            }
+        };
+    }
+}
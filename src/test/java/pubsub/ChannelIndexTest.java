@@ -0,0 +1,57 @@
+package pubsub;
+
+import org.junit.jupiter.api.Test;
+import redis.pubsub.ChannelIndex;
+import redis.resp.RespBulkString;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChannelIndexTest {
+
+    @Test
+    void testSubscribeIndexesBothWays() {
+        ChannelIndex<String> index = new ChannelIndex<>();
+        RespBulkString news = new RespBulkString("news");
+        RespBulkString sport = new RespBulkString("sport");
+
+        assertThat(index.subscribe("alice", news)).isEqualTo(1);
+        assertThat(index.subscribe("alice", news)).isEqualTo(1);
+        assertThat(index.subscribe("alice", sport)).isEqualTo(2);
+        assertThat(index.subscribe("bob", news)).isEqualTo(1);
+
+        assertThat(index.subscribers(news)).containsExactly("alice", "bob");
+        assertThat(index.subscribers(sport)).containsExactly("alice");
+        assertThat(index.channels("alice")).containsExactly(news, sport);
+        assertThat(index.subscriptionCount("bob")).isEqualTo(1);
+    }
+
+    @Test
+    void testUnsubscribeDropsEmptyEntries() {
+        ChannelIndex<String> index = new ChannelIndex<>();
+        RespBulkString news = new RespBulkString("news");
+        RespBulkString sport = new RespBulkString("sport");
+        index.subscribe("alice", news);
+        index.subscribe("alice", sport);
+        index.subscribe("bob", news);
+
+        assertThat(index.unsubscribe("alice", news)).isEqualTo(1);
+        assertThat(index.unsubscribe("alice", news)).isEqualTo(1);
+        assertThat(index.subscribers(news)).containsExactly("bob");
+        assertThat(index.unsubscribeAll("alice")).containsExactly(sport);
+        assertThat(index.subscribers(sport)).isEmpty();
+        assertThat(index.isSubscribed("alice")).isFalse();
+        assertThat(index.unsubscribe("alice", sport)).isZero();
+        assertThat(index.unsubscribeAll("alice")).isEmpty();
+    }
+
+    @Test
+    void testPublishOnlyReachesSubscribersOfItsChannel() {
+        ChannelIndex<Integer> index = new ChannelIndex<>();
+        for (int i = 0; i < 1000; i++) {
+            index.subscribe(i, new RespBulkString("channel" + i % 10));
+        }
+
+        assertThat(index.subscribers(new RespBulkString("channel3"))).hasSize(100).allMatch(i -> i % 10 == 3);
+        assertThat(index.subscribers(new RespBulkString("missing"))).isEmpty();
+    }
+}
@@ -0,0 +1,77 @@
+package pubsub;
+
+import org.junit.jupiter.api.Test;
+import redis.pubsub.PatternTrie;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PatternTrieTest {
+
+    @Test
+    void testGlobSyntax() {
+        PatternTrie<String> trie = new PatternTrie<>();
+        for (String pattern : List.of("news.*", "news.?ports", "h[ae]llo", "h[^e]llo", "h[a-c]t", "a*b*c", "lit\\*")) {
+            trie.subscribe("client", new RespBulkString(pattern));
+        }
+
+        assertThat(matches(trie, "news.")).containsExactly("news.*");
+        assertThat(matches(trie, "news.sports")).containsExactlyInAnyOrder("news.*", "news.?ports");
+        assertThat(matches(trie, "hello")).containsExactly("h[ae]llo");
+        assertThat(matches(trie, "hallo")).containsExactlyInAnyOrder("h[ae]llo", "h[^e]llo");
+        assertThat(matches(trie, "hbt")).containsExactly("h[a-c]t");
+        assertThat(matches(trie, "axxbyybc")).containsExactly("a*b*c");
+        assertThat(matches(trie, "abd")).isEmpty();
+        assertThat(matches(trie, "lit*")).containsExactly("lit\\*");
+        assertThat(matches(trie, "litx")).isEmpty();
+    }
+
+    @Test
+    void testUnsubscribePrunesSharedPrefixes() {
+        PatternTrie<String> trie = new PatternTrie<>();
+        trie.subscribe("alice", new RespBulkString("user.*"));
+        trie.subscribe("bob", new RespBulkString("user.*"));
+        trie.subscribe("bob", new RespBulkString("user.?"));
+
+        assertThat(trie.unsubscribe("alice", new RespBulkString("user.*"))).isZero();
+        assertThat(matches(trie, "user.1")).containsExactlyInAnyOrder("user.*", "user.?");
+
+        trie.unsubscribeAll("bob");
+        assertThat(matches(trie, "user.1")).isEmpty();
+        assertThat(trie.isSubscribed("bob")).isFalse();
+    }
+
+    @Test
+    void testPatternsWithTheSameTokensAreKeptApart() {
+        PatternTrie<String> trie = new PatternTrie<>();
+        trie.subscribe("alice", new RespBulkString("a*"));
+        trie.subscribe("bob", new RespBulkString("a**"));
+        trie.subscribe("carol", new RespBulkString("\\b"));
+        trie.subscribe("dave", new RespBulkString("b"));
+
+        List<String> delivered = new ArrayList<>();
+        trie.match("abc", (pattern, subscribers) -> subscribers.forEach(
+                subscriber -> delivered.add(subscriber + ":" + value(pattern))));
+        assertThat(delivered).containsExactlyInAnyOrder("alice:a*", "bob:a**");
+        assertThat(matches(trie, "b")).containsExactlyInAnyOrder("\\b", "b");
+
+        trie.unsubscribe("bob", new RespBulkString("a**"));
+        assertThat(matches(trie, "abc")).containsExactly("a*");
+        trie.unsubscribe("carol", new RespBulkString("\\b"));
+        assertThat(matches(trie, "b")).containsExactly("b");
+    }
+
+    private static List<String> matches(PatternTrie<String> trie, String channel) {
+        List<String> patterns = new ArrayList<>();
+        trie.match(channel, (pattern, subscribers) -> patterns.add(value(pattern)));
+        return patterns;
+    }
+
+    private static String value(RespValue pattern) {
+        return ((RespBulkString) pattern).value();
+    }
+}
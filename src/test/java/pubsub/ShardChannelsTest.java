@@ -0,0 +1,41 @@
+package pubsub;
+
+import org.junit.jupiter.api.Test;
+import redis.pubsub.ShardChannels;
+import redis.resp.RespBulkString;
+import redis.util.KeySlot;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ShardChannelsTest {
+
+    @Test
+    void testKeySlotMatchesClusterHashing() {
+        byte[] reference = "123456789".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(KeySlot.crc16(reference, 0, reference.length)).isEqualTo(0x31C3);
+        assertThat(KeySlot.slot("foo")).isEqualTo(12182);
+        assertThat(KeySlot.slot("{user1000}.following")).isEqualTo(KeySlot.slot("user1000"));
+        assertThat(KeySlot.slot("foo{}{bar}")).isEqualTo(8363).isNotEqualTo(KeySlot.slot("bar"));
+        assertThat(KeySlot.slot("foo{{bar}}zap")).isEqualTo(KeySlot.slot("{bar"));
+    }
+
+    @Test
+    void testSubscriptionsAreIndexedBySlot() {
+        ShardChannels<String> channels = new ShardChannels<>();
+        RespBulkString orders = new RespBulkString("{shop}.orders");
+        RespBulkString refunds = new RespBulkString("{shop}.refunds");
+
+        assertThat(channels.subscribe("alice", orders)).isEqualTo(1);
+        assertThat(channels.subscribe("alice", refunds)).isEqualTo(2);
+        assertThat(channels.subscribe("bob", orders)).isEqualTo(1);
+
+        assertThat(channels.subscribers(orders)).containsExactly("alice", "bob");
+        assertThat(channels.unsubscribe("alice", orders)).isEqualTo(1);
+        channels.unsubscribeAll("bob");
+        assertThat(channels.subscribers(orders)).isEmpty();
+        assertThat(channels.subscribers(refunds)).containsExactly("alice");
+    }
+}
@@ -0,0 +1,94 @@
+package replication;
+
+import org.junit.jupiter.api.Test;
+import redis.replication.ReplicationBacklog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ReplicationBacklogTest {
+
+    @Test
+    void testKeepsTheTailOfTheStreamAcrossWrapAround() throws IOException {
+        ReplicationBacklog backlog = new ReplicationBacklog(8, 100);
+
+        backlog.append(bytes("abcde"));
+        assertThat(backlog.contains(100)).isTrue();
+        assertThat(copyFrom(backlog, 102)).isEqualTo(bytes("cde"));
+
+        backlog.append(bytes("fghij"));
+        assertThat(backlog.getStartOffset()).isEqualTo(102);
+        assertThat(backlog.getEndOffset()).isEqualTo(110);
+        assertThat(backlog.contains(101)).isFalse();
+        assertThat(copyFrom(backlog, 102)).isEqualTo(bytes("cdefghij"));
+        assertThat(copyFrom(backlog, 110)).isEmpty();
+        assertThatThrownBy(() -> backlog.writeTo(111, Channels.newChannel(new ByteArrayOutputStream()))).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testAppendLargerThanCapacityKeepsItsEnd() throws IOException {
+        ReplicationBacklog backlog = new ReplicationBacklog(4, 0);
+
+        backlog.append(bytes("x"));
+        backlog.append(bytes("0123456789"));
+
+        assertThat(backlog.size()).isEqualTo(4);
+        assertThat(backlog.getEndOffset()).isEqualTo(11);
+        assertThat(copyFrom(backlog, 7)).isEqualTo(bytes("6789"));
+    }
+
+    @Test
+    void testCursorKeepsTheStreamBeyondCapacityUntilItPassesIt() throws IOException {
+        ReplicationBacklog backlog = new ReplicationBacklog(4, 0);
+        ReplicationBacklog.Cursor slow = backlog.open(0);
+        byte[] block = new byte[40_000];
+        Arrays.fill(block, (byte) 'x');
+
+        backlog.append(bytes("head"));
+        backlog.append(block);
+        assertThat(backlog.contains(0)).isFalse();
+        assertThat(backlog.heldBytes()).isEqualTo(40_004);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(backlog.writeTo(slow, Channels.newChannel(out))).isEqualTo(40_004);
+        assertThat(slow.offset()).isEqualTo(40_004);
+        assertThat(Arrays.copyOf(out.toByteArray(), 4)).isEqualTo(bytes("head"));
+        assertThat(backlog.heldBytes()).isLessThan(40_004);
+
+        backlog.close(slow);
+        backlog.append(block);
+        assertThat(backlog.heldBytes()).isLessThanOrEqualTo(2L * 16 * 1024);
+        assertThat(copyFrom(backlog, backlog.getStartOffset())).hasSize(4);
+    }
+
+    @Test
+    void testResetInvalidatesCursors() throws IOException {
+        ReplicationBacklog backlog = new ReplicationBacklog(16, 0);
+        ReplicationBacklog.Cursor cursor = backlog.open(0);
+        backlog.append(bytes("abc"));
+
+        backlog.reset(50);
+
+        assertThatThrownBy(() -> backlog.writeTo(cursor, Channels.newChannel(new ByteArrayOutputStream())))
+                .isInstanceOf(IllegalStateException.class);
+        backlog.close(cursor);
+        backlog.append(bytes("def"));
+        assertThat(copyFrom(backlog, 50)).isEqualTo(bytes("def"));
+    }
+
+    private static byte[] copyFrom(ReplicationBacklog backlog, long offset) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        backlog.writeTo(offset, Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
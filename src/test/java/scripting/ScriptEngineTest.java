@@ -0,0 +1,101 @@
+package scripting;
+
+import org.junit.jupiter.api.Test;
+import redis.resp.*;
+import redis.scripting.ScriptEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ScriptEngineTest {
+
+    @Test
+    void testScriptsAreCachedBySha() {
+        ScriptEngine engine = new ScriptEngine();
+
+        String sha = engine.load("return ARGV[1] .. KEYS[1]");
+
+        assertThat(sha).isEqualTo(ScriptEngine.sha1("return ARGV[1] .. KEYS[1]"));
+        assertThat(engine.exists(sha.toUpperCase())).isTrue();
+        assertThat(engine.run(sha, List.of(new RespBulkString("k")), List.of(new RespBulkString("v")), command -> null))
+                .isEqualTo(new RespBulkString("vk"));
+        engine.flush();
+        assertThat(engine.run(sha, List.of(), List.of(), command -> null)).isInstanceOf(RespError.class);
+    }
+
+    @Test
+    void testCallsGoThroughExecutorAndRepliesAreConverted() {
+        ScriptEngine engine = new ScriptEngine();
+        List<List<RespValue>> calls = new ArrayList<>();
+        String sha = engine.load("""
+                local n = redis.call('incr', KEYS[1])
+                return {n, redis.call('get', 'missing'), redis.status_reply('DONE'), 'tail'}""");
+
+        RespValue reply = engine.run(sha, List.of(new RespBulkString("counter")), List.of(), command -> {
+            calls.add(command);
+            return command.getFirst().equals(new RespBulkString("INCR")) ? new RespInteger(7) : new RespBulkString(null);
+        });
+
+        assertThat(calls.getFirst()).containsExactly(new RespBulkString("INCR"), new RespBulkString("counter"));
+        // a missing key reaches Lua as false, which goes back to RESP as a null bulk string
+        assertThat(reply).isEqualTo(new RespArray(List.of(new RespInteger(7), new RespBulkString(null),
+                new RespSimpleString("DONE"), new RespBulkString("tail"))));
+    }
+
+    @Test
+    void testSandboxAndErrors() {
+        ScriptEngine engine = new ScriptEngine();
+
+        assertThat(engine.run(engine.load("return os"), List.of(), List.of(), command -> null))
+                .isEqualTo(new RespBulkString(null));
+        assertThat(engine.run(engine.load("return redis.call('set', 'a', 'b')"), List.of(), List.of(),
+                command -> new RespError("ERR boom"))).isInstanceOf(RespError.class);
+        assertThat(engine.run(engine.load("return redis.pcall('set', 'a', 'b')"), List.of(), List.of(),
+                command -> new RespError("ERR boom"))).isEqualTo(new RespError("ERR boom"));
+        assertThatThrownBy(() -> engine.load("return (")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testScriptsCannotLeaveStateBehind() {
+        ScriptEngine engine = new ScriptEngine();
+
+        RespValue global = engine.run(engine.load("leaked = 1"), List.of(), List.of(), command -> null);
+        RespValue library = engine.run(engine.load("string.rep = nil"), List.of(), List.of(), command -> null);
+        RespValue print = engine.run(engine.load("return print"), List.of(), List.of(), command -> null);
+        String keys = engine.load("local previous = KEYS[2] KEYS[2] = 'x' return previous");
+        engine.run(keys, List.of(new RespBulkString("a")), List.of(), command -> null);
+
+        assertThat(((RespError) global).value()).contains("Script attempted to create global variable 'leaked'");
+        assertThat(((RespError) library).value()).contains("Attempt to modify a readonly table");
+        assertThat(print).isEqualTo(new RespBulkString(null));
+        assertThat(engine.run(keys, List.of(new RespBulkString("a")), List.of(), command -> null))
+                .isEqualTo(new RespBulkString(null));
+        assertThat(engine.run(engine.load("return string.rep('a', 2)"), List.of(), List.of(), command -> null))
+                .isEqualTo(new RespBulkString("aa"));
+    }
+
+    @Test
+    void testScriptPastItsTimeLimitIsKilledFromTheBusyHandler() {
+        AtomicReference<ScriptEngine> engine = new AtomicReference<>();
+        AtomicInteger busyCalls = new AtomicInteger();
+        engine.set(new ScriptEngine(0, () -> {
+            assertThat(engine.get().isBusy()).isTrue();
+            if (busyCalls.incrementAndGet() == 3) {
+                engine.get().kill();
+            }
+        }));
+
+        // pcall cannot catch the kill
+        RespValue reply = engine.get().run(engine.get().load("pcall(function() while true do end end)"),
+                List.of(), List.of(), command -> null);
+
+        assertThat(((RespError) reply).value()).startsWith("ERR Script killed by user with SCRIPT KILL");
+        assertThat(busyCalls).hasValue(3);
+        assertThat(engine.get().isBusy()).isFalse();
+    }
+}
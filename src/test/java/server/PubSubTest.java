@@ -0,0 +1,47 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespInteger;
+import redis.resp.RespValue;
+
+import java.net.Socket;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static server.TestServer.call;
+
+class PubSubTest {
+
+    @Test
+    void testPublishFansOutTheSameMessageToEverySubscriber() throws Exception {
+        try (TestServer server = new TestServer();
+             Socket first = server.connect();
+             Socket second = server.connect();
+             Socket other = server.connect();
+             Socket publisher = server.connect()) {
+            call(first, "SUBSCRIBE", "news");
+            call(second, "SUBSCRIBE", "news");
+            call(second, "SUBSCRIBE", "sport");
+            call(other, "SUBSCRIBE", "sport");
+
+            assertThat(call(publisher, "PUBLISH", "news", "hello")).isEqualTo(new RespInteger(2));
+            assertThat(call(publisher, "PUBLISH", "sport", "score")).isEqualTo(new RespInteger(2));
+            assertThat(TestServer.receive(first)).isEqualTo(message("news", "hello"));
+            assertThat(TestServer.receive(second)).isEqualTo(message("news", "hello"));
+            assertThat(TestServer.receive(second)).isEqualTo(message("sport", "score"));
+            assertThat(TestServer.receive(other)).isEqualTo(message("sport", "score"));
+
+            call(second, "UNSUBSCRIBE", "news");
+            assertThat(call(publisher, "PUBLISH", "news", "again")).isEqualTo(new RespInteger(1));
+            assertThat(TestServer.receive(first)).isEqualTo(message("news", "again"));
+            assertThat(call(publisher, "PUBLISH", "nobody", "listens")).isEqualTo(new RespInteger(0));
+        }
+    }
+
+    private static RespArray message(String channel, String content) {
+        return new RespArray(List.<RespValue>of(new RespBulkString("message"), new RespBulkString(channel),
+                new RespBulkString(content)));
+    }
+}
@@ -0,0 +1,150 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespInteger;
+import redis.resp.RespSimpleString;
+import redis.resp.RespValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static server.TestServer.call;
+
+class ReplicationTest {
+
+    @Test
+    void testConcurrentWaitsResolveAtEachReplicaAckedOffset() throws Exception {
+        try (TestServer master = new TestServer();
+             Socket first = master.connect();
+             Socket second = master.connect();
+             Socket replicaA = replica(master);
+             Socket replicaB = replica(master);
+             Socket info = master.connect()) {
+            call(first, "SET", "a", "1");
+            long firstOffset = offset(info);
+            TestServer.send(first, "WAIT", "2", "5000");
+            call(second, "SET", "b", "2");
+            long secondOffset = offset(info);
+            TestServer.send(second, "WAIT", "1", "5000");
+
+            // A reaches the second write, which is enough for the second WAIT only
+            TestServer.send(replicaA, "REPLCONF", "ACK", Long.toString(secondOffset));
+            assertThat(TestServer.receive(second)).isEqualTo(new RespInteger(1));
+            assertThat(first.getInputStream().available()).isZero();
+
+            // B reaches the first write, covered by A as well
+            TestServer.send(replicaB, "REPLCONF", "ACK", Long.toString(firstOffset));
+            assertThat(TestServer.receive(first)).isEqualTo(new RespInteger(2));
+
+            call(first, "SET", "c", "3");
+            assertThat(call(first, "WAIT", "1", "100")).isEqualTo(new RespInteger(0));
+        }
+    }
+
+    @Test
+    void testSubReplicaResumesThroughChainedReplicaAtMasterOffset() throws Exception {
+        try (TestServer master = new TestServer();
+             TestServer replica = new TestServer("--replicaof", "127.0.0.1 " + master.port);
+             Socket client = master.connect();
+             Socket masterInfo = master.connect();
+             Socket replicaInfo = replica.connect()) {
+            call(client, "SET", "a", "1");
+            long offset = Long.parseLong(info(masterInfo, "master_repl_offset"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!info(replicaInfo, "master_link_status").equals("up")
+                   || Long.parseLong(info(replicaInfo, "master_repl_offset")) != offset) {
+                assertThat(System.currentTimeMillis()).isLessThan(deadline);
+                Thread.sleep(20);
+            }
+            String replicationId = info(masterInfo, "master_replid");
+            assertThat(info(replicaInfo, "master_replid")).isEqualTo(replicationId);
+
+            try (Socket subReplica = replica.connect()) {
+                TestServer.send(subReplica, "PSYNC", replicationId, Long.toString(offset + 1));
+                assertThat(TestServer.receive(subReplica)).isEqualTo(new RespSimpleString("CONTINUE " + replicationId));
+
+                call(client, "SET", "b", "2");
+                assertThat(TestServer.receive(subReplica)).isEqualTo(new RespArray(List.<RespValue>of(
+                        new RespBulkString("SET"), new RespBulkString("b"), new RespBulkString("2"))));
+            }
+        }
+    }
+
+    @Test
+    void testLagMillisIsTheAgeOfTheFirstUnacknowledgedWrite() throws Exception {
+        try (TestServer master = new TestServer();
+             Socket replica = replica(master);
+             Socket client = master.connect()) {
+            assertThat(lagMillis(client)).isZero();
+
+            call(client, "SET", "a", "1");
+            long offset = offset(client);
+            Thread.sleep(300);
+            call(client, "SET", "b", "2");
+            assertThat(lagMillis(client)).isBetween(300L, 5000L);
+
+            // acknowledging the first write leaves the second, just written, as the oldest one missing
+            TestServer.send(replica, "REPLCONF", "ACK", Long.toString(offset));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (lagMillis(client) >= 300) {
+                assertThat(System.currentTimeMillis()).isLessThan(deadline);
+                Thread.sleep(10);
+            }
+
+            TestServer.send(replica, "REPLCONF", "ACK", Long.toString(offset(client)));
+            while (lagMillis(client) != 0) {
+                assertThat(System.currentTimeMillis()).isLessThan(deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Connects a replica that is handed the stream but acknowledges only what the test sends for it.
+     */
+    private static Socket replica(TestServer master) throws IOException {
+        Socket replica = master.connect();
+        TestServer.send(replica, "PSYNC", "?", "-1");
+        assertThat(TestServer.receive(replica)).isInstanceOf(RespSimpleString.class);
+        return replica;
+    }
+
+    private static long lagMillis(Socket client) throws IOException {
+        for (String property : info(client, "slave0").split(",")) {
+            if (property.startsWith("lag_ms=")) {
+                return Long.parseLong(property.substring("lag_ms=".length()));
+            }
+        }
+        throw new IllegalStateException("No lag_ms for the replica");
+    }
+
+    private static long offset(Socket client) throws IOException {
+        return Long.parseLong(info(client, "master_repl_offset"));
+    }
+
+    /**
+     * Reads a field of INFO replication, whose lines the RESP parser does not take within a bulk string.
+     */
+    private static String info(Socket client, String field) throws IOException {
+        TestServer.send(client, "INFO", "replication");
+        InputStream input = client.getInputStream();
+        StringBuilder header = new StringBuilder();
+        for (int read = input.read(); read != '\n'; read = input.read()) {
+            header.append((char) read);
+        }
+        int length = Integer.parseInt(header.substring(1).trim());
+        String info = new String(input.readNBytes(length + 2), StandardCharsets.UTF_8);
+        for (String line : info.split("\r\n")) {
+            if (line.startsWith(field + ":")) {
+                return line.substring(field.length() + 1);
+            }
+        }
+        throw new IllegalStateException("No " + field + " in " + info);
+    }
+}
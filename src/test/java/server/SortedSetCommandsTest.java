@@ -0,0 +1,58 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static server.TestServer.call;
+
+class SortedSetCommandsTest {
+
+    @Test
+    void testZPopHonoursCountAndRemovesEmptiedKey() throws Exception {
+        try (TestServer server = new TestServer(); Socket client = server.connect()) {
+            for (String member : List.of("a", "b", "c", "d")) {
+                call(client, "ZADD", "zset", Integer.toString(member.charAt(0) - 'a'), member);
+            }
+
+            assertThat(call(client, "ZPOPMIN", "zset")).isEqualTo(array("a", "0.0"));
+            assertThat(call(client, "ZPOPMAX", "zset", "2")).isEqualTo(array("d", "3.0", "c", "2.0"));
+            assertThat(call(client, "ZPOPMIN", "zset", "0")).isEqualTo(array());
+            assertThat(call(client, "KEYS", "zset")).isEqualTo(array("zset"));
+            assertThat(call(client, "ZPOPMIN", "zset", "10")).isEqualTo(array("b", "1.0"));
+            assertThat(call(client, "KEYS", "zset")).isEqualTo(array());
+            assertThat(call(client, "ZPOPMAX", "zset", "3")).isEqualTo(array());
+        }
+    }
+
+    @Test
+    void testBlockedZPopTimesOutAndIsServedInOrder() throws Exception {
+        try (TestServer server = new TestServer();
+             Socket first = server.connect();
+             Socket second = server.connect();
+             Socket writer = server.connect()) {
+            assertThat(call(first, "BZPOPMIN", "zset", "0.05")).isEqualTo(new RespBulkString(null));
+
+            TestServer.send(first, "BZPOPMIN", "zset", "0");
+            call(writer, "PING");
+            TestServer.send(second, "BZPOPMAX", "zset", "5");
+            call(writer, "PING");
+            call(writer, "ZADD", "zset", "1", "a");
+            call(writer, "ZADD", "zset", "2", "b");
+
+            assertThat(TestServer.receive(first)).isEqualTo(array("zset", "a", "1.0"));
+            assertThat(TestServer.receive(second)).isEqualTo(array("zset", "b", "2.0"));
+            assertThat(call(writer, "KEYS", "zset")).isEqualTo(array());
+        }
+    }
+
+    private static RespArray array(String... values) {
+        return new RespArray(Arrays.stream(values).<RespValue>map(RespBulkString::new).toList());
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import redis.MainEventLoop;
+import redis.cache.Cache;
+import redis.cache.StreamCache;
+import redis.config.RedisConfig;
+import redis.resp.Parser;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link MainEventLoop} serving on a free local port from its own thread, for tests talking RESP to a server.
+ */
+final class TestServer implements AutoCloseable {
+    final int port;
+    private final MainEventLoop loop;
+    private final Thread thread;
+
+    TestServer(String... arguments) throws IOException {
+        port = freePort();
+        List<String> options = new ArrayList<>(List.of(arguments));
+        options.add("--port");
+        options.add(Integer.toString(port));
+        loop = new MainEventLoop(new RedisConfig(options.toArray(String[]::new)), new Cache(), new StreamCache());
+        thread = new Thread(() -> {
+            try {
+                loop.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.start();
+    }
+
+    Socket connect() throws IOException {
+        return new Socket("127.0.0.1", port);
+    }
+
+    static RespValue call(Socket client, String... arguments) throws IOException {
+        send(client, arguments);
+        return receive(client);
+    }
+
+    static void send(Socket client, String... arguments) throws IOException {
+        List<RespValue> values = new ArrayList<>();
+        for (String argument : arguments) {
+            values.add(new RespBulkString(argument));
+        }
+        client.getOutputStream().write(new RespArray(values).serialize());
+    }
+
+    /**
+     * Reads a single reply, byte by byte so that the replies pushed after it stay unread.
+     */
+    static RespValue receive(Socket client) throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        while (true) {
+            int read = client.getInputStream().read();
+            if (read == -1) {
+                throw new EOFException("Connection closed before the reply");
+            }
+            reply.write(read);
+            if (read != '\n') {
+                continue;
+            }
+            try {
+                return new Parser().parse(reply.toByteArray()).getFirst();
+            } catch (IllegalArgumentException | IndexOutOfBoundsException _) {
+                // the reply is not complete yet
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        thread.interrupt();
+        thread.join();
+        loop.close();
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import redis.resp.RespArray;
+import redis.resp.RespBulkString;
+import redis.resp.RespSimpleString;
+import redis.resp.RespValue;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static server.TestServer.call;
+
+class TransactionTest {
+    private static final byte[] NULL_ARRAY = "*-1\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    void testExecIsAbortedOnceAWatchedKeyIsTouched() throws Exception {
+        try (TestServer server = new TestServer(); Socket client = server.connect(); Socket other = server.connect()) {
+            call(client, "SET", "balance", "10");
+            call(client, "WATCH", "balance", "unrelated");
+            call(other, "INCR", "balance");
+            call(client, "MULTI");
+            call(client, "SET", "balance", "0");
+
+            assertThat(exec(client)).isEqualTo(NULL_ARRAY);
+            assertThat(call(client, "GET", "balance")).isEqualTo(new RespBulkString("11"));
+
+            // EXEC unwatches: the next transaction is not aborted by the earlier touch
+            call(client, "MULTI");
+            call(client, "SET", "balance", "0");
+            assertThat(call(client, "EXEC")).isEqualTo(new RespArray(List.<RespValue>of(new RespSimpleString("OK"))));
+        }
+    }
+
+    @Test
+    void testUnwatchForgetsTouchedKeys() throws Exception {
+        try (TestServer server = new TestServer(); Socket client = server.connect(); Socket other = server.connect()) {
+            call(client, "WATCH", "balance");
+            call(other, "SET", "balance", "5");
+            call(client, "UNWATCH");
+            call(other, "SET", "balance", "6");
+            call(client, "MULTI");
+            call(client, "GET", "balance");
+
+            assertThat(call(client, "EXEC")).isEqualTo(new RespArray(List.<RespValue>of(new RespBulkString("6"))));
+        }
+    }
+
+    @Test
+    void testUntouchedWatchLetsExecRun() throws Exception {
+        try (TestServer server = new TestServer(); Socket client = server.connect(); Socket other = server.connect()) {
+            call(client, "WATCH", "balance");
+            call(other, "SET", "other", "1");
+            call(client, "MULTI");
+            call(client, "SET", "balance", "1");
+
+            assertThat(call(client, "EXEC")).isEqualTo(new RespArray(List.<RespValue>of(new RespSimpleString("OK"))));
+        }
+    }
+
+    private static byte[] exec(Socket client) throws Exception {
+        TestServer.send(client, "EXEC");
+        return client.getInputStream().readNBytes(NULL_ARRAY.length);
+    }
+}